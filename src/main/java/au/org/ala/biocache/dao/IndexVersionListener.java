@@ -0,0 +1,32 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dao;
+
+/**
+ * Notified when the SOLR index version changes, so that caches of index data can be invalidated.
+ *
+ * @see SearchDAO#addIndexVersionListener(IndexVersionListener)
+ */
+public interface IndexVersionListener {
+
+    /**
+     * Called on the index version refresh thread after the new version has been published, so
+     * {@link SearchDAO#getIndexVersion(Boolean)} already returns the new version.
+     *
+     * @param oldVersion The previous index version
+     * @param newVersion The new index version
+     */
+    void indexVersionChanged(long oldVersion, long newVersion);
+}
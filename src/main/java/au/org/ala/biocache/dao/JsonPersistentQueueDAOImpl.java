@@ -1,12 +1,12 @@
 /**************************************************************************
  *  Copyright (C) 2010 Atlas of Living Australia
  *  All Rights Reserved.
- * 
+ *
  *  The contents of this file are subject to the Mozilla Public
  *  License Version 1.1 (the "License"); you may not use this file
  *  except in compliance with the License. You may obtain a copy of
  *  the License at http://www.mozilla.org/MPL/
- * 
+ *
  *  Software distributed under the License is distributed on an "AS
  *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
  *  implied. See the License for the specific language governing
@@ -16,6 +16,8 @@ package au.org.ala.biocache.dao;
 
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.stream.DownloadCheckpoint;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
@@ -24,58 +26,165 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A queue that stores the Downloads as JSON files in the supplied directory
- * 
+ * A queue that stores the Downloads as JSON records in an append-only log in the supplied directory.
+ * <p>
+ * Each addition and removal is appended to the log before the in-memory queue is changed, and each start is appended
+ * so that the file location of a started download is known when the log is replayed. The log is replayed and
+ * compacted when the queue is refreshed from persistent storage. Queued downloads that have not started are indexed
+ * by download type and size class, with the first download of each user in a size class kept in scheduling order,
+ * so that finding the next download for a {@link au.org.ala.biocache.util.thread.DownloadControlThread} does not
+ * scan the whole queue, and a hash index is used to detect duplicate requests.
+ * <p>
+ * Downloads are scheduled using start-time fair queuing across users (identified by email). Each started download
+ * advances the virtual finish time of its user by its estimated cost, the number of records divided by the weight
+ * of the user, and the next download is taken from the user with the earliest virtual start time. A user's own
+ * downloads are started smallest first. Users who already have
+ * {@link #maxRunningPerUser} downloads running are only served when no other user has an eligible download.
+ *
  * @author Natasha Carter (natasha.carter@csiro.au)
  */
 @Component("persistentQueueDao")
 public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
-	
+
     /** log4 j logger */
     private static final Logger logger = Logger.getLogger(JsonPersistentQueueDAOImpl.class);
-    
+
     @Value("${download.cache.dir:/data/cache/downloads}")
     protected String cacheDirectory="/data/cache/downloads";
-    
+
+    /**
+     * Prefix of the JSON files used to persist individual downloads before the queue log was introduced.
+     * These are imported into the log and deleted on refresh.
+     */
     private static final String FILE_PREFIX = "offline";
 
+    private static final String LOG_FILE = "queue.log";
+
+    private static final String LOG_ADD = "A";
+
+    private static final String LOG_REMOVE = "R";
+
+    private static final String LOG_START = "S";
+
+    /**
+     * Number of obsolete records that may accumulate in the queue log before it is compacted.
+     */
+    @Value("${download.queue.log.compaction.threshold:1000}")
+    protected int compactionThreshold = 1000;
+
     @Value("${download.dir:/data/biocache-download}")
     protected String biocacheDownloadDir;
 
+    /**
+     * JSON object of user email to scheduling weight. Users that are not listed have a weight of 1.
+     */
+    @Value("${download.fairshare.weights:{}}")
+    protected String fairShareWeightsJSON = "{}";
+
+    /**
+     * The smallest cost charged to a user for a download, so that many tiny downloads still count towards their share.
+     */
+    @Value("${download.fairshare.min.cost:10000}")
+    protected long minDownloadCost = 10000;
+
+    /**
+     * Number of concurrent downloads a user can have before other users are preferred. Zero or less for no limit.
+     */
+    @Value("${download.fairshare.max.running.per.user:2}")
+    protected int maxRunningPerUser = 2;
+
+    private Map<String, Double> fairShareWeights = Collections.emptyMap();
+
     private final ObjectMapper jsonMapper = new ObjectMapper();
-    
-    private final Queue<DownloadDetailsDTO> offlineDownloadList = new LinkedBlockingQueue<>();
 
+    /**
+     * All of the downloads in the queue, in the order in which they were requested.
+     */
+    private final Map<DownloadDetailsDTO, QueueEntry> offlineDownloads = new IdentityHashMap<>();
+
+    private final TreeMap<Long, QueueEntry> offlineDownloadsBySequence = new TreeMap<>();
+
+    /**
+     * Downloads that have not been started, indexed by download type and size class.
+     */
+    private final Map<DownloadDetailsDTO.DownloadType, TreeMap<Integer, SizeClass>> pendingIndex = new HashMap<>();
+
+    /**
+     * Downloads that have not been started for each download type, in request order.
+     */
+    private final Map<DownloadDetailsDTO.DownloadType, TreeMap<Long, QueueEntry>> pendingByType = new HashMap<>();
+
+    /**
+     * Fair share accounting for each user with queued or running downloads.
+     */
+    private final Map<String, UserShare> userShares = new HashMap<>();
+
+    /**
+     * The virtual time of the scheduler, which is the start time of the most recently started download.
+     */
+    private double virtualTime = 0;
+
+    /**
+     * Index used to detect requests that are already in the queue.
+     */
+    private final Map<String, QueueEntry> duplicateIndex = new HashMap<>();
+
+    /**
+     * Guards the in-memory queue and indexes. Never held while writing to disk.
+     */
     private final Object listLock = new Object();
 
+    /**
+     * Guards the queue log. Additions, starts and removals take this lock before the listLock so that records
+     * for a download are always appended to the log in the order they are applied in memory.
+     */
+    private final Object logLock = new Object();
+
+    private FileOutputStream logStream;
+
+    private Writer logWriter;
+
+    /**
+     * Number of records in the queue log, including those made obsolete by later removals.
+     */
+    private long logRecords = 0;
+
+    private long nextSequence = 0;
+
     /**
      * Start closed and wait until the {@link #init()} method completes to accept downloads.<br>
-     * Otherwise there is the chance that they will be clobbered or fail to be added correctly by the "forceMkdir" code 
-     * or the refresh that clears the queue and refreshes it from the JSON files on disk.<br>
+     * Otherwise there is the chance that they will be clobbered or fail to be added correctly by the "forceMkdir" code
+     * or the refresh that clears the queue and refreshes it from the queue log on disk.<br>
      * Can also be closed by a call to the {@link #shutdown()} method.
      */
     private final AtomicBoolean closed = new AtomicBoolean(true);
-    
+
     /**
      * Ensures initialisation is only attempted once, to avoid clobbering the queue by a reinitialisation.
      */
     private final AtomicBoolean initialised = new AtomicBoolean(false);
-    
+
     /**
-     * A latch that is released once initialisation completes, to enable the off-thread 
+     * A latch that is released once initialisation completes, to enable the off-thread
      * initialisation to occur completely before servicing queries.
      */
     private final CountDownLatch initialisationLatch = new CountDownLatch(1);
-    
+
     /**
      * Call this method at the start of web service calls that require initialisation to be complete before continuing.
      * This blocks until it is either interrupted or the initialisation thread from {@link #init()} is finished (successful or not).
@@ -87,7 +196,7 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
             Thread.currentThread().interrupt();
         }
     }
-    
+
     @PostConstruct
     @Override
     public void init() {
@@ -98,17 +207,23 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
                 @Override
                 public void run() {
                     try {
-                        synchronized (listLock) {
+                        synchronized (logLock) {
                             jsonMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-                
+
+                            try {
+                                fairShareWeights = jsonMapper.readValue(fairShareWeightsJSON, new TypeReference<Map<String, Double>>() {});
+                            } catch (IOException e) {
+                                logger.error("Unable to parse download.fairshare.weights: " + fairShareWeightsJSON, e);
+                            }
+
                             File file = new File(cacheDirectory);
                             try {
                                 FileUtils.forceMkdir(file);
                             } catch (IOException e) {
                                 logger.error("Unable to construct cache directory with correct permissions.", e);
                             }
-                
-                            // IMPORTANT: must set closed to false before calling refreshFromPersistent, 
+
+                            // IMPORTANT: must set closed to false before calling refreshFromPersistent,
                             // to avoid refresh adding downloads to queue when we are closed
                             closed.set(false);
                             refreshFromPersistent();
@@ -120,14 +235,11 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
             }.start();
         }
     }
-    /**
-     * Returns a file object that represents the a persisted download on the queue
-     * @param key
-     * @return
-     */
-    private File getFile(long key) {
-        return new File(cacheDirectory +File.separator+ FILE_PREFIX + key + ".json");
+
+    private File getLogFile() {
+        return new File(cacheDirectory + File.separator + LOG_FILE);
     }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#addDownloadToQueue(DownloadDetailsDTO)
      */
@@ -135,10 +247,11 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     public void addDownloadToQueue(DownloadDetailsDTO download) {
         afterInitialisation();
         if (!closed.get()) {
-            synchronized (listLock) {
+            synchronized (logLock) {
                 boolean allGood = false;
+                QueueEntry entry = null;
                 try {
-                    // Avoid double addition by checking if it is already in the queue while we have the listLock
+                    // Avoid double addition by checking if it is already in the queue while we have the logLock
                     DownloadDetailsDTO inQueue = isInQueue(download);
                     if(inQueue != null) {
                         if(logger.isInfoEnabled()) {
@@ -146,15 +259,19 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
                         }
                         return;
                     }
-                    File f = getFile(download.getStartTime());
-                    jsonMapper.writeValue(f, download);
+                    synchronized (listLock) {
+                        entry = new QueueEntry(nextSequence++, download);
+                    }
+                    appendToLog(LOG_ADD + "\t" + entry.sequence + "\t" + jsonMapper.writeValueAsString(download));
                     allGood = true;
                 } catch (Exception e) {
                     logger.error("Unable to store download details to persistent storage: ", e);
                 }
                 finally {
                     if (allGood) {
-                        offlineDownloadList.add(download);
+                        synchronized (listLock) {
+                            addEntry(entry);
+                        }
                     } else {
                         logger.error("Download could not be added to the queue: " + download.toString());
                     }
@@ -164,52 +281,169 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
             logger.error("Download could not be added to the queue because the queue has been closed: " + download.toString());
         }
     }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload()
      */
     @Override
     public DownloadDetailsDTO getNextDownload() {
+        return getNextDownload(null, null);
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type)
+     */
+    @Override
+    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type) {
         afterInitialisation();
-        synchronized (listLock) {
-            for (DownloadDetailsDTO dd : offlineDownloadList) {
-                if (dd.getFileLocation() == null) {
-                    //give a place for the downlaod
-                    dd.setFileLocation(biocacheDownloadDir + File.separator + UUID.nameUUIDFromBytes(dd.getEmail().getBytes(StandardCharsets.UTF_8)) + File.separator + dd.getStartTime() + File.separator + dd.getRequestParams().getFile() + ".zip");
-                    return dd;
+        synchronized (logLock) {
+            QueueEntry next = null;
+            synchronized (listLock) {
+                int maxSizeClass = maxRecords == null ? Integer.MAX_VALUE : getSizeClass(maxRecords);
+                for (Map.Entry<DownloadDetailsDTO.DownloadType, TreeMap<Integer, SizeClass>> typeIndex : pendingIndex.entrySet()) {
+                    if (type != null && !type.equals(typeIndex.getKey())) {
+                        continue;
+                    }
+                    for (Map.Entry<Integer, SizeClass> sizeIndex : typeIndex.getValue().headMap(maxSizeClass, true).entrySet()) {
+                        // every download in a smaller size class than maxRecords fits, but only some of those in the
+                        // same size class may
+                        QueueEntry candidate = sizeIndex.getKey() < maxSizeClass ? sizeIndex.getValue().first()
+                                : sizeIndex.getValue().first(maxRecords);
+                        if (candidate != null && (next == null || compareForScheduling(candidate, next) < 0)) {
+                            next = candidate;
+                        }
+                    }
                 }
+
+                if (next != null) {
+                    startDownload(next);
+                }
+            }
+
+            if (next != null) {
+                logStart(next);
+                return next.download;
             }
         }
-        
+
         //if we reached here all of the downloads have started or there are no downloads on the list
         return null;
     }
 
     /**
-     * @see au.org.ala.biocache.dao.PersistentQueueDAO#getNextDownload(Integer maxRecords, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType type)
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#stealNextDownload(Integer, au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType, long)
      */
     @Override
-    public DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type) {
+    public DownloadDetailsDTO stealNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType ownType, long minQueueTime) {
         afterInitialisation();
-        synchronized (listLock) {
-            for (DownloadDetailsDTO dd : offlineDownloadList) {
-                if (dd.getFileLocation() == null &&
-                        (maxRecords == null || dd.getTotalRecords() <= maxRecords) &&
-                        (type == null || dd.getDownloadType().equals(type))) {
-                    //give a place for the downlaod
-                    UUID emailUUID = UUID.nameUUIDFromBytes(dd.getEmail().getBytes(StandardCharsets.UTF_8));
-                    long startTime = dd.getStartTime();
-                    DownloadRequestParams requestParams = dd.getRequestParams();
-                    String file = requestParams.getFile();
-                    dd.setFileLocation(biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip");
-                    return dd;
+        long queuedBefore = System.currentTimeMillis() - minQueueTime;
+        synchronized (logLock) {
+            QueueEntry next = null;
+            synchronized (listLock) {
+                for (Map.Entry<DownloadDetailsDTO.DownloadType, TreeMap<Long, QueueEntry>> typeEntries : pendingByType.entrySet()) {
+                    if (ownType != null && ownType.equals(typeEntries.getKey())) {
+                        continue;
+                    }
+                    for (QueueEntry entry : typeEntries.getValue().values()) {
+                        if (entry.download.getStartTime() > queuedBefore) {
+                            // the remaining downloads of this type were queued more recently
+                            break;
+                        }
+                        if (maxRecords == null || entry.download.getTotalRecords() <= maxRecords) {
+                            if (next == null || entry.sequence < next.sequence) {
+                                next = entry;
+                            }
+                            break;
+                        }
+                    }
+                }
+
+                if (next != null) {
+                    startDownload(next);
                 }
             }
+
+            if (next != null) {
+                logStart(next);
+                return next.download;
+            }
         }
 
-        //if we reached here all of the downloads have started or there are no downloads on the list
         return null;
     }
-    
+
+    /**
+     * Orders downloads by the fair share of their users, followed by their size and the order they were requested.
+     * Must be called while holding the listLock.
+     */
+    private int compareForScheduling(QueueEntry a, QueueEntry b) {
+        UserShare shareA = userShares.get(a.user);
+        UserShare shareB = userShares.get(b.user);
+        if (shareA != shareB) {
+            int result = Boolean.compare(isOverLimit(shareA), isOverLimit(shareB));
+            if (result == 0) {
+                result = Double.compare(Math.max(virtualTime, shareA.finishTime), Math.max(virtualTime, shareB.finishTime));
+            }
+            if (result == 0) {
+                result = Integer.compare(shareA.running, shareB.running);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return QUEUE_ENTRY_BY_SIZE.compare(a, b);
+    }
+
+    private boolean isOverLimit(UserShare share) {
+        return maxRunningPerUser > 0 && share.running >= maxRunningPerUser;
+    }
+
+    /**
+     * Marks the download as started and charges its cost to its user. Must be called while holding the listLock.
+     */
+    private void startDownload(QueueEntry entry) {
+        removePending(entry);
+
+        UserShare share = userShares.get(entry.user);
+        removeHeads(entry.user, share);
+        double startTime = Math.max(virtualTime, share.finishTime);
+        virtualTime = startTime;
+        share.finishTime = startTime + Math.max(entry.download.getTotalRecords(), minDownloadCost) / share.weight;
+        share.running++;
+        addHeads(entry.user, share);
+
+        //give a place for the download. A download resumed from a checkpoint keeps the date it first started
+        DownloadDetailsDTO dd = entry.download;
+        dd.setFileLocation(getDownloadFileLocation(dd));
+        if (dd.getProcessingStartDate() == null) {
+            dd.setProcessingStartDate(new Date());
+        }
+    }
+
+    /**
+     * Appends the start of a download to the queue log. Must be called while holding the logLock.
+     */
+    private void logStart(QueueEntry entry) {
+        try {
+            Map<String, Object> started = new LinkedHashMap<>();
+            started.put("fileLocation", entry.download.getFileLocation());
+            started.put("processingStartDate", entry.download.getProcessingStartDate().getTime());
+            appendToLog(LOG_START + "\t" + entry.sequence + "\t" + jsonMapper.writeValueAsString(started));
+        } catch (IOException e) {
+            logger.error("Unable to store download start to persistent storage: " + entry.download.toString(), e);
+        }
+
+        compactLogIfNecessary();
+    }
+
+    private String getDownloadFileLocation(DownloadDetailsDTO dd) {
+        UUID emailUUID = UUID.nameUUIDFromBytes(dd.getEmail().getBytes(StandardCharsets.UTF_8));
+        long startTime = dd.getStartTime();
+        DownloadRequestParams requestParams = dd.getRequestParams();
+        String file = requestParams.getFile();
+        return biocacheDownloadDir + File.separator + emailUUID + File.separator + startTime + File.separator + file + ".zip";
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#getTotalDownloads()
      */
@@ -217,34 +451,41 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     public int getTotalDownloads() {
         afterInitialisation();
         synchronized (listLock) {
-            return offlineDownloadList.size();
+            return offlineDownloads.size();
         }
     }
-    
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#removeDownloadFromQueue(au.org.ala.biocache.dto.DownloadDetailsDTO)
      */
     @Override
     public void removeDownloadFromQueue(DownloadDetailsDTO download) {
         afterInitialisation();
-        synchronized (listLock) {
+        synchronized (logLock) {
             logger.debug("Removing the download from the queue");
-            // delete it from the directory
+            QueueEntry entry;
+            synchronized (listLock) {
+                entry = offlineDownloads.get(download);
+            }
             try {
-                File f = getFile(download.getStartTime());
-                if (logger.isInfoEnabled()) {
-                    logger.info("Deleting " + f.getAbsolutePath() + " " + f.exists());
+                if (entry != null) {
+                    appendToLog(LOG_REMOVE + "\t" + entry.sequence);
+                }
+            } catch (IOException e) {
+                logger.error("Unable to store download removal to persistent storage: " + download.toString(), e);
+            } finally {
+                if (entry != null) {
+                    synchronized (listLock) {
+                        removeEntry(entry);
+                    }
                 }
-                FileUtils.deleteQuietly(f);
-            }
-            finally {
-                offlineDownloadList.remove(download);
                 download.getInterrupt().set(true);
             }
+
+            compactLogIfNecessary();
         }
-        
     }
-    
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#getAllDownloads()
      */
@@ -252,48 +493,59 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     public List<DownloadDetailsDTO> getAllDownloads() {
         afterInitialisation();
         synchronized (listLock) {
-            List<DownloadDetailsDTO> result = new ArrayList<>(offlineDownloadList);
+            List<DownloadDetailsDTO> result = new ArrayList<>(offlineDownloadsBySequence.size());
+            for (QueueEntry entry : offlineDownloadsBySequence.values()) {
+                result.add(entry.download);
+            }
             return Collections.unmodifiableList(result);
         }
     }
-    
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#refreshFromPersistent()
      */
     @Override
     public void refreshFromPersistent() {
         if (!closed.get()) {
-            synchronized (listLock) {
-                offlineDownloadList.clear();
-                File file = new File(cacheDirectory);
-                //load the list with the available downloads ordering by the least recently modified
-                File[] files = file.listFiles();
-                if (files != null) {
-                    Arrays.sort(files, new Comparator<File>() {
-                        @Override
-                        public int compare(File o1, File o2) {
-                            return (int) (((File) o1).lastModified() - ((File) o2).lastModified());
-                        }
-                    });
-    
-                    //value = jsonMapper.readValue(file, ParamsCacheObject.class);
-                    for (File f : files) {
-                        if (f.isFile()) {
-                            try {
-                                DownloadDetailsDTO dd = jsonMapper.readValue(f, DownloadDetailsDTO.class);
-                                // Ensure that previously partially downloaded files get their downloads 
-                                // reattempted by making them available for download again and removing 
-                                // any partial files that already exist for it
-                                String previousFileLocation = dd.getFileLocation();
-                                dd.setFileLocation(null);
-                                if (previousFileLocation != null) {
-                                    FileUtils.deleteQuietly(new File(previousFileLocation));
-                                }
-                                offlineDownloadList.add(dd);
-                            } catch (Exception e) {
-                                logger.error("Unable to load cached download " + f.getAbsolutePath(), e);
-                            }
+            synchronized (logLock) {
+                closeLog();
+
+                // replay the queue log, followed by any downloads persisted as individual JSON files
+                TreeMap<Long, DownloadDetailsDTO> downloads = new TreeMap<>();
+                long maxSequence = readLog(downloads);
+                List<File> legacyFiles = readLegacyFiles(downloads, maxSequence + 1);
+
+                synchronized (listLock) {
+                    offlineDownloads.clear();
+                    offlineDownloadsBySequence.clear();
+                    pendingIndex.clear();
+                    pendingByType.clear();
+                    duplicateIndex.clear();
+                    userShares.clear();
+                    virtualTime = 0;
+                    nextSequence = downloads.isEmpty() ? 0 : downloads.lastKey() + 1;
+
+                    for (Map.Entry<Long, DownloadDetailsDTO> next : downloads.entrySet()) {
+                        DownloadDetailsDTO dd = next.getValue();
+                        // Ensure that previously partially downloaded files get their downloads
+                        // reattempted by making them available for download again and removing
+                        // any partial files that already exist for it, unless they were checkpointed
+                        // and can be resumed from the same location
+                        String previousFileLocation = dd.getFileLocation();
+                        dd.setFileLocation(null);
+                        if (previousFileLocation != null
+                                && !DownloadCheckpoint.getCheckpointFile(new File(previousFileLocation)).exists()) {
+                            FileUtils.deleteQuietly(new File(previousFileLocation));
+                            dd.setProcessingStartDate(null);
                         }
+                        addEntry(new QueueEntry(next.getKey(), dd));
+                    }
+                }
+
+                // rewrite the log so that it only contains the current queue, then it is safe to remove the JSON files
+                if (writeCompactedLog()) {
+                    for (File f : legacyFiles) {
+                        FileUtils.deleteQuietly(f);
                     }
                 }
             }
@@ -303,6 +555,158 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
         }
     }
 
+    /**
+     * Replays the queue log into the supplied map.
+     *
+     * @return The largest sequence number found in the log, or -1 if there were none
+     */
+    private long readLog(TreeMap<Long, DownloadDetailsDTO> downloads) {
+        long maxSequence = -1;
+        logRecords = 0;
+        File logFile = getLogFile();
+        if (!logFile.isFile()) {
+            return maxSequence;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(logFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 3);
+                try {
+                    long sequence = Long.parseLong(parts[1]);
+                    if (LOG_ADD.equals(parts[0]) && parts.length == 3) {
+                        downloads.put(sequence, jsonMapper.readValue(parts[2], DownloadDetailsDTO.class));
+                    } else if (LOG_START.equals(parts[0]) && parts.length == 3) {
+                        Map<String, Object> started = jsonMapper.readValue(parts[2], new TypeReference<Map<String, Object>>() {});
+                        DownloadDetailsDTO dd = downloads.get(sequence);
+                        if (dd != null) {
+                            dd.setFileLocation((String) started.get("fileLocation"));
+                            dd.setProcessingStartDate(new Date(((Number) started.get("processingStartDate")).longValue()));
+                        }
+                    } else if (LOG_REMOVE.equals(parts[0])) {
+                        downloads.remove(sequence);
+                    } else {
+                        throw new IllegalArgumentException("Unknown record type");
+                    }
+                    maxSequence = Math.max(maxSequence, sequence);
+                    logRecords++;
+                } catch (Exception e) {
+                    // a partially written record is expected at the end of the log if the service was killed while writing
+                    logger.error("Unable to read download queue record from " + logFile.getAbsolutePath() + ": " + line, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read download queue log " + logFile.getAbsolutePath(), e);
+        }
+        return maxSequence;
+    }
+
+    /**
+     * Reads downloads that were persisted as individual JSON files, ordering by the least recently modified.
+     *
+     * @return The files that were read
+     */
+    private List<File> readLegacyFiles(TreeMap<Long, DownloadDetailsDTO> downloads, long firstSequence) {
+        List<File> result = new ArrayList<>();
+        File[] files = new File(cacheDirectory).listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    return Long.compare(o1.lastModified(), o2.lastModified());
+                }
+            });
+
+            long sequence = firstSequence;
+            for (File f : files) {
+                if (f.isFile() && f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(".json")) {
+                    try {
+                        downloads.put(sequence++, jsonMapper.readValue(f, DownloadDetailsDTO.class));
+                        result.add(f);
+                    } catch (Exception e) {
+                        logger.error("Unable to load cached download " + f.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends a record to the queue log and forces it to disk. Must be called while holding the logLock.
+     */
+    private void appendToLog(String record) throws IOException {
+        if (logWriter == null) {
+            logStream = new FileOutputStream(getLogFile(), true);
+            logWriter = new BufferedWriter(new OutputStreamWriter(logStream, StandardCharsets.UTF_8));
+        }
+        logWriter.write(record);
+        logWriter.write('\n');
+        logWriter.flush();
+        logStream.getChannel().force(false);
+        logRecords++;
+    }
+
+    private void closeLog() {
+        if (logWriter != null) {
+            try {
+                logWriter.close();
+            } catch (IOException e) {
+                logger.error("Unable to close download queue log", e);
+            } finally {
+                logWriter = null;
+                logStream = null;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the queue log when the number of obsolete records exceeds the compaction threshold.
+     * Must be called while holding the logLock.
+     */
+    private void compactLogIfNecessary() {
+        int live;
+        synchronized (listLock) {
+            live = offlineDownloads.size();
+        }
+        if (logRecords - live > compactionThreshold) {
+            writeCompactedLog();
+        }
+    }
+
+    /**
+     * Replaces the queue log with one that contains a single record for each download currently in the queue.
+     * Must be called while holding the logLock.
+     *
+     * @return True if the log was replaced
+     */
+    private boolean writeCompactedLog() {
+        List<QueueEntry> entries;
+        synchronized (listLock) {
+            entries = new ArrayList<>(offlineDownloadsBySequence.values());
+        }
+        closeLog();
+        File logFile = getLogFile();
+        File tmpFile = new File(logFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmpFile);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+                for (QueueEntry entry : entries) {
+                    writer.write(LOG_ADD + "\t" + entry.sequence + "\t" + jsonMapper.writeValueAsString(entry.download));
+                    writer.write('\n');
+                }
+                writer.flush();
+                fos.getChannel().force(true);
+            }
+            Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logRecords = entries.size();
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to compact download queue log " + logFile.getAbsolutePath(), e);
+            FileUtils.deleteQuietly(tmpFile);
+            return false;
+        }
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#isInQueue(au.org.ala.biocache.dto.DownloadDetailsDTO dd)
      */
@@ -310,20 +714,313 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
     public DownloadDetailsDTO isInQueue(DownloadDetailsDTO dd) {
         afterInitialisation();
         synchronized (listLock) {
-            for (DownloadDetailsDTO d : offlineDownloadList) {
-                if (d.getEmail().equalsIgnoreCase(d.getEmail()) &&
-                        d.getDownloadParams().equalsIgnoreCase(dd.getDownloadParams())) {
-                    return d;
-                }
+            QueueEntry entry = duplicateIndex.get(getDuplicateKey(dd));
+            if (entry != null) {
+                return entry.download;
             }
         }
 
         //if we reached here it was not found
         return null;
     }
-    
+
+    private static String getDuplicateKey(DownloadDetailsDTO dd) {
+        return String.valueOf(dd.getEmail()).toLowerCase() + "\n" + String.valueOf(dd.getDownloadParams()).toLowerCase();
+    }
+
+    private static int getSizeClass(long totalRecords) {
+        return totalRecords <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(totalRecords);
+    }
+
+    /**
+     * Adds an entry to the queue and all indexes. Must be called while holding the listLock.
+     */
+    private void addEntry(QueueEntry entry) {
+        offlineDownloads.put(entry.download, entry);
+        offlineDownloadsBySequence.put(entry.sequence, entry);
+        duplicateIndex.put(entry.duplicateKey, entry);
+
+        UserShare share = userShares.get(entry.user);
+        if (share == null) {
+            Double weight = fairShareWeights.get(entry.user);
+            share = new UserShare(weight != null && weight > 0 ? weight : 1.0);
+            userShares.put(entry.user, share);
+        }
+        share.downloads++;
+
+        if (entry.download.getFileLocation() == null) {
+            DownloadDetailsDTO.DownloadType type = entry.download.getDownloadType();
+            TreeMap<Integer, SizeClass> typeIndex = pendingIndex.get(type);
+            if (typeIndex == null) {
+                typeIndex = new TreeMap<>();
+                pendingIndex.put(type, typeIndex);
+            }
+            SizeClass sizeClass = typeIndex.get(entry.sizeClass);
+            if (sizeClass == null) {
+                sizeClass = new SizeClass();
+                typeIndex.put(entry.sizeClass, sizeClass);
+            }
+            sizeClass.add(entry, share);
+
+            TreeMap<Long, QueueEntry> typeEntries = pendingByType.get(type);
+            if (typeEntries == null) {
+                typeEntries = new TreeMap<>();
+                pendingByType.put(type, typeEntries);
+            }
+            typeEntries.put(entry.sequence, entry);
+        } else {
+            removeHeads(entry.user, share);
+            share.running++;
+            addHeads(entry.user, share);
+        }
+    }
+
+    /**
+     * Removes an entry from the queue and all indexes. Must be called while holding the listLock.
+     */
+    private void removeEntry(QueueEntry entry) {
+        offlineDownloads.remove(entry.download);
+        offlineDownloadsBySequence.remove(entry.sequence);
+        duplicateIndex.remove(entry.duplicateKey, entry);
+        boolean started = !removePending(entry);
+
+        UserShare share = userShares.get(entry.user);
+        if (share != null) {
+            share.downloads--;
+            if (started) {
+                removeHeads(entry.user, share);
+                share.running--;
+                addHeads(entry.user, share);
+            }
+            // forget users once they have nothing queued or running. A returning user starts again from the current
+            // virtual time, so no credit or debt is carried over from an idle period
+            if (share.downloads <= 0) {
+                userShares.remove(entry.user);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the index of downloads that have not started. Must be called while holding the listLock.
+     *
+     * @return True if the entry had not been started
+     */
+    private boolean removePending(QueueEntry entry) {
+        DownloadDetailsDTO.DownloadType type = entry.download.getDownloadType();
+        TreeMap<Long, QueueEntry> typeEntries = pendingByType.get(type);
+        if (typeEntries == null || typeEntries.remove(entry.sequence) == null) {
+            return false;
+        }
+        if (typeEntries.isEmpty()) {
+            pendingByType.remove(type);
+        }
+
+        TreeMap<Integer, SizeClass> typeIndex = pendingIndex.get(type);
+        SizeClass sizeClass = typeIndex.get(entry.sizeClass);
+        if (sizeClass.remove(entry, userShares.get(entry.user))) {
+            typeIndex.remove(entry.sizeClass);
+            if (typeIndex.isEmpty()) {
+                pendingIndex.remove(type);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the first downloads of a user from the scheduling order of their size classes. Must be called before
+     * the user's share is changed, followed by {@link #addHeads}, while holding the listLock.
+     */
+    private void removeHeads(String user, UserShare share) {
+        for (SizeClass sizeClass : share.sizeClasses) {
+            sizeClass.removeHead(sizeClass.userEntries.get(user).first(), share);
+        }
+    }
+
+    /**
+     * Returns the first downloads of a user to the scheduling order of their size classes after the user's share
+     * has changed. Must be called while holding the listLock.
+     */
+    private void addHeads(String user, UserShare share) {
+        for (SizeClass sizeClass : share.sizeClasses) {
+            sizeClass.addHead(sizeClass.userEntries.get(user).first(), share);
+        }
+    }
+
     @Override
     public void shutdown() {
         closed.set(true);
     }
+
+    private static final Comparator<QueueEntry> QUEUE_ENTRY_BY_SIZE = new Comparator<QueueEntry>() {
+        @Override
+        public int compare(QueueEntry o1, QueueEntry o2) {
+            int result = Long.compare(o1.download.getTotalRecords(), o2.download.getTotalRecords());
+            return result != 0 ? result : Long.compare(o1.sequence, o2.sequence);
+        }
+    };
+
+    /**
+     * The downloads that have not been started for one download type and size class.
+     * <p>
+     * The first download of each user is kept in the order of {@link #compareForScheduling}, so that the next
+     * download of the size class is found without checking every user.
+     */
+    private class SizeClass {
+        /** The downloads of each user, ordered by their number of records */
+        private final Map<String, TreeSet<QueueEntry>> userEntries = new HashMap<>();
+        /** The first download of each user with fewer than {@link #maxRunningPerUser} downloads running */
+        private final Heads withinLimit = new Heads();
+        /** The first download of each user with {@link #maxRunningPerUser} downloads running */
+        private final Heads overLimit = new Heads();
+
+        void add(QueueEntry entry, UserShare share) {
+            TreeSet<QueueEntry> entries = userEntries.get(entry.user);
+            if (entries == null) {
+                entries = new TreeSet<>(QUEUE_ENTRY_BY_SIZE);
+                userEntries.put(entry.user, entries);
+                share.sizeClasses.add(this);
+            } else {
+                removeHead(entries.first(), share);
+            }
+            entries.add(entry);
+            addHead(entries.first(), share);
+        }
+
+        /**
+         * @return True if the size class has no downloads left
+         */
+        boolean remove(QueueEntry entry, UserShare share) {
+            TreeSet<QueueEntry> entries = userEntries.get(entry.user);
+            removeHead(entries.first(), share);
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                userEntries.remove(entry.user);
+                share.sizeClasses.remove(this);
+            } else {
+                addHead(entries.first(), share);
+            }
+            return userEntries.isEmpty();
+        }
+
+        void removeHead(QueueEntry head, UserShare share) {
+            (isOverLimit(share) ? overLimit : withinLimit).remove(head);
+        }
+
+        void addHead(QueueEntry head, UserShare share) {
+            (isOverLimit(share) ? overLimit : withinLimit).add(head, share);
+        }
+
+        /**
+         * @return The next download to start in the size class
+         */
+        QueueEntry first() {
+            QueueEntry head = withinLimit.first();
+            return head != null ? head : overLimit.first();
+        }
+
+        /**
+         * @return The next download to start in the size class that has no more than maxRecords records, or null
+         */
+        QueueEntry first(long maxRecords) {
+            QueueEntry next = null;
+            for (TreeSet<QueueEntry> entries : userEntries.values()) {
+                // the smallest download for the user, which is the only one that needs to be checked
+                QueueEntry candidate = entries.first();
+                if (candidate.download.getTotalRecords() <= maxRecords
+                        && (next == null || compareForScheduling(candidate, next) < 0)) {
+                    next = candidate;
+                }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * The first downloads of users in a size class, in the order of {@link #compareForScheduling}. Users that the
+     * virtual time has caught up with all have the same start time, so they are ordered by their running downloads
+     * and are scheduled before the others, which are ordered by their virtual finish time. As the virtual time only
+     * increases, users are moved to the caught up users when their first download is looked for.
+     */
+    private class Heads {
+        private final TreeSet<QueueEntry> caughtUp = new TreeSet<>(new Comparator<QueueEntry>() {
+            @Override
+            public int compare(QueueEntry o1, QueueEntry o2) {
+                int result = Integer.compare(userShares.get(o1.user).running, userShares.get(o2.user).running);
+                return result != 0 ? result : QUEUE_ENTRY_BY_SIZE.compare(o1, o2);
+            }
+        });
+        private final TreeSet<QueueEntry> ahead = new TreeSet<>(new Comparator<QueueEntry>() {
+            @Override
+            public int compare(QueueEntry o1, QueueEntry o2) {
+                UserShare share1 = userShares.get(o1.user);
+                UserShare share2 = userShares.get(o2.user);
+                int result = Double.compare(share1.finishTime, share2.finishTime);
+                if (result == 0) {
+                    result = Integer.compare(share1.running, share2.running);
+                }
+                return result != 0 ? result : QUEUE_ENTRY_BY_SIZE.compare(o1, o2);
+            }
+        });
+
+        void add(QueueEntry head, UserShare share) {
+            if (share.finishTime <= virtualTime) {
+                caughtUp.add(head);
+            } else {
+                ahead.add(head);
+            }
+        }
+
+        void remove(QueueEntry head) {
+            if (!ahead.remove(head)) {
+                caughtUp.remove(head);
+            }
+        }
+
+        QueueEntry first() {
+            while (!ahead.isEmpty() && userShares.get(ahead.first().user).finishTime <= virtualTime) {
+                caughtUp.add(ahead.pollFirst());
+            }
+            if (!caughtUp.isEmpty()) {
+                return caughtUp.first();
+            }
+            return ahead.isEmpty() ? null : ahead.first();
+        }
+    }
+
+    /**
+     * A download in the queue, with the values it is indexed by.
+     * The index values are fixed when the download is added to the queue.
+     */
+    private static class QueueEntry {
+        private final long sequence;
+        private final DownloadDetailsDTO download;
+        private final int sizeClass;
+        private final String duplicateKey;
+        private final String user;
+
+        QueueEntry(long sequence, DownloadDetailsDTO download) {
+            this.sequence = sequence;
+            this.download = download;
+            this.sizeClass = getSizeClass(download.getTotalRecords());
+            this.duplicateKey = getDuplicateKey(download);
+            this.user = String.valueOf(download.getEmail()).toLowerCase();
+        }
+    }
+
+    /**
+     * Fair share accounting for a user.
+     */
+    private static class UserShare {
+        private final double weight;
+        /** The virtual time at which the downloads started so far for the user would finish */
+        private double finishTime = 0;
+        private int running = 0;
+        private int downloads = 0;
+        /** The size classes in which the user has downloads that have not started */
+        private final Set<SizeClass> sizeClasses = new HashSet<>();
+
+        UserShare(double weight) {
+            this.weight = weight;
+        }
+    }
 }
@@ -38,6 +38,20 @@ public interface PersistentQueueDAO {
      */
     DownloadDetailsDTO getNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType type);
 
+    /**
+     * Return the oldest download of a different type that has been waiting in the queue for at least minQueueTime,
+     * so that idle threads can take work that is waiting for busy threads of another type. Leaving it on the
+     * queue until a remove is called.<br>
+     * A non-null returned download will contain a non-null {@link DownloadDetailsDTO#getFileLocation()}.
+     *
+     * @param maxRecords An {@link Integer} specifying the maximum records in a download
+     *                   to have it selected, or null to ignore the number of records in a download
+     * @param ownType The {@link DownloadDetailsDTO.DownloadType} already served by the caller, which is excluded
+     * @param minQueueTime The number of milliseconds a download must have been waiting to be selected
+     * @return A {@link DownloadDetailsDTO} or null if no downloads matched the criteria.
+     */
+    DownloadDetailsDTO stealNextDownload(Integer maxRecords, DownloadDetailsDTO.DownloadType ownType, long minQueueTime);
+
     /**
      * Gets the total number of downloads that are on the queue
      * @return The number of downloads that are currently in the queue
@@ -276,6 +276,7 @@ public interface SearchDAO {
 
     /**
      * Returns the occurrence counts based on lft and rgt values for each of the supplied taxa.
+     * Any number of taxa can be supplied, they are counted in batches of facet queries.
      * @param taxa
      * @return
      * @throws Exception
@@ -349,7 +350,21 @@ public interface SearchDAO {
     List<FacetResultDTO> getFacetCounts(SpatialSearchRequestParams searchParams) throws Exception;
 
     /**
-     * Get the SOLR index version. Trigger a background refresh on a timeout.
+     * Count the records and the distinct values of a field for the query and for each value of a facet, in a
+     * single request.
+     *
+     * @param searchParams The query
+     * @param facet The facet to count each value of, e.g. species_group
+     * @param distinctField The field to count the distinct values of, e.g. taxon_name
+     * @param ignoredValue A value of the distinct field that is not counted, or null
+     * @return The counts for the whole query, with the counts for each facet value as its child groups
+     * @throws Exception
+     */
+    SpeciesGroupDTO getDistinctCountsByFacet(SpatialSearchRequestParams searchParams, String facet, String distinctField, String ignoredValue) throws Exception;
+
+    /**
+     * Get the SOLR index version. The version is refreshed in the background every
+     * solr.server.indexVersion.refresh ms.
      *
      * Forcing an updated value will perform a new SOLR query for each request to be run in the foreground.
      *
@@ -358,6 +373,13 @@ public interface SearchDAO {
      */
     Long getIndexVersion(Boolean force);
 
+    /**
+     * Registers a listener to be notified when the index version changes.
+     *
+     * @param listener
+     */
+    void addIndexVersionListener(IndexVersionListener listener);
+
     /**
      * Perform grouped facet query.
      * 
@@ -423,6 +445,19 @@ public interface SearchDAO {
      */
     double[] getBBox(SpatialSearchRequestParams requestParams) throws Exception;
 
+    /**
+     * Find the occurrences nearest to the lat and lon of a query, nearest first.
+     *
+     * The search radius starts at the requested radius (km) and grows until the k nearest occurrences
+     * are known, or the maximum radius is reached.
+     *
+     * @param requestParams
+     * @param k the number of occurrences to find
+     * @return up to k occurrences, nearest first
+     * @throws Exception
+     */
+    List<OccurrenceIndex> findNearestOccurrences(SpatialSearchRequestParams requestParams, int k) throws Exception;
+
     /**
      * list facets available to the search query
      *
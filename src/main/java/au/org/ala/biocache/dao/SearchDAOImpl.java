@@ -21,12 +21,18 @@ import au.org.ala.biocache.RecordWriter;
 import au.org.ala.biocache.Store;
 import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.service.*;
+import au.org.ala.biocache.stream.DownloadCheckpoint;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.*;
 import au.org.ala.biocache.util.thread.EndemicCallable;
 import au.org.ala.biocache.vocab.ErrorCode;
 import au.org.ala.biocache.writer.*;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.ehcache.annotations.Cacheable;
 import org.apache.commons.io.output.ByteArrayOutputStream;
@@ -52,7 +58,6 @@ import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
-import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.gbif.dwc.terms.DcTerm;
 import org.gbif.dwc.terms.DwcTerm;
 import org.gbif.dwc.terms.Term;
@@ -63,6 +68,7 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.servlet.ServletOutputStream;
 import java.io.IOException;
@@ -100,6 +106,8 @@ public class SearchDAOImpl implements SearchDAO {
      */
     private static final Logger logger = Logger.getLogger(SearchDAOImpl.class);
 
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+
     public static final String DECADE_FACET_START_DATE = "1850-01-01T00:00:00Z";
     public static final String DECADE_PRE_1850_LABEL = "before";
     public static final String SOLR_DATE_FORMAT = "yyyy-MM-dd'T'hh:mm:ss'Z'";
@@ -272,6 +280,37 @@ public class SearchDAOImpl implements SearchDAO {
      */
     private volatile ExecutorService solrOnlineExecutor = null;
 
+    /**
+     * Number of facet values to look up taxon details for in one request when writing facets to a stream
+     */
+    @Value("${facet.lookup.batch.size:1000}")
+    protected Integer facetLookupBatchSize = 1000;
+
+    /**
+     * Max number of taxon detail lookups to run in parallel with the facet queries when writing facets to a stream
+     */
+    @Value("${facet.lookup.maxthreads:2}")
+    protected Integer maxFacetLookupThreads = 2;
+
+    /**
+     * thread pool for taxon detail lookups of facet values
+     */
+    private volatile ExecutorService facetLookupExecutor = null;
+
+    /**
+     * Number of taxa to count in one facet query request for /occurrences/taxaCount
+     */
+    @Value("${taxa.count.batch.size:1000}")
+    protected Integer taxaCountBatchSize = 1000;
+
+    /**
+     * Max number of taxa count requests to run in parallel
+     */
+    @Value("${taxa.count.maxthreads:4}")
+    protected Integer maxTaxaCountThreads = 4;
+
+    private volatile ExecutorService taxaCountExecutor = null;
+
     /**
      * should we check download limits
      */
@@ -296,8 +335,18 @@ public class SearchDAOImpl implements SearchDAO {
     @Value("${index.fields.tohide:collector_text,location_determined,row_key,matched_name,decimal_latitudelatitude,collectors,default_values_used,generalisation_to_apply_in_metres,geohash,ibra_subregion,identifier_by,occurrence_details,text,photo_page_url,photographer,places,portal_id,quad,rem_text,occurrence_status_s,identification_qualifier_s}")
     protected String indexFieldsToHide;
 
-    private volatile Set<IndexFieldDTO> indexFields = new ConcurrentHashSet<IndexFieldDTO>(); //RestartDataService.get(this, "indexFields", new TypeReference<TreeSet<IndexFieldDTO>>(){}, TreeSet.class);
+    /**
+     * The index fields loaded from SOLR, replaced as a whole when the fields are reloaded
+     */
+    private volatile IndexFieldCatalog indexFieldCatalog = IndexFieldCatalog.EMPTY;
+    /**
+     * The index fields by name, kept for use after a restart until the fields are loaded from SOLR
+     */
     private volatile Map<String, IndexFieldDTO> indexFieldMap = RestartDataService.get(this, "indexFieldMap", new TypeReference<HashMap<String, IndexFieldDTO>>(){}, HashMap.class);
+    /**
+     * Lock object used to synchronize loading of the index fields
+     */
+    private final Object indexFieldsLock = new Object();
     private final Map<String, StatsIndexFieldDTO> rangeFieldCache = new HashMap<String, StatsIndexFieldDTO>();
 
     /**
@@ -312,6 +361,14 @@ public class SearchDAOImpl implements SearchDAO {
      * Lock object used to synchronize updates to the solr index version
      */
     private final Object solrIndexVersionLock = new Object();
+    /**
+     * Listeners notified when the SOLR index version changes
+     */
+    private final List<IndexVersionListener> indexVersionListeners = new CopyOnWriteArrayList<IndexVersionListener>();
+    /**
+     * single thread that refreshes the SOLR index version every solrIndexVersionRefreshTime
+     */
+    private volatile ScheduledExecutorService indexVersionRefresher = null;
 
     @Value("${wms.colour:0x00000000}")
     protected int DEFAULT_COLOUR;
@@ -328,6 +385,59 @@ public class SearchDAOImpl implements SearchDAO {
     @Value("${layers.service.url:http://spatial.ala.org.au/ws}")
     protected String layersServiceUrl;
 
+    /**
+     * The maximum number of query bounding boxes to cache
+     */
+    @Value("${bbox.cache.size:10000}")
+    protected int bboxCacheSize = 10000;
+
+    /**
+     * Bounding boxes by index version and formatted query
+     */
+    private volatile Cache<String, double[]> bboxCache;
+
+    /**
+     * The radius (km) the nearest occurrence search starts with when no radius is requested
+     */
+    @Value("${nearest.radius.initial:1}")
+    protected float nearestInitialRadius = 1;
+
+    /**
+     * The largest radius (km) searched for nearest occurrences
+     */
+    @Value("${nearest.radius.max:1000}")
+    protected float nearestMaxRadius = 1000;
+
+    /**
+     * The factor the nearest occurrence search radius grows by, greater than 1
+     */
+    @Value("${nearest.radius.growth:4}")
+    protected float nearestRadiusGrowth = 4;
+
+    /**
+     * The size (degrees) of the grid that nearest occurrence searches are snapped to, so that lookups of nearby points
+     * share a cached result. 0 to search from the exact point.
+     */
+    @Value("${nearest.grid.degrees:0.0001}")
+    protected double nearestGridDegrees = 0.0001;
+
+    /**
+     * The maximum number of nearest occurrence results to cache
+     */
+    @Value("${nearest.cache.size:1000}")
+    protected int nearestCacheSize = 1000;
+
+    /**
+     * The circle searched is a polygon inside the circle, so only occurrences within this fraction of the
+     * radius are known to be nearer than any occurrence outside the search
+     */
+    private static final double NEAREST_COMPLETE_FRACTION = 0.95;
+
+    /**
+     * Nearest occurrences by index version, query, area, fields, snapped point and k
+     */
+    private volatile Cache<String, List<OccurrenceIndex>> nearestCache;
+
     /**
      * Initialise the SOLR server instance
      */
@@ -339,6 +449,11 @@ public class SearchDAOImpl implements SearchDAO {
 
         logger.debug("Initialising SearchDAOImpl");
 
+        if (nearestRadiusGrowth <= 1) {
+            // the nearest occurrence search would never reach a larger radius
+            throw new IllegalArgumentException("nearest.radius.growth must be greater than 1: " + nearestRadiusGrowth);
+        }
+
         queryMethod = solrClient instanceof EmbeddedSolrServer ? SolrRequest.METHOD.GET : SolrRequest.METHOD.POST;
 
         // TODO: There was a note about possible issues with the following two lines
@@ -350,6 +465,38 @@ public class SearchDAOImpl implements SearchDAO {
         }
 
         getMaxBooleanClauses();
+
+        startIndexVersionRefresher();
+    }
+
+    /**
+     * Starts the background refresh of the index version, unless it is already running.
+     */
+    private void startIndexVersionRefresher() {
+        synchronized (solrIndexVersionLock) {
+            if (indexVersionRefresher == null && solrIndexVersionRefreshTime > 0) {
+                indexVersionRefresher = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("biocache-index-version-%d").setDaemon(true).build());
+                indexVersionRefresher.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            refreshIndexVersion();
+                        } catch (Exception e) {
+                            logger.error("Failed to update solrIndexVersion", e);
+                        }
+                    }
+                }, solrIndexVersionRefreshTime, solrIndexVersionRefreshTime, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        ScheduledExecutorService refresher = indexVersionRefresher;
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
     }
 
     public void refreshCaches() {
@@ -374,6 +521,9 @@ public class SearchDAOImpl implements SearchDAO {
 
         listsService.refreshCache();
         layersService.refreshCache();
+        queryFormatUtils.clearCache();
+        getBBoxCache().invalidateAll();
+        getNearestCache().invalidateAll();
     }
 
     /**
@@ -481,6 +631,25 @@ public class SearchDAOImpl implements SearchDAO {
         return nextExecutor;
     }
 
+    /**
+     * @return An instance of ExecutorService used to look up taxon details while facets are written to a stream.
+     */
+    private ExecutorService getFacetLookupThreadPoolExecutor() {
+        ExecutorService nextExecutor = facetLookupExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = facetLookupExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = facetLookupExecutor = Executors.newFixedThreadPool(
+                            maxFacetLookupThreads,
+                            new ThreadFactoryBuilder().setNameFormat("biocache-facet-lookup-%d")
+                                    .setPriority(Thread.MIN_PRIORITY).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
     /**
      * (Endemic)
      * <p>
@@ -574,14 +743,12 @@ public class SearchDAOImpl implements SearchDAO {
             header = (String[]) ArrayUtils.addAll(header, listsService.getTypes().toArray(new String[]{}));
         }
         CSVRecordWriter writer = new CSVRecordWriter(out, header);
+        TaxonDetailsWriter taxonWriter = shouldLookup ? new TaxonDetailsWriter(includeCount, includeSynonyms, includeLists, writer) : null;
         try {
             writer.initialise();
     
             boolean addedNullFacet = false;
     
-            List<String> guids = new ArrayList<String>();
-            List<Long> counts = new ArrayList<Long>();
-    
             for (FieldResultDTO ff : list) {
                 //only add null facet once
                 if (ff.getLabel() == null) addedNullFacet = true;
@@ -589,19 +756,7 @@ public class SearchDAOImpl implements SearchDAO {
     
                 //process the "species_guid_ facet by looking up the list of guids
                 if (shouldLookup) {
-                    guids.add(ff.getLabel());
-                    if (includeCount) {
-                        counts.add(ff.getCount());
-                    }
-    
-                    //Only want to send a sub set of the list so that the URI is not too long for BIE
-                    if (guids.size() == 30) {
-                        //now get the list of species from the web service TODO may need to move this code
-                        //handle null values being returned from the service...
-                        writeTaxonDetailsToStream(guids, counts, includeCount, includeSynonyms, includeLists, writer);
-                        guids.clear();
-                        counts.clear();
-                    }
+                    taxonWriter.add(ff.getLabel(), ff.getCount());
                 } else {
                     //default processing of facets
                     String name = ff.getLabel() != null ? ff.getLabel() : "";
@@ -612,9 +767,12 @@ public class SearchDAOImpl implements SearchDAO {
     
             if (shouldLookup) {
                 //now write any guids that remain at the end of the looping
-                writeTaxonDetailsToStream(guids, counts, includeCount, includeSynonyms, includeLists, writer);
+                taxonWriter.finish();
             }
         } finally {
+            if (taxonWriter != null) {
+                taxonWriter.cancel();
+            }
             writer.finalise();
         }
     }
@@ -744,6 +902,10 @@ public class SearchDAOImpl implements SearchDAO {
 
     /**
      * Writes the values for the first supplied facet to output stream
+     * <p>
+     * Index sorted facets of a single valued field are paged by continuing after the last value of the previous
+     * page, so that every page costs the same. Any other facet is requested at once, as SOLR has to count all of
+     * its values for every page anyway.
      *
      * @param includeCount true when the count should be included in the download
      * @param lookupName   true when a name lsid should be looked up in the bie
@@ -759,10 +921,12 @@ public class SearchDAOImpl implements SearchDAO {
         //don't want any results returned
         solrQuery.setRows(0);
         searchParams.setPageSize(0);
+        String facet = searchParams.getFacets()[0];
+        boolean continuation = isFacetContinuationSupported(facet, solrQuery);
         solrQuery.setFacetLimit(FACET_PAGE_SIZE);
         int offset = 0;
-        boolean shouldLookupTaxon = lookupName && (searchParams.getFacets()[0].contains("_guid") || searchParams.getFacets()[0].contains("_lsid"));
-        boolean shouldLookupAttribution = lookupName && searchParams.getFacets()[0].contains("_uid");
+        boolean shouldLookupTaxon = lookupName && (facet.contains("_guid") || facet.contains("_lsid"));
+        boolean shouldLookupAttribution = lookupName && facet.contains("_uid");
 
         if (dd != null) {
             dd.resetCounts();
@@ -773,7 +937,7 @@ public class SearchDAOImpl implements SearchDAO {
             logger.debug("Retrieved facet results from server...");
         }
         if (qr.getResults().getNumFound() > 0) {
-            FacetField ff = qr.getFacetField(searchParams.getFacets()[0]);
+            FacetField ff = qr.getFacetField(facet);
 
             //write the header line
             if (ff != null) {
@@ -790,68 +954,65 @@ public class SearchDAOImpl implements SearchDAO {
                 }
 
                 CSVRecordWriter writer = new CSVRecordWriter(new CloseShieldOutputStream(out), header);
+                TaxonDetailsWriter taxonWriter = shouldLookupTaxon ? new TaxonDetailsWriter(includeCount, includeSynonyms, includeLists, writer) : null;
                 try {
                     writer.initialise();
-                    boolean addedNullFacet = false;
-
-                    //PAGE through the facets until we reach the end.
-                    //do not continue when null facet is already added and the next facet is only null
-                    while (ff.getValueCount() > 1 || !addedNullFacet || (ff.getValueCount() == 1 && ff.getValues().get(0).getName() != null)) {
-                        //process the "species_guid_ facet by looking up the list of guids
-                        if (shouldLookupTaxon) {
-                            List<String> guids = new ArrayList<String>();
-                            List<Long> counts = new ArrayList<Long>();
-                            if (logger.isDebugEnabled()) {
-                                logger.debug("Downloading " + ff.getValueCount() + " species guids");
-                            }
-                            for (FacetField.Count value : ff.getValues()) {
-                                //only add null facet once
-                                if (value.getName() == null) addedNullFacet = true;
-                                if (value.getCount() == 0 || (value.getName() == null && addedNullFacet)) continue;
-
-                                guids.add(value.getName());
-                                if (includeCount) {
-                                    counts.add(value.getCount());
-                                }
-
-                                //Only want to send a sub set of the list so that the URI is not too long for BIE
-                                if (guids.size() == 30) {
-                                    //now get the list of species from the web service TODO may need to move this code
-                                    //handle null values being returned from the service...
-                                    writeTaxonDetailsToStream(guids, counts, includeCount, includeSynonyms, includeLists, writer);
-                                    guids.clear();
-                                    counts.clear();
-                                }
-                            }
-                            //now write any guids that remain at the end of the looping
-                            writeTaxonDetailsToStream(guids, counts, includeCount, includeSynonyms, includeLists, writer);
-                        } else {
-                            //default processing of facets
-                            for (FacetField.Count value : ff.getValues()) {
-                                //only add null facet once
-                                if (value.getName() == null) addedNullFacet = true;
-                                if (value.getCount() == 0 || (value.getName() == null && addedNullFacet)) continue;
-
-                                String name = value.getName() != null ? value.getName() : "";
-                                if (shouldLookupAttribution) {
-                                    writer.write(includeCount ? new String[]{name, collectionCache.getNameForCode(name), Long.toString(value.getCount())} : new String[]{name});
-                                } else {
-                                    writer.write(includeCount ? new String[]{name, Long.toString(value.getCount())} : new String[]{name});
-                                }
+                    String continuationFq = null;
+
+                    //PAGE through the facets until a page is not full, continuing after the last value when the
+                    //facet supports it, otherwise with facet.offset
+                    while (ff != null) {
+                        String lastValue = null;
+                        int valueCount = 0;
+                        for (FacetField.Count value : ff.getValues()) {
+                            //the null facet is not written
+                            if (value.getName() == null) continue;
+                            lastValue = value.getName();
+                            valueCount++;
+                            if (value.getCount() == 0) continue;
+
+                            //process the "species_guid_ facet by looking up the list of guids
+                            if (shouldLookupTaxon) {
+                                taxonWriter.add(value.getName(), value.getCount());
+                            } else if (shouldLookupAttribution) {
+                                writer.write(includeCount ? new String[]{value.getName(), collectionCache.getNameForCode(value.getName()), Long.toString(value.getCount())} : new String[]{value.getName()});
+                            } else {
+                                //default processing of facets
+                                writer.write(includeCount ? new String[]{value.getName(), Long.toString(value.getCount())} : new String[]{value.getName()});
                             }
                         }
-                        offset += FACET_PAGE_SIZE;
                         if (dd != null) {
-                            dd.updateCounts(FACET_PAGE_SIZE);
+                            dd.updateCounts(valueCount);
+                        }
+                        if (valueCount < FACET_PAGE_SIZE) {
+                            break;
                         }
 
                         //get the next values
-                        solrQuery.remove("facet.offset");
-                        solrQuery.add("facet.offset", Integer.toString(offset));
-                        qr = runSolrQuery(solrQuery, searchParams);
-                        ff = qr.getFacetField(searchParams.getFacets()[0]);
+                        solrQuery.setFacetMissing(false);
+                        if (continuation) {
+                            //the filter also excludes the records without a value
+                            if (continuationFq != null) {
+                                solrQuery.removeFilterQuery(continuationFq);
+                            }
+                            continuationFq = facet + ":{" + ClientUtils.escapeQueryChars(lastValue) + " TO *]";
+                            solrQuery.addFilterQuery(continuationFq);
+                        } else {
+                            offset += FACET_PAGE_SIZE;
+                            solrQuery.set("facet.offset", offset);
+                        }
+                        qr = query(solrQuery, queryMethod);
+                        ff = qr.getFacetField(facet);
+                    }
+
+                    if (shouldLookupTaxon) {
+                        //now write any guids that remain at the end of the paging
+                        taxonWriter.finish();
                     }
                 } finally {
+                    if (taxonWriter != null) {
+                        taxonWriter.cancel();
+                    }
                     writer.finalise();
                 }
             }
@@ -859,21 +1020,108 @@ public class SearchDAOImpl implements SearchDAO {
     }
 
     /**
-     * Writes additional taxon information to the stream. It performs bulk lookups to the
-     * BIE in order to obtain extra classification information
+     * A facet can be paged by continuing after the last value when its values are sorted in index order, and no
+     * record has more than one value, so that a record matching a later value can not add to an earlier value.
      *
-     * @param guids           The guids to lookup
-     * @param counts          The occurrence counts for each guid if "includeCounts = true"
-     * @param includeCounts   Whether or not to include the occurrence counts in the download
-     * @param includeSynonyms whether or not to include the synonyms in the download - when
-     *                        true this will perform additional lookups in the BIE
-     * @param writer          The CSV writer to write to.
-     * @throws Exception
+     * @param facet     The facet field
+     * @param solrQuery The facet query
+     * @return true when the facet can be paged by continuing after the last value
+     */
+    private boolean isFacetContinuationSupported(String facet, SolrQuery solrQuery) {
+        String sort = solrQuery.get("f." + facet + ".facet.sort", solrQuery.getFacetSortString());
+        Map<String, IndexFieldDTO> nextIndexFieldMap = indexFieldMap;
+        IndexFieldDTO field = nextIndexFieldMap != null ? nextIndexFieldMap.get(facet) : null;
+        return "index".equals(sort) && field != null && !field.isMultivalue();
+    }
+
+    /**
+     * Writes additional taxon information to the stream. It performs bulk lookups to the
+     * BIE in order to obtain extra classification information.
+     * <p>
+     * The guids are looked up in batches on the facet lookup thread pool, so that the lookups overlap with
+     * retrieving further facet values. The rows are written in the order the guids were added.
      */
-    private void writeTaxonDetailsToStream(List<String> guids, List<Long> counts, boolean includeCounts, boolean includeSynonyms, boolean includeLists, CSVRecordWriter writer) throws Exception {
-        List<String[]> values = speciesLookupService.getSpeciesDetails(guids, counts, includeCounts, includeSynonyms, includeLists);
-        for (String[] value : values) {
-            writer.write(value);
+    private class TaxonDetailsWriter {
+        private final boolean includeCounts;
+        private final boolean includeSynonyms;
+        private final boolean includeLists;
+        private final CSVRecordWriter writer;
+        private final Deque<Future<List<String[]>>> lookups = new ArrayDeque<Future<List<String[]>>>();
+        private List<String> guids = new ArrayList<String>();
+        private List<Long> counts = new ArrayList<Long>();
+
+        /**
+         * @param includeCounts   Whether or not to include the occurrence counts in the download
+         * @param includeSynonyms whether or not to include the synonyms in the download - when
+         *                        true this will perform additional lookups in the BIE
+         * @param includeLists    whether or not to include the species list columns
+         * @param writer          The CSV writer to write to.
+         */
+        TaxonDetailsWriter(boolean includeCounts, boolean includeSynonyms, boolean includeLists, CSVRecordWriter writer) {
+            this.includeCounts = includeCounts;
+            this.includeSynonyms = includeSynonyms;
+            this.includeLists = includeLists;
+            this.writer = writer;
+        }
+
+        /**
+         * @param guid  The guid to lookup
+         * @param count The occurrence count for the guid
+         */
+        void add(String guid, long count) throws Exception {
+            guids.add(guid);
+            if (includeCounts) {
+                counts.add(count);
+            }
+            if (guids.size() >= facetLookupBatchSize) {
+                submit();
+            }
+        }
+
+        private void submit() throws Exception {
+            if (guids.isEmpty()) {
+                return;
+            }
+            final List<String> batchGuids = guids;
+            final List<Long> batchCounts = counts;
+            guids = new ArrayList<String>();
+            counts = new ArrayList<Long>();
+            lookups.add(getFacetLookupThreadPoolExecutor().submit(new Callable<List<String[]>>() {
+                @Override
+                public List<String[]> call() throws Exception {
+                    return speciesLookupService.getSpeciesDetails(batchGuids, batchCounts, includeCounts, includeSynonyms, includeLists);
+                }
+            }));
+            //only hold as many batches as can be looked up at once
+            while (lookups.size() > maxFacetLookupThreads) {
+                writeNext();
+            }
+        }
+
+        private void writeNext() throws Exception {
+            for (String[] value : lookups.poll().get()) {
+                writer.write(value);
+            }
+        }
+
+        /**
+         * Looks up the remaining guids and writes all rows that have not been written.
+         */
+        void finish() throws Exception {
+            submit();
+            while (!lookups.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        /**
+         * Cancels lookups that have not been written, when writing failed.
+         */
+        void cancel() {
+            for (Future<List<String[]>> lookup : lookups) {
+                lookup.cancel(true);
+            }
+            lookups.clear();
         }
     }
 
@@ -1076,9 +1324,21 @@ public class SearchDAOImpl implements SearchDAO {
                 checkLimit = false;
             }
 
+            // offline downloads written to an archive file record checkpoints so they can resume after a restart
+            final OptionalZipOutputStream checkpointStream = out instanceof OptionalZipOutputStream &&
+                    ((OptionalZipOutputStream) out).isCheckpointEnabled() ? (OptionalZipOutputStream) out : null;
+            final DownloadCheckpoint resumeFrom = checkpointStream != null ? checkpointStream.getResumeCheckpoint() : null;
+            final Long checkpointIndexVersion = checkpointStream != null ? getIndexVersion(false) : null;
+            if (resumeFrom != null) {
+                dd.getRecordsDownloaded().addAndGet(resumeFrom.getRecordsWritten());
+                if (logger.isInfoEnabled()) {
+                    logger.info("Resuming download after " + resumeFrom.getRecordsWritten() + " records: " + dd.getFileLocation());
+                }
+            }
+
             // include all misc fields if required
             if (dd.getRequestParams() != null ? dd.getRequestParams().getIncludeMisc() : false) {
-                for (IndexFieldDTO f : indexFields) {
+                for (IndexFieldDTO f : indexFieldCatalog.getFields()) {
                     // identify misc fields that are in the index
                     if (f.isStored() && f.getName() != null && f.getName().startsWith("_"))
                         solrQuery.addField(f.getName());
@@ -1164,22 +1424,27 @@ public class SearchDAOImpl implements SearchDAO {
             // Create a fixed length blocking queue for buffering results before they are written
             // This also creates a push-back effect to throttle the results generating threads
             // when it fills and offers to it are delayed until the writer consumes elements from the queue
-            final BlockingQueue<String[]> queue = new ArrayBlockingQueue<>(resultsQueueLength);
+            // When checkpointing, records are queued with the split they came from, along with the end of each page
+            final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(resultsQueueLength);
             // Create a sentinel that we can check for reference equality to signal the end of the queue
             final String[] sentinel = new String[0];
             // An implementation of RecordWriter that adds to an in-memory queue
-            final RecordWriter concurrentWrapper = new RecordWriter() {
+            class QueueRecordWriter implements RecordWriter {
                 private final AtomicBoolean finalised = new AtomicBoolean(false);
                 private final AtomicBoolean finalisedComplete = new AtomicBoolean(false);
 
                 @Override
                 public void write(String[] nextLine) {
+                    offer(nextLine);
+                }
+
+                void offer(Object nextElement) {
                     try {
                         if (Thread.currentThread().isInterrupted() || interruptFound.get() || finalised.get()) {
                             finalise();
                             return;
                         }
-                        while (!queue.offer(nextLine, writerTimeoutWaitMillis, TimeUnit.MILLISECONDS)) {
+                        while (!queue.offer(nextElement, writerTimeoutWaitMillis, TimeUnit.MILLISECONDS)) {
                             if (Thread.currentThread().isInterrupted() || interruptFound.get() || finalised.get()) {
                                 finalise();
                                 break;
@@ -1231,7 +1496,15 @@ public class SearchDAOImpl implements SearchDAO {
                 public boolean finalised() {
                     return finalisedComplete.get();
                 }
-            };
+            }
+            final QueueRecordWriter concurrentWrapper = new QueueRecordWriter();
+
+            // The progress of each split query in the records that have been written, by split key
+            final Map<String, DownloadCheckpoint.Split> checkpointSplits = new LinkedHashMap<>();
+            final ArrayList<String> miscFields = new ArrayList<String>(0);
+            if (resumeFrom != null) {
+                miscFields.addAll(resumeFrom.getMiscFields());
+            }
 
             // A single thread that consumes elements put onto the queue until it sees the sentinel, finalising after the sentinel or an interrupt
             Runnable writerRunnable = new Runnable() {
@@ -1239,6 +1512,7 @@ public class SearchDAOImpl implements SearchDAO {
                 public void run() {
                     try {
                         long counter = 0;
+                        long recordsWritten = resumeFrom != null ? resumeFrom.getRecordsWritten() : 0;
                         while (true) {
                             counter = counter + 1;
 
@@ -1246,13 +1520,28 @@ public class SearchDAOImpl implements SearchDAO {
                                 break;
                             }
 
-                            String[] take = queue.take();
+                            Object take = queue.take();
                             // Sentinel object equality check to see if we are done
                             if (take == sentinel || Thread.currentThread().isInterrupted() || interruptFound.get()) {
                                 break;
                             }
+                            if (take instanceof SplitPageEnd) {
+                                ((SplitPageEnd) take).apply();
+                                continue;
+                            }
                             // Otherwise write to the wrapped record writer
-                            rw.write(take);
+                            if (take instanceof SplitRecord) {
+                                rw.write(((SplitRecord) take).values);
+                                ((SplitRecord) take).split.recordWritten();
+                            } else {
+                                rw.write((String[]) take);
+                            }
+                            recordsWritten++;
+
+                            // all previous entries were completed when the record writer started a new part
+                            if (checkpointStream != null && checkpointStream.isCheckpointDue()) {
+                                saveCheckpoint(checkpointStream, checkpointIndexVersion, recordsWritten, checkpointSplits, miscFields);
+                            }
 
                             //test for errors. This can contain a flush so only test occasionally
                             if (counter % resultsQueueLength == 0 && rw.hasError()) {
@@ -1318,15 +1607,51 @@ public class SearchDAOImpl implements SearchDAO {
 
                 final AtomicInteger resultsCount = new AtomicInteger(0);
                 final boolean threadCheckLimit = checkLimit;
-                final ArrayList<String> miscFields = new ArrayList<String>(0);
 
                 List<Callable<Integer>> solrCallables = new ArrayList<>(queries.size());
                 // execute each query, writing the results to stream
                 for (final SolrQuery splitByFacetQuery : queries) {
+                    // the split queries are the same when the index has not changed, so they identify the checkpointed progress
+                    String splitKey = solrCallables.size() + ":" + Arrays.toString(splitByFacetQuery.getFilterQueries());
+                    final DownloadCheckpoint.Split resumeSplit = resumeFrom != null ? resumeFrom.getSplits().get(splitKey) : null;
+                    final DownloadCheckpoint.Split splitProgress = new DownloadCheckpoint.Split(resumeSplit);
+                    checkpointSplits.put(splitKey, splitProgress);
+                    // records from the first page that were written before the checkpoint are skipped
+                    final RecordWriter splitWriter = checkpointStream == null ? concurrentWrapper : new RecordWriter() {
+                        private int skip = resumeSplit != null ? resumeSplit.getWritten() : 0;
+
+                        @Override
+                        public void write(String[] record) {
+                            if (skip > 0) {
+                                skip--;
+                                dd.updateCounts(-1);
+                            } else {
+                                concurrentWrapper.offer(new SplitRecord(splitProgress, record));
+                            }
+                        }
+
+                        @Override
+                        public void initialise() {
+                            concurrentWrapper.initialise();
+                        }
+
+                        @Override
+                        public void finalise() {
+                            concurrentWrapper.finalise();
+                        }
+
+                        @Override
+                        public boolean finalised() {
+                            return concurrentWrapper.finalised();
+                        }
+                    };
                     // define a thread
                     Callable<Integer> solrCallable = new Callable<Integer>() {
                         @Override
                         public Integer call() throws Exception {
+                            if (resumeSplit != null && resumeSplit.isComplete()) {
+                                return 0;
+                            }
                             int startIndex = 0;
                             // Randomise the wakeup time so they don't all wakeup on a periodic cycle
                             long localThrottle = throttle + Math.round(Math.random() * throttle);
@@ -1341,7 +1666,8 @@ public class SearchDAOImpl implements SearchDAO {
 
                             splitByFacetQuery.setFilterQueries(fq);
 
-                            QueryResponse qr = runSolrQueryWithCursorMark(splitByFacetQuery, downloadBatchSize, null);
+                            QueryResponse qr = runSolrQueryWithCursorMark(splitByFacetQuery, downloadBatchSize,
+                                    resumeSplit != null ? resumeSplit.getCursorMark() : null);
                             AtomicInteger recordsForThread = new AtomicInteger(0);
                             if (logger.isDebugEnabled()) {
                                 logger.debug(splitByFacetQuery.getQuery() + " - results: " + qr.getResults().size());
@@ -1353,10 +1679,10 @@ public class SearchDAOImpl implements SearchDAO {
                                 }
                                 int count = 0;
                                 if (sensitiveQ.contains(splitByFacetQuery)) {
-                                    count = processQueryResults(uidStats, sensitiveFields, qaFields, concurrentWrapper, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, miscFields, true);
+                                    count = processQueryResults(uidStats, sensitiveFields, qaFields, splitWriter, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, miscFields, true);
                                 } else {
                                     // write non-sensitive values into sensitive fields when not authorised for their sensitive values
-                                    count = processQueryResults(uidStats, notSensitiveFields, qaFields, concurrentWrapper, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, miscFields, false);
+                                    count = processQueryResults(uidStats, notSensitiveFields, qaFields, splitWriter, qr, dd, threadCheckLimit, resultsCount, maxDownloadSize, analysisFields, miscFields, false);
                                 }
                                 recordsForThread.addAndGet(count);
                                 // we have already set the Filter query the first time the query was constructed
@@ -1366,11 +1692,18 @@ public class SearchDAOImpl implements SearchDAO {
                                         // throttle the download by sleeping
                                         Thread.sleep(localThrottle);
                                     }
-                                    qr = runSolrQueryWithCursorMark(splitByFacetQuery, downloadBatchSize, qr.getNextCursorMark());
+                                    String nextCursorMark = qr.getNextCursorMark();
+                                    if (checkpointStream != null) {
+                                        concurrentWrapper.offer(new SplitPageEnd(splitProgress, nextCursorMark, false));
+                                    }
+                                    qr = runSolrQueryWithCursorMark(splitByFacetQuery, downloadBatchSize, nextCursorMark);
                                 } else {
                                     qr = null;
                                 }
                             }
+                            if (checkpointStream != null && !interruptFound.get()) {
+                                concurrentWrapper.offer(new SplitPageEnd(splitProgress, null, true));
+                            }
                             return recordsForThread.get();
                         }
                     };
@@ -1422,6 +1755,11 @@ public class SearchDAOImpl implements SearchDAO {
                     }
                 }
 
+                // the counts for the records written before the checkpoint are not known, so count them all again
+                if (resumeFrom != null && !interruptFound.get()) {
+                    recountUidStats(solrQuery, downloadParams, uidStats);
+                }
+
                 long finish = System.currentTimeMillis();
                 long timeTakenInSecs = (finish - start) / 1000;
                 if (timeTakenInSecs <= 0) timeTakenInSecs = 1;
@@ -1502,6 +1840,93 @@ public class SearchDAOImpl implements SearchDAO {
         return uidStats;
     }
 
+    /**
+     * A record queued for writing to a checkpointed download, with the split query it came from.
+     */
+    private static class SplitRecord {
+        private final DownloadCheckpoint.Split split;
+        private final String[] values;
+
+        SplitRecord(DownloadCheckpoint.Split split, String[] values) {
+            this.split = split;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Queued after the records of a page of a split query, so the writer can track the cursor mark of the next page.
+     */
+    private static class SplitPageEnd {
+        private final DownloadCheckpoint.Split split;
+        private final String nextCursorMark;
+        private final boolean complete;
+
+        SplitPageEnd(DownloadCheckpoint.Split split, String nextCursorMark, boolean complete) {
+            this.split = split;
+            this.nextCursorMark = nextCursorMark;
+            this.complete = complete;
+        }
+
+        void apply() {
+            if (complete) {
+                split.setComplete(true);
+            } else {
+                split.pageWritten(nextCursorMark);
+            }
+        }
+    }
+
+    /**
+     * Saves a checkpoint of the download. Called by the thread writing the records, when all archive entries are complete.
+     */
+    private void saveCheckpoint(OptionalZipOutputStream checkpointStream, Long indexVersion, long recordsWritten,
+                                Map<String, DownloadCheckpoint.Split> splits, List<String> miscFields) {
+        DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+        checkpoint.setIndexVersion(indexVersion != null ? indexVersion : 0);
+        checkpoint.setRecordsWritten(recordsWritten);
+        checkpoint.setSplits(splits);
+        synchronized (miscFields) {
+            checkpoint.setMiscFields(new ArrayList<>(miscFields));
+        }
+        try {
+            checkpointStream.saveCheckpoint(checkpoint);
+        } catch (IOException e) {
+            // the download can continue, but will restart from the previous checkpoint
+            logger.warn("Failed to save download checkpoint: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replaces the record counts for each institution, collection, data provider and data resource with
+     * counts for the whole download.
+     */
+    private void recountUidStats(SolrQuery solrQuery, DownloadRequestParams downloadParams,
+                                 ConcurrentMap<String, AtomicInteger> uidStats) throws SolrServerException {
+        SolrQuery countQuery = solrQuery.getCopy()
+                .addFacetField("institution_uid", "collection_uid", "data_provider_uid", "data_resource_uid");
+        // the query may have been used to page through results when the download was not split
+        countQuery.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+        countQuery.setFacetMinCount(1);
+        countQuery.setFacetLimit(-1);
+        countQuery.addFilterQuery("data_resource_uid:*");
+        QueryResponse qr = runSolrQuery(countQuery, downloadParams.getFormattedFq(), 0, 0, "score", "asc");
+
+        // header information is stored with negative counts
+        Iterator<Map.Entry<String, AtomicInteger>> it = uidStats.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().get() >= 0) {
+                it.remove();
+            }
+        }
+        for (FacetField facet : qr.getFacetFields()) {
+            for (Count count : facet.getValues()) {
+                if (count.getName() != null && count.getCount() > 0) {
+                    uidStats.put(count.getName(), new AtomicInteger((int) count.getCount()));
+                }
+            }
+        }
+    }
+
     private List<String[]> intersectResults(String layersServiceUrl, String[] analysisLayers, SolrDocumentList results) {
         List<String[]> intersection = new ArrayList<String[]>();
 
@@ -3169,7 +3594,7 @@ public class SearchDAOImpl implements SearchDAO {
             params.set("numTerms", "0");
         }
         QueryResponse response = query(params, queryMethod);
-        return parseLukeResponse(response.toString(), fields != null);
+        return parseLukeResponse(response.getResponse(), fields != null);
     }
 
     /**
@@ -3230,104 +3655,124 @@ public class SearchDAOImpl implements SearchDAO {
      */
     @Cacheable(cacheName = "getIndexedFields")
     public Set<IndexFieldDTO> getIndexedFields(boolean update) throws Exception {
-        Set<IndexFieldDTO> result = indexFields;
-        if (result.size() == 0 || update) {
-            synchronized (solrIndexVersionLock) {
-                result = indexFields;
-                if (result.size() == 0 || update) {
-                    result = getIndexFieldDetails(null);
-                    if (result != null && result.size() > 0) {
-                        Map<String, IndexFieldDTO> resultMap = new HashMap<String, IndexFieldDTO>();
-                        for (IndexFieldDTO field : result) {
-                            resultMap.put(field.getName(), field);
-                        }
-                        indexFields = result;
-                        indexFieldMap = resultMap;
-                    }
-                }
-            }
-        }
-        return result;
+        return getIndexFieldCatalog(update).getFields();
     }
 
     @Override
     public Map<String, IndexFieldDTO> getIndexedFieldsMap() throws Exception {
         // Refresh/populate the map if necessary
-        getIndexedFields();
-        return indexFieldMap;
+        IndexFieldCatalog catalog = getIndexFieldCatalog(false);
+        return catalog.getFields().isEmpty() ? indexFieldMap : catalog.getFieldMap();
     }
 
     /**
-     * parses the response string from the service that returns details about the indexed fields
-     *
-     * @param str
-     * @return
+     * Returns the current index fields, loading them from SOLR when they have not been loaded or an update is
+     * requested. Readers are not blocked while the fields are loaded.
      */
-    private Set<IndexFieldDTO> parseLukeResponse(String str, boolean includeCounts) {
-
-        //update index version
-        Pattern indexVersion = Pattern.compile("(?:version=)([0-9]{1,})");
-        try {
-            Matcher indexVersionMatcher = indexVersion.matcher(str);
-            if (indexVersionMatcher.find(0)) {
-                solrIndexVersion = Long.parseLong(indexVersionMatcher.group(1));
-                solrIndexVersionTime = System.currentTimeMillis();
+    private IndexFieldCatalog getIndexFieldCatalog(boolean update) throws Exception {
+        IndexFieldCatalog catalog = indexFieldCatalog;
+        if (catalog.getFields().isEmpty() || update) {
+            synchronized (indexFieldsLock) {
+                if (catalog == indexFieldCatalog) {
+                    Set<IndexFieldDTO> result = getIndexFieldDetails(null);
+                    if (result != null && result.size() > 0) {
+                        indexFieldCatalog = new IndexFieldCatalog(result);
+                        indexFieldMap = indexFieldCatalog.getFieldMap();
+                    }
+                }
+                catalog = indexFieldCatalog;
             }
-        } catch (Exception e) {}
+        }
+        return catalog;
+    }
 
-        Set<IndexFieldDTO> fieldList = includeCounts ? new java.util.LinkedHashSet<IndexFieldDTO>() : new java.util.TreeSet<IndexFieldDTO>();
+    /**
+     * An immutable snapshot of the index fields, with the fields by name for constant time lookups.
+     */
+    private static class IndexFieldCatalog {
 
-        Pattern typePattern = Pattern.compile("(?:type=)([a-z]{1,})");
+        static final IndexFieldCatalog EMPTY = new IndexFieldCatalog(Collections.<IndexFieldDTO>emptySet());
 
-        Pattern schemaPattern = Pattern.compile("(?:schema=)([a-zA-Z\\-]{1,})");
+        private final Set<IndexFieldDTO> fields;
+        private final Map<String, IndexFieldDTO> fieldMap;
 
-        Pattern distinctPattern = Pattern.compile("(?:distinct=)([0-9]{1,})");
+        IndexFieldCatalog(Set<IndexFieldDTO> fields) {
+            Map<String, IndexFieldDTO> map = new HashMap<String, IndexFieldDTO>();
+            for (IndexFieldDTO field : fields) {
+                //prefer the indexed field when a storage field has the same name
+                IndexFieldDTO existing = map.get(field.getName());
+                if (existing == null || (!existing.isIndexed() && field.isIndexed())) {
+                    map.put(field.getName(), field);
+                }
+            }
+            this.fields = Collections.unmodifiableSet(fields);
+            this.fieldMap = Collections.unmodifiableMap(map);
+        }
 
-        String[] fieldsStr = str.split("fields=\\{");
+        Set<IndexFieldDTO> getFields() {
+            return fields;
+        }
 
-        Map<String, String> indexToJsonMap = new OccurrenceIndex().indexToJsonMap();
+        Map<String, IndexFieldDTO> getFieldMap() {
+            return fieldMap;
+        }
+    }
 
+    /**
+     * parses the response from the service that returns details about the indexed fields
+     *
+     * @param response
+     * @return
+     */
+    private Set<IndexFieldDTO> parseLukeResponse(NamedList<Object> response, boolean includeCounts) {
+
+        //update index version
+        Object index = response.get("index");
+        if (index instanceof NamedList && ((NamedList) index).get("version") instanceof Number) {
+            updateIndexVersion(((Number) ((NamedList) index).get("version")).longValue());
+        }
 
-        for (String fieldStr : fieldsStr) {
-            if (fieldStr != null && !"".equals(fieldStr) ) {
-                String[] fields = includeCounts ? fieldStr.split("\\}\\},") : fieldStr.split("\\},");
+        Set<IndexFieldDTO> fieldList = includeCounts ? new java.util.LinkedHashSet<IndexFieldDTO>() : new java.util.TreeSet<IndexFieldDTO>();
 
-                //sort fields for later use of indexOf
-                Arrays.sort(fields);
+        Map<String, String> indexToJsonMap = new OccurrenceIndex().indexToJsonMap();
 
-                for (String field : fields) {
-                    formatIndexField(field, null, fieldList, typePattern, schemaPattern, indexToJsonMap, distinctPattern);
+        Object fields = response.get("fields");
+        if (fields instanceof NamedList) {
+            for (Map.Entry<String, Object> field : (NamedList<Object>) fields) {
+                if (field.getValue() instanceof NamedList) {
+                    NamedList details = (NamedList) field.getValue();
+                    Object type = details.get("type");
+                    Object schema = details.get("schema");
+                    Object distinct = details.get("distinct");
+                    formatIndexField(field.getKey(), type != null ? getIndexFieldDataType(type.toString()) : null,
+                            schema != null ? schema.toString() : null,
+                            distinct instanceof Number ? ((Number) distinct).intValue() : null,
+                            null, fieldList, indexToJsonMap);
                 }
             }
         }
 
         //add CASSANDRA fields that are not indexed
         if (!downloadService.downloadSolrOnly) {
+            Set<String> downloadNames = new HashSet<String>();
+            for (IndexFieldDTO field : fieldList) {
+                if ((field.isIndexed() || field.isStored()) && field.getDownloadName() != null) {
+                    downloadNames.add(field.getDownloadName());
+                }
+            }
             for (String cassandraField : Store.getStorageFieldMap().keySet()) {
-                boolean found = false;
                 //ignore fields with multiple items
-                if (cassandraField != null && !cassandraField.contains(",") ) {
-                    for (IndexFieldDTO field : fieldList) {
-                        if (field.isIndexed() || field.isStored()) {
-                            if (field.getDownloadName() != null && field.getDownloadName().equals(cassandraField)) {
-
-                                found = true;
-                                break;
-                            }
-                        }
-                    }
-                    if (!found) {
-                        formatIndexField(cassandraField, cassandraField, fieldList, typePattern, schemaPattern, indexToJsonMap, distinctPattern);
-                    }
+                if (cassandraField != null && !cassandraField.contains(",") && !downloadNames.contains(cassandraField)) {
+                    formatIndexField(cassandraField, null, null, null, cassandraField, fieldList, indexToJsonMap);
                 }
             }
         }
 
         //filter fields, to hide deprecated terms
-        List<String> toIgnore = new ArrayList<String>();
-        Set<IndexFieldDTO> filteredFieldList = new HashSet<IndexFieldDTO>();
+        Set<String> toIgnore = new HashSet<String>();
+        Set<IndexFieldDTO> filteredFieldList = includeCounts ? new java.util.LinkedHashSet<IndexFieldDTO>() : new java.util.TreeSet<IndexFieldDTO>();
         if(indexFieldsToHide != null){
-            toIgnore = Arrays.asList(indexFieldsToHide.split(","));
+            toIgnore.addAll(Arrays.asList(indexFieldsToHide.split(",")));
         }
         for(IndexFieldDTO indexedField: fieldList){
             if(!toIgnore.contains(indexedField.getName())){
@@ -3338,24 +3783,26 @@ public class SearchDAOImpl implements SearchDAO {
         return filteredFieldList;
     }
 
-    private void formatIndexField(String indexField, String cassandraField, Set<IndexFieldDTO> fieldList, Pattern typePattern,
-                                  Pattern schemaPattern, Map indexToJsonMap, Pattern distinctPattern) {
-
-        if (indexField != null && !"".equals(indexField)) {
-            IndexFieldDTO f = new IndexFieldDTO();
+    /**
+     * The data type reported for an index field is the leading lowercase letters of the SOLR field type, so
+     * text_general is reported as text and the /index/fields dataType filter matches the type family.
+     *
+     * @param solrType The name of the SOLR field type
+     * @return The data type, or null when the type does not start with a lowercase letter
+     */
+    static String getIndexFieldDataType(String solrType) {
+        int end = 0;
+        while (end < solrType.length() && solrType.charAt(end) >= 'a' && solrType.charAt(end) <= 'z') {
+            end++;
+        }
+        return end > 0 ? solrType.substring(0, end) : null;
+    }
 
-            String fieldName = indexField.split("=")[0];
-            String type = null;
-            String schema = null;
-            Matcher typeMatcher = typePattern.matcher(indexField);
-            if (typeMatcher.find(0)) {
-                type = typeMatcher.group(1);
-            }
+    private void formatIndexField(String fieldName, String type, String schema, Integer distinct, String cassandraField,
+                                  Set<IndexFieldDTO> fieldList, Map indexToJsonMap) {
 
-            Matcher schemaMatcher = schemaPattern.matcher(indexField);
-            if (schemaMatcher.find(0)) {
-                schema = schemaMatcher.group(1);
-            }
+        if (fieldName != null && !"".equals(fieldName)) {
+            IndexFieldDTO f = new IndexFieldDTO();
 
             //don't allow the sensitive coordinates to be exposed via ws and don't allow index fields without schema
             if (StringUtils.isNotEmpty(fieldName) && !fieldName.startsWith("sensitive_") && (cassandraField != null || schema != null)) {
@@ -3529,9 +3976,7 @@ public class SearchDAOImpl implements SearchDAO {
                 fieldList.add(f);
             }
 
-            Matcher distinctMatcher = distinctPattern.matcher(indexField);
-            if (distinctMatcher.find(0)) {
-                Integer distinct = Integer.parseInt(distinctMatcher.group(1));
+            if (distinct != null) {
                 f.setNumberDistinctValues(distinct);
             }
         }
@@ -3767,45 +4212,106 @@ public class SearchDAOImpl implements SearchDAO {
      * @throws Exception
      */
     public Map<String, Integer> getOccurrenceCountsForTaxa(List<String> taxa, String[] filterQueries) throws Exception {
-        SolrQuery solrQuery = new SolrQuery();
-        solrQuery.setRequestHandler("standard");
-        solrQuery.setRows(0);
-        solrQuery.setFacet(true);
-        solrQuery.setFacetLimit(taxa.size());
-        if(filterQueries != null && filterQueries.length > 0) {
-            solrQuery.setFilterQueries(filterQueries);
-        }
-        StringBuilder sb = new StringBuilder();
-        Map<String,Integer> counts = new HashMap<String,Integer>();
-        Map<String, String> lftToGuid = new HashMap<String,String>();
-        for(String lsid : taxa){
+        //the lft range of each taxon, with the taxa that share the range
+        final Map<String, List<String>> lftToGuids = new LinkedHashMap<String, List<String>>();
+        for (String lsid : new LinkedHashSet<String>(taxa)) {
             //get the lft and rgt value for the taxon
             String[] values = searchUtils.getTaxonSearch(lsid);
             //first value is the search string
-            if(sb.length() > 0) {
-                sb.append(" OR ");
+            if (values.length > 0) {
+                List<String> guids = lftToGuids.get(values[0]);
+                if (guids == null) {
+                    guids = new ArrayList<String>(1);
+                    lftToGuids.put(values[0], guids);
+                }
+                guids.add(lsid);
             }
-            sb.append(values[0]);
-            lftToGuid.put(values[0], lsid);
-            //add the query part as a facet
-            solrQuery.add("facet.query", values[0]);
         }
-        solrQuery.setQuery(sb.toString());
 
-        //solrQuery.add("facet.query", "confidence:" + os.getRange());
-        QueryResponse qr = runSolrQuery(solrQuery, null, 1, 0, "score", "asc");
-        Map<String, Integer> facetQueries = qr.getFacetQuery();
-        for(String facet:facetQueries.keySet()){
-            //add all the counts based on the query value that was substituted
-            String lsid = lftToGuid.get(facet);
-            Integer count = facetQueries.get(facet);
-            if(lsid != null && count!= null)
-                counts.put(lsid,  count);
-        }
-        logger.debug(facetQueries);
+        //count each batch of taxa with one facet query request, running the batches in parallel
+        List<Future<Map<String, Integer>>> batches = new ArrayList<Future<Map<String, Integer>>>();
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        try {
+            for (List<String> batch : Iterables.partition(new ArrayList<String>(lftToGuids.keySet()), taxaCountBatchSize)) {
+                batches.add(getTaxaCountExecutor().submit(new TaxaCountBatch(batch, filterQueries)));
+            }
+            for (Future<Map<String, Integer>> batch : batches) {
+                Map<String, Integer> facetQueries = batch.get();
+                for (Map.Entry<String, Integer> facet : facetQueries.entrySet()) {
+                    //add all the counts based on the query value that was substituted
+                    List<String> guids = lftToGuids.get(facet.getKey());
+                    if (guids != null && facet.getValue() != null) {
+                        for (String lsid : guids) {
+                            counts.put(lsid, facet.getValue());
+                        }
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        } finally {
+            for (Future<Map<String, Integer>> batch : batches) {
+                batch.cancel(true);
+            }
+        }
         return counts;
     }
 
+    /**
+     * Counts the occurrences of a batch of taxa with one facet query for each lft range.
+     * <p>
+     * Every facet query is a subset of all records, so the query is *:* rather than the union of the ranges.
+     */
+    private class TaxaCountBatch implements Callable<Map<String, Integer>> {
+        private final List<String> lftQueries;
+        private final String[] filterQueries;
+
+        TaxaCountBatch(List<String> lftQueries, String[] filterQueries) {
+            this.lftQueries = lftQueries;
+            this.filterQueries = filterQueries;
+        }
+
+        @Override
+        public Map<String, Integer> call() throws Exception {
+            SolrQuery solrQuery = new SolrQuery();
+            solrQuery.setRequestHandler("standard");
+            solrQuery.setRows(0);
+            solrQuery.setFacet(true);
+            solrQuery.setFacetLimit(lftQueries.size());
+            if (filterQueries != null && filterQueries.length > 0) {
+                solrQuery.setFilterQueries(filterQueries);
+            }
+            for (String lftQuery : lftQueries) {
+                //add the query part as a facet
+                solrQuery.add("facet.query", lftQuery);
+            }
+            solrQuery.setQuery("*:*");
+
+            QueryResponse qr = runSolrQuery(solrQuery, null, 1, 0, "score", "asc");
+            Map<String, Integer> facetQueries = qr.getFacetQuery();
+            if (logger.isDebugEnabled()) {
+                logger.debug(facetQueries);
+            }
+            return facetQueries;
+        }
+    }
+
+    private ExecutorService getTaxaCountExecutor() {
+        ExecutorService nextExecutor = taxaCountExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = taxaCountExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = taxaCountExecutor = Executors.newFixedThreadPool(
+                            maxTaxaCountThreads,
+                            new ThreadFactoryBuilder().setNameFormat("biocache-taxa-count-%d").build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
     /**
      * @return the maxEndemicQueryThreads for endemic queries
      */
@@ -3935,7 +4441,8 @@ public class SearchDAOImpl implements SearchDAO {
     }
 
     /**
-     * Get the SOLR index version. Trigger a background refresh on a timeout.
+     * Get the SOLR index version. The version is refreshed in the background every solrIndexVersionRefreshTime and
+     * changes are published to the {@link IndexVersionListener}s.
      * <p>
      * Forcing an updated value will perform a new SOLR query for each request to be run in the foreground.
      *
@@ -3943,52 +4450,62 @@ public class SearchDAOImpl implements SearchDAO {
      * @return
      */
     public Long getIndexVersion(Boolean force) {
-        Thread t = null;
-        synchronized (solrIndexVersionLock) {
-            boolean immediately = solrIndexVersionTime == 0;
-
-            if (force || solrIndexVersionTime < System.currentTimeMillis() - solrIndexVersionRefreshTime) {
+        if (force || solrIndexVersionTime == 0) {
+            try {
+                refreshIndexVersion();
+            } catch (Exception e) {
+                //leave the retry to the background refresh
                 solrIndexVersionTime = System.currentTimeMillis();
+                logger.error("Failed to update solrIndexVersion", e);
+            }
+        }
+        return solrIndexVersion;
+    }
 
-                t = new Thread() {
-                    @Override
-                    public void run() {
-                        try {
-                            getIndexFieldDetails(null);
-                        } catch (Exception e) {
-                            logger.error("Failed to update solrIndexVersion", e);
-                        }
-                    }
-                };
+    @Override
+    public void addIndexVersionListener(IndexVersionListener listener) {
+        indexVersionListeners.add(listener);
+    }
 
-                if (immediately) {
-                    //wait with lock
-                    t.start();
-                    try {
-                        t.join();
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        logger.error("Failed to update solrIndexVersion", e);
-                    }
-                } else if (!force) {
-                    //run in background
-                    t.start();
-                }
-            }
+    /**
+     * Reads the index version with a Luke request that only returns the index details, without any fields.
+     */
+    private void refreshIndexVersion() throws Exception {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("qt", "/admin/luke");
+        params.set("show", "index");
+        params.set("numTerms", "0");
+        QueryResponse response = query(params, queryMethod);
+        Object index = response.getResponse().get("index");
+        Object version = index instanceof NamedList ? ((NamedList) index).get("version") : null;
+        if (version instanceof Number) {
+            updateIndexVersion(((Number) version).longValue());
+        } else {
+            logger.warn("No index version in the SOLR response");
         }
+    }
 
-        if (force && t != null) {
-            //wait without lock
-            t.start();
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                logger.error("Failed to update solrIndexVersion", e);
+    /**
+     * Publishes the index version, and notifies the listeners when it has changed from a previously known version.
+     */
+    private void updateIndexVersion(long version) {
+        long oldVersion;
+        synchronized (solrIndexVersionLock) {
+            oldVersion = solrIndexVersion;
+            solrIndexVersion = version;
+            solrIndexVersionTime = System.currentTimeMillis();
+        }
+        if (oldVersion != 0 && oldVersion != version) {
+            logger.info("SOLR index version changed from " + oldVersion + " to " + version);
+            queryFormatUtils.clearCache();
+            for (IndexVersionListener listener : indexVersionListeners) {
+                try {
+                    listener.indexVersionChanged(oldVersion, version);
+                } catch (Exception e) {
+                    logger.error("Failed to notify index version listener " + listener, e);
+                }
             }
         }
-
-        return solrIndexVersion;
     }
 
     /**
@@ -4255,6 +4772,94 @@ public class SearchDAOImpl implements SearchDAO {
         return output;
     }
 
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getDistinctCountsByFacet
+     */
+    @Cacheable(cacheName = "distinctCountsByFacet")
+    public SpeciesGroupDTO getDistinctCountsByFacet(SpatialSearchRequestParams searchParams, String facet, String distinctField, String ignoredValue) throws Exception {
+        searchParams.setFacet(false);
+        searchParams.setFacets(new String[]{});
+        searchParams.setPageSize(0);
+        queryFormatUtils.formatSearchQuery(searchParams);
+
+        SolrQuery query = initSolrQuery(searchParams, false, null);
+        query.setQuery(searchParams.getFormattedQuery());
+        query.setFields(null);
+
+        // the same counts are made for the whole query and for each facet value
+        Map<String, Object> counts = new LinkedHashMap<String, Object>();
+        counts.put("distinct", "unique(" + distinctField + ")");
+        if (ignoredValue != null) {
+            // the ignored value is matched ignoring case, so each distinct spelling found is left out of the count
+            Map<String, Object> ignored = new LinkedHashMap<String, Object>();
+            ignored.put("type", "query");
+            ignored.put("q", distinctField + ":/" + getCaseInsensitiveRegex(ignoredValue) + "/");
+            ignored.put("facet", Collections.singletonMap("distinct", "unique(" + distinctField + ")"));
+            counts.put("ignored", ignored);
+        }
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("type", "terms");
+        values.put("field", facet);
+        values.put("limit", -1);
+        values.put("mincount", 1);
+        values.put("facet", counts);
+        Map<String, Object> jsonFacet = new LinkedHashMap<String, Object>(counts);
+        jsonFacet.put("values", values);
+        query.add("json.facet", jsonMapper.writeValueAsString(jsonFacet));
+
+        QueryResponse response = runSolrQuery(query, searchParams);
+
+        SpeciesGroupDTO result = new SpeciesGroupDTO(null, 0, response.getResults().getNumFound(), 0);
+        List<SpeciesGroupDTO> valueCounts = new ArrayList<SpeciesGroupDTO>();
+        result.setChildGroups(valueCounts);
+        NamedList<Object> facets = (NamedList<Object>) response.getResponse().get("facets");
+        if (facets != null) {
+            result.setSpeciesCount(getDistinctCount(facets));
+            NamedList<Object> valueFacet = (NamedList<Object>) facets.get("values");
+            List<NamedList<Object>> buckets = valueFacet != null ? (List<NamedList<Object>>) valueFacet.get("buckets") : null;
+            if (buckets != null) {
+                for (NamedList<Object> bucket : buckets) {
+                    valueCounts.add(new SpeciesGroupDTO(String.valueOf(bucket.get("val")), getDistinctCount(bucket),
+                            ((Number) bucket.get("count")).longValue(), 1));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of distinct values in a JSON facet bucket, excluding the spellings of the ignored value that were found.
+     */
+    private static long getDistinctCount(NamedList<Object> bucket) {
+        Number distinct = (Number) bucket.get("distinct");
+        long count = distinct != null ? distinct.longValue() : 0;
+        NamedList<Object> ignored = (NamedList<Object>) bucket.get("ignored");
+        Number ignoredDistinct = ignored != null ? (Number) ignored.get("distinct") : null;
+        if (ignoredDistinct != null) {
+            count -= ignoredDistinct.longValue();
+        }
+        return Math.max(count, 0);
+    }
+
+    /**
+     * A regular expression that matches the value ignoring case, for use in a /regex/ query.
+     */
+    static String getCaseInsensitiveRegex(String value) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            char lower = Character.toLowerCase(c);
+            char upper = Character.toUpperCase(c);
+            if (lower != upper) {
+                regex.append('[').append(lower).append(upper).append(']');
+            } else if (Character.isLetterOrDigit(c)) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return regex.toString();
+    }
+
     /**
      * @see au.org.ala.biocache.dao.SearchDAO#getColours
      */
@@ -4326,39 +4931,170 @@ public class SearchDAOImpl implements SearchDAO {
 
     /**
      * Get bounding box for a query.
+     * <p>
+     * The min and max longitude and latitude are found with one stats request, and cached for the
+     * index version.
      *
      * @param requestParams
-     * @return
+     * @return min longitude, min latitude, max longitude, max latitude, or zeros when nothing is found
      * @throws Exception
      */
     public double[] getBBox(SpatialSearchRequestParams requestParams) throws Exception {
-        double[] bbox = new double[4];
-        String[] sort = {"longitude", "latitude", "longitude", "latitude"};
-        String[] dir = {"asc", "asc", "desc", "desc"};
-
         //Filter for -180 +180 longitude and -90 +90 latitude to match WMS request bounds.
         String [] bounds = new String[]{"longitude:[-180 TO 180]", "latitude:[-90 TO 90]"};
 
         queryFormatUtils.addFqs(bounds, requestParams);
 
         requestParams.setFq(requestParams.getFq());
-        requestParams.setPageSize(10);
 
-        for (int i = 0; i < sort.length; i++) {
-            requestParams.setSort(sort[i]);
-            requestParams.setDir(dir[i]);
-            requestParams.setFl(sort[i]);
+        queryFormatUtils.formatSearchQuery(requestParams);
 
-            SolrDocumentList sdl = findByFulltext(requestParams);
-            if (sdl != null && sdl.size() > 0) {
-                if (sdl.get(0) != null) {
-                    bbox[i] = (Double) sdl.get(0).getFieldValue(sort[i]);
-                } else {
-                    logger.error("searchDAO.findByFulltext returning SolrDocumentList with null records");
+        // the order of fqs does not change the bounding box
+        List<String> fqs = new ArrayList<String>();
+        if (requestParams.getFormattedFq() != null) {
+            for (String fq : requestParams.getFormattedFq()) {
+                if (StringUtils.isNotEmpty(fq)) {
+                    fqs.add(fq);
+                }
+            }
+        }
+        Collections.sort(fqs);
+        String key = getIndexVersion(false) + "\u0001" + requestParams.getFormattedQuery() + "\u0001" +
+                StringUtils.join(fqs, '\u0000');
+
+        Cache<String, double[]> cache = getBBoxCache();
+        double[] bbox = cache.getIfPresent(key);
+        if (bbox == null) {
+            bbox = new double[4];
+
+            SolrQuery solrQuery = new SolrQuery();
+            solrQuery.setQuery(requestParams.getFormattedQuery());
+            for (String fq : fqs) {
+                solrQuery.addFilterQuery(fq);
+            }
+            solrQuery.setRows(0);
+            solrQuery.setFacet(false);
+            solrQuery.setGetFieldStatistics("longitude");
+            solrQuery.setGetFieldStatistics("latitude");
+
+            QueryResponse qr = query(solrQuery, queryMethod);
+            Map<String, FieldStatsInfo> stats = qr.getFieldStatsInfo();
+            FieldStatsInfo longitude = stats != null ? stats.get("longitude") : null;
+            FieldStatsInfo latitude = stats != null ? stats.get("latitude") : null;
+            if (longitude != null && latitude != null && longitude.getMin() instanceof Number && latitude.getMin() instanceof Number) {
+                bbox[0] = ((Number) longitude.getMin()).doubleValue();
+                bbox[1] = ((Number) latitude.getMin()).doubleValue();
+                bbox[2] = ((Number) longitude.getMax()).doubleValue();
+                bbox[3] = ((Number) latitude.getMax()).doubleValue();
+            }
+            cache.put(key, bbox);
+        }
+        return bbox.clone();
+    }
+
+    private Cache<String, double[]> getBBoxCache() {
+        Cache<String, double[]> cache = bboxCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = bboxCache;
+                if (cache == null) {
+                    cache = bboxCache = CacheBuilder.newBuilder().maximumSize(bboxCacheSize).build();
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#findNearestOccurrences(SpatialSearchRequestParams, int)
+     */
+    @Override
+    public List<OccurrenceIndex> findNearestOccurrences(SpatialSearchRequestParams requestParams, int k) throws Exception {
+        // search from the grid point, so that repeated lookups near the same point are cached
+        double lat = snapToNearestGrid(requestParams.getLat());
+        double lon = snapToNearestGrid(requestParams.getLon());
+
+        // the result does not depend on the radius the search starts with
+        String key = getIndexVersion(false) + "\u0001" + requestParams.getQ() + "\u0001" + requestParams.getQc() +
+                "\u0001" + (requestParams.getFq() == null ? "" : StringUtils.join(requestParams.getFq(), '\u0000')) +
+                "\u0001" + requestParams.getWkt() + "\u0001" + requestParams.getFl() +
+                "\u0001" + lat + "," + lon + "\u0001" + k;
+
+        Cache<String, List<OccurrenceIndex>> cache = getNearestCache();
+        List<OccurrenceIndex> nearest = cache.getIfPresent(key);
+        if (nearest != null) {
+            return sortByDistance(nearest, requestParams.getLat(), requestParams.getLon());
+        }
+
+        float radius = requestParams.getRadius() != null && requestParams.getRadius() > 0 ?
+                requestParams.getRadius() : nearestInitialRadius;
+        radius = Math.min(radius, nearestMaxRadius);
+
+        while (true) {
+            SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+            BeanUtils.copyProperties(requestParams, params);
+            params.setRadius(radius);
+            params.setStart(0);
+            params.setPageSize(k);
+            params.setFacet(false);
+            params.setSort("hsin(6371,true,latitude,longitude," + lat + "," + lon + ")");
+            params.setDir("asc");
+
+            SearchResultDTO searchResult = findByFulltextSpatialQuery(params, false, null);
+            if ("ERROR".equals(searchResult.getStatus())) {
+                throw new Exception("Nearest occurrence search failed: " + searchResult.getErrorMessage());
+            }
+
+            List<OccurrenceIndex> occurrences = searchResult.getOccurrences();
+            boolean complete = occurrences.size() >= k &&
+                    SpatialUtils.distanceInMetres(lat, lon, occurrences.get(k - 1).getDecimalLatitude(),
+                            occurrences.get(k - 1).getDecimalLongitude()) <= radius * 1000 * NEAREST_COMPLETE_FRACTION;
+
+            if (complete || radius >= nearestMaxRadius) {
+                nearest = Collections.unmodifiableList(new ArrayList<OccurrenceIndex>(occurrences));
+                break;
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Found " + occurrences.size() + " of " + k + " nearest occurrences within " + radius + "km");
+            }
+            radius = Math.min(radius * nearestRadiusGrowth, nearestMaxRadius);
+        }
+
+        cache.put(key, nearest);
+        return sortByDistance(nearest, requestParams.getLat(), requestParams.getLon());
+    }
+
+    private double snapToNearestGrid(double value) {
+        return nearestGridDegrees > 0 ? Math.round(value / nearestGridDegrees) * nearestGridDegrees : value;
+    }
+
+    /**
+     * @return The occurrences in order of their distance from the requested point, rather than the grid point
+     */
+    private static List<OccurrenceIndex> sortByDistance(List<OccurrenceIndex> occurrences, final double lat, final double lon) {
+        List<OccurrenceIndex> sorted = new ArrayList<OccurrenceIndex>(occurrences);
+        Collections.sort(sorted, new Comparator<OccurrenceIndex>() {
+            @Override
+            public int compare(OccurrenceIndex a, OccurrenceIndex b) {
+                return Double.compare(SpatialUtils.distanceInMetres(lat, lon, a.getDecimalLatitude(), a.getDecimalLongitude()),
+                        SpatialUtils.distanceInMetres(lat, lon, b.getDecimalLatitude(), b.getDecimalLongitude()));
+            }
+        });
+        return Collections.unmodifiableList(sorted);
+    }
+
+    private Cache<String, List<OccurrenceIndex>> getNearestCache() {
+        Cache<String, List<OccurrenceIndex>> cache = nearestCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = nearestCache;
+                if (cache == null) {
+                    cache = nearestCache = CacheBuilder.newBuilder().maximumSize(nearestCacheSize).build();
                 }
             }
         }
-        return bbox;
+        return cache;
     }
 
     @Override
@@ -4383,7 +5119,7 @@ public class SearchDAOImpl implements SearchDAO {
 
         ArrayList<String> found = new ArrayList<>();
 
-        for (IndexFieldDTO s : indexFields) {
+        for (IndexFieldDTO s : indexFieldCatalog.getFields()) {
             // this only works for non-tri fields
             if (!s.getDataType().startsWith("t")) {
                 solrQuery.set("facet.field", "{!facet.method=enum facet.exists=true}" + s.getName());
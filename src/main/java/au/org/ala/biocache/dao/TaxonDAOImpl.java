@@ -14,24 +14,37 @@
  ***************************************************************************/
 package au.org.ala.biocache.dao;
 
-import org.apache.commons.lang.ArrayUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.PivotField;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.io.BufferedWriter;
 import java.io.Writer;
 import java.net.URLEncoder;
-import java.util.ArrayList;
 import java.util.List;
 
 @Component("taxonDao")
 public class TaxonDAOImpl implements TaxonDAO {
 
     private static final Logger logger = Logger.getLogger(TaxonDAOImpl.class);
+
+    /** ranks of the taxonomic hierarchy, from the root layer down to the species layers */
+    static final String[] HIERARCHY_RANKS = {"kingdom", "phylum", "class", "order", "family", "genus", "species"};
+
+    /** ranks of the species group hierarchy, from the root layer down to the species layers */
+    static final String[] SPECIES_GROUP_RANKS = {"species_group", "order", "family", "genus", "species"};
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     protected SolrClient server;
 
     /**
@@ -40,109 +53,138 @@ public class TaxonDAOImpl implements TaxonDAO {
     @Inject
     private SolrClient solrClient;
 
-    public void extractBySpeciesGroups(String metadataUrl, String q, String[] fq, Writer writer) throws Exception{
-
-        List<FacetField.Count> speciesGroups = extractFacet(q,fq, "species_group");
-        for(FacetField.Count spg: speciesGroups){
-            if (spg.getName() != null) {
-                List<FacetField.Count> orders = extractFacet(q, (String[]) ArrayUtils.add(fq, "species_group:" + spg.getName()), "order");
-                for (FacetField.Count o : orders) {
-                    if (o.getName() != null) {
-                        outputNestedMappableLayerStart("order", o.getName(), writer);
-                        List<FacetField.Count> families = extractFacet(q, (String[]) ArrayUtils.add(fq, "order:" + o.getName()), "family");
-                        for (FacetField.Count f : families) {
-                            if (f.getName() != null) {
-                                outputNestedMappableLayerStart("family", f.getName(), writer);
-                                List<FacetField.Count> genera = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"family:" + f.getName(), "species_group:" + spg.getName()}), "genus");
-                                for (FacetField.Count g : genera) {
-                                    if (g.getName() != null) {
-                                        outputNestedMappableLayerStart("genus", g.getName(), writer);
-                                        List<FacetField.Count> species = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"genus:" + g.getName(), "species_group:" + spg.getName(), "family:" + f.getName()}), "species");
-                                        for (FacetField.Count s : species) {
-                                            if (s.getName() != null) {
-                                                outputLayer(metadataUrl, "species", s.getName(), writer);
-                                            }
-                                        }
-                                        outputNestedLayerEnd(writer);
-                                    }
-                                }
-                                outputNestedLayerEnd(writer);
-                            }
-                        }
-                        outputNestedLayerEnd(writer);
-                    }
+    @Inject
+    protected SearchDAO searchDAO;
+
+    /** maximum number of hierarchies cached for the current index version */
+    @Value("${taxon.hierarchy.cache.size:20}")
+    protected Integer hierarchyCacheSize = 20;
+
+    private Cache<String, TaxonNode> hierarchyCache;
+
+    @PostConstruct
+    public void init() {
+        hierarchyCache = CacheBuilder.newBuilder().maximumSize(hierarchyCacheSize).build();
+        if (searchDAO != null) {
+            searchDAO.addIndexVersionListener(new IndexVersionListener() {
+                @Override
+                public void indexVersionChanged(long oldVersion, long newVersion) {
+                    hierarchyCache.invalidateAll();
                 }
-                outputNestedLayerEnd(writer);
-            }
+            });
         }
     }
 
+    public void extractBySpeciesGroups(String metadataUrl, String q, String[] fq, Writer writer) throws Exception {
+        writeHierarchy(metadataUrl, getHierarchy(q, fq, SPECIES_GROUP_RANKS), SPECIES_GROUP_RANKS, writer);
+    }
+
     @Override
     public void extractHierarchy(String metadataUrl, String q, String[] fq, Writer writer) throws Exception {
+        writeHierarchy(metadataUrl, getHierarchy(q, fq, HIERARCHY_RANKS), HIERARCHY_RANKS, writer);
+    }
 
-        List<FacetField.Count> kingdoms = extractFacet(q,fq,"kingdom");
-        for(FacetField.Count k: kingdoms){
-            if (k.getName() != null) {
-                outputNestedLayerStart(k.getName(), writer);
-                List<FacetField.Count> phyla = extractFacet(q, (String[]) ArrayUtils.add(fq, "kingdom:" + k.getName()), "phylum");
-                for (FacetField.Count p : phyla) {
-                    if (p.getName() != null) {
-                        outputNestedMappableLayerStart("phylum", p.getName(), writer);
-                        List<FacetField.Count> classes = extractFacet(q, (String[]) ArrayUtils.add(fq, "phylum:" + p.getName()), "class");
-                        for (FacetField.Count c : classes) {
-                            if (c.getName() != null) {
-                                outputNestedMappableLayerStart("class", c.getName(), writer);
-                                List<FacetField.Count> orders = extractFacet(q, (String[]) ArrayUtils.add(fq, "class:" + c.getName()), "order");
-                                for (FacetField.Count o : orders) {
-                                    if (o.getName() != null) {
-                                        outputNestedMappableLayerStart("order", o.getName(), writer);
-                                        List<FacetField.Count> families = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"order:" + o.getName(), "kingdom:" + k.getName()}), "family");
-                                        for (FacetField.Count f : families) {
-                                            if (f.getName() != null) {
-                                                outputNestedMappableLayerStart("family", f.getName(), writer);
-                                                List<FacetField.Count> genera = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"family:" + f.getName(), "kingdom:" + k.getName()}), "genus");
-                                                for (FacetField.Count g : genera) {
-                                                    if (g.getName() != null) {
-                                                        outputNestedMappableLayerStart("genus", g.getName(), writer);
-                                                        List<FacetField.Count> species = extractFacet(q, (String[]) ArrayUtils.addAll(fq, new String[]{"genus:" + g.getName(), "kingdom:" + k.getName(), "family:" + f.getName()}), "species");
-                                                        for (FacetField.Count s : species) {
-                                                            if (s.getName() != null) {
-                                                                outputLayer(metadataUrl, "species", s.getName(), writer);
-                                                            }
-                                                        }
-                                                        outputNestedLayerEnd(writer);
-                                                    }
-                                                }
-                                                outputNestedLayerEnd(writer);
-                                            }
-                                        }
-                                        outputNestedLayerEnd(writer);
-                                    }
-                                }
-                                outputNestedLayerEnd(writer);
-                            }
-                        }
-                        outputNestedLayerEnd(writer);
-                    }
-                }
-                outputNestedLayerEnd(writer);
+    /**
+     * Writes the layers for the hierarchy. The root ranks are plain layers, the species are leaf layers and the
+     * ranks in between are mappable layers.
+     */
+    void writeHierarchy(String metadataUrl, TaxonNode root, String[] ranks, Writer writer) throws Exception {
+        BufferedWriter out = new BufferedWriter(writer, OUTPUT_BUFFER_SIZE);
+        for (TaxonNode node : root.children) {
+            writeNode(metadataUrl, node, ranks, 0, out);
+        }
+        out.flush();
+    }
+
+    private void writeNode(String metadataUrl, TaxonNode node, String[] ranks, int depth, Writer out) throws Exception {
+        if (depth == ranks.length - 1) {
+            outputLayer(metadataUrl, ranks[depth], node.name, out);
+            return;
+        }
+        if (depth == 0) {
+            outputNestedLayerStart(node.name, out);
+        } else {
+            outputNestedMappableLayerStart(ranks[depth], node.name, out);
+        }
+        for (TaxonNode child : node.children) {
+            writeNode(metadataUrl, child, ranks, depth + 1, out);
+        }
+        outputNestedLayerEnd(out);
+    }
+
+    /**
+     * Returns the hierarchy of the ranks for the records matching the query, from the cache when the index has not
+     * changed since it was built.
+     */
+    TaxonNode getHierarchy(String q, String[] fq, String[] ranks) throws Exception {
+        Long indexVersion = searchDAO != null ? searchDAO.getIndexVersion(false) : null;
+        String key = StringUtils.join(ranks, ',') + "\n" + q + "\n" + (fq != null ? StringUtils.join(fq, "\n") : "");
+
+        TaxonNode hierarchy = hierarchyCache.getIfPresent(key);
+        if (hierarchy != null && indexVersion != null && indexVersion.equals(hierarchy.indexVersion)) {
+            return hierarchy;
+        }
+        hierarchy = extractPivot(q, fq, ranks);
+        if (indexVersion != null) {
+            hierarchy.indexVersion = indexVersion;
+            hierarchyCache.put(key, hierarchy);
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Builds the hierarchy for the records matching the query from a single pivot facet over the ranks.
+     */
+    private TaxonNode extractPivot(String queryString, String[] filterQueries, String[] ranks) throws Exception {
+        String pivot = StringUtils.join(ranks, ',');
+        SolrQuery query = new SolrQuery(queryString);
+        query.setFacet(true);
+        query.addFacetPivotField(pivot);
+        query.setRows(0);
+        query.setFacetLimit(-1);
+        query.setStart(0);
+        query.setFacetMinCount(1);
+        query.setFacetSort("index");
+        if (filterQueries != null) {
+            for (String fq : filterQueries) query.addFilterQuery(fq);
+        }
+        QueryResponse response = solrClient.query(query);
+        List<PivotField> pivotFields = response.getFacetPivot() != null ? response.getFacetPivot().get(pivot) : null;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Hierarchy pivot " + pivot + " qtime:" + response.getQTime());
+        }
+        return new TaxonNode(null, toNodes(pivotFields));
+    }
+
+    private static TaxonNode[] toNodes(List<PivotField> pivotFields) {
+        if (pivotFields == null || pivotFields.isEmpty()) {
+            return TaxonNode.NO_CHILDREN;
+        }
+        TaxonNode[] nodes = new TaxonNode[pivotFields.size()];
+        int size = 0;
+        for (PivotField pivotField : pivotFields) {
+            if (pivotField.getValue() != null) {
+                nodes[size++] = new TaxonNode(pivotField.getValue().toString(), toNodes(pivotField.getPivot()));
             }
         }
+        if (size < nodes.length) {
+            TaxonNode[] trimmed = new TaxonNode[size];
+            System.arraycopy(nodes, 0, trimmed, 0, size);
+            nodes = trimmed;
+        }
+        return nodes;
     }
 
     void outputNestedMappableLayerStart(String rank, String taxon, Writer out) throws Exception {
         out.write("<Layer queryable=\"1\"><Name>" + rank + ":" + taxon + "</Name><Title>" + taxon + "</Title>");
-        out.flush();
     }
 
     void outputNestedLayerStart(String layerName, Writer out) throws Exception {
         out.write("<Layer><Name>"+layerName + "</Name><Title>"+layerName + "</Title>\n\t");
-        out.flush();
     }
 
     void outputNestedLayerEnd(Writer out) throws Exception {
         out.write("</Layer>");
-        out.flush();
     }
 
     void outputLayer(String metadataUrlRoot, String rank, String taxon, Writer out) throws Exception {
@@ -156,27 +198,22 @@ public class TaxonDAOImpl implements TaxonDAO {
                 " xlink:href=\""+metadataUrlRoot+"?q="+rank+":"+ URLEncoder.encode(taxon,"UTF-8") +"\"/>\n" +
                 "</MetadataURL>"+
                 "</Layer>");
-        out.flush();
     }
 
-    private List<FacetField.Count> extractFacet(String queryString, String[] filterQueries, String facetName) throws Exception {
-        SolrQuery query = new SolrQuery(queryString);
-        query.setFacet(true);
-        query.addFacetField(facetName);
-        query.setRows(0);
-        query.setFacetLimit(200000);
-        query.setStart(0);
-        query.setFacetMinCount(1);
-        query.setFacetSort("index");
-        //query.setFacet
-        if(filterQueries != null){
-            for(String fq: filterQueries) query.addFilterQuery(fq);
-        }
-        QueryResponse response = solrClient.query(query);
-        List<FacetField.Count> fc = response.getFacetField(facetName).getValues();
-        if(fc == null){
-            fc = new ArrayList<FacetField.Count>();
+    /**
+     * A node of a hierarchy, with its children in index order.
+     */
+    static class TaxonNode {
+        static final TaxonNode[] NO_CHILDREN = new TaxonNode[0];
+
+        final String name;
+        final TaxonNode[] children;
+        /** index version the hierarchy was built from */
+        Long indexVersion;
+
+        TaxonNode(String name, TaxonNode[] children) {
+            this.name = name;
+            this.children = children;
         }
-        return fc;
     }
 }
@@ -49,6 +49,7 @@ public class DownloadDetailsDTO {
     private String sensitiveFq = null;
     private AtomicBoolean interrupt = new AtomicBoolean(false);
     private String processingThreadName = null;
+    private Date processingStartDate = null;
 
     /**
      * Default constructor necessary for Jackson to create an object from the JSON. 
@@ -267,6 +268,26 @@ public class DownloadDetailsDTO {
         this.processingThreadName = processingThreadName;
     }
 
+    /**
+     * @return The time the download was taken from the queue for processing, or null if it has not started
+     */
+    public Date getProcessingStartDate() {
+        return processingStartDate;
+    }
+
+    public void setProcessingStartDate(Date processingStartDate) {
+        this.processingStartDate = processingStartDate;
+    }
+
+    /**
+     * @return The number of milliseconds the download waited in the queue before processing started, or has been
+     * waiting so far if it has not started
+     */
+    public long getQueueWaitTime() {
+        long end = processingStartDate != null ? processingStartDate.getTime() : System.currentTimeMillis();
+        return startDate != null ? Math.max(0, end - startDate.getTime()) : 0;
+    }
+
     public void resetCounts() {
         recordsDownloaded.set(0);
         lastUpdate = new Date();
@@ -23,6 +23,8 @@ import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 
@@ -37,6 +39,9 @@ public class HeatMap {
 
     private final static Logger logger = Logger.getLogger(HeatMap.class);
 
+    /* minimum number of points to sum the density grid on multiple cores */
+    private final static int PARALLEL_MIN_POINTS = 10000;
+
     private int radius = 8;
     private int numColours = 10;
 
@@ -260,18 +265,13 @@ public class HeatMap {
         return null;
     }
 
-    private void generateLogScaleCircle(int dPoints[][]) {
+    private void generateLogScaleCircle(int[] dPoints) {
         try {
 
             int maxValue = 0;
-            int width = monochromeImage.getWidth();
-            int height = monochromeImage.getHeight();
-
-            for (int mi = 0; mi < width; mi++) {
-                for (int mj = 0; mj < height; mj++) {
-                    if (maxValue < dPoints[mi][mj]) {
-                        maxValue = dPoints[mi][mj];
-                    }
+            for (int value : dPoints) {
+                if (maxValue < value) {
+                    maxValue = value;
                 }
             }
 
@@ -279,23 +279,13 @@ public class HeatMap {
             // 0 tells us that there are no records in the 
             // current "bounding box"            
             if (maxValue > 0) {
-                // we are doing "1" here to make sure nothing is 0
-                int roundFactor = 1;
-
-                for (int mi = 0; mi < width; mi++) {
-                    for (int mj = 0; mj < height; mj++) {
-                        int rgba = (int) (255 - Math.log(dPoints[mi][mj]) * 255 / Math.log((double) maxValue));
-                        if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
-                            rgba = 255 - (255 / numColours) - roundFactor;
-                        }
-                        //rgba <<= 8;
-                        //
-                        //rgba = (((short)rgba) & 0x000000ff) << 24;
-                        rgba = (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
-                        //System.out.println("rgba: " + Integer.toHexString(rgba));
-
-                        monochromeImage.setRGB(mi, mj, rgba);
-                    }
+                // write the pixels straight into the image, it has the same row order as dPoints
+                int[] pixels = ((DataBufferInt) monochromeImage.getRaster().getDataBuffer()).getData();
+
+                // most pixels are usually empty
+                int emptyRgba = toLogScaleRgba(0, maxValue);
+                for (int i = 0; i < dPoints.length; i++) {
+                    pixels[i] = dPoints[i] == 0 ? emptyRgba : toLogScaleRgba(dPoints[i], maxValue);
                 }
 
                 generateLegend(maxValue);
@@ -305,42 +295,117 @@ public class HeatMap {
         }
     }
 
+    private int toLogScaleRgba(int value, int maxValue) {
+        // we are doing "1" here to make sure nothing is 0
+        int roundFactor = 1;
+
+        int rgba = (int) (255 - Math.log(value) * 255 / Math.log((double) maxValue));
+        if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
+            rgba = 255 - (255 / numColours) - roundFactor;
+        }
+        return (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
+    }
+
     /**
      * Generate classes
      *
      * @param points
      */
     public void generateClasses(double[] points) {
+        generateLogScaleCircle(density(points));
+    }
 
-        int width = backgroundImage.getWidth();
-        int height = backgroundImage.getHeight();
-        //System.out.println("bounding box: " + minX + "," + minY + "," + maxX + "," + maxY);
-        //System.out.println("Adding " + (v.length / 2) + " points to base image...");
-        //System.out.println("Adding to base image...");
-        int dPoints[][] = new int[width][height];
+    /**
+     * Sum the circle of each point into a density grid of the image, in rows.
+     * <p>
+     * The points are first counted for each pixel, so the circle is added once for each pixel rather than for each
+     * point. The circle values are precomputed and rows of the image are summed in parallel bands.
+     *
+     * @param points lng, lat pairs
+     * @return The density of each pixel, at y * width + x
+     */
+    int[] density(double[] points) {
+        final int width = backgroundImage.getWidth();
+        final int height = backgroundImage.getHeight();
+
+        // count points per pixel, with a margin for points outside the image that have circles inside it
+        final int binWidth = width + 2 * radius;
+        final int binHeight = height + 2 * radius;
+        final int[] bins = new int[binWidth * binHeight];
         for (int i = 0; i < points.length; i += 2) {
-            double cx = points[i];
-            double cy = points[i + 1];
+            Point p = translate(points[i], points[i + 1]);
+            if (p != null && p.x >= -radius && p.x < width + radius && p.y >= -radius && p.y < height + radius) {
+                bins[(p.y + radius) * binWidth + p.x + radius]++;
+            }
+        }
 
-            Point p = translate(cx, cy);
+        final int[] kernel = createKernel();
+        final int[] dPoints = new int[width * height];
 
-            int pradius = radius * radius;
-
-            for (int ci = (int) (p.x - radius); ci <= (p.x + radius); ci++) {
-                for (int cj = (int) (p.y - radius); cj <= (p.y + radius); cj++) {
-                    if (ci >= 0 && ci < width && cj >= 0 && cj < height) {
-                        double d = Math.pow((p.x - ci), 2) + Math.pow((p.y - cj), 2);
-                        if ((int) d <= pradius) {
-                            // applying gradient to this circle so outer influence is low
-                            // and at the peak it's maximum
-                            dPoints[ci][cj] += numColours - ((d * numColours) / pradius);
-                        }
-                    }
+        int bandHeight = Math.max(2 * radius + 1, height / Runtime.getRuntime().availableProcessors() + 1);
+        final int bands = (height + bandHeight - 1) / bandHeight;
+        final int rows = bandHeight;
+        IntStream range = IntStream.range(0, bands);
+        if (bands > 1 && points.length / 2 > PARALLEL_MIN_POINTS) {
+            range = range.parallel();
+        }
+        range.forEach(new IntConsumer() {
+            @Override
+            public void accept(int band) {
+                addCircles(bins, binWidth, kernel, dPoints, width, band * rows, Math.min(height, (band + 1) * rows));
+            }
+        });
+
+        return dPoints;
+    }
+
+    /**
+     * The value added to each pixel of the circle around a point, as rows of (2 * radius + 1) pixels.
+     * Applying gradient to this circle so outer influence is low and at the peak it's maximum.
+     */
+    private int[] createKernel() {
+        int size = 2 * radius + 1;
+        int pradius = radius * radius;
+        int[] kernel = new int[size * size];
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+                double d = dx * dx + dy * dy;
+                if ((int) d <= pradius) {
+                    kernel[(dy + radius) * size + dx + radius] = (int) (numColours - ((d * numColours) / pradius));
                 }
             }
         }
+        return kernel;
+    }
 
-        generateLogScaleCircle(dPoints);
+    /**
+     * Add the circles of the counted pixels to the rows y0 (inclusive) to y1 (exclusive) of the density grid.
+     */
+    private void addCircles(int[] bins, int binWidth, int[] kernel, int[] dPoints, int width, int y0, int y1) {
+        int size = 2 * radius + 1;
+        // a pixel at row py adds to the rows py - radius to py + radius, and is at bin row py + radius
+        int binRowEnd = Math.min(bins.length / binWidth, y1 + 2 * radius);
+        for (int by = y0; by < binRowEnd; by++) {
+            int py = by - radius;
+            int cjStart = Math.max(y0, py - radius);
+            int cjEnd = Math.min(y1, py + radius + 1);
+            for (int bx = 0; bx < binWidth; bx++) {
+                int count = bins[by * binWidth + bx];
+                if (count == 0) {
+                    continue;
+                }
+                int px = bx - radius;
+                int ciStart = Math.max(0, px - radius);
+                int ciEnd = Math.min(width, px + radius + 1);
+                for (int cj = cjStart; cj < cjEnd; cj++) {
+                    int row = cj * width;
+                    int kernelRow = (cj - py + radius) * size - px + radius;
+                    for (int ci = ciStart; ci < ciEnd; ci++) {
+                        dPoints[row + ci] += count * kernel[kernelRow + ci];
+                    }
+                }
+            }
+        }
     }
 
     public void generatePoints(double[] points, Color pointColour, String label) {
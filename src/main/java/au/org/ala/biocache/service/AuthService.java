@@ -15,6 +15,14 @@
 package au.org.ala.biocache.service;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -25,9 +33,15 @@ import org.springframework.web.client.RestOperations;
 
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service to lookup and cache user details from auth.ala.org.au (CAS)
@@ -60,6 +74,19 @@ public class AuthService {
     protected boolean startupInitialise = false;
     @Value("${caches.auth.enabled:true}")
     protected Boolean enabled = true;
+    /** The maximum number of users to cache roles for */
+    @Value("${auth.user.roles.cache.size:10000}")
+    protected int userRolesCacheSize = 10000;
+    /** Roles older than this, in ms, are reloaded in the background when they are next requested */
+    @Value("${auth.user.roles.cache.refresh:300000}")
+    protected long userRolesCacheRefresh = 300000;
+    /** Roles older than this, in ms, are not used */
+    @Value("${auth.user.roles.cache.ttl:3600000}")
+    protected long userRolesCacheTtl = 3600000;
+    @Value("${auth.user.roles.refresh.maxthreads:2}")
+    protected int userRolesRefreshThreads = 2;
+    private volatile LoadingCache<String, List<String>> userRolesCache;
+    private volatile ExecutorService userRolesRefreshExecutor;
     // Keep a reference to the output Map in case subsequent web service lookups fail
     protected Map<String, String> userNamesById = RestartDataService.get(this, "userNamesById", new TypeReference<HashMap<String, String>>(){}, HashMap.class);
     protected Map<String, String> userNamesByNumericIds = RestartDataService.get(this, "userNamesByNumericIds", new TypeReference<HashMap<String, String>>(){}, HashMap.class);
@@ -182,14 +209,109 @@ public class AuthService {
 
     }
 
+    /**
+     * Get the roles of a user. Roles are cached, concurrent requests for the same user share one lookup, and
+     * roles are refreshed in the background once they are older than auth.user.roles.cache.refresh.
+     *
+     * @param userId The user
+     * @return The roles of the user
+     */
     public List<String> getUserRoles(String userId) {
+        try {
+            return getUserRolesCache().getUnchecked(userId);
+        } catch (UncheckedExecutionException e) {
+            // rethrow the lookup failure as it was before the roles were cached
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Remove all cached user roles.
+     */
+    public void clearUserRolesCache() {
+        getUserRolesCache().invalidateAll();
+    }
+
+    /**
+     * @return The size and hit rate of the user roles cache
+     */
+    public Map<String, Object> getUserRolesCacheStats() {
+        LoadingCache<String, List<String>> cache = getUserRolesCache();
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", cache.size());
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("loadExceptionCount", stats.loadExceptionCount());
+        result.put("evictionCount", stats.evictionCount());
+        return result;
+    }
+
+    private LoadingCache<String, List<String>> getUserRolesCache() {
+        LoadingCache<String, List<String>> cache = userRolesCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = userRolesCache;
+                if (cache == null) {
+                    cache = userRolesCache = CacheBuilder.newBuilder()
+                            .maximumSize(userRolesCacheSize)
+                            .refreshAfterWrite(userRolesCacheRefresh, TimeUnit.MILLISECONDS)
+                            .expireAfterWrite(userRolesCacheTtl, TimeUnit.MILLISECONDS)
+                            .recordStats()
+                            .build(new CacheLoader<String, List<String>>() {
+                                @Override
+                                public List<String> load(String userId) {
+                                    return Collections.unmodifiableList(new ArrayList<>(loadUserRoles(userId)));
+                                }
+
+                                @Override
+                                public ListenableFuture<List<String>> reload(final String userId, List<String> oldValue) {
+                                    // keep serving the old roles while they are reloaded
+                                    ListenableFutureTask<List<String>> task = ListenableFutureTask.create(new Callable<List<String>>() {
+                                        @Override
+                                        public List<String> call() {
+                                            return load(userId);
+                                        }
+                                    });
+                                    getUserRolesRefreshExecutor().execute(task);
+                                    return task;
+                                }
+                            });
+                }
+            }
+        }
+        return cache;
+    }
+
+    private ExecutorService getUserRolesRefreshExecutor() {
+        ExecutorService nextExecutor = userRolesRefreshExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = userRolesRefreshExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = userRolesRefreshExecutor = Executors.newFixedThreadPool(
+                            userRolesRefreshThreads,
+                            new ThreadFactoryBuilder().setNameFormat("auth-roles-refresh-%d")
+                                    .setDaemon(true)
+                                    .setPriority(Thread.NORM_PRIORITY).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
+    private List<String> loadUserRoles(String userId) {
         List<String> roles = new ArrayList<>();
         if(StringUtils.isNotBlank(userDetailsUrl)) {
             final String jsonUri = userDetailsUrl + userDetailsPath + "?userName=" + userId;
             logger.info("authCache requesting: " + jsonUri);
             roles = (List) restTemplate.postForObject(jsonUri, null, Map.class).get("roles");
         }
-        return roles;
+        return roles == null ? new ArrayList<String>() : roles;
     }
 
     public Map<String,?> getUserDetails(String userId) {
@@ -0,0 +1,418 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.service;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.stream.DownloadCheckpoint;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A disk cache of the data entries of completed offline downloads, so that repeated downloads of the same query
+ * reuse the data instead of reading it from the index again.
+ * <p>
+ * Entries are keyed by a hash of the normalised download parameters that affect the data, the sensitive data
+ * scope of the user and the index version. The data entries are stored as a zip archive and copied, without
+ * recompressing them, into the archive of a later download of the same query. Only the citations, README and
+ * headings are generated again for each download.
+ * <p>
+ * The cache is limited by a disk budget. Entries for other index versions are removed first, then the least
+ * recently used.
+ */
+@Component("downloadResultCache")
+public class DownloadResultCache {
+
+    private static final Logger logger = Logger.getLogger(DownloadResultCache.class);
+
+    private static final ObjectMapper jsonMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /** temporary files older than this are left from an interrupted write */
+    private static final long STALE_TMP_AGE = 24L * 60 * 60 * 1000;
+
+    /**
+     * Directory for the cached archives. It must not be shared with the download queue, which uses download.cache.dir,
+     * and must not be under the publicly served download.dir, as cached archives may contain sensitive records.
+     */
+    @Value("${download.result.cache.dir:/data/cache/download-results}")
+    protected String cacheDir = "/data/cache/download-results";
+
+    /** disk budget for the cache, 0 to disable */
+    @Value("${download.result.cache.max.mb:10000}")
+    protected Long maxMB = 10000L;
+
+    public boolean isEnabled() {
+        return maxMB != null && maxMB > 0;
+    }
+
+    /**
+     * Creates the cache key for a download. Only the parameters that affect the content of the data entries are used,
+     * so downloads for different users, reasons or file names share the same key.
+     *
+     * @param params The download parameters
+     * @param includeSensitive True if sensitive fields are included in the download
+     * @param sensitiveFq The filter for the sensitive records the user may access, or null
+     * @param indexVersion The version of the index the download is read from
+     * @return The cache key
+     */
+    public String getKey(DownloadRequestParams params, boolean includeSensitive, String sensitiveFq, long indexVersion) {
+        StringBuilder key = new StringBuilder();
+        append(key, "indexVersion", indexVersion);
+        append(key, "q", StringUtils.trimToEmpty(params.getQ()));
+        append(key, "fq", normaliseFqs(params.getFq()));
+        append(key, "qc", StringUtils.trimToEmpty(params.getQc()));
+        append(key, "wkt", StringUtils.trimToEmpty(params.getWkt()));
+        append(key, "lat", params.getLat());
+        append(key, "lon", params.getLon());
+        append(key, "radius", params.getRadius());
+        append(key, "gk", params.getGk());
+        // the order of the fields is the order of the columns
+        append(key, "fields", normaliseList(params.getFields()));
+        append(key, "extra", normaliseList(params.getExtra()));
+        append(key, "qa", normaliseList(params.getQa()));
+        append(key, "fileType", params.getFileType());
+        append(key, "sep", params.getSep());
+        append(key, "esc", params.getEsc());
+        append(key, "dwcHeaders", params.getDwcHeaders());
+        append(key, "includeMisc", params.getIncludeMisc());
+        append(key, "includeMultivalues", params.getIncludeMultivalues());
+        append(key, "customHeader", params.getCustomHeader());
+        append(key, "layersServiceUrl", params.getLayersServiceUrl());
+        append(key, "includeSensitive", includeSensitive);
+        append(key, "sensitiveFq", sensitiveFq);
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+    }
+
+    private static void append(StringBuilder key, String name, Object value) {
+        key.append(name).append('=').append(value).append('\n');
+    }
+
+    private static String normaliseFqs(String[] fqs) {
+        TreeSet<String> normalised = new TreeSet<>();
+        if (fqs != null) {
+            for (String fq : fqs) {
+                if (StringUtils.isNotBlank(fq)) {
+                    normalised.add(fq.trim());
+                }
+            }
+        }
+        return StringUtils.join(normalised, '\n');
+    }
+
+    private static String normaliseList(String list) {
+        List<String> normalised = new ArrayList<>();
+        if (list != null) {
+            for (String item : list.split(",")) {
+                if (StringUtils.isNotBlank(item)) {
+                    normalised.add(item.trim());
+                }
+            }
+        }
+        return StringUtils.join(normalised, ',');
+    }
+
+    /**
+     * Copies the cached data entries for the key into the archive, renamed for the file name of the download, and
+     * updates the download with the record counts and the fields found when the data was written.
+     *
+     * @param key The cache key
+     * @param archive The archive to copy the data entries to, which must be written to a file
+     * @param fileName The file name of the download, used for the data entry names
+     * @param dd The download
+     * @return The statistics for the citations and headings of the data, or null if the key is not cached
+     */
+    public ConcurrentMap<String, AtomicInteger> writeCached(String key, OptionalZipOutputStream archive, String fileName,
+                                                            DownloadDetailsDTO dd) {
+        File metadataFile = getMetadataFile(key);
+        if (!metadataFile.exists()) {
+            return null;
+        }
+        try {
+            CachedResult cached = jsonMapper.readValue(metadataFile, CachedResult.class);
+            // nothing is written to the archive unless all of the entries are available
+            archive.copyRawEntries(getArchiveFile(key), cached.getEntries(), cached.getFileName(), fileName);
+            metadataFile.setLastModified(System.currentTimeMillis());
+
+            dd.setTotalRecords(cached.getTotalRecords());
+            dd.getRecordsDownloaded().addAndGet(cached.getRecordsDownloaded());
+            dd.setHeaderMap(cached.getHeaderMap());
+            dd.setMiscFields(cached.getMiscFields());
+
+            ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<>();
+            for (Map.Entry<String, Integer> entry : cached.getUidStats().entrySet()) {
+                uidStats.put(entry.getKey(), new AtomicInteger(entry.getValue()));
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info("Download data copied from cache " + key + ": " + dd.getFileLocation());
+            }
+            return uidStats;
+        } catch (IOException e) {
+            logger.warn("Unable to use cached download " + key + ", the data will be written from the index", e);
+            return null;
+        }
+    }
+
+    /**
+     * Records the data entries of a download that has been written so that they can be cached once the archive is
+     * complete.
+     *
+     * @param archive The archive, which must be written to a file
+     * @param firstDataEntry The number of completed entries in the archive before the data entries
+     * @param fileName The file name of the download, that the data entry names start with
+     * @param indexVersion The version of the index the data was read from
+     * @param uidStats The statistics for the citations and headings of the data
+     * @param dd The download
+     * @return The result to supply to {@link #put(String, File, CachedResult)}
+     */
+    public CachedResult createResult(OptionalZipOutputStream archive, int firstDataEntry, String fileName, long indexVersion,
+                                     ConcurrentMap<String, AtomicInteger> uidStats, DownloadDetailsDTO dd) {
+        List<DownloadCheckpoint.Entry> entries = archive.getCompletedEntries();
+        CachedResult result = new CachedResult();
+        result.setIndexVersion(indexVersion);
+        result.setFileName(fileName);
+        result.setEntries(new ArrayList<>(entries.subList(firstDataEntry, entries.size())));
+        Map<String, Integer> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : uidStats.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().get());
+        }
+        result.setUidStats(stats);
+        result.setHeaderMap(dd.getHeaderMap());
+        result.setMiscFields(dd.getMiscFields());
+        result.setTotalRecords(dd.getTotalRecords());
+        result.setRecordsDownloaded(dd.getRecordsDownloaded().get());
+        return result;
+    }
+
+    /**
+     * Adds the data entries of a completed download archive to the cache. Failures are logged and otherwise ignored,
+     * as the download itself is complete.
+     *
+     * @param key The cache key
+     * @param archiveFile The completed download archive
+     * @param result The data entries of the archive, from {@link #createResult}
+     */
+    public void put(String key, File archiveFile, CachedResult result) {
+        File dir = new File(cacheDir);
+        File tmp = new File(dir, key + "." + UUID.randomUUID() + ".tmp");
+        try {
+            if (getMetadataFile(key).exists()) {
+                // an identical download was cached while this one was written
+                return;
+            }
+            try (OptionalZipOutputStream cached = new OptionalZipOutputStream(tmp, null, 0, null)) {
+                cached.copyRawEntries(archiveFile, result.getEntries(), null, null);
+                // record the entry locations in the cache archive
+                result.setEntries(cached.getCompletedEntries());
+            }
+            synchronized (this) {
+                Files.move(tmp.toPath(), getArchiveFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                File metadataTmp = getMetadataTmp(tmp);
+                jsonMapper.writeValue(metadataTmp, result);
+                Files.move(metadataTmp.toPath(), getMetadataFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                evict(result.getIndexVersion());
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to cache download " + key + ": " + archiveFile, e);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+            FileUtils.deleteQuietly(getMetadataTmp(tmp));
+        }
+    }
+
+    /**
+     * Removes cached entries until the cache is within its disk budget, starting with entries for other index
+     * versions and then the least recently used.
+     *
+     * @param currentIndexVersion The current index version
+     */
+    protected synchronized void evict(final long currentIndexVersion) {
+        File[] files = new File(cacheDir).listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        final Map<File, Long> versions = new HashMap<>();
+        List<File> metadataFiles = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".zip")) {
+                if (!new File(file.getParentFile(), name.replaceFirst("\\.zip$", ".json")).exists()) {
+                    // the metadata is written immediately after the archive is moved, while holding this lock
+                    FileUtils.deleteQuietly(file);
+                } else {
+                    totalSize += file.length();
+                }
+            } else if (name.endsWith(".json")) {
+                try {
+                    versions.put(file, jsonMapper.readValue(file, CachedResult.class).getIndexVersion());
+                    metadataFiles.add(file);
+                    totalSize += file.length();
+                } catch (IOException e) {
+                    logger.warn("Removing unreadable cached download: " + file, e);
+                    removeEntry(file);
+                }
+            } else if (name.endsWith(".tmp") && now - file.lastModified() > STALE_TMP_AGE) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+
+        metadataFiles.sort(Comparator.comparing((File f) -> versions.get(f) == currentIndexVersion)
+                .thenComparingLong(File::lastModified));
+
+        long budget = getMaxBytes();
+        for (File metadataFile : metadataFiles) {
+            boolean stale = versions.get(metadataFile) != currentIndexVersion;
+            if (!stale && totalSize <= budget) {
+                break;
+            }
+            totalSize -= metadataFile.length() + getArchiveFileFor(metadataFile).length();
+            removeEntry(metadataFile);
+        }
+    }
+
+    private static File getMetadataTmp(File tmp) {
+        return new File(tmp.getPath().replaceFirst("\\.tmp$", ".json.tmp"));
+    }
+
+    protected long getMaxBytes() {
+        return maxMB * 1024L * 1024L;
+    }
+
+    private void removeEntry(File metadataFile) {
+        // remove the metadata first so the entry is never found without its archive
+        FileUtils.deleteQuietly(metadataFile);
+        FileUtils.deleteQuietly(getArchiveFileFor(metadataFile));
+    }
+
+    private File getArchiveFileFor(File metadataFile) {
+        return new File(metadataFile.getParentFile(), metadataFile.getName().replaceFirst("\\.json$", ".zip"));
+    }
+
+    private File getArchiveFile(String key) {
+        return new File(cacheDir, key + ".zip");
+    }
+
+    private File getMetadataFile(String key) {
+        return new File(cacheDir, key + ".json");
+    }
+
+    /**
+     * The data entries of a cached download and the values collected while the data was written.
+     */
+    public static class CachedResult {
+        private long indexVersion;
+        private String fileName;
+        private List<DownloadCheckpoint.Entry> entries = new ArrayList<>();
+        private Map<String, Integer> uidStats = new LinkedHashMap<>();
+        private Map<String, String> headerMap;
+        private String[] miscFields;
+        private long totalRecords;
+        private long recordsDownloaded;
+
+        public long getIndexVersion() {
+            return indexVersion;
+        }
+
+        public void setIndexVersion(long indexVersion) {
+            this.indexVersion = indexVersion;
+        }
+
+        /**
+         * @return The file name of the download the data was written for, that the data entry names start with
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public void setFileName(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public List<DownloadCheckpoint.Entry> getEntries() {
+            return entries;
+        }
+
+        public void setEntries(List<DownloadCheckpoint.Entry> entries) {
+            this.entries = entries;
+        }
+
+        public Map<String, Integer> getUidStats() {
+            return uidStats;
+        }
+
+        public void setUidStats(Map<String, Integer> uidStats) {
+            this.uidStats = uidStats;
+        }
+
+        public Map<String, String> getHeaderMap() {
+            return headerMap;
+        }
+
+        public void setHeaderMap(Map<String, String> headerMap) {
+            this.headerMap = headerMap;
+        }
+
+        public String[] getMiscFields() {
+            return miscFields;
+        }
+
+        public void setMiscFields(String[] miscFields) {
+            this.miscFields = miscFields;
+        }
+
+        public long getTotalRecords() {
+            return totalRecords;
+        }
+
+        public void setTotalRecords(long totalRecords) {
+            this.totalRecords = totalRecords;
+        }
+
+        public long getRecordsDownloaded() {
+            return recordsDownloaded;
+        }
+
+        public void setRecordsDownloaded(long recordsDownloaded) {
+            this.recordsDownloaded = recordsDownloaded;
+        }
+    }
+}
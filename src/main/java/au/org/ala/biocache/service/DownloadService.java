@@ -16,6 +16,7 @@ package au.org.ala.biocache.service;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
+import au.org.ala.biocache.dao.IndexVersionListener;
 import au.org.ala.biocache.dao.PersistentQueueDAO;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
@@ -23,6 +24,7 @@ import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.dto.DownloadDoiDTO;
 import au.org.ala.biocache.dto.DownloadRequestParams;
 import au.org.ala.biocache.dto.IndexFieldDTO;
+import au.org.ala.biocache.stream.DownloadCheckpoint;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.AlaFileUtils;
 import au.org.ala.biocache.util.thread.DownloadControlThread;
@@ -32,6 +34,9 @@ import au.org.ala.cas.util.AuthenticationUtils;
 import au.org.ala.doi.CreateDoiResponse;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -95,6 +100,13 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
      */
     @Value("${concurrent.downloads.json:[{\"label\": \"smallSolr\", \"threads\": 4, \"maxRecords\": 50000, \"type\": \"index\", \"pollDelay\": 10, \"executionDelay\": 10, \"threadPriority\": 5}, {\"label\": \"largeSolr\", \"threads\": 1, \"maxRecords\": 100000000, \"type\": \"index\", \"pollDelay\": 100, \"executionDelay\": 100, \"threadPriority\": 1}, {\"label\": \"smallCassandra\", \"threads\": 1, \"maxRecords\": 50000, \"type\": \"db\", \"pollDelay\": 10, \"executionDelay\": 10, \"threadPriority\": 5}, {\"label\": \"defaultUnrestricted\", \"threads\": 1, \"pollDelay\": 1000, \"executionDelay\": 100, \"threadPriority\": 1}]}")
     protected String concurrentDownloadsJSON;
+
+    /**
+     * Milliseconds a download must wait before threads dedicated to another download type may take it, for threads
+     * that do not set "stealDelay" in concurrent.downloads.json. Negative to disable.
+     */
+    @Value("${download.steal.delay:60000}")
+    protected Long stealDelay = 60000L;
     @Inject
     protected PersistentQueueDAO persistentQueueDAO;
     @Inject
@@ -113,6 +125,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
 
     @Inject
     protected AuthService authService;
+    @Inject
+    protected DownloadResultCache downloadResultCache;
 
     // when everything is indexed in SOLR, there will be no cassandra download unless requested
     @Value("${download.solr.only:false}")
@@ -181,6 +195,14 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Value("${zip.file.size.mb.max:4000}")
     public Integer maxMB;
 
+    /**
+     * Uncompressed size of the parts that offline index downloads are split into, so that they can be checkpointed
+     * and resumed after a restart. Defaults to the zip.file.size.mb.max split, so checkpoints do not change the
+     * entries in the archive. A smaller size adds more _partN entries. Zero to disable checkpoints.
+     */
+    @Value("${download.checkpoint.mb:${zip.file.size.mb.max:4000}}")
+    public Integer checkpointMB;
+
     @Value("${download.url:http://biocache.ala.org.au/biocache-download}")
     public String biocacheDownloadUrl;
 
@@ -215,6 +237,14 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
 
     private JSONObject sensitiveAccessRolesToSolrFilters;
 
+    /**
+     * The sensitive fq for each combination of sensitive roles, the empty string when there is no fq.
+     */
+    private final Cache<List<String>, String> sensitiveFqCache = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .recordStats()
+            .build();
+
     @Value("${download.offline.max.url:http://downloads.ala.org.au}")
     public String dowloadOfflineMaxUrl = "http://downloads.ala.org.au";
 
@@ -269,6 +299,16 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         // Simple JSON initialisation, let's follow the default Spring semantics
         sensitiveAccessRolesToSolrFilters = (JSONObject) new JSONParser().parse(sensitiveAccessRoles);
 
+        if (searchDAO != null && downloadResultCache != null) {
+            //cached downloads for an old index version are not used again
+            searchDAO.addIndexVersionListener(new IndexVersionListener() {
+                @Override
+                public void indexVersionChanged(long oldVersion, long newVersion) {
+                    downloadResultCache.evict(newVersion);
+                }
+            });
+        }
+
         if(initialised.compareAndSet(false, true)) {
             //init on thread so as to not hold up other PostConstruct that this may depend on
             new Thread() {
@@ -292,6 +332,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                                 Long pollDelayMs = jo.containsKey("pollDelay") ? (Long) jo.get("pollDelay") : null;
                                 Long executionDelayMs = jo.containsKey("executionDelay") ? (Long) jo.get("executionDelay") : null;
                                 Integer threadPriority = jo.containsKey("threadPriority") ? ((Long) jo.get("threadPriority")).intValue() : Thread.NORM_PRIORITY;
+                                Long stealDelayMs = jo.containsKey("stealDelay") ? (Long) jo.get("stealDelay") : stealDelay;
                                 DownloadType dt = null;
                                 if (type != null) {
                                     dt = "index".equals(type) ? DownloadType.RECORDS_INDEX : DownloadType.RECORDS_DB;
@@ -303,7 +344,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                                 nextThreadName += (dt == null ? "alltypes" : dt.name()) + "-";
                                 nextThreadName += "poolsize-" + threads;
 
-                                DownloadControlThread nextRunnable = new DownloadControlThread(nextThreadName, maxRecords, dt, threads, pollDelayMs, executionDelayMs, threadPriority, currentDownloads, nextDownloadCreator, persistentQueueDAO, nextParallelExecutor);
+                                DownloadControlThread nextRunnable = new DownloadControlThread(nextThreadName, maxRecords, dt, threads, pollDelayMs, executionDelayMs, threadPriority, stealDelayMs, currentDownloads, nextDownloadCreator, persistentQueueDAO, nextParallelExecutor);
                                 Thread nextThread = new Thread(nextRunnable);
                                 nextThread.setName(nextThreadName);
                                 // Control threads need to wakeup regularly to check for new downloads
@@ -521,32 +562,82 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     public void writeQueryToStream(DownloadDetailsDTO dd, DownloadRequestParams requestParams, String ip,
                                    OutputStream out, boolean includeSensitive, boolean fromIndex, boolean limit, boolean zip, ExecutorService parallelExecutor, List<CreateDoiResponse> doiResponseList)
             throws Exception {
+        // Use a zip output stream to include the data and citation together in
+        // the download.
+        // Note: When producing a shp the output will stream a csv followed by a zip.
+        writeQueryToArchive(dd, requestParams, ip, new OptionalZipOutputStream(
+                zip ? OptionalZipOutputStream.Type.zipped : OptionalZipOutputStream.Type.unzipped, new CloseShieldOutputStream(out), maxMB),
+                includeSensitive, fromIndex, limit, parallelExecutor, doiResponseList);
+    }
+
+    /**
+     * Writes the supplied download to the supplied archive, closing the archive when it is complete. It will
+     * include all the appropriate citations etc.
+     *
+     * @param dd
+     * @param requestParams
+     * @param ip
+     * @param archive The archive to write to, which may be resuming from a checkpoint
+     * @param includeSensitive
+     * @param fromIndex
+     * @param doiResponseList Return the CreateDoiResponse instance as the first element of the list if requestParams.mintDoi was true
+     * @throws Exception
+     */
+    public void writeQueryToArchive(DownloadDetailsDTO dd, DownloadRequestParams requestParams, String ip,
+                                    OptionalZipOutputStream archive, boolean includeSensitive, boolean fromIndex, boolean limit,
+                                    ExecutorService parallelExecutor, List<CreateDoiResponse> doiResponseList)
+            throws Exception {
         afterInitialisation();
         String filename = requestParams.getFile();
         String originalParams = requestParams.toString();
 
-        // Use a zip output stream to include the data and citation together in
-        // the download.
-        // Note: When producing a shp the output will stream a csv followed by a zip.
-        try(OptionalZipOutputStream sp = new OptionalZipOutputStream(
-                zip ? OptionalZipOutputStream.Type.zipped : OptionalZipOutputStream.Type.unzipped, new CloseShieldOutputStream(out), maxMB);) {
+        // offline index downloads are cached once the archive is complete
+        String cacheKey = null;
+        long indexVersion = 0;
+        DownloadResultCache.CachedResult toCache = null;
+        boolean archiveComplete = false;
+
+        try(OptionalZipOutputStream sp = archive) {
             String suffix = requestParams.getFileType().equals("shp") ? "csv" : requestParams.getFileType();
-            sp.putNextEntry(filename + "." + suffix);
             // put the facets
             if ("all".equals(requestParams.getQa())) {
                 requestParams.setFacets(new String[] { "assertions", "data_resource_uid" });
             } else {
                 requestParams.setFacets(new String[] { "data_resource_uid" });
             }
-            
+
+            if (fromIndex && !limit && downloadResultCache != null && downloadResultCache.isEnabled()
+                    && sp.getArchiveFile() != null && sp.getResumeCheckpoint() == null) {
+                Long version = searchDAO.getIndexVersion(false);
+                if (version != null) {
+                    indexVersion = version;
+                    cacheKey = downloadResultCache.getKey(requestParams, includeSensitive, dd.getSensitiveFq(), indexVersion);
+                }
+            }
+
+            ConcurrentMap<String, AtomicInteger> cachedUidStats = null;
+            if (cacheKey != null) {
+                cachedUidStats = downloadResultCache.writeCached(cacheKey, sp, filename, dd);
+            }
+
             final ConcurrentMap<String, AtomicInteger> uidStats;
-            if (fromIndex) {
-                uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, sp, includeSensitive, dd, limit, parallelExecutor);
+            if (cachedUidStats != null) {
+                uidStats = cachedUidStats;
             } else {
-                uidStats = searchDAO.writeResultsToStream(requestParams, sp, 100, includeSensitive, dd, limit);
-            }
+                int firstDataEntry = sp.getCompletedEntries().size();
+                sp.putNextEntry(filename + "." + suffix);
+                if (fromIndex) {
+                    uidStats = searchDAO.writeResultsFromIndexToStream(requestParams, sp, includeSensitive, dd, limit, parallelExecutor);
+                } else {
+                    uidStats = searchDAO.writeResultsToStream(requestParams, sp, 100, includeSensitive, dd, limit);
+                }
+
+                sp.closeEntry();
 
-            sp.closeEntry();
+                if (cacheKey != null && uidStats != null && !dd.getInterrupt().get()) {
+                    toCache = downloadResultCache.createResult(sp, firstDataEntry, filename, indexVersion, uidStats, dd);
+                }
+            }
 
             // add the readme for the Shape file header mappings if necessary
             if (dd.getHeaderMap() != null) {
@@ -727,6 +818,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         requestParams.getEmail(), requestParams.getReason(), ip, null, uidStats, sourceUrl);
                 logger.log(RestLevel.REMOTE, vo);
             }
+            archiveComplete = true;
         } catch (RecordWriterException e) {
             logger.error(e.getMessage(), e);
         } catch (InterruptedException e) {
@@ -734,6 +826,10 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             // sApplication may be shutting down, do not delete the download file
             throw e;
         }
+
+        if (archiveComplete && toCache != null) {
+            downloadResultCache.put(cacheKey, archive.getArchiveFile(), toCache);
+        }
     }
 
     /**
@@ -1132,13 +1228,19 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             return null;
         }
 
-        String sensitiveFq = "";
+        List<String> sensitiveRoles = getSensitiveRolesForUser(userId);
 
-        for (String sensitiveRole : getSensitiveRolesForUser(userId)) {
-            if (sensitiveFq.length() > 0) {
-                sensitiveFq += " OR ";
+        String sensitiveFq = sensitiveFqCache.getIfPresent(sensitiveRoles);
+        if (sensitiveFq == null) {
+            StringBuilder sb = new StringBuilder();
+            for (String sensitiveRole : sensitiveRoles) {
+                if (sb.length() > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append('(').append(sensitiveAccessRolesToSolrFilters.get(sensitiveRole)).append(')');
             }
-            sensitiveFq += "(" + sensitiveAccessRolesToSolrFilters.get(sensitiveRole) + ")";
+            sensitiveFq = sb.toString();
+            sensitiveFqCache.put(sensitiveRoles, sensitiveFq);
         }
 
         if (sensitiveFq.length() == 0) {
@@ -1168,6 +1270,19 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         return result;
     }
 
+    /**
+     * @return The size and hit rate of the cache of sensitive fqs for combinations of sensitive roles
+     */
+    public Map<String, Object> getSensitiveFqCacheStats() {
+        CacheStats stats = sensitiveFqCache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", sensitiveFqCache.size());
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
 
     private class DownloadCreatorImpl implements DownloadCreator {
         @Override
@@ -1187,8 +1302,9 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         boolean shuttingDown = false;
                         boolean doRetry = false;
 
-                        try (FileOutputStream fos = FileUtils
-                                .openOutputStream(new File(currentDownload.getFileLocation()));) {
+                        File archiveFile = new File(currentDownload.getFileLocation());
+                        boolean fromIndex = currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX;
+                        try {
                             // cannot include misc columns if shp
                             if (!currentDownload.getRequestParams().getFileType().equals("csv")
                                     && currentDownload.getRequestParams().getIncludeMisc()) {
@@ -1202,9 +1318,11 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                             if(mintDoi) {
                                 doiResponseList = new ArrayList<>();
                             }
-                            writeQueryToStream(currentDownload, currentDownload.getRequestParams(),
-                                    currentDownload.getIpAddress(), new CloseShieldOutputStream(fos), currentDownload.getIncludeSensitive(),
-                                    currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX, false, true, parallelExecutor, doiResponseList);
+                            writeQueryToArchive(currentDownload, currentDownload.getRequestParams(),
+                                    currentDownload.getIpAddress(), openDownloadArchive(archiveFile, fromIndex), currentDownload.getIncludeSensitive(),
+                                    fromIndex, false, parallelExecutor, doiResponseList);
+                            // the archive is complete, a restart must not resume it
+                            DownloadCheckpoint.delete(archiveFile);
 
                             if(mintDoi && doiResponseList.size() <= 0) {
                                 //DOI Minting failed
@@ -1333,6 +1451,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                             // in case of server up/down, only remove from queue
                             // after emails are sent
                             if (!shuttingDown && !doRetry) {
+                                // the download will not be resumed
+                                DownloadCheckpoint.delete(archiveFile);
                                 unregisterDownload(currentDownload);
                             }
                         }
@@ -1345,6 +1465,38 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         }
     }
 
+    /**
+     * Opens the archive for an offline download, resuming from its checkpoint when there is one that is still valid.
+     *
+     * @param archiveFile The location of the download archive
+     * @param fromIndex True if the download is written from the index, the only downloads that are checkpointed
+     * @return The archive to write the download to
+     * @throws IOException If the archive could not be created
+     */
+    protected OptionalZipOutputStream openDownloadArchive(File archiveFile, boolean fromIndex) throws IOException {
+        // without a checkpoint size, checkpoint where the entries are already split
+        Integer mb = checkpointMB != null ? checkpointMB : maxMB;
+        long checkpointBytes = fromIndex && mb != null && mb > 0 ? mb * 1024L * 1024L : 0;
+        DownloadCheckpoint checkpoint = checkpointBytes > 0 ? DownloadCheckpoint.read(archiveFile) : null;
+        if (checkpoint != null) {
+            Long indexVersion = searchDAO.getIndexVersion(false);
+            // cursor marks are not valid for a different index
+            if (indexVersion != null && indexVersion == checkpoint.getIndexVersion()) {
+                try {
+                    OptionalZipOutputStream archive = new OptionalZipOutputStream(archiveFile, maxMB, checkpointBytes, checkpoint);
+                    logger.info("Resuming offline download from checkpoint: " + archiveFile);
+                    return archive;
+                } catch (IOException e) {
+                    logger.warn("Unable to resume offline download from checkpoint, restarting: " + archiveFile, e);
+                }
+            } else {
+                logger.info("Index has changed since offline download was checkpointed, restarting: " + archiveFile);
+            }
+        }
+        DownloadCheckpoint.delete(archiveFile);
+        return new OptionalZipOutputStream(archiveFile, maxMB, checkpointBytes, null);
+    }
+
     private Thread newRetryThread(final DownloadDetailsDTO currentDownload) {
         return new Thread() {
             @Override
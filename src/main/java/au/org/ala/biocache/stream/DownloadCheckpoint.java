@@ -0,0 +1,316 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.stream;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The progress of an offline download archive at a point where all of its zip entries were complete, so that the
+ * download can resume from there after a restart instead of starting again.
+ * <p>
+ * Records the location of each completed entry in the archive and, for each split query of the download, the
+ * cursor mark of the next page and how many records of that page were already written.
+ * The checkpoint is stored as JSON next to the archive, see {@link #getCheckpointFile(File)}.
+ */
+public class DownloadCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(DownloadCheckpoint.class);
+
+    private static final ObjectMapper jsonMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private long indexVersion;
+    private long recordsWritten;
+    private String currentEntry;
+    private int splitCount;
+    private List<Entry> entries = new ArrayList<>();
+    private Map<String, Split> splits = new LinkedHashMap<>();
+    private List<String> miscFields = new ArrayList<>();
+
+    /**
+     * @return The version of the index the download was written from. The cursor marks are only valid for this version.
+     */
+    public long getIndexVersion() {
+        return indexVersion;
+    }
+
+    public void setIndexVersion(long indexVersion) {
+        this.indexVersion = indexVersion;
+    }
+
+    /**
+     * @return The number of records in the completed entries
+     */
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public void setRecordsWritten(long recordsWritten) {
+        this.recordsWritten = recordsWritten;
+    }
+
+    /**
+     * @return The name of the entry that was being split into parts when the checkpoint was taken
+     */
+    public String getCurrentEntry() {
+        return currentEntry;
+    }
+
+    public void setCurrentEntry(String currentEntry) {
+        this.currentEntry = currentEntry;
+    }
+
+    /**
+     * @return The number of the part of the current entry that is written next
+     */
+    public int getSplitCount() {
+        return splitCount;
+    }
+
+    public void setSplitCount(int splitCount) {
+        this.splitCount = splitCount;
+    }
+
+    /**
+     * @return The completed entries, in the order they appear in the archive
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return The progress of each split query, by a key that identifies the query
+     */
+    public Map<String, Split> getSplits() {
+        return splits;
+    }
+
+    public void setSplits(Map<String, Split> splits) {
+        this.splits = splits;
+    }
+
+    /**
+     * @return The misc fields that were found, in the order their columns were added
+     */
+    public List<String> getMiscFields() {
+        return miscFields;
+    }
+
+    public void setMiscFields(List<String> miscFields) {
+        this.miscFields = miscFields;
+    }
+
+    /**
+     * @param archive The download archive
+     * @return The file the checkpoint for the archive is stored in
+     */
+    public static File getCheckpointFile(File archive) {
+        return new File(archive.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Reads the checkpoint for the archive.
+     *
+     * @param archive The download archive
+     * @return The checkpoint or null if there is no usable checkpoint for the archive
+     */
+    public static DownloadCheckpoint read(File archive) {
+        File file = getCheckpointFile(archive);
+        if (!file.exists() || !archive.exists()) {
+            return null;
+        }
+        try {
+            return jsonMapper.readValue(file, DownloadCheckpoint.class);
+        } catch (IOException e) {
+            logger.warn("Unable to read download checkpoint: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the checkpoint for the archive with this one. The archive must have been flushed to disk first.
+     *
+     * @param archive The download archive
+     * @throws IOException If the checkpoint could not be written
+     */
+    public void write(File archive) throws IOException {
+        File file = getCheckpointFile(archive);
+        File tmp = new File(file.getPath() + ".tmp");
+        jsonMapper.writeValue(tmp, this);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the checkpoint for the archive, when the archive is complete or can not be resumed.
+     *
+     * @param archive The download archive
+     */
+    public static void delete(File archive) {
+        FileUtils.deleteQuietly(getCheckpointFile(archive));
+    }
+
+    /**
+     * The location of a completed zip entry and the values needed to copy it without decompressing it.
+     */
+    public static class Entry {
+        private String name;
+        private int method;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long dataOffset;
+
+        public Entry() {
+        }
+
+        public Entry(String name, int method, long crc, long size, long compressedSize, long dataOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.dataOffset = dataOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public void setMethod(int method) {
+            this.method = method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public void setCrc(long crc) {
+            this.crc = crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public void setCompressedSize(long compressedSize) {
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * @return The byte offset of the compressed data of the entry in the archive
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        public void setDataOffset(long dataOffset) {
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    /**
+     * The progress of a split query. Only updated by the thread writing the archive, as records are written.
+     */
+    public static class Split {
+        private String cursorMark;
+        private int written;
+        private boolean complete;
+
+        public Split() {
+        }
+
+        public Split(Split from) {
+            if (from != null) {
+                this.cursorMark = from.cursorMark;
+                this.written = from.written;
+                this.complete = from.complete;
+            }
+        }
+
+        /**
+         * @return The cursor mark of the first page that is not completely written, or null for the first page
+         */
+        public String getCursorMark() {
+            return cursorMark;
+        }
+
+        public void setCursorMark(String cursorMark) {
+            this.cursorMark = cursorMark;
+        }
+
+        /**
+         * @return The number of records from the page at the cursor mark that have been written
+         */
+        public int getWritten() {
+            return written;
+        }
+
+        public void setWritten(int written) {
+            this.written = written;
+        }
+
+        /**
+         * @return True if all of the records for the split have been written
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public void setComplete(boolean complete) {
+            this.complete = complete;
+        }
+
+        public void recordWritten() {
+            written++;
+        }
+
+        public void pageWritten(String nextCursorMark) {
+            cursorMark = nextCursorMark;
+            written = 0;
+        }
+    }
+}
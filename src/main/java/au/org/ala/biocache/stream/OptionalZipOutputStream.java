@@ -1,14 +1,31 @@
 package au.org.ala.biocache.stream;
 
 import au.org.ala.biocache.writer.RecordWriterError;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.ZipOutputStream;
 
 /**
  * An OutputStream that will write ZipOutputStream entries or file name separated unzipped output.
+ * <p>
+ * When writing a zipped archive to a file, the location of each completed entry is recorded so that a
+ * {@link DownloadCheckpoint} can be saved. Entries are split into parts every checkpoint interval so that
+ * checkpoints are available while a large entry is written. An archive opened with a checkpoint copies the
+ * completed entries from the partial archive, without recompressing them, and continues with the next part.
  */
 public class OptionalZipOutputStream extends OutputStream {
 
@@ -26,6 +43,16 @@ public class OptionalZipOutputStream extends OutputStream {
     private int splitCount;
     private Integer maxMB;
 
+    private File archiveFile;
+    private FileChannel channel;
+    private ZipArchiveOutputStream archive;
+    private ZipArchiveEntry archiveEntry;
+    private long checkpointBytes;
+    private DownloadCheckpoint resumeFrom;
+    private boolean resumePending = false;
+    private final List<DownloadCheckpoint.Entry> completedEntries = new ArrayList<>();
+    private boolean checkpointDue = false;
+
     /**
      * Determine when a file has reached the maxMB.
      *
@@ -40,16 +67,18 @@ public class OptionalZipOutputStream extends OutputStream {
         boolean isNewFile = false;
         if (type == OptionalZipOutputStream.Type.zipped) {
             currentEntryLength += length;
-            if (currentEntryLength >= maxMB * 1024L * 1024L) {
+            boolean checkpoint = checkpointBytes > 0 && currentEntryLength >= checkpointBytes;
+            if (checkpoint || currentEntryLength >= maxMB * 1024L * 1024L) {
                 if (writer instanceof RecordWriterError) ((RecordWriterError) writer).flush();
 
                 closeEntry();
                 currentEntryLength = 0;
 
                 splitCount++;
-                String[] parts = currentEntry.split("\\.(?=[^\\.]+$)");
-                zop.putNextEntry(new java.util.zip.ZipEntry(parts[0] + "_part" + splitCount + "." + parts[1]));
+                putEntry(getPartName(currentEntry, splitCount));
                 isNewFile = true;
+                // every entry is complete at this point
+                checkpointDue = archive != null && checkpointBytes > 0;
             }
         }
         return isNewFile;
@@ -65,13 +94,121 @@ public class OptionalZipOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Writes a zipped archive to a file.
+     *
+     * @param file The archive file
+     * @param maxZipFileMB The size of the parts that entries are split into
+     * @param checkpointBytes The uncompressed size of the parts that entries are split into when checkpoints are
+     *                        required, or 0 to disable checkpoints
+     * @param resumeFrom The checkpoint of a partial archive in the file to resume from, or null to start a new archive
+     * @throws IOException If the archive could not be created, or the partial archive did not match the checkpoint
+     */
+    public OptionalZipOutputStream(File file, Integer maxZipFileMB, long checkpointBytes, DownloadCheckpoint resumeFrom) throws IOException {
+        this.type = Type.zipped;
+        this.maxMB = maxZipFileMB;
+        this.archiveFile = file;
+        this.checkpointBytes = checkpointBytes;
+
+        File partial = null;
+        try {
+            FileUtils.forceMkdir(file.getParentFile());
+            if (resumeFrom != null) {
+                partial = new File(file.getPath() + ".partial");
+                Files.move(file.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            archive = new ZipArchiveOutputStream(channel);
+            if (resumeFrom != null) {
+                copyRawEntries(partial, resumeFrom.getEntries(), null, null);
+                this.resumeFrom = resumeFrom;
+                this.resumePending = true;
+            }
+        } catch (IOException e) {
+            if (archive != null) {
+                archive.close();
+            } else if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        } finally {
+            if (partial != null) {
+                FileUtils.deleteQuietly(partial);
+            }
+        }
+    }
+
+    /**
+     * Copies completed entries from another archive file without recompressing them. Any open entry is closed first.
+     * Only supported when the archive is written to a file.
+     *
+     * @param source The archive file containing the entries, which may be partial
+     * @param entries The locations of the entries in the source archive
+     * @param renameFrom A prefix of the entry names to replace, or null to keep the names
+     * @param renameTo The replacement for the prefix
+     * @throws IOException If the source archive is shorter than the entries require, or could not be copied
+     */
+    public void copyRawEntries(File source, List<DownloadCheckpoint.Entry> entries, String renameFrom, String renameTo) throws IOException {
+        if (archive == null) {
+            throw new IllegalStateException("Raw entries can only be copied to an archive file");
+        }
+        closeEntry();
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            for (DownloadCheckpoint.Entry entry : entries) {
+                if (entry.getDataOffset() + entry.getCompressedSize() > in.size()) {
+                    throw new IOException("Archive " + source + " is shorter than its recorded entries");
+                }
+            }
+            for (DownloadCheckpoint.Entry entry : entries) {
+                String name = entry.getName();
+                if (renameFrom != null && name.startsWith(renameFrom)) {
+                    name = renameTo + name.substring(renameFrom.length());
+                }
+                ZipArchiveEntry copy = new ZipArchiveEntry(name);
+                copy.setMethod(entry.getMethod());
+                copy.setCrc(entry.getCrc());
+                copy.setSize(entry.getSize());
+                copy.setCompressedSize(entry.getCompressedSize());
+                in.position(entry.getDataOffset());
+                BoundedInputStream raw = new BoundedInputStream(Channels.newInputStream(in), entry.getCompressedSize());
+                raw.setPropagateClose(false);
+                archive.addRawArchiveEntry(copy, raw);
+                completedEntries.add(new DownloadCheckpoint.Entry(name, entry.getMethod(), entry.getCrc(),
+                        entry.getSize(), entry.getCompressedSize(), channel.position() - entry.getCompressedSize()));
+            }
+        }
+    }
+
+    private static String getPartName(String entry, int part) {
+        String[] parts = entry.split("\\.(?=[^\\.]+$)");
+        return parts[0] + "_part" + part + "." + parts[1];
+    }
+
+    private void putEntry(String name) throws IOException {
+        if (archive != null) {
+            // like ZipOutputStream, an open entry is closed by the next entry
+            closeEntry();
+            archiveEntry = new ZipArchiveEntry(name);
+            archive.putArchiveEntry(archiveEntry);
+        } else {
+            zop.putNextEntry(new java.util.zip.ZipEntry(name));
+        }
+    }
+
     public void putNextEntry(String name) throws IOException {
         currentEntry = name;
         currentEntryLength = 0;
         splitCount = 1;
 
-        if (type == Type.zipped) {
-            zop.putNextEntry(new java.util.zip.ZipEntry(name));
+        if (resumePending && name.equals(resumeFrom.getCurrentEntry())) {
+            // continue with the part that was being written when the checkpoint was taken. The checkpoint stays
+            // available so the writer of the entry can skip the records that are already in the archive
+            splitCount = resumeFrom.getSplitCount();
+            resumePending = false;
+            putEntry(splitCount > 1 ? getPartName(name, splitCount) : name);
+        } else if (type == Type.zipped) {
+            putEntry(name);
         } else {
             out.write(UNZIPPED_ENTRY_SEPARATOR.getBytes(StandardCharsets.UTF_8));
             out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
@@ -79,7 +216,16 @@ public class OptionalZipOutputStream extends OutputStream {
     }
 
     public void closeEntry() throws IOException {
-        if (type == Type.zipped) {
+        if (archive != null) {
+            if (archiveEntry != null) {
+                archive.closeArchiveEntry();
+                // the channel is positioned at the end of the entry data, as the local header is rewritten in place
+                completedEntries.add(new DownloadCheckpoint.Entry(archiveEntry.getName(), archiveEntry.getMethod(),
+                        archiveEntry.getCrc(), archiveEntry.getSize(), archiveEntry.getCompressedSize(),
+                        channel.position() - archiveEntry.getCompressedSize()));
+                archiveEntry = null;
+            }
+        } else if (type == Type.zipped) {
             zop.closeEntry();
         } else {
             out.write("\n".getBytes(StandardCharsets.UTF_8));
@@ -88,7 +234,9 @@ public class OptionalZipOutputStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        if (type == Type.zipped) {
+        if (archive != null) {
+            archive.write(b);
+        } else if (type == Type.zipped) {
             zop.write(b);
         } else {
             out.write(b);
@@ -97,16 +245,29 @@ public class OptionalZipOutputStream extends OutputStream {
 
     @Override
     public void write(byte [] b) throws IOException {
-        if (type == Type.zipped) {
-            zop.write(b);
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len) throws IOException {
+        if (archive != null) {
+            archive.write(b, off, len);
+        } else if (type == Type.zipped) {
+            zop.write(b, off, len);
         } else {
-            out.write(b);
+            out.write(b, off, len);
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (type == Type.zipped) {
+        if (archive != null) {
+            try {
+                closeEntry();
+            } finally {
+                archive.close();
+            }
+        } else if (type == Type.zipped) {
             zop.close();
         } else {
             out.close();
@@ -115,7 +276,9 @@ public class OptionalZipOutputStream extends OutputStream {
 
     @Override
     public void flush() throws IOException {
-        if (type == Type.zipped) {
+        if (archive != null) {
+            archive.flush();
+        } else if (type == Type.zipped) {
             zop.flush();
         } else {
             out.flush();
@@ -130,4 +293,54 @@ public class OptionalZipOutputStream extends OutputStream {
         return currentEntry;
     }
 
+    /**
+     * @return The archive file, or null if the archive is written to a stream
+     */
+    public File getArchiveFile() {
+        return archiveFile;
+    }
+
+    /**
+     * @return The locations of the entries in the archive file that have been completed so far
+     */
+    public List<DownloadCheckpoint.Entry> getCompletedEntries() {
+        return new ArrayList<>(completedEntries);
+    }
+
+    /**
+     * @return True if the archive is written to a file with checkpoints
+     */
+    public boolean isCheckpointEnabled() {
+        return archive != null && checkpointBytes > 0;
+    }
+
+    /**
+     * @return The checkpoint the archive was resumed from, or null if the archive was started new
+     */
+    public DownloadCheckpoint getResumeCheckpoint() {
+        return resumeFrom;
+    }
+
+    /**
+     * @return True if an entry was split into a new part since the last checkpoint, so all previous entries are complete
+     */
+    public boolean isCheckpointDue() {
+        return checkpointDue;
+    }
+
+    /**
+     * Completes the supplied checkpoint with the entries of the archive, and saves it once the archive is on disk.
+     *
+     * @param checkpoint The progress of the download at the end of the completed entries
+     * @throws IOException If the archive could not be synced or the checkpoint could not be written
+     */
+    public void saveCheckpoint(DownloadCheckpoint checkpoint) throws IOException {
+        checkpointDue = false;
+        checkpoint.setEntries(new ArrayList<>(completedEntries));
+        checkpoint.setCurrentEntry(currentEntry);
+        checkpoint.setSplitCount(splitCount);
+        channel.force(false);
+        checkpoint.write(archiveFile);
+    }
+
 }
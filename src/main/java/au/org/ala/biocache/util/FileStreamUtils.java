@@ -0,0 +1,229 @@
+/**************************************************************************
+ *  Copyright (C) 2013 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves files from disk directly to a servlet response.
+ * <p>
+ * The file content is copied with {@link FileChannel#transferTo(long, long, WritableByteChannel)} so it is never
+ * decoded or buffered in the heap. Supports conditional requests using an ETag derived from the file length and
+ * last modified time, and single byte range requests so that interrupted downloads can be resumed.
+ */
+public class FileStreamUtils {
+
+    private static final Logger logger = Logger.getLogger(FileStreamUtils.class);
+
+    /** The maximum number of bytes handed to a single transferTo call. */
+    private static final long MAX_TRANSFER_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Creates a strong ETag for the file from its metadata, so that the content never needs to be read to compute it.
+     *
+     * @param file The file
+     * @return A quoted ETag value
+     */
+    public static String getETag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    /**
+     * Parses a single "bytes=" range header value against the length of the resource.
+     *
+     * @param rangeHeader The value of the Range header
+     * @param length      The length of the resource
+     * @return A two element array containing the first and last byte positions (inclusive), null when the header is
+     * missing, malformed or contains multiple ranges and the whole resource should be returned, or an empty array if
+     * the range can not be satisfied
+     */
+    public static long[] parseRange(String rangeHeader, long length) {
+        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+        String range = rangeHeader.substring("bytes=".length()).trim();
+        if (range.isEmpty() || range.contains(",")) {
+            // multipart/byteranges responses are not supported, the whole resource is returned instead
+            return null;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String startPart = range.substring(0, dash).trim();
+            String endPart = range.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (startPart.isEmpty()) {
+                // suffix range, e.g. bytes=-500 for the last 500 bytes
+                if (endPart.isEmpty()) {
+                    return null;
+                }
+                long suffixLength = Long.parseLong(endPart);
+                if (suffixLength <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffixLength);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(startPart);
+                end = endPart.isEmpty() ? length - 1 : Math.min(Long.parseLong(endPart), length - 1);
+            }
+            if (start < 0 || start >= length || end < start) {
+                return new long[0];
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the file to the response, honouring conditional and range request headers.
+     *
+     * @param file        The file to serve
+     * @param contentType The content type of the file
+     * @param fileName    Name to use in a Content-Disposition attachment header, or null to serve the file inline
+     * @param request     The request
+     * @param response    The response
+     * @throws IOException If the file could not be written to the response
+     */
+    public static void serveFile(File file, String contentType, String fileName,
+                                 HttpServletRequest request, HttpServletResponse response) throws IOException {
+        serveFile(file, contentType, fileName, null, request, response);
+    }
+
+    /**
+     * Writes the file to the response, honouring conditional and range request headers.
+     *
+     * @param file        The file to serve
+     * @param contentType The content type of the file
+     * @param fileName    Name to use in a Content-Disposition attachment header, or null to serve the file inline
+     * @param eTag        The ETag of the file, or null to derive it from the file metadata
+     * @param request     The request
+     * @param response    The response
+     * @throws IOException If the file could not be written to the response
+     */
+    public static void serveFile(File file, String contentType, String fileName, String eTag,
+                                 HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (eTag == null) {
+            eTag = getETag(file);
+        }
+
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long[] range = null;
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null || ifRange.equals(eTag)) {
+            range = parseRange(request.getHeader("Range"), length);
+        }
+        if (range != null && range.length == 0) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        if (range != null) {
+            start = range[0];
+            end = range[1];
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        long count = end - start + 1;
+
+        response.setContentType(contentType);
+        if (fileName != null) {
+            response.setHeader("Content-Disposition", "attachment;filename=" + fileName);
+        }
+        // setContentLength is limited to int values, which is too small for large download archives
+        response.setHeader("Content-Length", Long.toString(count));
+
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || count <= 0) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            transfer(channel, start, count, Channels.newChannel(out));
+        }
+        out.flush();
+    }
+
+    /**
+     * Copies count bytes from the channel, starting at the given position, to the target channel.
+     */
+    static void transfer(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        long remaining = count;
+        long next = position;
+        while (remaining > 0) {
+            long written = channel.transferTo(next, Math.min(remaining, MAX_TRANSFER_SIZE), target);
+            if (written <= 0) {
+                // the file was truncated while it was being sent
+                logger.warn("File transfer ended early with " + remaining + " bytes remaining");
+                break;
+            }
+            next += written;
+            remaining -= written;
+        }
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : StringUtils.split(ifNoneMatch, ",")) {
+                String value = candidate.trim();
+                if ("*".equals(value) || value.equals(eTag) || value.equals("W/" + eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            // HTTP dates only have second precision
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package au.org.ala.biocache.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges the lft ranges of taxa into the smallest set of ranges that match the same records.
+ * <p>
+ * The name index numbers taxa as a nested set, so a child taxon's range lies within its parent's range and
+ * the next sibling starts at the right value of the previous sibling plus 1. Nested, overlapping and adjacent
+ * ranges can therefore be merged without changing the records that are matched.
+ */
+public class LftIntervals {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("lft:\\[(\\d+) TO (\\d+)\\]");
+    private static final Pattern DISJUNCTION_PATTERN = Pattern.compile(
+            "\\(*\\s*lft:\\[\\d+ TO \\d+\\](\\s+OR\\s+\\(*\\s*lft:\\[\\d+ TO \\d+\\]\\s*\\)*)*\\s*\\)*");
+
+    private LftIntervals() {
+    }
+
+    /**
+     * Merge nested, overlapping and adjacent ranges.
+     *
+     * @param ranges The ranges as { lft, rgt }
+     * @return The merged ranges sorted by lft
+     */
+    public static List<long[]> merge(List<long[]> ranges) {
+        List<long[]> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        List<long[]> merged = new ArrayList<>();
+        long[] current = null;
+        for (long[] range : sorted) {
+            if (current != null && range[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], range[1]);
+            } else {
+                current = new long[]{range[0], range[1]};
+                merged.add(current);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merge lft range clauses.
+     *
+     * @param clauses Clauses of the form lft:[a TO b]. Other clauses are kept, after the ranges.
+     * @return The merged clauses
+     */
+    public static List<String> mergeClauses(Iterable<String> clauses) {
+        List<long[]> ranges = new ArrayList<>();
+        List<String> other = new ArrayList<>();
+        for (String clause : clauses) {
+            Matcher m = RANGE_PATTERN.matcher(clause);
+            if (m.matches()) {
+                ranges.add(new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2))});
+            } else {
+                other.add(clause);
+            }
+        }
+
+        List<String> merged = new ArrayList<>();
+        for (long[] range : merge(ranges)) {
+            merged.add(toClause(range));
+        }
+        merged.addAll(other);
+        return merged;
+    }
+
+    /**
+     * Merge the ranges of a query that is only a disjunction of lft ranges, e.g. the query produced for a batch
+     * of lsids.
+     *
+     * @param query The formatted query
+     * @return The query with merged ranges, or the unchanged query when it contains other terms
+     */
+    public static String mergeDisjunction(String query) {
+        if (query == null || !DISJUNCTION_PATTERN.matcher(query).matches()) {
+            return query;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        Matcher m = RANGE_PATTERN.matcher(query);
+        while (m.find()) {
+            ranges.add(new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2))});
+        }
+        if (ranges.size() < 2) {
+            return query;
+        }
+
+        List<long[]> merged = merge(ranges);
+        if (merged.size() == 1) {
+            return toClause(merged.get(0));
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (long[] range : merged) {
+            if (sb.length() > 1) {
+                sb.append(" OR ");
+            }
+            sb.append(toClause(range));
+        }
+        return sb.append(")").toString();
+    }
+
+    private static String toClause(long[] range) {
+        return "lft:[" + range[0] + " TO " + range[1] + "]";
+    }
+}
@@ -0,0 +1,85 @@
+package au.org.ala.biocache.util;
+
+/**
+ * A set of primitive longs, using open addressing, for de-duplicating many keys without boxing them.
+ * <p>
+ * Not thread safe.
+ */
+public class LongHashSet {
+
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+    private int shift;
+
+    /**
+     * @param expectedSize The number of keys expected, to size the set without resizing
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long key) {
+        // fibonacci hashing spreads keys that differ only in their low or high bits
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * @param key The key to add
+     * @return True if the key was added, false if it was already in the set
+     */
+    public boolean add(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        used[i] = true;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(keys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                add(oldKeys[i]);
+            }
+        }
+    }
+}
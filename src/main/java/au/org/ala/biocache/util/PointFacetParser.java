@@ -0,0 +1,84 @@
+package au.org.ala.biocache.util;
+
+/**
+ * Parses point facet values, e.g. point-0.01, of the form "lat,lng" into the float arrays used by WMS tiles.
+ * <p>
+ * The decimal digits are accumulated into a long and scaled once, avoiding the substrings and general purpose
+ * parsing of {@link Float#parseFloat(String)} for the millions of values of a broad query. Values that are not plain
+ * decimals fall back to {@link Float#parseFloat(String)}.
+ */
+public class PointFacetParser {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    // with more digits the mantissa may not be an exact double
+    private static final int MAX_DIGITS = 15;
+
+    private PointFacetParser() {
+    }
+
+    /**
+     * Parse a point facet value.
+     *
+     * @param value  The facet value, "lat,lng"
+     * @param points The array to write the point to
+     * @param offset The position of the point, lng is written to points[offset] and lat to points[offset + 1]
+     * @throws NumberFormatException If the value is not a point
+     */
+    public static void parse(String value, float[] points, int offset) {
+        int p = value.indexOf(',');
+        if (p < 0) {
+            throw new NumberFormatException("Not a point: " + value);
+        }
+        points[offset] = parseCoordinate(value, p + 1, value.length());
+        points[offset + 1] = parseCoordinate(value, 0, p);
+    }
+
+    /**
+     * Parse a decimal number in part of a string.
+     *
+     * @param s     The string
+     * @param start The start of the number
+     * @param end   The end of the number, exclusive
+     * @return The number
+     * @throws NumberFormatException If the value is not a number
+     */
+    public static float parseCoordinate(String s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_DIGITS) {
+                    return Float.parseFloat(s.substring(start, end));
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                // exponents, NaN, etc.
+                return Float.parseFloat(s.substring(start, end));
+            }
+        }
+        if (digits == 0) {
+            return Float.parseFloat(s.substring(start, end));
+        }
+
+        // the mantissa and the power of ten are exact doubles, so the quotient is correctly rounded
+        double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return (float) (negative ? -value : value);
+    }
+}
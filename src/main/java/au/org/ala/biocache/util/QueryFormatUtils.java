@@ -7,6 +7,8 @@ import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import au.org.ala.biocache.model.Qid;
 import au.org.ala.biocache.service.*;
 import au.org.ala.biocache.service.ListsService.SpeciesListSearchDTO;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
 import com.googlecode.ehcache.annotations.Cacheable;
 import org.apache.commons.lang.ArrayUtils;
@@ -20,6 +22,7 @@ import org.springframework.stereotype.Component;
 import javax.inject.Inject;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -94,6 +97,83 @@ public class QueryFormatUtils {
     @Value("${circle.display.string: - within {0} km of point({1}, {2})}")
     protected String circleDisplayString;
 
+    /**
+     * The maximum number of formatted queries to keep. Set to 0 to disable the cache.
+     */
+    @Value("${query.format.cache.size:10000}")
+    protected int formattedQueryCacheSize = 10000;
+
+    /**
+     * The time in ms a formatted query is kept, so that changes to species lists and user names are picked up.
+     */
+    @Value("${query.format.cache.ttl:600000}")
+    protected long formattedQueryCacheTtl = 600000;
+
+    private volatile Cache<String, FormattedQuery> formattedQueryCache;
+
+    /**
+     * The maximum number of species lists to keep the expanded query of.
+     */
+    @Value("${species.list.query.cache.size:100}")
+    protected int speciesListQueryCacheSize = 100;
+
+    private volatile Cache<String, SpeciesListQuery> speciesListQueryCache;
+
+    /**
+     * The query for the items of a species list, and the items it was built from.
+     */
+    private static class SpeciesListQuery {
+        final List<String> items;
+        final int maxBooleanClauses;
+        final String query;
+
+        SpeciesListQuery(List<String> items, int maxBooleanClauses, String query) {
+            this.items = items;
+            this.maxBooleanClauses = maxBooleanClauses;
+            this.query = query;
+        }
+    }
+
+    /**
+     * The output of formatting the q, fq and spatial parameters of a search.
+     */
+    private static class FormattedQuery {
+        final String displayString;
+        final String formattedQuery;
+        final String[] formattedFq;
+        final String wkt;
+        final Map<String, Facet> activeFacetMap;
+
+        FormattedQuery(SpatialSearchRequestParams searchParams, Map<String, Facet> activeFacetMap) {
+            this.displayString = searchParams.getDisplayString();
+            this.formattedQuery = searchParams.getFormattedQuery();
+            this.formattedFq = searchParams.getFormattedFq() == null ? null : searchParams.getFormattedFq().clone();
+            this.wkt = searchParams.getWkt();
+            this.activeFacetMap = copyFacets(activeFacetMap);
+        }
+
+        /**
+         * Copies the formatted values to the search params, and returns a copy of the active facets.
+         */
+        Map<String, Facet> apply(SpatialSearchRequestParams searchParams) {
+            searchParams.setDisplayString(displayString);
+            searchParams.setFormattedQuery(formattedQuery);
+            searchParams.setFormattedFq(formattedFq == null ? null : formattedFq.clone());
+            searchParams.setWkt(wkt);
+            return copyFacets(activeFacetMap);
+        }
+
+        private static Map<String, Facet> copyFacets(Map<String, Facet> facets) {
+            Map<String, Facet> copy = new HashMap();
+            for (Map.Entry<String, Facet> entry : facets.entrySet()) {
+                Facet facet = new Facet(entry.getValue().getName(), entry.getValue().getDisplayName());
+                facet.setValue(entry.getValue().getValue());
+                copy.put(entry.getKey(), facet);
+            }
+            return copy;
+        }
+    }
+
     public int getMaxBooleanClauses() {
         return maxBooleanClauses;
     }
@@ -110,6 +190,9 @@ public class QueryFormatUtils {
     /**
      * Format the search query. Note: Cacheable annotation is deliberately removed as this introduced a bug
      * for Facet Count queries.
+     * <p>
+     * The formatted q and fq are kept in a bounded cache keyed by the q, fq and spatial parameters, and copied
+     * to the search params on a repeat request. The query context is always applied afterwards.
      *
      * @param searchParams
      * @param forceQueryFormat
@@ -120,6 +203,15 @@ public class QueryFormatUtils {
         Map<String, Facet> activeFacetMap = new HashMap();
         //Only format the query if it doesn't already supply a formattedQuery.
         if (forceQueryFormat || StringUtils.isEmpty(searchParams.getFormattedQuery())) {
+            Cache<String, FormattedQuery> cache = getFormattedQueryCache();
+            String cacheKey = cache != null ? getFormattedQueryCacheKey(searchParams) : null;
+            FormattedQuery cached = cache != null ? cache.getIfPresent(cacheKey) : null;
+            if (cached != null) {
+                activeFacetMap = cached.apply(searchParams);
+                updateQueryContext(searchParams);
+                return activeFacetMap;
+            }
+
             String [] originalFqs = searchParams.getFq();
 
             String [] formatted = formatQueryTerm(searchParams.getQ(), searchParams);
@@ -165,6 +257,11 @@ public class QueryFormatUtils {
             if (StringUtils.isNotEmpty(spatialQuery)) {
                 addFormattedFq(new String[] { spatialQuery }, searchParams);
             }
+
+            //do not keep the output of failed species list lookups
+            if (cache != null && !StringUtils.contains(searchParams.getDisplayString(), "species_list failed")) {
+                cache.put(cacheKey, new FormattedQuery(searchParams, activeFacetMap));
+            }
         }
 
         updateQueryContext(searchParams);
@@ -172,6 +269,57 @@ public class QueryFormatUtils {
         return activeFacetMap;
     }
 
+    /**
+     * Remove all formatted queries from the cache, e.g. when the index or species lists change.
+     */
+    public void clearCache() {
+        Cache<String, FormattedQuery> cache = formattedQueryCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        Cache<String, SpeciesListQuery> listCache = speciesListQueryCache;
+        if (listCache != null) {
+            listCache.invalidateAll();
+        }
+    }
+
+    private Cache<String, FormattedQuery> getFormattedQueryCache() {
+        if (formattedQueryCacheSize <= 0) {
+            return null;
+        }
+        if (formattedQueryCache == null) {
+            synchronized (this) {
+                if (formattedQueryCache == null) {
+                    formattedQueryCache = CacheBuilder.newBuilder()
+                            .maximumSize(formattedQueryCacheSize)
+                            .expireAfterWrite(formattedQueryCacheTtl, TimeUnit.MILLISECONDS)
+                            .build();
+                }
+            }
+        }
+        return formattedQueryCache;
+    }
+
+    /**
+     * The formatted query depends only on the q, fq and spatial parameters, and on maxBooleanClauses through the
+     * species list queries. The query context is added after formatting so it is not part of the key.
+     */
+    private String getFormattedQueryCacheKey(SpatialSearchRequestParams searchParams) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(searchParams.getQ());
+        if (searchParams.getFq() != null) {
+            for (String fq : searchParams.getFq()) {
+                sb.append('\u0000').append(fq);
+            }
+        }
+        sb.append('\u0001').append(searchParams.getWkt());
+        sb.append('\u0001').append(searchParams.getLat());
+        sb.append('\u0001').append(searchParams.getLon());
+        sb.append('\u0001').append(searchParams.getRadius());
+        sb.append('\u0001').append(getMaxBooleanClauses());
+        return sb.toString();
+    }
+
     public void addFqs(String [] fqs, SpatialSearchRequestParams searchParams) {
         if (fqs != null && searchParams != null) {
             String[] currentFqs = searchParams.getFq();
@@ -395,7 +543,7 @@ public class QueryFormatUtils {
     }
 
     /**
-     * Substitute lft ranges for species lists in queries for formattedQuery and displayString.
+     * Substitute lft ranges and a terms query for species lists in queries for formattedQuery and displayString.
      *
      * @param current String [] { displayString, formattedQuery } to update.
      */
@@ -404,31 +552,16 @@ public class QueryFormatUtils {
             return;
         }
 
-        //if the query string contains species_list: replace with the equivalent (lsid: OR lsid: ...etc) before lsid: is parsed
+        //if the query string contains species_list: replace with the equivalent (lft: OR terms) before lsid: is parsed
         StringBuffer sb = new StringBuffer();
         Matcher m = speciesListPattern.matcher(current[1]);
-        int max = getMaxBooleanClauses();
         HashSet<String> failedLists = new HashSet<>();
         while (m.find()) {
             String speciesList = m.group(2);
             String prefix = m.group(1);
             try {
-                List<String> lsids = listsService.getListItems(speciesList);
-
-                List<String> strings = lsids.stream()
-                        .map(searchUtils::getTaxonSearch)
-                        .filter(t -> t.length > 1)
-                        .map(t -> t[0])
-                        .collect(toList());
-                Iterable<List<String>> partition = Iterables.partition(strings, max - 10);
-                String q = stream(partition.spliterator(), false)
-                        .map(part -> part.stream()
-                                .collect(joining(" OR ", "(", ")")))
-                        .collect(joining(" OR "));
-                if (q.length() > 1) {
-                    q = "(" + q + ")";
-                }
-                m.appendReplacement(sb, prefix + q);
+                String q = getSpeciesListQuery(speciesList);
+                m.appendReplacement(sb, Matcher.quoteReplacement(prefix + q));
             } catch (Exception e) {
                 logger.error("failed to get species list: " + speciesList, e);
                 m.appendReplacement(sb, prefix + "(NOT *:*)");
@@ -460,6 +593,75 @@ public class QueryFormatUtils {
         current[0] = sb.toString();
     }
 
+    /**
+     * Build the query for the items of a species list. Items found in the name index are searched by merged lft
+     * ranges, so that child taxa are included, and the remaining items are searched with a single terms query.
+     * <p>
+     * The query is cached for each list until the list items change.
+     *
+     * @param speciesList The data resource uid of the list
+     * @return The query, or an empty string if the list has no items that can be searched
+     * @throws Exception If the list items could not be retrieved
+     */
+    private String getSpeciesListQuery(String speciesList) throws Exception {
+        List<String> lsids = listsService.getListItems(speciesList);
+
+        Cache<String, SpeciesListQuery> cache = getSpeciesListQueryCache();
+        SpeciesListQuery cached = cache.getIfPresent(speciesList);
+        if (cached != null && cached.maxBooleanClauses == getMaxBooleanClauses()
+                && (cached.items == lsids || cached.items.equals(lsids))) {
+            return cached.query;
+        }
+
+        Set<String> clauses = new LinkedHashSet<>();
+        Set<String> terms = new TreeSet<>();
+        for (String lsid : lsids) {
+            String[] taxonSearch = searchUtils.getTaxonSearch(lsid);
+            if (taxonSearch.length < 2) {
+                continue;
+            }
+            //the terms query separates values with ','
+            if (taxonSearch[0].startsWith("lft:[") || lsid.contains(",")) {
+                clauses.add(taxonSearch[0]);
+            } else {
+                terms.add(lsid);
+            }
+        }
+
+        if (!terms.isEmpty()) {
+            String value = "{!terms f=taxon_concept_lsid}" + StringUtils.join(terms, ',');
+            clauses.add("_query_:\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+        }
+
+        String q = "";
+        List<String> parts = LftIntervals.mergeClauses(clauses);
+        if (!parts.isEmpty()) {
+            // nest the clauses until no boolean query has more than maxBooleanClauses - 10 clauses
+            int partitionSize = Math.max(2, getMaxBooleanClauses() - 10);
+            do {
+                parts = stream(Iterables.partition(parts, partitionSize).spliterator(), false)
+                        .map(part -> part.stream()
+                                .collect(joining(" OR ", "(", ")")))
+                        .collect(toList());
+            } while (parts.size() > partitionSize);
+            q = parts.stream().collect(joining(" OR ", "(", ")"));
+        }
+
+        cache.put(speciesList, new SpeciesListQuery(lsids, getMaxBooleanClauses(), q));
+        return q;
+    }
+
+    private Cache<String, SpeciesListQuery> getSpeciesListQueryCache() {
+        if (speciesListQueryCache == null) {
+            synchronized (this) {
+                if (speciesListQueryCache == null) {
+                    speciesListQueryCache = CacheBuilder.newBuilder().maximumSize(speciesListQueryCacheSize).build();
+                }
+            }
+        }
+        return speciesListQueryCache;
+    }
+
     /**
      * Substitute lft ranges for lsids in queries for formattedQuery and displayString.
      *
@@ -516,7 +718,8 @@ public class QueryFormatUtils {
                 displaySb.append(current[1].substring(last, current[1].length()));
 
                 current[0] = displaySb.toString();
-                current[1] = queryString.toString();
+                //a batch of lsids becomes the smallest set of lft ranges
+                current[1] = LftIntervals.mergeDisjunction(queryString.toString());
             }
         }
     }
@@ -1,13 +1,20 @@
 package au.org.ala.biocache.util;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 import org.apache.log4j.Logger;
 import org.geotools.geometry.jts.JTS;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Supplies spatial utilities that can be used for the geospatial seaches
  * 
@@ -18,6 +25,23 @@ public class SpatialUtils {
     private final static Logger logger = Logger.getLogger(SpatialUtils.class);
   
     private static final Geometry THE_WORLD=JTS.toGeometry(new Envelope(-180.0,180.0, -90.0, 90.0));
+
+    /**
+     * The same large WKT is sent repeatedly by qids and map tiles, so parsed geometries and the results
+     * derived from them are cached by a hash of the WKT.
+     */
+    private static final int GEOMETRY_CACHE_SIZE = 200;
+    private static final int WKT_CACHE_SIZE = 1000;
+    private static final Cache<HashCode, Geometry> geometryCache = CacheBuilder.newBuilder().maximumSize(GEOMETRY_CACHE_SIZE).build();
+    private static final Cache<String, String> wktCache = CacheBuilder.newBuilder().maximumSize(WKT_CACHE_SIZE).build();
+    /** cached when WKT could not be simplified, as the cache does not hold nulls */
+    private static final String NOT_SIMPLIFIED = "";
+
+    /** the tolerance simplification starts from, and the tolerance it gives up at */
+    private static final double MIN_SIMPLIFY_DISTANCE = 0.0001;
+    private static final double MAX_SIMPLIFY_DISTANCE = 10;
+    /** the number of bisections of the tolerance found by doubling from MIN_SIMPLIFY_DISTANCE */
+    private static final int SIMPLIFY_BISECTIONS = 8;
     private static final double TO_DEG = Math.toDegrees(1.0);
     /**
     * The Authalic mean radius (A<subscript>r</subscript>) of the earth
@@ -146,6 +170,21 @@ public class SpatialUtils {
     }
 
 
+
+    /**
+     * The haversine distance between two points, in metres, on a sphere with a radius of 6371 km.
+     *
+     * @return the distance in metres
+     */
+    public static double distanceInMetres(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLon = Math.sin(dLon / 2);
+        double a = sinLat * sinLat +
+                sinLon * sinLon * Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2));
+        return 6371000d * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
   
   /**
    * Turns the number of km in a degreee representation based on a conversion factor in Australia.
@@ -171,21 +210,19 @@ public class SpatialUtils {
      * @param wkt
      * @return
      */
-    public static String getWKTAsUnions(String wkt){
+    public static String getWKTAsUnions(final String wkt){
         if(wkt.startsWith("GEOMETRYCOLLECTION")){
+            String key = "union " + hash(wkt);
+            String union = wktCache.getIfPresent(key);
+            if(union != null){
+                return union;
+            }
             try{
-                WKTReader r = new WKTReader();
-                GeometryCollection gc = (GeometryCollection)r.read(wkt);
-                Geometry ugeo = null;
-                for(int i=0;i<gc.getNumGeometries();i++){
-                    Geometry g = gc.getGeometryN(i);
-                    if(ugeo == null){
-                        ugeo = g;
-                    } else{
-                        ugeo = ugeo.union(g);
-                    }
-                }
-                return ugeo.toText();
+                GeometryCollection gc = (GeometryCollection) readWkt(wkt);
+                // a cascaded union of all the geometries at once, rather than adding them one by one
+                union = gc.union().toText();
+                wktCache.put(key, union);
+                return union;
             } catch(Exception e){
                 e.printStackTrace();
                 return wkt;
@@ -207,10 +244,14 @@ public class SpatialUtils {
         String operation = negated ? " AND ": " OR ";
         String field = negated ? "-" +spatialField:spatialField;
         if(wkt.startsWith("GEOMETRYCOLLECTION")){
+            String key = "query " + field + " " + negated + " " + hash(wkt);
+            String query = wktCache.getIfPresent(key);
+            if(query != null){
+                return query;
+            }
             //the lucene JTS WKT does not support GEOMETRYCOLLECTION http://wiki.apache.org/solr/SolrAdaptersForLuceneSpatial4 so we will add a bunch of "OR"ed intersections
             try{
-                WKTReader r = new WKTReader();
-                GeometryCollection gc = (GeometryCollection)r.read(wkt);
+                GeometryCollection gc = (GeometryCollection) readWkt(wkt);
                 
                 //now get the individual components
                 sb.append("(");
@@ -224,6 +265,7 @@ public class SpatialUtils {
                     sb.append(")\"");
                 }
                 sb.append(")");
+                wktCache.put(key, sb.toString());
                 
             } catch(Exception e){
                 //log the error
@@ -241,6 +283,10 @@ public class SpatialUtils {
     /**
      * Attempts to simplify WKT until the number of points is < maxPoints.
      * <p/>
+     * The tolerance is doubled until the geometry is small enough, and then bisected to find
+     * a tolerance close to the smallest that is small enough, so that no more detail than
+     * necessary is lost.
+     * <p/>
      * TODO: do something with invalid WKT
      *
      * @param wkt
@@ -248,27 +294,69 @@ public class SpatialUtils {
      * @return WKT that has fewer than maxPoints or null
      */
     public static String simplifyWkt(String wkt, int maxPoints) {
-        WKTReader r = new WKTReader();
+        String key = "simplify " + maxPoints + " " + hash(wkt);
+        String simplified = wktCache.getIfPresent(key);
+        if (simplified != null) {
+            return simplified.isEmpty() ? null : simplified;
+        }
+
         Geometry smallerGeometry = null;
 
         try {
-            Geometry g = r.read(wkt);
+            Geometry g = readWkt(wkt);
 
             if (g.getNumPoints() < maxPoints) {
                 return wkt;
             }
 
-            double distance = 0.0001;
-            while (maxPoints > 0 && g.getNumPoints() > maxPoints && distance < 10) {
-                Geometry gsimplified = TopologyPreservingSimplifier.simplify(g, distance);
-                distance *= 2;
+            if (maxPoints > 0) {
+                // find a tolerance that is large enough
+                double distance = MIN_SIMPLIFY_DISTANCE;
+                smallerGeometry = TopologyPreservingSimplifier.simplify(g, distance);
+                while (smallerGeometry.getNumPoints() > maxPoints && distance * 2 < MAX_SIMPLIFY_DISTANCE) {
+                    distance *= 2;
+                    smallerGeometry = TopologyPreservingSimplifier.simplify(g, distance);
+                }
 
-                smallerGeometry = gsimplified;
+                // bisect between the last tolerance that was too small and the one that is large enough
+                if (smallerGeometry.getNumPoints() <= maxPoints && distance > MIN_SIMPLIFY_DISTANCE) {
+                    double tooSmall = distance / 2;
+                    for (int i = 0; i < SIMPLIFY_BISECTIONS; i++) {
+                        double mid = (tooSmall + distance) / 2;
+                        Geometry gsimplified = TopologyPreservingSimplifier.simplify(g, mid);
+                        if (gsimplified.getNumPoints() <= maxPoints) {
+                            distance = mid;
+                            smallerGeometry = gsimplified;
+                        } else {
+                            tooSmall = mid;
+                        }
+                    }
+                }
             }
         } catch (Exception e) {
             logger.error("WKT reduction failed: " + e.getMessage());
+            return null;
+        }
+        simplified = smallerGeometry == null ? null : smallerGeometry.toText();
+        wktCache.put(key, simplified == null ? NOT_SIMPLIFIED : simplified);
+        return simplified;
+    }
+
+    /**
+     * Parses WKT, reusing the geometry when the same WKT was parsed recently. The geometry must not be modified.
+     */
+    private static Geometry readWkt(final String wkt) throws ParseException {
+        HashCode key = hash(wkt);
+        Geometry geometry = geometryCache.getIfPresent(key);
+        if (geometry == null) {
+            geometry = new WKTReader().read(wkt);
+            geometryCache.put(key, geometry);
         }
-        return smallerGeometry == null ? null : smallerGeometry.toText();
+        return geometry;
+    }
+
+    private static HashCode hash(String wkt) {
+        return Hashing.sha256().hashString(wkt, StandardCharsets.UTF_8);
     }
 
 }
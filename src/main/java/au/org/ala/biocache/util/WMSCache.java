@@ -14,11 +14,15 @@
  ***************************************************************************/
 package au.org.ala.biocache.util;
 
+import au.org.ala.biocache.dao.IndexVersionListener;
+import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.PointType;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -94,6 +98,24 @@ public class WMSCache {
         logger.info("maxAge > " + maxAge);
     }
 
+    @Inject
+    protected SearchDAO searchDAO;
+
+    /**
+     * Empty the cache when the index changes, as the cached points are out of date.
+     */
+    @PostConstruct
+    public void init() {
+        if (searchDAO != null) {
+            searchDAO.addIndexVersionListener(new IndexVersionListener() {
+                @Override
+                public void indexVersionChanged(long oldVersion, long newVersion) {
+                    empty();
+                }
+            });
+        }
+    }
+
     /**
      * Store search params and return key.
      *
@@ -27,6 +27,7 @@ public class DownloadControlThread implements Runnable {
     private final long pollDelay;
     private final long executionDelay;
     private final int threadPriority;
+    private final Long stealDelay;
     
     private final DownloadServiceExecutor downloadServiceExecutor;
     private final AtomicBoolean shutdownFlag = new AtomicBoolean(false);
@@ -46,6 +47,27 @@ public class DownloadControlThread implements Runnable {
                                 DownloadCreator downloadCreator, 
                                 PersistentQueueDAO persistentQueueDAO,
                                 ExecutorService parallelQueryExecutor) {
+        this(name, maxRecords, downloadType, concurrencyLevel, pollDelayMs, executionDelayMs, threadPriority, null,
+                currentDownloads, downloadCreator, persistentQueueDAO, parallelQueryExecutor);
+    }
+
+    /**
+     * @param stealDelayMs When not null, and this thread is dedicated to a download type, downloads of other types
+     *                     that have been waiting in the queue for at least this many milliseconds are taken when there
+     *                     are no downloads of its own type
+     */
+    public DownloadControlThread(String name,
+                                Integer maxRecords,
+                                DownloadType downloadType,
+                                int concurrencyLevel,
+                                Long pollDelayMs,
+                                Long executionDelayMs,
+                                Integer threadPriority,
+                                Long stealDelayMs,
+                                Queue<DownloadDetailsDTO> currentDownloads,
+                                DownloadCreator downloadCreator,
+                                PersistentQueueDAO persistentQueueDAO,
+                                ExecutorService parallelQueryExecutor) {
         this.name = name;
         this.maxRecords = maxRecords;
         this.downloadType = downloadType;
@@ -53,6 +75,7 @@ public class DownloadControlThread implements Runnable {
         this.pollDelay = pollDelayMs != null && pollDelayMs >= 0L ? pollDelayMs : 10L;
         this.executionDelay = executionDelayMs != null && executionDelayMs >= 0L ? executionDelayMs : 0L;
         this.threadPriority = threadPriority != null && threadPriority >= Thread.MIN_PRIORITY && threadPriority <= Thread.MAX_PRIORITY ? threadPriority : Thread.NORM_PRIORITY;
+        this.stealDelay = stealDelayMs != null && stealDelayMs >= 0L ? stealDelayMs : null;
         this.currentDownloads = currentDownloads;
         this.downloadCreator = downloadCreator;
         this.persistentQueueDAO = persistentQueueDAO;
@@ -89,6 +112,10 @@ public class DownloadControlThread implements Runnable {
                     break;
                 }
                 currentDownload = persistentQueueDAO.getNextDownload(maxRecords, downloadType);
+                if (currentDownload == null && downloadType != null && stealDelay != null) {
+                    // Take over downloads that have been waiting too long for the threads dedicated to their type
+                    currentDownload = persistentQueueDAO.stealNextDownload(maxRecords, downloadType, stealDelay);
+                }
                 if (currentDownload != null) {
                     // The submitted download will return the capacity when it finishes
                     currentDownload.setProcessingThreadName(this.name);
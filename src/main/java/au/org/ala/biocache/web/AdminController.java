@@ -16,6 +16,7 @@ package au.org.ala.biocache.web;
 
 import au.org.ala.biocache.Store;
 import au.org.ala.biocache.service.AuthService;
+import au.org.ala.biocache.service.DownloadService;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
@@ -27,7 +28,9 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides administration web services for the biocache-service.
@@ -43,6 +46,10 @@ public class AdminController extends AbstractSecureController {
     private final static Logger logger = Logger.getLogger(AdminController.class);
     @Inject
     protected AuthService authService;
+    @Inject
+    protected DownloadService downloadService;
+    @Inject
+    protected WMSController wmsController;
 
     @Value("${ingest.process.threads:4}")
     protected Integer ingestProcessingThreads;
@@ -164,12 +171,34 @@ public class AdminController extends AbstractSecureController {
     }
 
     /**
-     * Reloads caches of translation maps between user names, ids, and email addresses 
+     * Reloads caches of translation maps between user names, ids, and email addresses, and clears cached user roles
      * @return Returns the string "Done". Will perform the reload asynchronously if the auth.user.details.path property is set to a non-empty string
      */
     @RequestMapping(value="/admin/refreshAuth", method=RequestMethod.GET)
     public @ResponseBody String refreshAuth() {
+        authService.clearUserRolesCache();
         authService.reloadCaches();
         return "Done";
     }
+
+    /**
+     * Hit rates of the caches of user roles and the sensitive filters built from them
+     * @return The statistics of each cache
+     */
+    @RequestMapping(value="/admin/authCacheStats", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Object> authCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("userRoles", authService.getUserRolesCacheStats());
+        stats.put("sensitiveFq", downloadService.getSensitiveFqCacheStats());
+        return stats;
+    }
+
+    /**
+     * Times taken by the queries of each colour of coloured WMS tiles, which are run concurrently
+     * @return The statistics of the colour queries, the queries of occurrences in no colour, and whole tiles
+     */
+    @RequestMapping(value="/admin/wmsColourQueryStats", method=RequestMethod.GET)
+    public @ResponseBody Map<String, Object> wmsColourQueryStats() {
+        return wmsController.getColourQueryStats();
+    }
 }
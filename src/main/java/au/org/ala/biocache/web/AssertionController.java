@@ -23,8 +23,11 @@ import au.org.ala.biocache.util.AssertionUtils;
 import au.org.ala.biocache.vocab.AssertionCodes;
 import au.org.ala.biocache.vocab.AssertionStatus;
 import au.org.ala.biocache.vocab.ErrorCode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
@@ -38,8 +41,16 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * This controller provides web services for assertion creation/deletion.
@@ -59,6 +70,14 @@ public class AssertionController extends AbstractSecureController {
     protected AuthService authService;
     @Inject
     private AbstractMessageSource messageSource;
+    /** The maximum number of assertions in each bulk assertion batch */
+    @Value("${assertions.bulk.batch.size:1000}")
+    protected int bulkAssertionBatchSize = 1000;
+    /** The number of threads adding bulk assertion batches to the store */
+    @Value("${assertions.bulk.threads:4}")
+    protected int bulkAssertionThreads = 4;
+    /** Single threaded executors, assertions for a record are always added by the same executor */
+    private volatile ExecutorService[] bulkAssertionExecutors;
    
     /**
      * Retrieve an array of the assertion codes in use by the processing system
@@ -126,44 +145,201 @@ public class AssertionController extends AbstractSecureController {
      * userId
      * userDisplayName
      * assertions - a json list of assertion maps to be applied.
+     *
+     * The whole list is checked before any assertion is added, so an invalid list adds nothing.
+     * The assertions are then added to the store in batches of assertions.bulk.batch.size,
+     * on assertions.bulk.threads threads. A record may have more than one assertion.
      * 
      * @param request
      * @param response
+     * @return The status (ADDED, INVALID or PARTIAL), the number of assertions added, and the result of
+     * each batch: its number, the number of assertions, each for a different record, and whether it was added.
+     * A PARTIAL response lists the batches that were added, which are not rolled back.
      * @throws Exception
      */
     @RequestMapping(value="/bulk/assertions/add", method = RequestMethod.POST)
-    public void addBulkAssertions(HttpServletRequest request,
+    public @ResponseBody Map<String, Object> addBulkAssertions(HttpServletRequest request,
                                   @RequestParam(value = "apiKey", required = true) String apiKey,
                                   @RequestParam(value = "assertions", required = true) String json,
                                   @RequestParam(value = "userId", required = true) String userId,
                                   @RequestParam(value = "userDisplayName", required = true) String userDisplayName,
                                   HttpServletResponse response) throws Exception {
-        ObjectMapper om = new ObjectMapper();
+        //check to see that the assertions have come from a valid source before adding
+        if (!shouldPerformOperation(request, response)) {
+            return null;
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
         try {
-            //check to see that the assertions have come from a valid source before adding
-            if (shouldPerformOperation(request, response)) {
-                List<java.util.Map<String, String>> assertions = om.readValue(json, new TypeReference<List<Map<String, String>>>() {
+            // check every assertion before any are added
+            readBulkAssertions(json, userId, userDisplayName, null);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            response.setStatus(HttpURLConnection.HTTP_BAD_REQUEST);
+            summary.put("status", "INVALID");
+            summary.put("message", e.getMessage());
+            summary.put("added", 0);
+            return summary;
+        }
+
+        BulkAssertionLoader loader = new BulkAssertionLoader(getBulkAssertionExecutors(), bulkAssertionBatchSize);
+        readBulkAssertions(json, userId, userDisplayName, loader);
+        List<Map<String, Object>> results = loader.finish();
+        int added = 0;
+        boolean failed = false;
+        for (Map<String, Object> result : results) {
+            if ("ADDED".equals(result.get("status"))) {
+                added += (Integer) result.get("assertions");
+            } else {
+                failed = true;
+            }
+        }
+        if (failed) {
+            response.setStatus(HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+        summary.put("status", failed ? "PARTIAL" : "ADDED");
+        summary.put("added", added);
+        summary.put("batches", results);
+        return summary;
+    }
+
+    /**
+     * Reads a json list of assertions one at a time.
+     *
+     * @param loader The loader to add the assertions to, or null to only check the assertions
+     * @throws IllegalArgumentException If the list or an assertion is not valid
+     */
+    private void readBulkAssertions(String json, String userId, String userDisplayName, BulkAssertionLoader loader) throws Exception {
+        try (JsonParser parser = new ObjectMapper().getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Expected a list of assertions");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                Map<String, String> assertion = parser.readValueAs(new TypeReference<Map<String, String>>() {
                 });
-                logger.debug("The assertions in a list of maps: " + assertions);
-                java.util.HashMap<String,QualityAssertion> qas = new java.util.HashMap<String,QualityAssertion>(assertions.size());
-                for(java.util.Map<String,String> assertion : assertions){
-                    String code = assertion.get("code");
-                    String comment = assertion.get("comment");
-                    String recordUuid = assertion.get("recordUuid");
-                    QualityAssertion qa = au.org.ala.biocache.model.QualityAssertion.apply(Integer.parseInt(code));
-                    qa.setComment(comment);
-                    qa.setUserId(userId);
-                    qa.setUserDisplayName(userDisplayName);
-                    qas.put(recordUuid, qa);
+                String code = assertion.get("code");
+                String comment = assertion.get("comment");
+                String recordUuid = assertion.get("recordUuid");
+                if (recordUuid == null) {
+                    throw new IllegalArgumentException("No recordUuid for assertion " + assertion);
                 }
-                if(qas.size()>0){
-                    //add the qas in bulk
-                    Store.addUserAssertions(qas);
+                QualityAssertion qa = au.org.ala.biocache.model.QualityAssertion.apply(Integer.parseInt(code));
+                qa.setComment(comment);
+                qa.setUserId(userId);
+                qa.setUserDisplayName(userDisplayName);
+                if (loader != null) {
+                    loader.add(recordUuid, qa);
                 }
             }
-        } catch(Exception e) {
-            logger.error(e.getMessage(),e);
-            response.sendError(HttpURLConnection.HTTP_BAD_REQUEST);
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new IllegalArgumentException("Expected a list of assertions");
+            }
+        }
+    }
+
+    /**
+     * Adds a batch of assertions, at most one for each record, to the store.
+     */
+    protected void addUserAssertions(Map<String, QualityAssertion> batch) {
+        Store.addUserAssertions(batch);
+    }
+
+    private ExecutorService[] getBulkAssertionExecutors() {
+        ExecutorService[] executors = bulkAssertionExecutors;
+        if (executors == null) {
+            synchronized (this) {
+                executors = bulkAssertionExecutors;
+                if (executors == null) {
+                    executors = new ExecutorService[Math.max(1, bulkAssertionThreads)];
+                    for (int i = 0; i < executors.length; i++) {
+                        executors[i] = Executors.newSingleThreadExecutor(
+                                new ThreadFactoryBuilder().setNameFormat("bulk-assertions-" + i + "-%d")
+                                        .setDaemon(true).build());
+                    }
+                    bulkAssertionExecutors = executors;
+                }
+            }
+        }
+        return executors;
+    }
+
+    /**
+     * Adds assertions to the store in batches of at most one assertion per record.
+     *
+     * Each record is assigned to one executor, so the assertions of a record are added
+     * one batch after another in the order they were received.
+     */
+    private class BulkAssertionLoader {
+        private final ExecutorService[] executors;
+        private final int batchSize;
+        private final List<Map<String, QualityAssertion>> pending = new ArrayList<Map<String, QualityAssertion>>();
+        /** limits the batches held in memory while waiting to be added */
+        private final Semaphore batchesInFlight;
+        private final List<Future<Map<String, Object>>> results = new ArrayList<Future<Map<String, Object>>>();
+
+        BulkAssertionLoader(ExecutorService[] executors, int batchSize) {
+            this.executors = executors;
+            this.batchSize = batchSize;
+            this.batchesInFlight = new Semaphore(executors.length * 2);
+            for (int i = 0; i < executors.length; i++) {
+                pending.add(new HashMap<String, QualityAssertion>());
+            }
+        }
+
+        void add(String recordUuid, QualityAssertion qa) throws InterruptedException {
+            int i = (recordUuid.hashCode() & Integer.MAX_VALUE) % executors.length;
+            Map<String, QualityAssertion> batch = pending.get(i);
+            if (batch.containsKey(recordUuid) || batch.size() >= batchSize) {
+                submit(i);
+                batch = pending.get(i);
+            }
+            batch.put(recordUuid, qa);
+        }
+
+        private void submit(int i) throws InterruptedException {
+            final Map<String, QualityAssertion> batch = pending.get(i);
+            if (batch.isEmpty()) {
+                return;
+            }
+            pending.set(i, new HashMap<String, QualityAssertion>());
+
+            batchesInFlight.acquire();
+            final int batchNumber = results.size() + 1;
+            results.add(executors[i].submit(new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() {
+                    Map<String, Object> result = new LinkedHashMap<String, Object>();
+                    result.put("batch", batchNumber);
+                    result.put("assertions", batch.size());
+                    try {
+                        addUserAssertions(batch);
+                        result.put("status", "ADDED");
+                    } catch (Exception e) {
+                        logger.error("Failed to add bulk assertion batch " + batchNumber + ": " + e.getMessage(), e);
+                        result.put("status", "FAILED");
+                        result.put("message", e.getMessage());
+                    } finally {
+                        batchesInFlight.release();
+                    }
+                    return result;
+                }
+            }));
+        }
+
+        /**
+         * Submits the remaining assertions and waits for every batch.
+         *
+         * @return The result of each submitted batch, in the order they were submitted
+         */
+        List<Map<String, Object>> finish() throws Exception {
+            for (int i = 0; i < executors.length; i++) {
+                submit(i);
+            }
+            List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(results.size());
+            for (Future<Map<String, Object>> result : results) {
+                list.add(result.get());
+            }
+            return list;
         }
     }
 
@@ -17,13 +17,17 @@ package au.org.ala.biocache.web;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
 import io.swagger.annotations.Api;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.swagger.annotations.ApiOperation;
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.FieldStatsInfo;
 import org.apache.solr.common.util.NamedList;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
@@ -32,6 +36,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.inject.Inject;
 import javax.servlet.ServletContext;
@@ -40,6 +45,11 @@ import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  */
@@ -71,6 +81,27 @@ public class ChartController extends AbstractSecureController implements Seriali
     @Value("${charts.facets.number.max:50}")
     private Integer maxNumberFacets;
 
+    /**
+     * Max number of threads to use in parallel for the series and range queries of charts
+     */
+    @Value("${charts.query.maxthreads:4}")
+    private Integer maxChartQueryThreads = 4;
+
+    /**
+     * thread pool for the series and range queries of charts
+     */
+    private transient volatile ExecutorService chartExecutor = null;
+
+    /**
+     * true on a chart pool thread
+     */
+    private static final ThreadLocal<Boolean> inChartQuery = new ThreadLocal<Boolean>();
+
+    /**
+     * ehcache cache for chart data
+     */
+    private static final String CHART_CACHE = "chartCache";
+
 
     /**
      * Supports various chart types
@@ -119,6 +150,53 @@ public class ChartController extends AbstractSecureController implements Seriali
               @RequestParam(value = "xmissing", required = false, defaultValue = "true") Boolean xmissing,
               @RequestParam(value = "fsort", required = false, defaultValue = "index") String fsort) throws Exception {
 
+        //charts are cached for the index version, as the index fields and data may change with the version
+        String key = searchDAO.getIndexVersion(false) + "\n" + searchParams + "\n" + x + "\n" + xranges + "\n" + stats + "\n"
+                + series + "\n" + seriesranges + "\n" + seriesother + "\n" + xother + "\n" + seriesmissing + "\n"
+                + xmissing + "\n" + fsort;
+        //species lists change without a change to the index, so charts that use them are not cached
+        Cache cache = cacheManager != null && !key.contains("species_list:") ? cacheManager.getCache(CHART_CACHE) : null;
+        if (cache != null) {
+            Element cached = cache.get(key);
+            if (cached != null) {
+                return (Map) cached.getObjectValue();
+            }
+        }
+
+        //the chart is shared by all requests for the same key, so it can not be changed once it is cached
+        Map m = (Map) unmodifiableCopy(buildChart(searchParams, x, xranges, stats, series, seriesranges, seriesother, xother,
+                seriesmissing, xmissing, fsort));
+        if (cache != null) {
+            cache.put(new Element(key, m));
+        }
+        return m;
+    }
+
+    /**
+     * @return A copy of the chart data with unmodifiable maps and lists
+     */
+    private static Object unmodifiableCopy(Object value) {
+        if (value instanceof Map) {
+            Map copy = new HashMap();
+            for (Object o : ((Map) value).entrySet()) {
+                Map.Entry entry = (Map.Entry) o;
+                copy.put(entry.getKey(), unmodifiableCopy(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(copy);
+        } else if (value instanceof List) {
+            List copy = new ArrayList(((List) value).size());
+            for (Object o : (List) value) {
+                copy.add(unmodifiableCopy(o));
+            }
+            return Collections.unmodifiableList(copy);
+        }
+        return value;
+    }
+
+    private Map buildChart(SpatialSearchRequestParams searchParams, String x, String xranges, String stats, String series,
+                           String seriesranges, Boolean seriesother, Boolean xother, Boolean seriesmissing, Boolean xmissing,
+                           String fsort) throws Exception {
+
         //construct series subqueries
         List<Map> seriesFqs = produceSeriesFqs(searchParams, x, series, seriesranges, seriesother, seriesmissing);
 
@@ -131,144 +209,253 @@ public class ChartController extends AbstractSecureController implements Seriali
             inverseXranges = new StringBuilder();
         }
 
-        boolean date = isDate(x);
+        final boolean date = isDate(x);
 
+        //each series is queried with its own copy of the search params, so that the series can run concurrently
+        List<Callable<List>> seriesQueries = new ArrayList<Callable<List>>(seriesFqs.size());
         for (Map seriesq : seriesFqs) {
-            //update fq
-            String[] fqBackup = searchParams.getFq();
-
+            final SpatialSearchRequestParams seriesParams = copyParams(searchParams);
             if (seriesq.containsKey("fq")) {
-                appendFq(searchParams, seriesq.get("fq").toString());
+                appendFq(seriesParams, seriesq.get("fq").toString());
             }
 
-            List data = new ArrayList();
+            final String finalXranges = xranges;
+            final String xRangesFq = xRanges.toString();
+            final String inverseXrangesFq = inverseXranges.toString();
+            seriesQueries.add(new Callable<List>() {
+                @Override
+                public List call() throws Exception {
+                    return chartSeries(seriesParams, x, finalXranges, stats, xmissing, fsort, xRangesFq, inverseXrangesFq, date);
+                }
+            });
+        }
+
+        List<List> seriesData = runConcurrently(seriesQueries);
+        for (int i = 0; i < seriesFqs.size(); i++) {
+            seriesFqs.get(i).put("data", seriesData.get(i));
+        }
 
-            if (xranges == null && stats == null) {
-                //1. occurrence bar/pie/line chart of field
-                searchParams.setFacet(true);
-                searchParams.setFlimit(maxStringFacets);
-                searchParams.setFsort(fsort);
-                searchParams.setFacets(new String[]{x});
+        //insert zeros
+        insertZeros(seriesFqs);
 
-                if (xRanges.length() > 0) appendFq(searchParams, xRanges.toString());
+        //format output data
+        Map m = new HashMap();
+        m.put("data", seriesFqs);
+        m.put("x", x);
+        m.put("series", series);
+        m.put("value", stats);
+        m.put("xLabel", getFieldDescription(x));
+        m.put("seriesLabel", getFieldDescription(series));
+        m.put("valueLabel", getFieldDescription(stats));
 
-                Collection<FacetResultDTO> l = searchDAO.findByFulltextSpatialQuery(searchParams, null).getFacetResults();
-                if (l.size() > 0) {
-                    data = l.iterator().next().getFieldResult();
-                    if (!xmissing) {
-                        for (int i = data.size() - 1; i >= 0; i--) {
-                            if (StringUtils.isEmpty(((FieldResultDTO) data.get(i)).getLabel())) data.remove(i);
-                        }
-                    }
-                }
+        return m;
+    }
+
+    /**
+     * Queries the data of one chart series.
+     *
+     * @param searchParams     The search params of the series, which are changed by the queries
+     * @param xRanges          fq limiting the x values to the facets that are charted
+     * @param inverseXranges   fq for the x values that are not charted, counted as "Other"
+     * @return The data of the series
+     */
+    private List chartSeries(SpatialSearchRequestParams searchParams, String x, String xranges, String stats, Boolean xmissing,
+                             String fsort, String xRanges, String inverseXranges, final boolean date) throws Exception {
+        String[] fqBackup = searchParams.getFq();
 
-                if (inverseXranges.length() > 0) {
-                    searchParams.setFq(fqBackup);
-                    if (seriesq.containsKey("fq")) appendFq(searchParams, seriesq.get("fq").toString());
+        List data = new ArrayList();
 
-                    searchParams.setFacet(false);
-                    appendFq(searchParams, inverseXranges.toString());
-                    SearchResultDTO sr = searchDAO.findByFulltextSpatialQuery(searchParams, null);
-                    if (sr != null) {
-                        data.add(new FieldResultDTO("Other", "Other", sr.getTotalRecords()));
-                    }
-                }
-            } else if (xranges == null && stats != null) {
-                //2. mean/max/min/quartile of field2, bar/pie/line chart of field1
-                if (xRanges.length() > 0) appendFq(searchParams, xRanges.toString());
-                data = searchDAO.searchStat(searchParams, stats, x);
+        if (xranges == null && stats == null) {
+            //1. occurrence bar/pie/line chart of field
+            searchParams.setFacet(true);
+            searchParams.setFlimit(maxStringFacets);
+            searchParams.setFsort(fsort);
+            searchParams.setFacets(new String[]{x});
+
+            if (xRanges.length() > 0) appendFq(searchParams, xRanges);
+
+            Collection<FacetResultDTO> l = searchDAO.findByFulltextSpatialQuery(searchParams, null).getFacetResults();
+            if (l.size() > 0) {
+                data = l.iterator().next().getFieldResult();
                 if (!xmissing) {
                     for (int i = data.size() - 1; i >= 0; i--) {
-                        if (StringUtils.isEmpty(((FieldStatsItem) data.get(i)).getLabel())) data.remove(i);
+                        if (StringUtils.isEmpty(((FieldResultDTO) data.get(i)).getLabel())) data.remove(i);
                     }
                 }
+            }
 
-                if (inverseXranges.length() > 0) {
-                    searchParams.setFq(fqBackup);
-                    if (seriesq.containsKey("fq")) appendFq(searchParams, seriesq.get("fq").toString());
+            if (inverseXranges.length() > 0) {
+                searchParams.setFq(fqBackup);
 
-                    searchParams.setFacet(false);
-                    appendFq(searchParams, inverseXranges.toString());
-                    List d = searchDAO.searchStat(searchParams, stats, null);
-                    if (d != null && d.size() > 0) {
-                        ((FieldStatsItem) d.get(0)).setLabel("Other");
-                        data.add(d.get(0));
-                    }
+                searchParams.setFacet(false);
+                appendFq(searchParams, inverseXranges);
+                SearchResultDTO sr = searchDAO.findByFulltextSpatialQuery(searchParams, null);
+                if (sr != null) {
+                    data.add(new FieldResultDTO("Other", "Other", sr.getTotalRecords()));
                 }
-            } else if (xranges != null && stats == null) {
-                //3. occurrence bar/pie chart of numeric field with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
+            }
+        } else if (xranges == null && stats != null) {
+            //2. mean/max/min/quartile of field2, bar/pie/line chart of field1
+            if (xRanges.length() > 0) appendFq(searchParams, xRanges);
+            data = searchDAO.searchStat(searchParams, stats, x);
+            if (!xmissing) {
+                for (int i = data.size() - 1; i >= 0; i--) {
+                    if (StringUtils.isEmpty(((FieldStatsItem) data.get(i)).getLabel())) data.remove(i);
+                }
+            }
+
+            if (inverseXranges.length() > 0) {
+                searchParams.setFq(fqBackup);
 
-                //use separate queries for each fq in xranges
                 searchParams.setFacet(false);
-                String[] xrangessplit = xranges.split(",");
-                String[] fqBackup2 = searchParams.getFq();
-                String[] xrangesFqs = new String[searchParams.getFq().length + 1];
-                if (searchParams.getFq().length > 0)
-                    System.arraycopy(searchParams.getFq(), 0, xrangesFqs, 0, searchParams.getFq().length);
-                List output = new ArrayList();
-                for (int i = 0; i < xrangessplit.length - 1; i++) {
-                    Map m = makeRangeMap(i == 0, x, xrangessplit[i], xrangessplit[i + 1], date);
-
-                    xrangesFqs[fqBackup2.length] = m.get("fq").toString();
-                    searchParams.setFq(xrangesFqs);
-
-                    SearchResultDTO l = searchDAO.findByFulltextSpatialQuery(searchParams, null);
-                    if (l != null) {
-                        String label = m.get("label").toString();
-                        FieldResultDTO fr = new FieldResultDTO(label, label, l.getTotalRecords(), m.get("fq").toString());
-
-                        output.add(fr);
-                    }
+                appendFq(searchParams, inverseXranges);
+                List d = searchDAO.searchStat(searchParams, stats, null);
+                if (d != null && d.size() > 0) {
+                    ((FieldStatsItem) d.get(0)).setLabel("Other");
+                    data.add(d.get(0));
                 }
-                searchParams.setFq(fqBackup2);
+            }
+        } else if (xranges != null && stats == null) {
+            //3. occurrence bar/pie chart of numeric field with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
+
+            //use separate queries for each fq in xranges
+            searchParams.setFacet(false);
+            String[] xrangessplit = xranges.split(",");
+            List<Callable<FieldResultDTO>> rangeQueries = new ArrayList<Callable<FieldResultDTO>>();
+            for (int i = 0; i < xrangessplit.length - 1; i++) {
+                final Map m = makeRangeMap(i == 0, x, xrangessplit[i], xrangessplit[i + 1], date);
+                final SpatialSearchRequestParams rangeParams = copyParams(searchParams);
+                appendFq(rangeParams, m.get("fq").toString());
+
+                rangeQueries.add(new Callable<FieldResultDTO>() {
+                    @Override
+                    public FieldResultDTO call() throws Exception {
+                        SearchResultDTO l = searchDAO.findByFulltextSpatialQuery(rangeParams, null);
+                        if (l != null) {
+                            String label = m.get("label").toString();
+                            return new FieldResultDTO(label, label, l.getTotalRecords(), m.get("fq").toString());
+                        }
+                        return null;
+                    }
+                });
+            }
 
-                data = output;
-            } else if (xranges != null && stats != null) {
-                //4. mean/max/min/quartile of field2, occurrence bar/pie chart of numeric field1 with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
+            List output = new ArrayList();
+            for (FieldResultDTO fr : runConcurrently(rangeQueries)) {
+                if (fr != null) {
+                    output.add(fr);
+                }
+            }
 
-                String[] fqs = new String[searchParams.getFq().length + 1];
-                if (searchParams.getFq().length > 0)
-                    System.arraycopy(searchParams.getFq(), 0, fqs, 0, searchParams.getFq().length);
+            data = output;
+        } else if (xranges != null && stats != null) {
+            //4. mean/max/min/quartile of field2, occurrence bar/pie chart of numeric field1 with predefined ranges (min to <= value1; >value1 <= value2; > value2 <= max)
 
-                String[] r = xranges.split(",");
-                List output = new ArrayList<>(r.length - 1);
-                for (int i = 0; i < r.length; i++) {
-                    if (i < r.length - 1) {
-                        Map m = makeRangeMap(i == 0, x, r[i], r[i + 1], date);
-                        fqs[fqs.length - 1] = m.get("fq").toString();
-                        searchParams.setFq(fqs);
+            String[] r = xranges.split(",");
+            List<Callable<List>> rangeQueries = new ArrayList<Callable<List>>();
+            for (int i = 0; i < r.length - 1; i++) {
+                final Map m = makeRangeMap(i == 0, x, r[i], r[i + 1], date);
+                final SpatialSearchRequestParams rangeParams = copyParams(searchParams);
+                appendFq(rangeParams, m.get("fq").toString());
+                final String finalStats = stats;
 
-                        List result = searchDAO.searchStat(searchParams, stats, null);
+                rangeQueries.add(new Callable<List>() {
+                    @Override
+                    public List call() throws Exception {
+                        List result = searchDAO.searchStat(rangeParams, finalStats, null);
                         if (result.size() > 0) {
-                            ((FieldStatsItem) result.iterator().next()).setFq(fqs[fqs.length - 1]);
+                            ((FieldStatsItem) result.iterator().next()).setFq(m.get("fq").toString());
                             ((FieldStatsItem) result.iterator().next()).setLabel(m.get("label").toString());
-                            output.addAll(result);
                         }
+                        return result;
                     }
-                }
+                });
+            }
 
-                data = output;
+            List output = new ArrayList<>(r.length - 1);
+            for (List result : runConcurrently(rangeQueries)) {
+                output.addAll(result);
             }
 
-            seriesq.put("data", data);
+            data = output;
+        }
 
-            searchParams.setFq(fqBackup);
+        return data;
+    }
+
+    /**
+     * Runs the queries on the chart thread pool and returns their results in the same order. Queries started from a
+     * query that is already running on the pool are run on the calling thread, so that the pool can not deadlock.
+     */
+    private <T> List<T> runConcurrently(List<Callable<T>> queries) throws Exception {
+        List<T> results = new ArrayList<T>(queries.size());
+        if (queries.size() <= 1 || Boolean.TRUE.equals(inChartQuery.get())) {
+            for (Callable<T> query : queries) {
+                results.add(query.call());
+            }
+            return results;
         }
 
-        //insert zeros
-        insertZeros(seriesFqs);
+        List<Future<T>> futures = new ArrayList<Future<T>>(queries.size());
+        try {
+            for (final Callable<T> query : queries) {
+                futures.add(getChartExecutor().submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        inChartQuery.set(true);
+                        try {
+                            return query.call();
+                        } finally {
+                            inChartQuery.remove();
+                        }
+                    }
+                }));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
 
-        //format output data
-        Map m = new HashMap();
-        m.put("data", seriesFqs);
-        m.put("x", x);
-        m.put("series", series);
-        m.put("value", stats);
-        m.put("xLabel", getFieldDescription(x));
-        m.put("seriesLabel", getFieldDescription(series));
-        m.put("valueLabel", getFieldDescription(stats));
+    /**
+     * @return An instance of ExecutorService used to run the series and range queries of a chart concurrently.
+     */
+    private ExecutorService getChartExecutor() {
+        ExecutorService nextExecutor = chartExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = chartExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = chartExecutor = Executors.newFixedThreadPool(maxChartQueryThreads,
+                            new ThreadFactoryBuilder().setNameFormat("chartcontroller-pool-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
 
-        return m;
+    /**
+     * Stops the chart pool threads when the controller is destroyed.
+     */
+    @PreDestroy
+    public void destroy() {
+        ExecutorService executor = chartExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private SpatialSearchRequestParams copyParams(SpatialSearchRequestParams searchParams) {
+        SpatialSearchRequestParams copy = new SpatialSearchRequestParams();
+        BeanUtils.copyProperties(searchParams, copy);
+        return copy;
     }
 
     private void insertZeros(List<Map> seriesFqs) {
@@ -403,36 +590,41 @@ public class ChartController extends AbstractSecureController implements Seriali
         return seriesFqs;
     }
 
+    /**
+     * @return The index field with the name, or null when the field is not in the index
+     */
+    private IndexFieldDTO getIndexField(String field) throws Exception {
+        if (field == null) {
+            return null;
+        }
+        Map<String, IndexFieldDTO> fields = searchDAO.getIndexedFieldsMap();
+        IndexFieldDTO f = fields.get(field);
+        if (f == null) {
+            f = fields.get(field.toLowerCase());
+        }
+        return f;
+    }
+
     private boolean isNumber(String field) throws Exception {
         String[] numberType = new String[]{"int", "tint", "double", "tdouble", "long", "tlong", "float", "tfloat"};
-        for (IndexFieldDTO f : searchDAO.getIndexedFields()) {
-            if (f.getName().equalsIgnoreCase(field) && ArrayUtils.contains(numberType, f.getDataType())) return true;
-        }
-        return false;
+        IndexFieldDTO f = getIndexField(field);
+        return f != null && ArrayUtils.contains(numberType, f.getDataType());
     }
 
     private boolean isDecimal(String field) throws Exception {
         String[] numberType = new String[]{"double", "tdouble", "float", "tfloat"};
-        for (IndexFieldDTO f : searchDAO.getIndexedFields()) {
-            if (f.getName().equalsIgnoreCase(field) && ArrayUtils.contains(numberType, f.getDataType())) {
-                return true;
-            }
-        }
-        return false;
+        IndexFieldDTO f = getIndexField(field);
+        return f != null && ArrayUtils.contains(numberType, f.getDataType());
     }
 
     private boolean isDate(String field) throws Exception {
-        for (IndexFieldDTO f : searchDAO.getIndexedFields()) {
-            if (f.getName().equalsIgnoreCase(field) && f.getDataType().equalsIgnoreCase("tdate")) return true;
-        }
-        return false;
+        IndexFieldDTO f = getIndexField(field);
+        return f != null && "tdate".equalsIgnoreCase(f.getDataType());
     }
 
     private String getFieldDescription(String field) throws Exception {
-        for (IndexFieldDTO f : searchDAO.getIndexedFields()) {
-            if (f.getName().equalsIgnoreCase(field) && f.getDescription() != null) return f.getDescription();
-        }
-        return field;
+        IndexFieldDTO f = getIndexField(field);
+        return f != null && f.getDescription() != null ? f.getDescription() : field;
     }
 
     private List getSeriesFacets(String series, SpatialSearchRequestParams searchParams, Integer _maxFacets, Boolean includeMissing) throws Exception {
@@ -469,7 +661,7 @@ public class ChartController extends AbstractSecureController implements Seriali
             List list = getSeriesFacets(series, searchParams, maxSeries + 1, includeMissing);
             if (list.size() > maxSeries + (includeMissing ? 1 : 0)) {
                 //get min/max
-                List minMax = (List) chart(searchParams, null, null, series, null, null, false, false, false, false, "count").get("data");
+                List minMax = (List) buildChart(searchParams, null, null, series, null, null, false, false, false, false, "count").get("data");
                 if (date) {
                     Long min = ((Date) ((FieldStatsItem) ((List) ((Map) minMax.get(0)).get("data")).get(0)).getMin()).getTime();
                     Long max = ((Date) ((FieldStatsItem) ((List) ((Map) minMax.get(0)).get("data")).get(0)).getMax()).getTime();
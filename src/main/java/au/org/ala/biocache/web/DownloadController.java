@@ -21,6 +21,7 @@ import au.org.ala.biocache.dto.DownloadRequestParams;
 import au.org.ala.biocache.dto.IndexFieldDTO;
 import au.org.ala.biocache.service.AuthService;
 import au.org.ala.biocache.service.DownloadService;
+import au.org.ala.biocache.util.FileStreamUtils;
 import net.sf.json.JSONArray;
 import net.sf.json.JsonConfig;
 import net.sf.json.util.PropertyFilter;
@@ -91,10 +92,29 @@ public class DownloadController extends AbstractSecureController {
                     }
                 });
 
-                JSONArray ja = JSONArray.fromObject(persistentQueueDAO.getAllDownloads(), config);
-                for (Object jo : ja) {
-                    String id = (String) ((net.sf.json.JSONObject) jo).get("uniqueId");
-                    ((net.sf.json.JSONObject) jo).put("cancelURL", downloadService.webservicesRoot + "/occurrences/offline/cancel/" + id + "?apiKey=" + apiKey);
+                List<DownloadDetailsDTO> downloads = persistentQueueDAO.getAllDownloads();
+
+                // count the running and queued downloads of each user, to show how the queue is being shared
+                Map<String, int[]> userCounts = new HashMap<String, int[]>();
+                for (DownloadDetailsDTO dd : downloads) {
+                    String user = String.valueOf(dd.getEmail()).toLowerCase();
+                    int[] counts = userCounts.get(user);
+                    if (counts == null) {
+                        counts = new int[2];
+                        userCounts.put(user, counts);
+                    }
+                    counts[dd.getFileLocation() != null ? 0 : 1]++;
+                }
+
+                JSONArray ja = JSONArray.fromObject(downloads, config);
+                for (int i = 0; i < ja.size(); i++) {
+                    net.sf.json.JSONObject jo = ja.getJSONObject(i);
+                    DownloadDetailsDTO dd = downloads.get(i);
+                    String id = (String) jo.get("uniqueId");
+                    jo.put("cancelURL", downloadService.webservicesRoot + "/occurrences/offline/cancel/" + id + "?apiKey=" + apiKey);
+                    int[] counts = userCounts.get(String.valueOf(dd.getEmail()).toLowerCase());
+                    jo.put("userRunningDownloads", counts[0]);
+                    jo.put("userQueuedDownloads", counts[1]);
                 }
                 return ja;
             }
@@ -283,7 +303,7 @@ public class DownloadController extends AbstractSecureController {
                 for (File file : dir.listFiles()) {
                     if (file.isFile() && file.getPath().endsWith(".zip") && file.length() > 0) {
                         status.put("status", "finished");
-                        status.put("downloadUrl", downloadService.biocacheDownloadUrl + File.separator + URLEncoder.encode(file.getPath().replace(downloadService.biocacheDownloadDir + "/", ""), "UTF-8").replace("%2F", "/").replace("+", "%20"));
+                        status.put("downloadUrl", offlineFileUrl(id));
                     }
                     if (file.isFile() && "tooLarge".equals(file.getName())) {
                         status.put("status", "skipped");
@@ -302,6 +322,13 @@ public class DownloadController extends AbstractSecureController {
         }
     }
 
+    /**
+     * @return The url of the archive of a finished offline download, served by {@link #occurrenceDownloadFile}
+     */
+    private String offlineFileUrl(String id) throws UnsupportedEncodingException {
+        return downloadService.webservicesRoot + "/occurrences/offline/file/" + URLEncoder.encode(id, "UTF-8");
+    }
+
     private void writeStatusFile(String id, Map status) throws IOException {
         File statusDir = new File(downloadService.biocacheDownloadDir + "/" + id.replaceAll("-([0-9]*)$", "/$1"));
         statusDir.mkdirs();
@@ -342,7 +369,7 @@ public class DownloadController extends AbstractSecureController {
                 for (File file : dir.listFiles()) {
                     if (file.isFile() && file.getPath().endsWith(".zip") && file.length() > 0) {
                         status.put("status", "finished");
-                        status.put("downloadUrl", downloadService.biocacheDownloadUrl + File.separator + URLEncoder.encode(file.getPath().replace(downloadService.biocacheDownloadDir + "/", ""), "UTF-8").replace("%2F", "/").replace("+", "%20"));
+                        status.put("downloadUrl", offlineFileUrl(id));
                     }
                     if (file.isFile() && "tooLarge".equals(file.getName())) {
                         status.put("status", "skipped");
@@ -381,6 +408,47 @@ public class DownloadController extends AbstractSecureController {
         return status;
     }
 
+    /**
+     * Streams a finished offline download archive from the download directory.
+     * <p>
+     * Supports HTTP Range requests and ETags so that interrupted downloads of large archives can be resumed.
+     *
+     * @param id The unique id of the download
+     * @throws Exception
+     */
+    @RequestMapping(value = "occurrences/offline/file/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void occurrenceDownloadFile(@PathVariable("id") String id,
+                                       HttpServletRequest request,
+                                       HttpServletResponse response) throws Exception {
+
+        //a download that is still in the queue may have a partially written archive
+        for (DownloadDetailsDTO dd : persistentQueueDAO.getAllDownloads()) {
+            if (id.equals(dd.getUniqueId())) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Download has not finished");
+                return;
+            }
+        }
+
+        String cleanId = id.replaceAll("[^a-z\\-0-9]", "");
+        cleanId = cleanId.replaceAll("-([0-9]*)$", "/$1");
+        File archive = null;
+        File dir = new File(downloadService.biocacheDownloadDir + File.separator + cleanId);
+        if (dir.isDirectory()) {
+            for (File file : dir.listFiles()) {
+                if (file.isFile() && file.getPath().endsWith(".zip") && file.length() > 0) {
+                    archive = file;
+                }
+            }
+        }
+
+        if (archive == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Download not found");
+            return;
+        }
+
+        FileStreamUtils.serveFile(archive, "application/zip", archive.getName(), request, response);
+    }
+
     /**
      * Cancel queued download. Does not cancel a download in progress.
      *
@@ -178,13 +178,20 @@ public class ExploreController {
         //now we want to grab all the facets to get the counts associated with the species groups
         List<au.org.ala.biocache.vocab.SpeciesGroup> sgs = au.org.ala.biocache.Store.retrieveSpeciesGroups();
         List<SpeciesGroupDTO> speciesGroups = new java.util.ArrayList<SpeciesGroupDTO>();
+
+        //count the records and species for all of the species groups in one request
+        addGroupFilterToQuery(requestParams, "ALL_SPECIES");
+        SpeciesGroupDTO groupCounts = searchDao.getDistinctCountsByFacet(requestParams, "species_group", "taxon_name", "Unknown");
+        Map<String, SpeciesGroupDTO> countsByGroup = new HashMap<String, SpeciesGroupDTO>();
+        for (SpeciesGroupDTO counts : groupCounts.getChildGroups()) {
+            countsByGroup.put(counts.getName(), counts);
+        }
+
         SpeciesGroupDTO all = new SpeciesGroupDTO();
-        String originalQ = requestParams.getQ();
         all.setName("ALL_SPECIES");
         all.setLevel(0);
-        Integer[] counts = getYourAreaCount(requestParams, "ALL_SPECIES");
-        all.setCount(counts[0]);
-        all.setSpeciesCount(counts[1]);
+        all.setCount(groupCounts.getCount());
+        all.setSpeciesCount(groupCounts.getSpeciesCount());
         speciesGroups.add(all);
 
         String oldName = null;
@@ -206,12 +213,12 @@ public class ExploreController {
                 kingdom = sg.name();
             }
             sdto.setLevel(level);
-            //set the original query back to default to clean up after ourselves
-            requestParams.setQ(originalQ);
-            //query per group
-            counts = getYourAreaCount(requestParams, sg.name());
-            sdto.setCount(counts[0]);
-            sdto.setSpeciesCount(counts[1]);
+            //groups without any records in the area are not in the facet
+            SpeciesGroupDTO counts = countsByGroup.get(sg.name());
+            if (counts != null) {
+                sdto.setCount(counts.getCount());
+                sdto.setSpeciesCount(counts.getSpeciesCount());
+            }
             speciesGroups.add(sdto);
         }
         return speciesGroups;
@@ -20,6 +20,7 @@ import au.org.ala.biocache.dto.PointType;
 import au.org.ala.biocache.dto.SpatialSearchRequestParams;
 import au.org.ala.biocache.heatmap.HeatMap;
 import au.org.ala.biocache.util.ColorUtil;
+import au.org.ala.biocache.util.FileStreamUtils;
 import au.org.ala.biocache.util.QueryFormatUtils;
 import au.org.ala.biocache.util.SearchUtils;
 import org.apache.commons.io.FileUtils;
@@ -498,16 +499,9 @@ public class MapController implements ServletConfigAware {
         }
 
         try {
-            //read file off disk and send back to user
+            //send the file on disk back to user without decoding it
             File file = new File(outputDir + "/" + outputHMFile);
-            BufferedImage img = ImageIO.read(file);
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(img, "png", outputStream);
-            ServletOutputStream outStream = response.getOutputStream();
-            outStream.write(outputStream.toByteArray());
-            outStream.flush();
-            outStream.close();
-
+            FileStreamUtils.serveFile(file, "image/png", null, request, response);
         } catch (Exception e) {
             logger.error("Unable to write image.", e);
         }
@@ -539,7 +533,6 @@ public class MapController implements ServletConfigAware {
            HttpServletResponse response) throws Exception {
 
         response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
-        response.setHeader("ETag", mapETag.get());
         response.setContentType("image/png");
         File baseDir = new File(heatmapOutputDir);
 
@@ -561,13 +554,8 @@ public class MapController implements ServletConfigAware {
             File file = new File(baseDir + "/" + "legend_" + outputHMFile);
             //only send the image back if it actually exists - a legend won't exist if we create the map based on points
             if(file.exists()){
-                BufferedImage img = ImageIO.read(file);
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                ImageIO.write(img, "png", outputStream);
-                ServletOutputStream outStream = response.getOutputStream();
-                outStream.write(outputStream.toByteArray());
-                outStream.flush();
-                outStream.close();
+                //legends are revalidated against the map ETag, which changes when the maps are cleared
+                FileStreamUtils.serveFile(file, "image/png", null, mapETag.get(), request, response);
             }
 
         } catch (Exception e) {
@@ -18,6 +18,7 @@ import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 import au.org.ala.biocache.Config;
 import au.org.ala.biocache.Store;
+import au.org.ala.biocache.dao.IndexVersionListener;
 import au.org.ala.biocache.dao.QidCacheDAO;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dao.SearchDAOImpl;
@@ -32,6 +33,7 @@ import au.org.ala.biocache.service.SpeciesLookupService;
 import au.org.ala.biocache.util.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.json.JSON;
 import net.sf.json.JSONArray;
@@ -107,6 +109,13 @@ public class OccurrenceController extends AbstractSecureController {
     protected QidCacheDAO qidCacheDao;
     @Inject
     private CacheManager cacheManager;
+
+    /**
+     * The caches of results that are read from the index, which are out of date when the index version changes.
+     * Caches of query ids, species lists and WKT fixes do not depend on the index.
+     */
+    private static final String[] INDEX_VERSION_CACHES = new String[]{
+            "endemicCache", "legendCache", "getColours", "getIndexedFields", "distinctCountsByFacet", "chartCache"};
     
     /** Name of view for site home page */
     private String HOME = "homePage";
@@ -165,6 +174,19 @@ public class OccurrenceController extends AbstractSecureController {
             //init FacetThemes static values
             new FacetThemes(facetConfig, indexedFields, facetsMax, facetsDefaultMax, facetDefault);
         }
+
+        //the cached query results are out of date when the index changes
+        searchDAO.addIndexVersionListener(new IndexVersionListener() {
+            @Override
+            public void indexVersionChanged(long oldVersion, long newVersion) {
+                for (String name : INDEX_VERSION_CACHES) {
+                    Cache cache = cacheManager.getCache(name);
+                    if (cache != null) {
+                        cache.removeAll();
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -1222,52 +1244,49 @@ public class OccurrenceController extends AbstractSecureController {
      * Utility method for retrieving a list of occurrences. Mainly added to help debug
      * web services for that a developer can retrieve example UUIDs.
      *
+     * Returns the occurrence nearest to lat, lon and its distance. When k is more than 1 the
+     * k nearest occurrences are also returned, nearest first. The radius is where the search
+     * starts, it grows until the nearest occurrences are found.
+     *
      * @throws Exception
      */
     @RequestMapping(value = {"/occurrences/nearest"}, method = RequestMethod.GET)
-    public @ResponseBody Map<String,Object> nearestOccurrence(SpatialSearchRequestParams requestParams) throws Exception {
+    public @ResponseBody Map<String,Object> nearestOccurrence(SpatialSearchRequestParams requestParams,
+                                                              @RequestParam(value = "k", required = false, defaultValue = "1") Integer k) throws Exception {
         afterInitialisation();
         
-        logger.debug(String.format("Received lat: %f, lon:%f, radius:%f", requestParams.getLat(),
-                requestParams.getLon(), requestParams.getRadius()));
+        logger.debug(String.format("Received lat: %f, lon:%f, radius:%f, k:%d", requestParams.getLat(),
+                requestParams.getLon(), requestParams.getRadius(), k));
         
-        if(requestParams.getLat() == null || requestParams.getLon() == null){
+        if(requestParams.getLat() == null || requestParams.getLon() == null || k == null || k < 1){
             return new HashMap<String,Object>();
         }
-        //requestParams.setRadius(1f);
-        requestParams.setDir("asc");
-        requestParams.setFacet(false);
-        
-        SearchResultDTO searchResult = searchDAO.findByFulltextSpatialQuery(requestParams,null);
-        List<OccurrenceIndex> ocs = searchResult.getOccurrences();
+
+        List<OccurrenceIndex> ocs = searchDAO.findNearestOccurrences(requestParams, k);
         
         if(!ocs.isEmpty()){
-            Map<String,Object> results = new HashMap<String,Object>();
-            OccurrenceIndex oc = ocs.get(0);
-            Double decimalLatitude = oc.getDecimalLatitude();
-            Double decimalLongitude = oc.getDecimalLongitude();
-            Double distance = distInMetres(requestParams.getLat().doubleValue(), requestParams.getLon().doubleValue(),
-                                           decimalLatitude, decimalLongitude);
-            results.put("distanceInMeters", distance);
-            results.put("occurrence", oc);
+            double lat = requestParams.getLat();
+            double lon = requestParams.getLon();
+
+            List<Map<String,Object>> nearest = new ArrayList<Map<String,Object>>(ocs.size());
+            for(OccurrenceIndex oc : ocs){
+                Map<String,Object> result = new HashMap<String,Object>();
+                result.put("distanceInMeters", SpatialUtils.distanceInMetres(lat, lon, oc.getDecimalLatitude(), oc.getDecimalLongitude()));
+                result.put("occurrence", oc);
+                nearest.add(result);
+            }
+
+            //the nearest occurrence, and all k occurrences when more than one was requested
+            Map<String,Object> results = new HashMap<String,Object>(nearest.get(0));
+            if(k > 1){
+                results.put("occurrences", nearest);
+            }
             return results;
         } else {
             return new HashMap<String,Object>();
         }
     }
     
-    private Double distInMetres(Double lat1, Double lon1, Double lat2, Double lon2){
-        Double R = 6371000d; // km
-        Double dLat = Math.toRadians(lat2-lat1);
-        Double dLon = Math.toRadians(lon2-lon1);
-        Double lat1Rad = Math.toRadians(lat1);
-        Double lat2Rad = Math.toRadians(lat2);
-        Double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-        Math.sin(dLon/2) * Math.sin(dLon/2) * Math.cos(lat1Rad) * Math.cos(lat2Rad);
-        Double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-        return R * c;
-    }
-    
     /**
      * Dumps the distinct latitudes and longitudes that are used in the
      * connected index (to 4 decimal places)
@@ -10,6 +10,7 @@ import au.org.ala.biocache.parser.DateParser;
 import au.org.ala.layers.dao.IntersectCallback;
 import au.org.ala.layers.dto.IntersectionFile;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.DeleteMethod;
@@ -28,6 +29,13 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -53,6 +61,17 @@ public class UploadController extends AbstractSecureController {
     @Value("${upload.threads:4}")
     protected Integer uploadThreads;
 
+    /**
+     * The number of threads loading records into the store. Store.loadRecord is not known to be thread safe, so
+     * records are loaded by one thread unless this is raised.
+     */
+    @Value("${upload.load.threads:1}")
+    protected Integer uploadLoadThreads = 1;
+
+    /** The number of records in each batch loaded by the upload threads */
+    @Value("${upload.batch.size:500}")
+    protected Integer uploadBatchSize = 500;
+
     @Value("${webservices.root:http://biocache.ala.org.au/ws}")
     protected String webservicesRoot;
 
@@ -256,16 +275,15 @@ public class UploadController extends AbstractSecureController {
 
     List<String> filterByMaxColumnLengths(String[] headers, CSVReader csvReader, int maxColumnLength) throws Exception {
         int[] columnLengths = new int[headers.length];
-        for(int i = 0; i < columnLengths.length; i++) columnLengths[i] = 0; //initialise - needed ?
         String[] fields = csvReader.readNext();
         while(fields != null){
-            for(int j=0; j<columnLengths.length;j++){
-                if(fields.length> j && columnLengths[j] < fields[j].length()){
-                    columnLengths[j] = fields[j].length();
-                }
-            }
+            updateColumnLengths(columnLengths, fields);
             fields = csvReader.readNext();
         }
+        return filterByMaxColumnLengths(headers, columnLengths, maxColumnLength);
+    }
+
+    List<String> filterByMaxColumnLengths(String[] headers, int[] columnLengths, int maxColumnLength) {
         List<String> filterList = new ArrayList<String>();
         for(int k = 0; k < columnLengths.length; k++){
             logger.debug("Column length: " + headers[k] + " = " + columnLengths[k]);
@@ -276,6 +294,42 @@ public class UploadController extends AbstractSecureController {
         return filterList;
     }
 
+    private static void updateColumnLengths(int[] columnLengths, String[] fields) {
+        for(int j=0; j<columnLengths.length;j++){
+            if(fields.length> j && columnLengths[j] < fields[j].length()){
+                columnLengths[j] = fields[j].length();
+            }
+        }
+    }
+
+    /**
+     * Writes the CSV to a file in the upload temp directory, counting the records and measuring the column lengths
+     * as it is written, so the upload is only read once before it is loaded.
+     *
+     * @param reader the CSV, closed once it is spooled
+     * @param separatorChar the CSV separator
+     * @param headers the column headers
+     * @return the spooled file with its line count and column lengths
+     * @throws IOException
+     */
+    SpooledCsv spoolCSV(Reader reader, char separatorChar, String[] headers) throws IOException {
+        File csvFile = new File(uploadTempDir + File.separator + System.currentTimeMillis() + "-" + UUID.randomUUID() + ".csv");
+        int[] columnLengths = new int[headers.length];
+        int lineCount = 0;
+        try(Writer writer = new BufferedWriter(new FileWriter(csvFile));
+                CSVReader csvReader = new CSVReader(new TeeReader(reader, writer), separatorChar, '"');) {
+            String[] fields;
+            while((fields = csvReader.readNext()) != null){
+                lineCount++;
+                updateColumnLengths(columnLengths, fields);
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(csvFile);
+            throw e;
+        }
+        return new SpooledCsv(csvFile, lineCount, columnLengths);
+    }
+
     /**
      * Setup working directories for uploads.
      * @throws Exception
@@ -370,55 +424,38 @@ public class UploadController extends AbstractSecureController {
             return null;
         }
 
+        //the upload spooled to disk, with a record count and column lengths
+        SpooledCsv spooled = null;
+        boolean started = false;
+
         try {
             mkWorkingDirs();
 
             //check the request
             String[] headers = getHeaders(request);
             boolean firstLineIsData = ServletRequestUtils.getBooleanParameter(request, "firstLineIsData");
-            String[] customIndexFields = null;
 
-            //get a record count
-            int lineCount = -1;
-
-            CSVReader csvData = null;
+            char separatorChar;
 
             if(urlToZippedData != null) {
 
                 //download to local directory....
-                File csvFile = downloadCSV(urlToZippedData);
-
-                //do a line count
-                lineCount = doLineCount(csvFile);
-                logger.debug("Line count: " + lineCount);
-
-                //derive a list of custom index field
-                try(CSVReader readerForCol = new CSVReader(new FileReader(csvFile), ',', '"');) {
-                    List<String> filteredHeaders = filterByMaxColumnLengths(headers, readerForCol, 50);
-                    filteredHeaders = filterCustomIndexFields(filteredHeaders);
-                    customIndexFields = filteredHeaders.toArray(new String[0]);
-                }
-
-                //initialise the reader
-                csvData = new CSVReader(new FileReader(csvFile), ',', '"');
+                separatorChar = ',';
+                spooled = downloadCSV(urlToZippedData, headers);
 
             } else {
 
-                final char separatorChar = getSeparatorChar(request);
+                separatorChar = getSeparatorChar(request);
+                spooled = spoolCSV(new StringReader(csvDataAsString), separatorChar, headers);
+            }
 
-                //do a line count
-                lineCount = doLineCount(csvDataAsString);
+            int lineCount = spooled.lineCount;
+            logger.debug("Line count: " + lineCount);
 
-                //derive a list of custom index field
-                try(CSVReader readerForCol = new CSVReader(new StringReader(csvDataAsString), separatorChar, '"');) {
-                    List<String> filteredHeaders = filterByMaxColumnLengths(headers, readerForCol, 50);
-                    filteredHeaders = filterCustomIndexFields(filteredHeaders);
-                    customIndexFields = filteredHeaders.toArray(new String[0]);
-                }
-
-                //initialise the reader
-                csvData = new CSVReader(new StringReader(csvDataAsString), separatorChar, '"');
-            }
+            //derive a list of custom index field
+            List<String> filteredHeaders = filterByMaxColumnLengths(headers, spooled.columnLengths, 50);
+            filteredHeaders = filterCustomIndexFields(filteredHeaders);
+            String[] customIndexFields = filteredHeaders.toArray(new String[0]);
 
             boolean reload = false;
             if(StringUtils.isNotBlank(dataResourceUid)){
@@ -438,15 +475,19 @@ public class UploadController extends AbstractSecureController {
             ut.headers = headers;
             ut.datasetName = datasetName;
             ut.firstLineIsData = firstLineIsData;
-            ut.csvData = csvData;
+            ut.csvFile = spooled.file;
+            ut.separatorChar = separatorChar;
+            ut.batchSize = uploadBatchSize;
             ut.lineCount = lineCount;
             ut.uploadStatusDir = uploadStatusDir;
             ut.recordsToLoad = lineCount;
             ut.tempUid = dataResourceUid;
             ut.customIndexFields = customIndexFields;
             ut.threads = uploadThreads;
+            ut.loadThreads = uploadLoadThreads;
             ut.alaId = alaId;
             new Thread(ut).start();
+            started = true;
 
             logger.debug("Temporary UID being returned...." + dataResourceUid);
             Map<String,String> details = new HashMap<String,String>();
@@ -455,18 +496,11 @@ public class UploadController extends AbstractSecureController {
 
         } catch (Exception e){
             logger.error(e.getMessage(),e);
-        }
-        return null;
-    }
-
-    private int doLineCount(String csvDataAsString) throws IOException {
-        int lineCount = 0;
-        try(BufferedReader reader = new BufferedReader(new StringReader(csvDataAsString));) {
-            while(reader.readLine() != null){
-                lineCount++;
+            if(spooled != null && !started){
+                FileUtils.deleteQuietly(spooled.file);
             }
         }
-        return lineCount;
+        return null;
     }
 
     private char getSeparatorChar(HttpServletRequest request) {
@@ -478,39 +512,15 @@ public class UploadController extends AbstractSecureController {
         return separatorChar;
     }
 
-    private int doLineCount(File csvFile) throws IOException {
-        int lineCount = 0;
-        try(FileReader fr = new FileReader(csvFile);
-                BufferedReader reader = new BufferedReader(fr);) {
-            while(reader.readLine() != null){
-                lineCount++;
-            }
-        }
-        return lineCount;
-    }
-
-    private File downloadCSV(String urlToZippedData) throws IOException {
-        long fileId = System.currentTimeMillis();
-        String zipFilePath = uploadTempDir + File.separator + fileId + ".zip";
-        String unzippedFilePath = uploadTempDir + File.separator + fileId + ".csv";
+    private SpooledCsv downloadCSV(String urlToZippedData, String[] headers) throws IOException {
+        // extract the first zip entry while it downloads
         try(InputStream input = new URL(urlToZippedData).openStream();
-                OutputStream output = new FileOutputStream(zipFilePath);) {
-            IOUtils.copyLarge(input, output);
-        }
-        // extract zip
-        try(FileInputStream fis = new FileInputStream(zipFilePath);
-                ZipInputStream zis = new ZipInputStream(fis);) {
-            ZipEntry ze = zis.getNextEntry();
-            byte[] buffer = new byte[10240];
-            try(FileOutputStream fos = new FileOutputStream(unzippedFilePath);) {
-                int len;
-                while ((len = zis.read(buffer))>0){
-                    fos.write(buffer, 0, len);
-                }
-                fos.flush();
+                ZipInputStream zis = new ZipInputStream(new BufferedInputStream(input));) {
+            if(zis.getNextEntry() == null){
+                throw new IOException("No CSV in " + urlToZippedData);
             }
+            return spoolCSV(new InputStreamReader(zis), ',', headers);
         }
-        return new File(unzippedFilePath);
     }
 
     private Boolean deleteTempResource(String datasetUid) throws IOException {
@@ -593,6 +603,63 @@ public class UploadController extends AbstractSecureController {
 
 }
 
+/**
+ * An upload written to disk, with the statistics collected as it was written.
+ */
+final class SpooledCsv {
+
+    final File file;
+    final int lineCount;
+    final int[] columnLengths;
+
+    SpooledCsv(File file, int lineCount, int[] columnLengths) {
+        this.file = file;
+        this.lineCount = lineCount;
+        this.columnLengths = columnLengths;
+    }
+}
+
+/**
+ * A reader that copies everything read to a writer.
+ */
+final class TeeReader extends FilterReader {
+
+    private final Writer writer;
+
+    TeeReader(Reader in, Writer writer) {
+        super(in);
+        this.writer = writer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = super.read();
+        if (c >= 0) {
+            writer.write(c);
+        }
+        return c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int n = super.read(cbuf, off, len);
+        if (n > 0) {
+            writer.write(cbuf, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        throw new IOException("skip is not supported");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
+
 final class UploadStatus {
 
     final String status;
@@ -628,7 +695,9 @@ class UploaderThread implements Runnable {
     protected Boolean reload;
     protected String[] headers;
     protected String datasetName = "";
-    protected CSVReader csvData;
+    protected File csvFile;
+    protected char separatorChar = ',';
+    protected int batchSize = 500;
     protected int lineCount = 0;
     protected boolean firstLineIsData;
     protected String tempUid;
@@ -636,8 +705,11 @@ class UploaderThread implements Runnable {
     protected Integer recordsToLoad = null;
     protected String[] customIndexFields = null;
     protected Integer threads = 4;
+    protected Integer loadThreads = 1;
     protected String alaId = null;
     private ObjectMapper om = new ObjectMapper();
+    /** the highest record count written to the status file, guarded by the status file */
+    private int reportedCount = 0;
 
     @Override
     public void run(){
@@ -750,56 +822,170 @@ class UploaderThread implements Runnable {
         return statusFile;
     }
 
-    private void loadRecords(File statusFile, Set<String> intList, Set<String> floatList, Set<String> stringList,
-                             Set<String> dateList, Set<String> userProvidedTypeList,  Integer recordCount) throws IOException {
-        Integer counter = 0;
-
-        try {
-            String[] currentLine = csvData.readNext();
+    void loadRecords(final File statusFile, Set<String> intList, Set<String> floatList, Set<String> stringList,
+                     Set<String> dateList, Set<String> userProvidedTypeList, final Integer recordCount) throws Exception {
 
-            List<String> automaticFieldList = new ArrayList<>();
+        List<String> automaticFieldList = new ArrayList<>();
 
-            for(String customField: customIndexFields) {
-                if(customField.endsWith("_i") || customField.endsWith("_d") || customField.endsWith("_s") || customField.endsWith("_dt")) {
-                    userProvidedTypeList.add(customField);
-                } else {
-                    automaticFieldList.add(customField);
-                }
+        for(String customField: customIndexFields) {
+            if(customField.endsWith("_i") || customField.endsWith("_d") || customField.endsWith("_s") || customField.endsWith("_dt")) {
+                userProvidedTypeList.add(customField);
+            } else {
+                automaticFieldList.add(customField);
             }
+        }
+
+        //addRecord will check fields if they are int, double or string in that order.
+        CollectionUtils.addAll(intList, automaticFieldList.iterator());
 
+        // We need to check all fields to see if they contain a date.
+        CollectionUtils.addAll(dateList, automaticFieldList.iterator());
 
-            //addRecord will check fields if they are int, double or string in that order.
-            CollectionUtils.addAll(intList, automaticFieldList.iterator());
+        // batches are loaded while the next are read, with a limited number read ahead so the upload is not held
+        // in memory. More than one load thread calls Store.loadRecord concurrently, see upload.load.threads
+        ExecutorService executor = Executors.newFixedThreadPool(loadThreads,
+                new ThreadFactoryBuilder().setNameFormat("upload-" + tempUid + "-%d").setDaemon(true).build());
+        final Semaphore batchesInFlight = new Semaphore(loadThreads * 2);
+        final AtomicInteger counter = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<RecordBatch>> futures = new ArrayList<>();
 
-            // We need to check all fields to see if they contain a date.
-            CollectionUtils.addAll(dateList, automaticFieldList.iterator());
+        try(CSVReader csvData = new CSVReader(new BufferedReader(new FileReader(csvFile)), separatorChar, '"');) {
+            String[] currentLine = csvData.readNext();
+
+            List<String[]> batch = new ArrayList<>(batchSize);
 
             //if the first line is data, add a record, else discard
-            if(firstLineIsData){
-                addRecord(tempUid, datasetName, currentLine, headers, intList, floatList, stringList, dateList);
-            }
-
-            //write the data to DB
-            Integer percentComplete  = 0;
-            while((currentLine = csvData.readNext()) != null){
-                //System.out.println("######## loading line: " + counter);
-                counter++;
-                addRecord(tempUid, datasetName, currentLine, headers, intList, floatList, stringList, dateList);
-                if(counter % 100 == 0){
-                    Integer percentageComplete = 0;
-                    if(counter != 0){
-                        percentageComplete = (int) ((float) (counter + 1) / (float) recordCount * 25);
-                    }
-                    FileUtils.writeStringToFile(
-                            statusFile,
-                            om.writeValueAsString(new UploadStatus("LOADING", String.format("%d of %d records loaded.", counter, recordCount), percentageComplete)));
+            if(firstLineIsData && currentLine != null){
+                batch.add(currentLine);
+            }
+
+            //write the data to DB, stopping at the first batch that fails
+            while(!failed.get() && (currentLine = csvData.readNext()) != null){
+                batch.add(currentLine);
+                if(batch.size() >= batchSize){
+                    futures.add(submitBatch(executor, batchesInFlight, batch, automaticFieldList, counter, failed, statusFile, recordCount));
+                    batch = new ArrayList<>(batchSize);
                 }
             }
+            if(!failed.get() && !batch.isEmpty()){
+                futures.add(submitBatch(executor, batchesInFlight, batch, automaticFieldList, counter, failed, statusFile, recordCount));
+            }
+
+            List<RecordBatch> loaded = new ArrayList<>(futures.size());
+            for(Future<RecordBatch> future : futures){
+                loaded.add(future.get());
+            }
+            mergeColumnTypes(automaticFieldList, loaded, intList, floatList, stringList, dateList);
         } catch(Exception e) {
             logger.error(e.getMessage(),e);
+            for(Future<RecordBatch> future : futures){
+                future.cancel(true);
+            }
             throw e;
         } finally {
-            csvData.close();
+            executor.shutdown();
+            FileUtils.deleteQuietly(csvFile);
+        }
+    }
+
+    /**
+     * Merges the column types found by each batch, a column has the most general type found by any batch. This gives
+     * the same types as checking every record in turn with {@link #updateColumnTypes}.
+     */
+    static void mergeColumnTypes(List<String> automaticFieldList, List<RecordBatch> batches, Set<String> intList,
+                                 Set<String> floatList, Set<String> stringList, Set<String> dateList) {
+        Set<String> notInt = new HashSet<>();
+        Set<String> notFloat = new HashSet<>();
+        Set<String> notDate = new HashSet<>();
+        for(RecordBatch loaded : batches){
+            for(String field : automaticFieldList){
+                if(!loaded.intList.contains(field)){
+                    notInt.add(field);
+                    if(!loaded.floatList.contains(field)){
+                        notFloat.add(field);
+                    }
+                }
+                if(!loaded.dateList.contains(field)){
+                    notDate.add(field);
+                }
+            }
+        }
+        for(String field : automaticFieldList){
+            if(notFloat.contains(field)){
+                intList.remove(field);
+                stringList.add(field);
+            } else if(notInt.contains(field)){
+                intList.remove(field);
+                floatList.add(field);
+            }
+            if(notDate.contains(field)){
+                dateList.remove(field);
+                stringList.add(field);
+            }
+        }
+    }
+
+    private Future<RecordBatch> submitBatch(ExecutorService executor, final Semaphore batchesInFlight, List<String[]> lines,
+                                            List<String> automaticFieldList, final AtomicInteger counter,
+                                            final AtomicBoolean failed, final File statusFile,
+                                            final Integer recordCount) throws InterruptedException {
+        batchesInFlight.acquire();
+        final RecordBatch batch = new RecordBatch(lines, automaticFieldList);
+        return executor.submit(new Callable<RecordBatch>() {
+            @Override
+            public RecordBatch call() throws Exception {
+                try {
+                    for(String[] line : batch.lines){
+                        addRecord(tempUid, datasetName, line, headers, batch.intList, batch.floatList, batch.stringList, batch.dateList);
+                    }
+                    int loaded = counter.addAndGet(batch.lines.size());
+                    batch.lines = null;
+                    writeLoadingStatus(statusFile, loaded, recordCount);
+                    return batch;
+                } catch (Exception e) {
+                    failed.set(true);
+                    throw e;
+                } finally {
+                    batchesInFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the loading progress, unless a batch that finished later has already written a higher count.
+     */
+    void writeLoadingStatus(File statusFile, int counter, Integer recordCount) throws IOException {
+        Integer percentageComplete = 0;
+        if(counter != 0){
+            percentageComplete = (int) ((float) (counter + 1) / (float) recordCount * 25);
+        }
+        synchronized (statusFile) {
+            if (counter <= reportedCount) {
+                return;
+            }
+            reportedCount = counter;
+            FileUtils.writeStringToFile(
+                    statusFile,
+                    om.writeValueAsString(new UploadStatus("LOADING", String.format("%d of %d records loaded.", counter, recordCount), percentageComplete)));
+        }
+    }
+
+    /**
+     * Records loaded by one upload thread, with the column types that are consistent with the records.
+     */
+    static class RecordBatch {
+        List<String[]> lines;
+        final Set<String> intList;
+        final Set<String> floatList = new HashSet<>();
+        final Set<String> stringList = new HashSet<>();
+        final Set<String> dateList;
+
+        RecordBatch(List<String[]> lines, List<String> automaticFieldList) {
+            this.lines = lines;
+            this.intList = new HashSet<>(automaticFieldList);
+            this.dateList = new HashSet<>(automaticFieldList);
         }
     }
 
@@ -811,39 +997,7 @@ class UploaderThread implements Runnable {
                 if(fieldValue.length() > 0 ) {
                     String currentHeader = headers[i];
                     map.put(currentHeader, fieldValue);
-                    //now test of the header value is part of the custom index fields and perform a data check
-                    if (intList.contains(currentHeader)) {
-                        try {
-                            Integer.parseInt(fieldValue);
-                        } catch (Exception e) {
-                            //this custom index column could not possible be an integer
-                            intList.remove(currentHeader);
-                            floatList.add(currentHeader);
-                        }
-                    }
-
-                    if (floatList.contains(currentHeader)) {
-                        try {
-                            Float.parseFloat(fieldValue);
-                        } catch (Exception e) {
-                            //this custom index column can only be a string
-                            floatList.remove(currentHeader);
-                            stringList.add(currentHeader);
-                        }
-                    }
-
-                    if (dateList.contains(currentHeader)) {
-                        try {
-                            if(DateParser.parseDate(fieldValue, null, null).isEmpty()) {
-                                dateList.remove(currentHeader);
-                                stringList.add(currentHeader);
-                            }
-                        } catch (Exception e) {
-                            //this custom index column can only be a string
-                            dateList.remove(currentHeader);
-                            stringList.add(currentHeader);
-                        }
-                    }
+                    updateColumnTypes(currentHeader, fieldValue, intList, floatList, stringList, dateList);
                 }
             }
         }
@@ -852,7 +1006,55 @@ class UploaderThread implements Runnable {
             map.put("userId", alaId);
         }
         if(!map.isEmpty()){
-            au.org.ala.biocache.Store.loadRecord(tempUid, map, true);
+            loadRecord(tempUid, map);
+        }
+    }
+
+    /**
+     * Loads one record into the store.
+     */
+    protected void loadRecord(String tempUid, Map<String, String> map) {
+        au.org.ala.biocache.Store.loadRecord(tempUid, map, true);
+    }
+
+    /**
+     * Narrows the type of a custom index column with one of its values. Int columns become float and float columns
+     * become string when a value does not parse, and date columns become string when a value is not a date.
+     */
+    static void updateColumnTypes(String currentHeader, String fieldValue, Set<String> intList, Set<String> floatList,
+                                  Set<String> stringList, Set<String> dateList) {
+        //test if the header value is part of the custom index fields and perform a data check
+        if (intList.contains(currentHeader)) {
+            try {
+                Integer.parseInt(fieldValue);
+            } catch (Exception e) {
+                //this custom index column could not possible be an integer
+                intList.remove(currentHeader);
+                floatList.add(currentHeader);
+            }
+        }
+
+        if (floatList.contains(currentHeader)) {
+            try {
+                Float.parseFloat(fieldValue);
+            } catch (Exception e) {
+                //this custom index column can only be a string
+                floatList.remove(currentHeader);
+                stringList.add(currentHeader);
+            }
+        }
+
+        if (dateList.contains(currentHeader)) {
+            try {
+                if(DateParser.parseDate(fieldValue, null, null).isEmpty()) {
+                    dateList.remove(currentHeader);
+                    stringList.add(currentHeader);
+                }
+            } catch (Exception e) {
+                //this custom index column can only be a string
+                dateList.remove(currentHeader);
+                stringList.add(currentHeader);
+            }
         }
     }
 
@@ -22,12 +22,15 @@ import au.org.ala.biocache.model.Qid;
 import au.org.ala.biocache.util.*;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.collections.map.LRUMap;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
 import org.springframework.stereotype.Controller;
@@ -49,6 +52,12 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -178,6 +187,18 @@ public class WMSController extends AbstractSecureController{
     @Value("${wms.facetPivotCutoff:2000}")
     private int wmsFacetPivotCutoff;
 
+    /**
+     * Max number of colour facet queries to run in parallel when building coloured tiles.
+     */
+    @Value("${wms.colour.query.maxthreads:8}")
+    private int maxColourQueryThreads = 8;
+
+    private volatile ExecutorService colourQueryExecutor = null;
+
+    private final ColourQueryTimings colourQueryTimings = new ColourQueryTimings();
+    private final ColourQueryTimings otherQueryTimings = new ColourQueryTimings();
+    private final ColourQueryTimings colourTileTimings = new ColourQueryTimings();
+
     /**
      * The public or private value to use in the Cache-Control HTTP header for WMS tiles. Defaults to public
      */
@@ -2305,75 +2326,16 @@ public class WMSController extends AbstractSecureController{
 
             //in some instances querying each colour's facet, one by one, is more suitable than pivoting
             if (numericalFacetCategories || docCount > wmsFacetPivotCutoff || !canCache) {
-                //iterate
-                String[] fqs = new String[requestParams.getFq() == null ? 1 : requestParams.getFq().length + 1];
-                if (requestParams.getFq() != null && requestParams.getFq().length > 0) {
-                    System.arraycopy(requestParams.getFq(), 0, fqs, 1, requestParams.getFq().length);
-                }
-                List<String> fqsDone = new ArrayList<String>(colours != null ? colours.size() : 0);
-
-                //draw grouped points before drawing other points.
-                boolean otherPointsAdded = false;
-                pointsArrays.add(null);
-                pColour.add(null);
+                List<ColourPoints> results = queryColourPoints(requestParams, vars, pointType, countsArrays,
+                        pointsArrays, colours, pColour);
 
                 for (int i = 0; i < colours.size(); i++) {
-                    LegendItem li = colours.get(i);
-
-                    fqs[0] = li.getFq();
-
-                    //invert fq
-                    if (StringUtils.isEmpty(li.getName())) {
-                        //li.getFq() is of the form "-(...)"
-                        fqsDone.add(fqs[0].substring(1));
-                    } else {
-                        if (fqs[0].charAt(0) == '-') {
-                            fqsDone.add(fqs[0].substring(1));
-                        } else {
-                            fqsDone.add("-" + fqs[0]);
-                        }
-                    }
-
-                    requestParams.setFq(fqs);
-                    long ms = System.currentTimeMillis();
-                    requestParams.setFlimit(-1);
-
-                    requestParams.setFormattedQuery(null);
-                    makePointsFromFacet(searchDAO.getFacetPointsShort(requestParams, pointType.getLabel()), pointsArrays, countsArrays);
-                    pColour.add(li.getColour() | (vars.alpha << 24));
-                    colrmaxtime = (System.currentTimeMillis() - ms);
-
-                    //in the last iteration check for more and batch.
-                    if (i == ColorUtil.colourList.length - 2 && colours.size() == ColorUtil.colourList.length - 1) {
+                    if (results.get(i).time > colrmaxtime) {
                         colrmax = i;
-
-                        fqs = new String[(requestParams.getFq() == null ? 0 : requestParams.getFq().length) + fqsDone.size()];
-                        if (requestParams.getFq() != null && requestParams.getFq().length > 0) {
-                            System.arraycopy(requestParams.getFq(), 0, fqs, fqsDone.size(), requestParams.getFq().length);
-                        }
-                        System.arraycopy(fqsDone.toArray(new String[]{}), 0, fqs, 0, fqsDone.size());
-
-                        //do full query
-                        requestParams.setFq(origFqs);
-                        String prevColourMode = vars.colourMode;
-                        vars.colourMode = "-1";
-                        WMSTile equivalentTile = getWMSCacheObject(requestParams, vars, pointType, bbox, originalFqs, boundingBoxFqs, canCache);
-                        vars.colourMode = prevColourMode;
-
-                        if (equivalentTile.getPoints() != null && equivalentTile.getPoints().size() > 0 && equivalentTile.getPoints().get(0).length > 0) {
-                            pointsArrays.set(0, equivalentTile.getPoints().get(0));
-                            //countsArrays.add(equivalentTile.getCounts().get(0));
-                            pColour.set(0, ColorUtil.colourList[ColorUtil.colourList.length - 1] | (vars.alpha << 24));
-                            otherPointsAdded = true;
-                        }
+                        colrmaxtime = results.get(i).time;
                     }
                 }
 
-                if (!otherPointsAdded) {
-                    pointsArrays.remove(0);
-                    pColour.remove(0);
-                }
-
                 //restore the altered fqs
                 requestParams.setFq(origFqs);
             }
@@ -2460,6 +2422,189 @@ public class WMSController extends AbstractSecureController{
         }
     }
 
+    /**
+     * Query the facet points of each colour concurrently and add them to the tile, the occurrences that are in none
+     * of the colours first.
+     *
+     * @return The points queried, in the order of the colours followed by the other occurrences when the legend is
+     * truncated
+     */
+    List<ColourPoints> queryColourPoints(SpatialSearchRequestParams requestParams, WmsEnv vars, PointType pointType,
+                                         List<int[]> countsArrays, List<float[]> pointsArrays,
+                                         List<LegendItem> colours, List<Integer> pColour) throws Exception {
+        String[] currentFqs = requestParams.getFq() == null ? new String[0] : requestParams.getFq();
+        List<Callable<ColourPoints>> queries = new ArrayList<Callable<ColourPoints>>(colours.size() + 1);
+        for (LegendItem li : colours) {
+            queries.add(new ColourPoints(requestParams, pointType, (String[]) ArrayUtils.add(currentFqs, 0, li.getFq())));
+        }
+
+        //when the legend is truncated the remaining occurrences are drawn in the last colour. They are
+        //the difference between the query and all the colours, so they are queried with the inverted fqs.
+        boolean otherColour = colours.size() == ColorUtil.colourList.length - 1;
+        if (otherColour) {
+            queries.add(new ColourPoints(requestParams, pointType, otherColourFqs(colours, currentFqs)));
+        }
+
+        long start = System.currentTimeMillis();
+        List<ColourPoints> results = runColourQueries(queries);
+        colourTileTimings.record(System.currentTimeMillis() - start);
+
+        //draw the other points before drawing the coloured points
+        if (otherColour) {
+            ColourPoints other = results.get(results.size() - 1);
+            otherQueryTimings.record(other.time);
+            List<float[]> otherPoints = new ArrayList<float[]>(1);
+            makePointsFromFacet(other.result, otherPoints, null);
+            if (otherPoints.get(0).length > 0) {
+                pointsArrays.add(otherPoints.get(0));
+                pColour.add(ColorUtil.colourList[ColorUtil.colourList.length - 1] | (vars.alpha << 24));
+            }
+        }
+
+        for (int i = 0; i < colours.size(); i++) {
+            ColourPoints colourPoints = results.get(i);
+            colourQueryTimings.record(colourPoints.time);
+            makePointsFromFacet(colourPoints.result, pointsArrays, countsArrays);
+            pColour.add(colours.get(i).getColour() | (vars.alpha << 24));
+        }
+
+        if (logger.isDebugEnabled()) {
+            for (int i = 0; i < results.size(); i++) {
+                logger.debug("wms colour query: colour=" + (i < colours.size() ? colours.get(i).getName() : "other") +
+                        ", time=" + results.get(i).time + "ms, points=" + results.get(i).result.getValueCount());
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * The fqs of the occurrences that are in none of the colours: each colour's fq inverted, and the query's fqs.
+     */
+    static String[] otherColourFqs(List<LegendItem> colours, String[] currentFqs) {
+        List<String> fqs = new ArrayList<String>(colours.size() + currentFqs.length);
+        for (LegendItem li : colours) {
+            String fq = li.getFq();
+            if (StringUtils.isEmpty(li.getName())) {
+                //li.getFq() is of the form "-(...)"
+                fqs.add(fq.substring(1));
+            } else if (fq.charAt(0) == '-') {
+                fqs.add(fq.substring(1));
+            } else {
+                fqs.add("-" + fq);
+            }
+        }
+        fqs.addAll(Arrays.asList(currentFqs));
+        return fqs.toArray(new String[0]);
+    }
+
+    /**
+     * The number, total and longest time of the colour queries of WMS tiles since startup.
+     */
+    static class ColourQueryTimings {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+
+        void record(long time) {
+            count.incrementAndGet();
+            totalTime.addAndGet(time);
+            long max = maxTime.get();
+            while (time > max && !maxTime.compareAndSet(max, time)) {
+                max = maxTime.get();
+            }
+        }
+
+        Map<String, Object> getStats() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            long n = count.get();
+            long total = totalTime.get();
+            result.put("count", n);
+            result.put("totalTime", total);
+            result.put("averageTime", n > 0 ? total / n : 0);
+            result.put("maxTime", maxTime.get());
+            return result;
+        }
+    }
+
+    /**
+     * @return The timings, in ms, of the queries of each colour, of the occurrences in none of the colours, and of
+     * all the colours of a tile run concurrently
+     */
+    public Map<String, Object> getColourQueryStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("colour", colourQueryTimings.getStats());
+        stats.put("other", otherQueryTimings.getStats());
+        stats.put("tile", colourTileTimings.getStats());
+        return stats;
+    }
+
+    /**
+     * The facet points for one colour of a tile, and the time taken to query them.
+     */
+    class ColourPoints implements Callable<ColourPoints> {
+        private final SpatialSearchRequestParams requestParams;
+        private final PointType pointType;
+        FacetField result;
+        long time;
+
+        ColourPoints(SpatialSearchRequestParams requestParams, PointType pointType, String[] fqs) {
+            this.requestParams = new SpatialSearchRequestParams();
+            BeanUtils.copyProperties(requestParams, this.requestParams);
+            this.requestParams.setFq(fqs);
+            this.requestParams.setFlimit(-1);
+            this.requestParams.setFormattedQuery(null);
+            this.pointType = pointType;
+        }
+
+        @Override
+        public ColourPoints call() throws Exception {
+            long ms = System.currentTimeMillis();
+            result = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel());
+            time = System.currentTimeMillis() - ms;
+            return this;
+        }
+    }
+
+    /**
+     * Run colour queries on the colour query pool.
+     *
+     * @return The results, in the order of the queries
+     */
+    private <T> List<T> runColourQueries(List<? extends Callable<T>> queries) throws Exception {
+        List<Future<T>> futures = new ArrayList<Future<T>>(queries.size());
+        List<T> results = new ArrayList<T>(queries.size());
+        try {
+            for (Callable<T> query : queries) {
+                futures.add(getColourQueryExecutor().submit(query));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private ExecutorService getColourQueryExecutor() {
+        ExecutorService nextExecutor = colourQueryExecutor;
+        if (nextExecutor == null) {
+            synchronized (this) {
+                nextExecutor = colourQueryExecutor;
+                if (nextExecutor == null) {
+                    nextExecutor = colourQueryExecutor = Executors.newFixedThreadPool(maxColourQueryThreads,
+                            new ThreadFactoryBuilder().setNameFormat("wms-colour-query-%d").build());
+                }
+            }
+        }
+        return nextExecutor;
+    }
+
     private void makePointsFromPivot(List<FacetPivotResultDTO> pivotResult, List<float[]> gPoints, List<int[]> gCount) {
     	Objects.requireNonNull(pivotResult, "Pivot result was null");
         float[] points = new float[2 * pivotResult.size()];
@@ -2469,9 +2614,8 @@ public class WMSController extends AbstractSecureController{
         for (FacetPivotResultDTO fpr : pivotResult) {
             String v = fpr.getValue();
             if (StringUtils.isNotEmpty(v)) {
-                int p = v.indexOf(',');
-                points[i++] = Float.parseFloat(v.substring(p + 1));
-                points[i++] = Float.parseFloat(v.substring(0, p));
+                PointFacetParser.parse(v, points, i);
+                i += 2;
                 count[j++] = fpr.getCount();
             } else {
                 points[i++] = Float.NaN;
@@ -2493,13 +2637,9 @@ public class WMSController extends AbstractSecureController{
             try {
                 String v = s.getName();
                 if (v != null) {
-                    int p = v.indexOf(',');
-                    float lng = Float.parseFloat(v.substring(p + 1));
-                    float lat = Float.parseFloat(v.substring(0, p));
-                    int c = (int) s.getCount();
-                    points[i++] = lng;
-                    points[i++] = lat;
-                    count[j++] = c;
+                    PointFacetParser.parse(v, points, i);
+                    i += 2;
+                    count[j++] = (int) s.getCount();
                 } else {
                     points[i++] = Float.NaN;
                     i++;
@@ -3,6 +3,8 @@ package au.org.ala.biocache.web;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.util.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -11,7 +13,10 @@ import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
 import org.opengis.geometry.DirectPosition;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.operation.CoordinateOperation;
+import org.opengis.referencing.operation.MathTransform;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -29,6 +34,8 @@ import java.awt.image.BufferedImage;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * WMS controller that supports OS grid rendering.
@@ -44,6 +51,20 @@ public class WMSOSGridController {
     @Inject
     protected WMSUtils wmsUtils;
 
+    /**
+     * The maximum number of grid cells to keep projected to tile SRSs.
+     */
+    @Value("${osgrid.cell.cache.size:200000}")
+    protected int gridCellCacheSize = 200000;
+
+    private volatile Cache<String, GridCell> gridCellCache;
+
+    /** transforms between pairs of CRS codes */
+    private final ConcurrentMap<String, MathTransform> transforms = new ConcurrentHashMap<String, MathTransform>();
+
+    /** an invalid grid reference, as the cache does not hold nulls */
+    private static final GridCell INVALID_GRID_CELL = new GridCell(null, 0, 0, 0, null);
+
 
     @RequestMapping(value = {"/osgrid/lookup.json"}, method = RequestMethod.GET)
     public @ResponseBody Map<String, Object> parseGridReference(
@@ -434,12 +455,12 @@ public class WMSOSGridController {
             }
         });
 
-        Set<int[]> linesToRender = new HashSet<int[]>();
-        List<String> renderedLinesCache = new LinkedList<String>();
+        List<int[]> linesToRender = new ArrayList<int[]>();
+        Map<String, LongHashSet> renderedLinesCache = new HashMap<String, LongHashSet>();
 
         for(String gridRef : gridRefsToRender){
 
-            Set<int[]> renderedLines = renderGrid(wmsImg,
+            List<int[]> renderedLines = renderGrid(wmsImg,
                     gridRef,
                     minx,
                     miny,
@@ -492,42 +513,30 @@ public class WMSOSGridController {
      * @param miny
      * @param oneUnitXInPixels
      * @param oneUnitYInPixels
+     * @param renderedLines the lines of the tile that are already rendered, for each datum
+     * @return the outline of the grid cell, excluding lines that are already rendered
      */
-    private Set<int[]> renderGrid(WMSImg wmsImg, String gridRef, double minx, double miny, double oneUnitXInPixels,
-                                  double oneUnitYInPixels, String targetSrs, int imageWidth, int imageHeight, WmsEnv wmsEnv, List<String> renderedLines){
+    private List<int[]> renderGrid(WMSImg wmsImg, String gridRef, double minx, double miny, double oneUnitXInPixels,
+                                  double oneUnitYInPixels, String targetSrs, int imageWidth, int imageHeight, WmsEnv wmsEnv,
+                                  Map<String, LongHashSet> renderedLines){
 
-        if(StringUtils.isEmpty(gridRef)) return new HashSet<int[]>();
+        if(StringUtils.isEmpty(gridRef)) return new ArrayList<int[]>();
 
-        Option<au.org.ala.biocache.util.GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
+        GridCell cell = getGridCell(gridRef, targetSrs);
 
-        if(gridRefOption.isEmpty()) return new HashSet<int[]>();
+        if(cell == INVALID_GRID_CELL) return new ArrayList<int[]>();
 
-        Set<int[]> linesToRender = new HashSet<int[]>();
+        List<int[]> linesToRender = new ArrayList<int[]>(4);
 
-        au.org.ala.biocache.util.GridRef gr = gridRefOption.get();
-
-        int easting = gr.easting();
-        int northing = gr.northing();
-        int gridSize = (Integer) gr.coordinateUncertainty().get();
+        int gridSize = cell.gridSize;
 
         //coordinates in easting / northing of the nearest 10km grid to the bottom,left of this tile
-        Integer minEastingOfGridCell  = easting; //may need to use the minimum of each
-        Integer minNorthingOfGridCell = northing;
-        Integer maxEastingOfGridCell  = minEastingOfGridCell + gridSize;
-        Integer maxNorthingOfGridCell = minNorthingOfGridCell + gridSize;
-
-        double[][] polygonInMercator = convertEastingNorthingToTargetSRS(
-                new double[][]{
-                        new double[]{minEastingOfGridCell, minNorthingOfGridCell},
-                        new double[]{maxEastingOfGridCell, minNorthingOfGridCell},
-                        new double[]{maxEastingOfGridCell, maxNorthingOfGridCell},
-                        new double[]{minEastingOfGridCell, maxNorthingOfGridCell},
-                },
-                gr.datum(),
-                targetSrs
-        );
+        int minEastingOfGridCell  = cell.easting; //may need to use the minimum of each
+        int minNorthingOfGridCell = cell.northing;
+        int maxEastingOfGridCell  = minEastingOfGridCell + gridSize;
+        int maxNorthingOfGridCell = minNorthingOfGridCell + gridSize;
 
-        int[][] coordinatesForImages = convertUnitsToPixelOffset(polygonInMercator, minx, miny,
+        int[][] coordinatesForImages = convertUnitsToPixelOffset(cell.polygon, minx, miny,
                 oneUnitXInPixels, oneUnitYInPixels, imageWidth, imageHeight);
 
         int color;
@@ -577,27 +586,29 @@ public class WMSOSGridController {
         Paint polygonBorder = new Color(0xFF000000, true);
         wmsImg.g.setPaint(polygonBorder);
 
+        LongHashSet datumLines = renderedLines.get(cell.datum);
+        if (datumLines == null) {
+            datumLines = new LongHashSet(1024);
+            renderedLines.put(cell.datum, datumLines);
+        }
+
         //line 1 -  bottom line
-        String key1 = getLineKey(minEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,minNorthingOfGridCell);
-        if(!renderedLines.contains(key1)) {
+        if(datumLines.add(getLineKey(minEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,minNorthingOfGridCell))) {
             linesToRender.add(new int[]{coordinatesForImages[0][0], coordinatesForImages[0][1], coordinatesForImages[1][0], coordinatesForImages[1][1]});
         }
 
         //line 2 - right line
-        String key2 = getLineKey(maxEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,maxNorthingOfGridCell);
-        if(!renderedLines.contains(key2)) {
+        if(datumLines.add(getLineKey(maxEastingOfGridCell,minNorthingOfGridCell,maxEastingOfGridCell,maxNorthingOfGridCell))) {
             linesToRender.add(new int[]{coordinatesForImages[1][0], coordinatesForImages[1][1], coordinatesForImages[2][0], coordinatesForImages[2][1]});
         }
 
         //line 3 - top line
-        String key3 = getLineKey(maxEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,maxNorthingOfGridCell);
-        if(!renderedLines.contains(key3)) {
+        if(datumLines.add(getLineKey(maxEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,maxNorthingOfGridCell))) {
             linesToRender.add(new int[]{coordinatesForImages[2][0], coordinatesForImages[2][1], coordinatesForImages[3][0], coordinatesForImages[3][1]});
         }
 
         //line 4 - left line
-        String key4 = getLineKey(minEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,minNorthingOfGridCell);
-        if(!renderedLines.contains(key4)) {
+        if(datumLines.add(getLineKey(minEastingOfGridCell,maxNorthingOfGridCell,minEastingOfGridCell,minNorthingOfGridCell))) {
             linesToRender.add(new int[]{coordinatesForImages[3][0], coordinatesForImages[3][1], coordinatesForImages[0][0], coordinatesForImages[0][1]});
         }
 
@@ -640,24 +651,70 @@ public class WMSOSGridController {
         return false;
     }
 
-    public String getLineKey(int x1, int y1 , int x2 , int y2){
-
-        String key = "";
-        if(x1 < x2){
-            key = x1 + " " + x2;
+    /**
+     * A key for a horizontal or vertical grid line in easting / northing. Eastings and northings of the grids
+     * are less than 2^21 metres, so the orientation and the three values of the line fit in a long.
+     */
+    public long getLineKey(int x1, int y1 , int x2 , int y2){
+        long mask = 0x1FFFFFL;
+        if (y1 == y2) {
+            return ((y1 & mask) << 42) | ((Math.min(x1, x2) & mask) << 21) | (Math.max(x1, x2) & mask);
         } else {
-            key = x2 + " " + x1;
+            return (1L << 63) | ((x1 & mask) << 42) | ((Math.min(y1, y2) & mask) << 21) | (Math.max(y1, y2) & mask);
         }
+    }
 
-        key += " ";
+    /**
+     * Get a grid reference cell with its corners projected to the target SRS. Cells are cached, so that tiles
+     * share the projected cells.
+     *
+     * @return The cell, or INVALID_GRID_CELL if the grid reference is not valid or could not be projected
+     */
+    private GridCell getGridCell(final String gridRef, final String targetSrs) {
+        Cache<String, GridCell> cache = gridCellCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = gridCellCache;
+                if (cache == null) {
+                    cache = gridCellCache = CacheBuilder.newBuilder().maximumSize(gridCellCacheSize).build();
+                }
+            }
+        }
 
-        if(y1 < y2){
-            key += y1 + " " + y2;
-        } else {
-            key += y2 + " " + y1;
+        String key = targetSrs + " " + gridRef;
+        GridCell cell = cache.getIfPresent(key);
+        if (cell == null) {
+            cell = createGridCell(gridRef, targetSrs);
+            cache.put(key, cell);
         }
+        return cell;
+    }
+
+    private GridCell createGridCell(String gridRef, String targetSrs) {
+        Option<au.org.ala.biocache.util.GridRef> gridRefOption = GridUtil.gridReferenceToEastingNorthing(gridRef);
+
+        if(gridRefOption.isEmpty()) return INVALID_GRID_CELL;
 
-        return key;
+        au.org.ala.biocache.util.GridRef gr = gridRefOption.get();
+
+        int easting = gr.easting();
+        int northing = gr.northing();
+        int gridSize = (Integer) gr.coordinateUncertainty().get();
+
+        double[][] polygon = convertEastingNorthingToTargetSRS(
+                new double[][]{
+                        new double[]{easting, northing},
+                        new double[]{easting + gridSize, northing},
+                        new double[]{easting + gridSize, northing + gridSize},
+                        new double[]{easting, northing + gridSize},
+                },
+                gr.datum(),
+                targetSrs
+        );
+
+        if (polygon == null) return INVALID_GRID_CELL;
+
+        return new GridCell(gr.datum(), easting, northing, gridSize, polygon);
     }
 
     ParsedGridRef convertEastingNorthingToOSGrid(double e, double n){
@@ -699,11 +756,8 @@ public class WMSOSGridController {
 
         try {
 
-            CoordinateReferenceSystem sourceCRS = CRS.decode(sourceCRSString);
-            CoordinateReferenceSystem targetCRS = CRS.decode(targetCRSString);
-            CoordinateOperation transformOp = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
             GeneralDirectPosition directPosition = new GeneralDirectPosition(x, y);
-            DirectPosition latLongInTargetCRS = transformOp.getMathTransform().transform(directPosition, null);
+            DirectPosition latLongInTargetCRS = getTransform(sourceCRSString, targetCRSString).transform(directPosition, null);
 
             //NOTE - returned coordinates are longitude, latitude, despite the fact that if
             //converting latitude and longitude values, they must be supplied as latitude, longitude.
@@ -728,6 +782,23 @@ public class WMSOSGridController {
         return null;
     }
 
+    /**
+     * Get the transform between two CRS codes. The transforms are kept, as creating them is far slower than
+     * transforming a few coordinates.
+     */
+    private MathTransform getTransform(String sourceCRSString, String targetCRSString) throws FactoryException {
+        String key = sourceCRSString + " " + targetCRSString;
+        MathTransform transform = transforms.get(key);
+        if (transform == null) {
+            CoordinateReferenceSystem sourceCRS = CRS.decode(sourceCRSString);
+            CoordinateReferenceSystem targetCRS = CRS.decode(targetCRSString);
+            CoordinateOperation transformOp = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
+            transform = transformOp.getMathTransform();
+            transforms.put(key, transform);
+        }
+        return transform;
+    }
+
     double[] convertWGS84ToEastingNorthing(Double coordinate1, Double coordinate2){
         return reprojectPoint(coordinate1, coordinate2,  "EPSG:4326", "EPSG:27700");
     }
@@ -762,12 +833,49 @@ public class WMSOSGridController {
         return offsetXYWidthHeights;
     }
 
+    /**
+     * Reproject the points of a polygon with a single transform call.
+     *
+     * @return the reprojected points, or null if they could not be reprojected
+     */
     double[][] convertEastingNorthingToTargetSRS(double[][] polygon, String sourceSrs, String targetSrs){
-        double[][] converted = new double[polygon.length][2];
-        for(int i = 0; i < polygon.length; i++){
-            converted[i] = reprojectPoint(polygon[i][0], polygon[i][1], sourceSrs, targetSrs);
+        try {
+            double[] points = new double[polygon.length * 2];
+            for(int i = 0; i < polygon.length; i++){
+                points[i * 2] = polygon[i][0];
+                points[i * 2 + 1] = polygon[i][1];
+            }
+            getTransform(sourceSrs, targetSrs).transform(points, 0, points, 0, polygon.length);
+
+            double[][] converted = new double[polygon.length][2];
+            for(int i = 0; i < polygon.length; i++){
+                converted[i] = new double[]{points[i * 2], points[i * 2 + 1]};
+            }
+            return converted;
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
         }
-        return converted;
+        return null;
+    }
+}
+
+/**
+ * A grid reference cell, with its corners projected to the SRS of a tile.
+ */
+final class GridCell {
+    final String datum;
+    final int easting;
+    final int northing;
+    final int gridSize;
+    /** south west, south east, north east and north west corners */
+    final double[][] polygon;
+
+    GridCell(String datum, int easting, int northing, int gridSize, double[][] polygon) {
+        this.datum = datum;
+        this.easting = easting;
+        this.northing = northing;
+        this.gridSize = gridSize;
+        this.polygon = polygon;
     }
 }
 
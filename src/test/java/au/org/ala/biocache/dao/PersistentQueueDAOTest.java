@@ -4,6 +4,7 @@ import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.dto.DownloadRequestParams;
 import au.org.ala.biocache.dto.FacetThemes;
+import au.org.ala.biocache.stream.DownloadCheckpoint;
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -14,10 +15,19 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class PersistentQueueDAOTest {
@@ -88,4 +98,203 @@ public class PersistentQueueDAOTest {
         queueDAO.refreshFromPersistent();
         assertEquals(1,queueDAO.getTotalDownloads());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testNextDownloadBySizeAndType(){
+        DownloadDetailsDTO large = new DownloadDetailsDTO(getParams("large"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        large.setTotalRecords(1000000);
+        queueDAO.addDownloadToQueue(large);
+        DownloadDetailsDTO db = new DownloadDetailsDTO(getParams("db"), "127.0.0.1", DownloadType.RECORDS_DB);
+        db.setTotalRecords(10);
+        queueDAO.addDownloadToQueue(db);
+        DownloadDetailsDTO small = new DownloadDetailsDTO(getParams("small"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        small.setTotalRecords(50000);
+        queueDAO.addDownloadToQueue(small);
+        assertEquals(3, queueDAO.getTotalDownloads());
+
+        //only the small index download fits
+        assertSame(small, queueDAO.getNextDownload(50000, DownloadType.RECORDS_INDEX));
+        assertNull(queueDAO.getNextDownload(50000, DownloadType.RECORDS_INDEX));
+        //the smallest of the remaining downloads for the user
+        assertSame(db, queueDAO.getNextDownload(null, null));
+        assertSame(large, queueDAO.getNextDownload());
+        assertNull(queueDAO.getNextDownload());
+        //started downloads stay on the queue until they are removed
+        assertEquals(3, queueDAO.getTotalDownloads());
+    }
+
+    @Test
+    public void testFairShareAcrossUsers(){
+        List<DownloadDetailsDTO> busyUser = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            DownloadDetailsDTO dd = new DownloadDetailsDTO(getParams("busy" + i), "127.0.0.1", DownloadType.RECORDS_INDEX);
+            dd.setTotalRecords(100000);
+            busyUser.add(dd);
+            queueDAO.addDownloadToQueue(dd);
+        }
+        DownloadRequestParams params = getParams("other");
+        params.setEmail("someone.else@csiro.au");
+        DownloadDetailsDTO otherUser = new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        otherUser.setTotalRecords(100000);
+        queueDAO.addDownloadToQueue(otherUser);
+
+        assertSame(busyUser.get(0), queueDAO.getNextDownload());
+        //the other user has not had a share yet, so is served before the rest of the busy user's downloads
+        assertSame(otherUser, queueDAO.getNextDownload());
+        assertSame(busyUser.get(1), queueDAO.getNextDownload());
+        assertNotNull(busyUser.get(1).getProcessingStartDate());
+        //with nothing else queued the busy user is served beyond the running limit
+        assertSame(busyUser.get(2), queueDAO.getNextDownload());
+    }
+
+    @Test
+    public void testFairShareForgottenWhenIdle(){
+        DownloadDetailsDTO large = new DownloadDetailsDTO(getParams("large"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        large.setTotalRecords(1000000);
+        queueDAO.addDownloadToQueue(large);
+        assertSame(large, queueDAO.getNextDownload());
+        queueDAO.removeDownloadFromQueue(large);
+
+        //the user has nothing queued or running, so the large download is not held against their next one
+        DownloadDetailsDTO returning = new DownloadDetailsDTO(getParams("returning"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        returning.setTotalRecords(100000);
+        queueDAO.addDownloadToQueue(returning);
+        DownloadRequestParams params = getParams("other");
+        params.setEmail("someone.else@csiro.au");
+        DownloadDetailsDTO otherUser = new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        otherUser.setTotalRecords(100000);
+        queueDAO.addDownloadToQueue(otherUser);
+
+        assertSame(returning, queueDAO.getNextDownload());
+        assertSame(otherUser, queueDAO.getNextDownload());
+    }
+
+    @Test
+    public void testStealNextDownload(){
+        DownloadDetailsDTO waiting = new DownloadDetailsDTO(getParams("waiting"), "127.0.0.1", DownloadType.RECORDS_DB);
+        waiting.setStartDate(new Date(System.currentTimeMillis() - 60000));
+        queueDAO.addDownloadToQueue(waiting);
+        DownloadDetailsDTO recent = new DownloadDetailsDTO(getParams("recent"), "127.0.0.1", DownloadType.RECORDS_DB);
+        queueDAO.addDownloadToQueue(recent);
+
+        //downloads of the thread's own type are never stolen
+        assertNull(queueDAO.stealNextDownload(null, DownloadType.RECORDS_DB, 1000));
+        assertSame(waiting, queueDAO.stealNextDownload(null, DownloadType.RECORDS_INDEX, 1000));
+        //the recent download has not waited long enough
+        assertNull(queueDAO.stealNextDownload(null, DownloadType.RECORDS_INDEX, 1000));
+        assertSame(recent, queueDAO.getNextDownload(null, DownloadType.RECORDS_DB));
+    }
+
+    @Test
+    public void testDuplicates(){
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(getParams("test1"), "127.0.0.1", DownloadType.FACET);
+        queueDAO.addDownloadToQueue(dd);
+        DownloadDetailsDTO dd2 = new DownloadDetailsDTO(getParams("test1"), "127.0.0.1", DownloadType.FACET);
+        assertSame(dd, queueDAO.isInQueue(dd2));
+        queueDAO.addDownloadToQueue(dd2);
+        assertEquals(1, queueDAO.getTotalDownloads());
+
+        DownloadRequestParams params = getParams("test1");
+        params.setEmail("someone.else@csiro.au");
+        assertNull(queueDAO.isInQueue(new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.FACET)));
+
+        queueDAO.removeDownloadFromQueue(dd);
+        assertNull(queueDAO.isInQueue(dd2));
+    }
+
+    @Test
+    public void testRecoveryFromLog() throws Exception {
+        List<DownloadDetailsDTO> added = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            DownloadDetailsDTO dd = new DownloadDetailsDTO(getParams("test" + i), "127.0.0.1", DownloadType.RECORDS_INDEX);
+            added.add(dd);
+            queueDAO.addDownloadToQueue(dd);
+        }
+        DownloadDetailsDTO started = queueDAO.getNextDownload();
+        queueDAO.removeDownloadFromQueue(added.get(2));
+        queueDAO.shutdown();
+
+        PersistentQueueDAO recovered = recoverQueue();
+        try {
+            assertEquals(4, recovered.getTotalDownloads());
+            assertEquals(added.get(0).getDownloadParams(), recovered.getAllDownloads().get(0).getDownloadParams());
+            assertEquals(added.get(3).getDownloadParams(), recovered.getAllDownloads().get(2).getDownloadParams());
+            //downloads that had started are restarted
+            assertEquals(started.getDownloadParams(), recovered.getNextDownload().getDownloadParams());
+        } finally {
+            recovered.shutdown();
+        }
+    }
+
+    @Test
+    public void testStartRecoveredFromLog() throws Exception {
+        DownloadDetailsDTO checkpointed = new DownloadDetailsDTO(getParams("checkpointed"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        queueDAO.addDownloadToQueue(checkpointed);
+        DownloadRequestParams params = getParams("partial");
+        params.setFile("Partial");
+        DownloadDetailsDTO partial = new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        queueDAO.addDownloadToQueue(partial);
+        assertSame(checkpointed, queueDAO.getNextDownload());
+        assertSame(partial, queueDAO.getNextDownload());
+        Date processingStartDate = checkpointed.getProcessingStartDate();
+
+        //both downloads have written part of their archive, only one of them with a checkpoint to resume from
+        File checkpointedArchive = new File(checkpointed.getFileLocation());
+        FileUtils.writeStringToFile(checkpointedArchive, "part", "UTF-8");
+        FileUtils.writeStringToFile(DownloadCheckpoint.getCheckpointFile(checkpointedArchive), "{}", "UTF-8");
+        File partialArchive = new File(partial.getFileLocation());
+        FileUtils.writeStringToFile(partialArchive, "part", "UTF-8");
+        queueDAO.shutdown();
+
+        PersistentQueueDAO recovered = recoverQueue();
+        try {
+            assertEquals(2, recovered.getTotalDownloads());
+            //the locations of the started downloads are known from the log
+            assertTrue(checkpointedArchive.exists());
+            assertFalse(partialArchive.exists());
+
+            DownloadDetailsDTO resumed = recovered.getNextDownload();
+            assertEquals(checkpointed.getDownloadParams(), resumed.getDownloadParams());
+            assertEquals(checkpointedArchive.getPath(), resumed.getFileLocation());
+            assertEquals(processingStartDate, resumed.getProcessingStartDate());
+            assertEquals(partial.getDownloadParams(), recovered.getNextDownload().getDownloadParams());
+        } finally {
+            recovered.shutdown();
+        }
+    }
+
+    @Test
+    public void testNextDownloadInSizeClassOfMaxRecords() {
+        //the downloads are in the same size class, but only the smaller one fits
+        DownloadDetailsDTO larger = new DownloadDetailsDTO(getParams("larger"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        larger.setTotalRecords(65000);
+        queueDAO.addDownloadToQueue(larger);
+        DownloadRequestParams params = getParams("smaller");
+        params.setEmail("someone.else@csiro.au");
+        DownloadDetailsDTO smaller = new DownloadDetailsDTO(params, "127.0.0.1", DownloadType.RECORDS_INDEX);
+        smaller.setTotalRecords(40000);
+        queueDAO.addDownloadToQueue(smaller);
+        DownloadDetailsDTO small = new DownloadDetailsDTO(getParams("small"), "127.0.0.1", DownloadType.RECORDS_INDEX);
+        small.setTotalRecords(100);
+        queueDAO.addDownloadToQueue(small);
+
+        assertSame(small, queueDAO.getNextDownload(60000, null));
+        //the user of the small download is charged for it, so the other user is next
+        assertSame(smaller, queueDAO.getNextDownload(60000, null));
+        assertNull(queueDAO.getNextDownload(60000, null));
+        assertSame(larger, queueDAO.getNextDownload());
+    }
+
+    private PersistentQueueDAO recoverQueue() {
+        PersistentQueueDAO recovered = new JsonPersistentQueueDAOImpl() {
+            @Override
+            public void init() {
+                cacheDirectory = testCacheDir.toAbsolutePath().toString();
+                biocacheDownloadDir = testDownloadDir.toAbsolutePath().toString();
+                super.init();
+            }
+        };
+        recovered.init();
+        return recovered;
+    }
+}
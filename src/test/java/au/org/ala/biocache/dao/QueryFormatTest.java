@@ -132,7 +132,7 @@ public class QueryFormatTest {
                 new SearchQueryTester("lsid:urn:lsid:biodiversity.org.au:afd.taxon:31a9b8b8-4e8f-4343-a15f-2ed24e0bf1ae", "lft:[", "species", false),
                 //new SearchQueryTester("lsid:urn:lsid:biodiversity.org.au:afd.taxon:7790064f-4ef7-4742-8112-6b0528d5f3fb", "lft:[", "species:", false),
                 new SearchQueryTester("lsid:urn:lsid:biodiversity.org.au:afd.taxon:test0064f-4ef7-4742-8112-6b0528d5f3fb", "lft:[0 TO 1]","<span class='lsid' id='urn:lsid:biodiversity.org.au:afd.taxon:test0064f-4ef7-4742-8112-6b0528d5f3fb'>SPECIES: null</span>", true),
-                new SearchQueryTester("lsid:urn:lsid:biodiversity.org.au:afd.taxon:7790064f-4ef7-4742-8112-6b0528d5ftest OR lsid:urn:lsid:biodiversity.org.au:afd.taxon:0064f-4ef7-4742-8112-6b0528d5f3fb", "lft:[0 TO 1] OR lft:[0 TO 1]","<span class='lsid' id='urn:lsid:biodiversity.org.au:afd.taxon:7790064f-4ef7-4742-8112-6b0528d5ftest'>SPECIES: null</span> OR <span class='lsid' id='urn:lsid:biodiversity.org.au:afd.taxon:0064f-4ef7-4742-8112-6b0528d5f3fb'>SPECIES: null</span>", true),
+                new SearchQueryTester("lsid:urn:lsid:biodiversity.org.au:afd.taxon:7790064f-4ef7-4742-8112-6b0528d5ftest OR lsid:urn:lsid:biodiversity.org.au:afd.taxon:0064f-4ef7-4742-8112-6b0528d5f3fb", "lft:[0 TO 1]","<span class='lsid' id='urn:lsid:biodiversity.org.au:afd.taxon:7790064f-4ef7-4742-8112-6b0528d5ftest'>SPECIES: null</span> OR <span class='lsid' id='urn:lsid:biodiversity.org.au:afd.taxon:0064f-4ef7-4742-8112-6b0528d5f3fb'>SPECIES: null</span>", true),
                 new SearchQueryTester("(lsid:urn:lsid:biodiversity.org.au:afd.taxon:test0064f-4ef7-4742-8112-6b0528d5f3fb)", "(lft:[0 TO 1])","(<span class='lsid' id='urn:lsid:biodiversity.org.au:afd.taxon:test0064f-4ef7-4742-8112-6b0528d5f3fb'>SPECIES: null</span>)", true),
                 new SearchQueryTester("geohash:\"Intersects(Circle(125.0 -14.0 d=0.9009009))\" AND *:*","Intersects(Circle","within", false),
                 new SearchQueryTester("qid:"+ 1, "", "", false),
@@ -0,0 +1,479 @@
+package au.org.ala.biocache.dao;
+
+import au.org.ala.biocache.dto.IndexFieldDTO;
+import au.org.ala.biocache.dto.OccurrenceIndex;
+import au.org.ala.biocache.dto.SearchResultDTO;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import au.org.ala.biocache.dto.SpeciesGroupDTO;
+import au.org.ala.biocache.service.SpeciesLookupService;
+import au.org.ala.biocache.util.QueryFormatUtils;
+import au.org.ala.biocache.util.SpatialUtils;
+import au.com.bytecode.opencsv.CSVReader;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link SearchDAOImpl} that run against a mocked SOLR client.
+ */
+public class SearchDAOImplTest {
+
+    private SearchDAOImpl searchDAO;
+    private SolrClient solrClient;
+
+    @Before
+    public void setUp() throws Exception {
+        solrClient = mock(SolrClient.class);
+        searchDAO = new SearchDAOImpl();
+        searchDAO.solrClient = solrClient;
+        searchDAO.queryFormatUtils = mock(QueryFormatUtils.class);
+    }
+
+    private static NamedList<Object> namedList(Object... keysAndValues) {
+        NamedList<Object> list = new NamedList<Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            list.add((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return list;
+    }
+
+    private QueryResponse response(long numFound, NamedList<Object> facets) {
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(numFound);
+        NamedList<Object> response = namedList("response", results);
+        if (facets != null) {
+            response.add("facets", facets);
+        }
+        return new QueryResponse(response, solrClient);
+    }
+
+    private QueryResponse facetResponse(String facet, List<String> values) {
+        NamedList<Object> counts = new NamedList<Object>();
+        for (String value : values) {
+            counts.add(value, 1L);
+        }
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(values.size());
+        return new QueryResponse(namedList("response", results,
+                "facet_counts", namedList("facet_fields", namedList(facet, counts))), solrClient);
+    }
+
+    private static List<String> values(String prefix, int from, int to) {
+        List<String> values = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            values.add(String.format(Locale.ROOT, "%s%05d", prefix, i));
+        }
+        return values;
+    }
+
+    /**
+     * Answers queries with the supplied responses in turn, keeping a copy of the parameters of each query as the
+     * same query object is modified for each page.
+     */
+    private List<SolrParams> answerQueries(final QueryResponse... responses) throws Exception {
+        final List<SolrParams> queries = Collections.synchronizedList(new ArrayList<SolrParams>());
+        doAnswer(new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                queries.add(new ModifiableSolrParams((SolrParams) invocation.getArgument(0)));
+                return responses[Math.min(queries.size(), responses.length) - 1];
+            }
+        }).when(solrClient).query(any(SolrParams.class), ArgumentMatchers.<SolrRequest.METHOD>any());
+        return queries;
+    }
+
+    private static List<String[]> readCsv(ByteArrayOutputStream out) throws Exception {
+        return new CSVReader(new StringReader(new String(out.toByteArray(), StandardCharsets.UTF_8))).readAll();
+    }
+
+    private static SpatialSearchRequestParams facetParams(String facet, String fsort) {
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setFormattedQuery("*:*");
+        params.setFacet(true);
+        params.setFacets(new String[]{facet});
+        params.setFsort(fsort);
+        return params;
+    }
+
+    private void setIndexField(String name, boolean multivalue) {
+        IndexFieldDTO field = new IndexFieldDTO();
+        field.setName(name);
+        field.setMultivalue(multivalue);
+        Map<String, IndexFieldDTO> fields = Collections.singletonMap(name, field);
+        ReflectionTestUtils.setField(searchDAO, "indexFieldMap", fields);
+    }
+
+    @Test
+    public void testGetCaseInsensitiveRegex() {
+        assertEquals("[uU][nN][kK][nN][oO][wW][nN]", SearchDAOImpl.getCaseInsensitiveRegex("Unknown"));
+        assertEquals("[nN][oO]\\ [nN][aA][mM][eE]\\/2", SearchDAOImpl.getCaseInsensitiveRegex("No name/2"));
+    }
+
+    @Test
+    public void testGetDistinctCountsByFacet() throws Exception {
+        NamedList<Object> birds = namedList("val", "Birds", "count", 60L, "distinct", 7L,
+                "ignored", namedList("count", 2L, "distinct", 2L));
+        NamedList<Object> plants = namedList("val", "Plants", "count", 40L, "distinct", 5L,
+                "ignored", namedList("count", 0L));
+        NamedList<Object> facets = namedList("count", 100L, "distinct", 12L,
+                "ignored", namedList("count", 2L, "distinct", 2L),
+                "values", namedList("buckets", Arrays.asList(birds, plants)));
+        when(solrClient.query(any(SolrParams.class), ArgumentMatchers.<SolrRequest.METHOD>any()))
+                .thenReturn(response(100, facets));
+
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setFormattedQuery("*:*");
+        SpeciesGroupDTO result = searchDAO.getDistinctCountsByFacet(params, "species_group", "taxon_name", "Unknown");
+
+        ArgumentCaptor<SolrParams> query = ArgumentCaptor.forClass(SolrParams.class);
+        verify(solrClient).query(query.capture(), ArgumentMatchers.<SolrRequest.METHOD>any());
+        String jsonFacet = query.getValue().get("json.facet");
+        assertTrue(jsonFacet, jsonFacet.contains("\"distinct\":\"unique(taxon_name)\""));
+        assertTrue(jsonFacet, jsonFacet.contains("\"field\":\"species_group\""));
+        assertTrue(jsonFacet, jsonFacet.contains("taxon_name:/[uU][nN][kK][nN][oO][wW][nN]/"));
+
+        // "Unknown" and "unknown" were both found, and neither is counted
+        assertEquals(100, result.getCount());
+        assertEquals(10, result.getSpeciesCount());
+        assertEquals(2, result.getChildGroups().size());
+        assertEquals("Birds", result.getChildGroups().get(0).getName());
+        assertEquals(60, result.getChildGroups().get(0).getCount());
+        assertEquals(5, result.getChildGroups().get(0).getSpeciesCount());
+        assertEquals("Plants", result.getChildGroups().get(1).getName());
+        assertEquals(40, result.getChildGroups().get(1).getCount());
+        assertEquals(5, result.getChildGroups().get(1).getSpeciesCount());
+    }
+
+    @Test
+    public void testGetDistinctCountsByFacetWithoutMatches() throws Exception {
+        // SOLR leaves out the facets when no records match
+        when(solrClient.query(any(SolrParams.class), ArgumentMatchers.<SolrRequest.METHOD>any()))
+                .thenReturn(response(0, null));
+
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setFormattedQuery("*:*");
+        SpeciesGroupDTO result = searchDAO.getDistinctCountsByFacet(params, "species_group", "taxon_name", "Unknown");
+
+        assertEquals(0, result.getCount());
+        assertEquals(0, result.getSpeciesCount());
+        assertTrue(result.getChildGroups().isEmpty());
+    }
+
+    @Test
+    public void testWriteFacetToStreamContinuesAfterLastValue() throws Exception {
+        setIndexField("state", false);
+        // the last value of the first page needs escaping in the range filter
+        List<String> firstPage = values("value", 0, SearchDAOImpl.FACET_PAGE_SIZE - 1);
+        firstPage.add("zz \"quoted\" ]value");
+        List<String> secondPage = values("zzz", 0, 3);
+        List<SolrParams> queries = answerQueries(facetResponse("state", firstPage), facetResponse("state", secondPage));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        searchDAO.writeFacetToStream(facetParams("state", "index"), true, false, false, false, out, null);
+
+        assertEquals(2, queries.size());
+        assertEquals(String.valueOf(SearchDAOImpl.FACET_PAGE_SIZE), queries.get(0).get("facet.limit"));
+        assertNull(queries.get(0).getParams("fq"));
+        assertArrayEquals(new String[]{"state:{zz\\ \\\"quoted\\\"\\ \\]value TO *]"}, queries.get(1).getParams("fq"));
+
+        List<String[]> rows = readCsv(out);
+        assertArrayEquals(new String[]{"state", "count"}, rows.get(0));
+        assertEquals(1 + firstPage.size() + secondPage.size(), rows.size());
+        assertEquals("zz \"quoted\" ]value", rows.get(firstPage.size())[0]);
+        assertEquals("zzz00002", rows.get(rows.size() - 1)[0]);
+    }
+
+    @Test
+    public void testWriteFacetToStreamPagesWithOffset() throws Exception {
+        // values of a multivalued field can not be continued, as a record can add to values on earlier pages
+        setIndexField("state", true);
+        List<String> firstPage = values("value", 0, SearchDAOImpl.FACET_PAGE_SIZE);
+        List<String> secondPage = values("value", SearchDAOImpl.FACET_PAGE_SIZE, SearchDAOImpl.FACET_PAGE_SIZE + 10);
+        List<SolrParams> queries = answerQueries(facetResponse("state", firstPage), facetResponse("state", secondPage));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        searchDAO.writeFacetToStream(facetParams("state", "index"), false, false, false, false, out, null);
+
+        assertEquals(2, queries.size());
+        assertEquals(String.valueOf(SearchDAOImpl.FACET_PAGE_SIZE), queries.get(0).get("facet.limit"));
+        assertNull(queries.get(0).get("facet.offset"));
+        assertEquals(String.valueOf(SearchDAOImpl.FACET_PAGE_SIZE), queries.get(1).get("facet.limit"));
+        assertEquals(String.valueOf(SearchDAOImpl.FACET_PAGE_SIZE), queries.get(1).get("facet.offset"));
+        assertNull(queries.get(1).getParams("fq"));
+        assertEquals(1 + firstPage.size() + secondPage.size(), readCsv(out).size());
+
+        // count sorted facets are paged with an offset too
+        setIndexField("state", false);
+        queries = answerQueries(facetResponse("state", firstPage), facetResponse("state", firstPage),
+                facetResponse("state", secondPage));
+        out = new ByteArrayOutputStream();
+        searchDAO.writeFacetToStream(facetParams("state", "count"), false, false, false, false, out, null);
+        assertEquals(3, queries.size());
+        assertEquals(String.valueOf(SearchDAOImpl.FACET_PAGE_SIZE), queries.get(0).get("facet.limit"));
+        assertEquals(String.valueOf(SearchDAOImpl.FACET_PAGE_SIZE * 2), queries.get(2).get("facet.offset"));
+        assertNull(queries.get(2).getParams("fq"));
+        assertEquals(1 + firstPage.size() * 2 + secondPage.size(), readCsv(out).size());
+    }
+
+    @Test
+    public void testWriteFacetToStreamTaxonLookupOrder() throws Exception {
+        final List<String> guids = values("urn:lsid:", 0, 2500);
+        answerQueries(facetResponse("species_guid", guids.subList(0, 1000)),
+                facetResponse("species_guid", guids.subList(1000, 2000)),
+                facetResponse("species_guid", guids.subList(2000, 2500)));
+        SpeciesLookupService speciesLookupService = mock(SpeciesLookupService.class);
+        when(speciesLookupService.getHeaderDetails(anyString(), anyBoolean(), anyBoolean())).thenReturn(new String[]{"guid", "count"});
+        // the first batch is the slowest, so later batches complete before it
+        when(speciesLookupService.getSpeciesDetails(anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean())).thenAnswer(new Answer<List<String[]>>() {
+            @Override
+            public List<String[]> answer(InvocationOnMock invocation) throws Throwable {
+                List<String> batch = invocation.getArgument(0);
+                List<Long> counts = invocation.getArgument(1);
+                if (batch.get(0).equals(guids.get(0))) {
+                    Thread.sleep(200);
+                }
+                List<String[]> rows = new ArrayList<String[]>();
+                for (int i = 0; i < batch.size(); i++) {
+                    rows.add(new String[]{batch.get(i), counts.get(i).toString()});
+                }
+                return rows;
+            }
+        });
+        searchDAO.speciesLookupService = speciesLookupService;
+        searchDAO.facetLookupBatchSize = 1000;
+        searchDAO.maxFacetLookupThreads = 2;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        searchDAO.writeFacetToStream(facetParams("species_guid", "count"), true, true, false, false, out, null);
+
+        verify(speciesLookupService, times(3)).getSpeciesDetails(anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean());
+        List<String[]> rows = readCsv(out);
+        assertEquals(1 + guids.size(), rows.size());
+        for (int i = 0; i < guids.size(); i++) {
+            assertEquals(guids.get(i), rows.get(i + 1)[0]);
+            assertEquals("1", rows.get(i + 1)[1]);
+        }
+    }
+
+    @Test
+    public void testIndexVersionListeners() throws Exception {
+        final List<Long> versions = new ArrayList<Long>(Arrays.asList(5L, 5L, 6L, 6L, 7L));
+        doAnswer(new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                return new QueryResponse(namedList("index", namedList("version", versions.remove(0))), solrClient);
+            }
+        }).when(solrClient).query(any(SolrParams.class), ArgumentMatchers.<SolrRequest.METHOD>any());
+        final List<String> changes = new ArrayList<String>();
+        searchDAO.addIndexVersionListener(new IndexVersionListener() {
+            @Override
+            public void indexVersionChanged(long oldVersion, long newVersion) {
+                changes.add(oldVersion + "->" + newVersion);
+            }
+        });
+
+        // the first version read is not a change
+        assertEquals(Long.valueOf(5), searchDAO.getIndexVersion(true));
+        assertTrue(changes.isEmpty());
+        assertEquals(Long.valueOf(5), searchDAO.getIndexVersion(true));
+        assertTrue(changes.isEmpty());
+        assertEquals(Long.valueOf(6), searchDAO.getIndexVersion(true));
+        assertEquals(Arrays.asList("5->6"), changes);
+        assertEquals(Long.valueOf(6), searchDAO.getIndexVersion(true));
+        assertEquals(Arrays.asList("5->6"), changes);
+        // cached values do not query the index again
+        assertEquals(Long.valueOf(6), searchDAO.getIndexVersion(false));
+        assertEquals(Long.valueOf(7), searchDAO.getIndexVersion(true));
+        assertEquals(Arrays.asList("5->6", "6->7"), changes);
+    }
+
+    @Test
+    public void testGetIndexFieldDataType() {
+        // the same types were reported when the Luke response was parsed with the pattern type=([a-z]+)
+        assertEquals("text", SearchDAOImpl.getIndexFieldDataType("text_general"));
+        assertEquals("string", SearchDAOImpl.getIndexFieldDataType("string"));
+        assertEquals("tdate", SearchDAOImpl.getIndexFieldDataType("tdate"));
+        assertEquals("tdouble", SearchDAOImpl.getIndexFieldDataType("tdouble"));
+        assertEquals("location", SearchDAOImpl.getIndexFieldDataType("location_rpt"));
+        assertNull(SearchDAOImpl.getIndexFieldDataType("Upper"));
+        assertNull(SearchDAOImpl.getIndexFieldDataType(""));
+    }
+
+    /**
+     * A SearchDAOImpl whose spatial searches find occurrences due north of 0,0 at the given distances (km), recording
+     * the radius of each search.
+     */
+    private SearchDAOImpl nearestSearchDAO(final List<Float> radii, final double... distances) {
+        return new SearchDAOImpl() {
+            @Override
+            public Long getIndexVersion(Boolean force) {
+                return 1L;
+            }
+
+            @Override
+            public SearchResultDTO findByFulltextSpatialQuery(SpatialSearchRequestParams searchParams, boolean includeSensitive, Map<String, String[]> extraParams) {
+                radii.add(searchParams.getRadius());
+                List<OccurrenceIndex> occurrences = new ArrayList<OccurrenceIndex>();
+                for (double distance : distances) {
+                    if (distance <= searchParams.getRadius() && occurrences.size() < searchParams.getPageSize()) {
+                        OccurrenceIndex occurrence = new OccurrenceIndex();
+                        occurrence.setDecimalLatitude(Math.toDegrees(distance / 6371.0));
+                        occurrence.setDecimalLongitude(0.0);
+                        occurrences.add(occurrence);
+                    }
+                }
+                SearchResultDTO result = new SearchResultDTO();
+                result.setOccurrences(occurrences);
+                return result;
+            }
+        };
+    }
+
+    private static SpatialSearchRequestParams nearestParams() {
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setQ("*:*");
+        params.setLat(0f);
+        params.setLon(0f);
+        return params;
+    }
+
+    private static double distanceInKm(OccurrenceIndex occurrence) {
+        return SpatialUtils.distanceInMetres(0, 0, occurrence.getDecimalLatitude(), occurrence.getDecimalLongitude()) / 1000;
+    }
+
+    @Test
+    public void testFindNearestOccurrencesGrowsRadius() throws Exception {
+        List<Float> radii = new ArrayList<Float>();
+        SearchDAOImpl nearestDAO = nearestSearchDAO(radii, 0.5, 3, 3.9, 9, 20);
+
+        List<OccurrenceIndex> nearest = nearestDAO.findNearestOccurrences(nearestParams(), 3);
+
+        // 1km finds one occurrence. 4km finds three, but the third is beyond 0.95 of the radius, so a closer
+        // occurrence could have been missed outside the search circle. 16km is complete.
+        assertEquals(Arrays.asList(1f, 4f, 16f), radii);
+        assertEquals(3, nearest.size());
+        assertEquals(0.5, distanceInKm(nearest.get(0)), 0.01);
+        assertEquals(3, distanceInKm(nearest.get(1)), 0.01);
+        assertEquals(3.9, distanceInKm(nearest.get(2)), 0.01);
+    }
+
+    @Test
+    public void testFindNearestOccurrencesWithinFirstRadius() throws Exception {
+        List<Float> radii = new ArrayList<Float>();
+        SearchDAOImpl nearestDAO = nearestSearchDAO(radii, 0.5, 3, 3.7, 9, 20);
+        SpatialSearchRequestParams params = nearestParams();
+        params.setRadius(4f);
+
+        // the third occurrence is within 0.95 of the requested radius, so one search is enough
+        assertEquals(3, nearestDAO.findNearestOccurrences(params, 3).size());
+        assertEquals(Arrays.asList(4f), radii);
+    }
+
+    @Test
+    public void testFindNearestOccurrencesStopsAtMaxRadius() throws Exception {
+        List<Float> radii = new ArrayList<Float>();
+        SearchDAOImpl nearestDAO = nearestSearchDAO(radii, 0.5, 3, 9, 20);
+        nearestDAO.nearestMaxRadius = 10;
+
+        // fewer than k occurrences are returned when the largest radius is searched
+        assertEquals(3, nearestDAO.findNearestOccurrences(nearestParams(), 5).size());
+        assertEquals(Arrays.asList(1f, 4f, 10f), radii);
+    }
+
+    @Test
+    public void testFindNearestOccurrencesCached() throws Exception {
+        List<Float> radii = new ArrayList<Float>();
+        SearchDAOImpl nearestDAO = nearestSearchDAO(radii, 0.5, 3, 3.7);
+
+        List<OccurrenceIndex> nearest = nearestDAO.findNearestOccurrences(nearestParams(), 2);
+        assertEquals(2, radii.size());
+
+        // the starting radius does not change the result
+        SpatialSearchRequestParams params = nearestParams();
+        params.setRadius(100f);
+        assertEquals(nearest, nearestDAO.findNearestOccurrences(params, 2));
+        assertEquals(2, radii.size());
+
+        // the area and the returned fields do
+        params = nearestParams();
+        params.setWkt("POLYGON((-1 -1,1 -1,1 1,-1 1,-1 -1))");
+        nearestDAO.findNearestOccurrences(params, 2);
+        assertEquals(4, radii.size());
+
+        params = nearestParams();
+        params.setFl("id,latitude,longitude");
+        nearestDAO.findNearestOccurrences(params, 2);
+        assertEquals(6, radii.size());
+    }
+
+    @Test
+    public void testFindNearestOccurrencesSnapsToGrid() throws Exception {
+        List<Float> radii = new ArrayList<Float>();
+        SearchDAOImpl nearestDAO = nearestSearchDAO(radii, 0.5, 3, 3.7);
+        nearestDAO.nearestGridDegrees = 0.1;
+
+        // about 3.3km north of 0,0, which is searched from the grid point 0,0
+        SpatialSearchRequestParams params = nearestParams();
+        params.setLat(0.03f);
+        List<OccurrenceIndex> nearest = nearestDAO.findNearestOccurrences(params, 3);
+        assertEquals(Arrays.asList(1f, 4f), radii);
+        // the results are in order of distance from the requested point
+        assertEquals(3, distanceInKm(nearest.get(0)), 0.01);
+        assertEquals(3.7, distanceInKm(nearest.get(1)), 0.01);
+        assertEquals(0.5, distanceInKm(nearest.get(2)), 0.01);
+
+        // another point in the same grid cell is cached
+        params = nearestParams();
+        params.setLat(0.04f);
+        params.setLon(0.01f);
+        assertEquals(3, nearestDAO.findNearestOccurrences(params, 3).size());
+        assertEquals(2, radii.size());
+
+        // a point in the next grid cell is not
+        params = nearestParams();
+        params.setLat(0.06f);
+        nearestDAO.findNearestOccurrences(params, 3);
+        assertEquals(4, radii.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNearestRadiusGrowthMustGrow() throws Exception {
+        searchDAO.nearestRadiusGrowth = 1;
+        searchDAO.init();
+    }
+}
@@ -0,0 +1,52 @@
+package au.org.ala.biocache.dao;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static au.org.ala.biocache.dao.TaxonDAOImpl.TaxonNode;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for writing the WMS layer hierarchy in {@link TaxonDAOImpl}.
+ */
+public class TaxonDAOImplTest {
+
+    private static TaxonNode node(String name, TaxonNode... children) {
+        return new TaxonNode(name, children);
+    }
+
+    private static int count(String s, String fragment) {
+        int count = 0;
+        for (int i = s.indexOf(fragment); i >= 0; i = s.indexOf(fragment, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testWriteSpeciesGroupHierarchy() throws Exception {
+        TaxonNode root = node(null,
+                node("Birds",
+                        node("PASSERIFORMES",
+                                node("Maluridae",
+                                        node("Malurus", node("Malurus cyaneus"), node("Malurus (Malurus) lamberti")))),
+                        node("CASUARIIFORMES")));
+
+        StringWriter writer = new StringWriter();
+        new TaxonDAOImpl().writeHierarchy("http://localhost/ogc/getMetadata", root, TaxonDAOImpl.SPECIES_GROUP_RANKS, writer);
+        String xml = writer.toString();
+
+        // every layer is closed, including the species group layers
+        assertEquals(count(xml, "<Layer"), count(xml, "</Layer>"));
+        assertEquals(1, count(xml, "<Layer><Name>Birds</Name>"));
+        assertEquals(1, count(xml, "<Name>order:PASSERIFORMES</Name>"));
+        assertEquals(1, count(xml, "<Name>order:CASUARIIFORMES</Name>"));
+        assertEquals(1, count(xml, "<Name>family:Maluridae</Name>"));
+        assertEquals(1, count(xml, "<Name>genus:Malurus</Name>"));
+        assertEquals(1, count(xml, "<Name>species:Malurus_cyaneus</Name>"));
+        // the subgenus is removed from the layer name
+        assertEquals(1, count(xml, "<Name>species:Malurus_lamberti</Name>"));
+        assertEquals(2, count(xml, "<MetadataURL"));
+    }
+}
@@ -0,0 +1,80 @@
+package au.org.ala.biocache.heatmap;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests for {@link HeatMap}.
+ */
+public class HeatMapTest {
+
+    // default image bounding box and size
+    private static final double MIN_X = 110.911;
+    private static final double MIN_Y = -44.778;
+    private static final double MAX_X = 156.113;
+    private static final double MAX_Y = -9.221;
+    private static final int RADIUS = 8;
+    private static final int NUM_COLOURS = 10;
+
+    /**
+     * Sums the circle of every point one at a time, as the density was calculated before it was precomputed.
+     */
+    private static int[] referenceDensity(double[] points, int width, int height) {
+        int[][] dPoints = new int[width][height];
+        for (int i = 0; i < points.length; i += 2) {
+            double x = (points[i] - MIN_X) / (MAX_X - MIN_X);
+            double y = (points[i + 1] - MIN_Y) / (MAX_Y - MIN_Y);
+            int px = new Double(x * width).intValue();
+            int py = new Double((1 - y) * height).intValue();
+
+            int pradius = RADIUS * RADIUS;
+            for (int ci = px - RADIUS; ci <= px + RADIUS; ci++) {
+                for (int cj = py - RADIUS; cj <= py + RADIUS; cj++) {
+                    if (ci >= 0 && ci < width && cj >= 0 && cj < height) {
+                        double d = Math.pow((px - ci), 2) + Math.pow((py - cj), 2);
+                        if ((int) d <= pradius) {
+                            dPoints[ci][cj] += NUM_COLOURS - ((d * NUM_COLOURS) / pradius);
+                        }
+                    }
+                }
+            }
+        }
+
+        int[] density = new int[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                density[y * width + x] = dPoints[x][y];
+            }
+        }
+        return density;
+    }
+
+    private static double[] randomPoints(Random random, int size, double minX, double minY, double maxX, double maxY) {
+        double[] points = new double[size * 2];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = minX + random.nextDouble() * (maxX - minX);
+            points[i + 1] = minY + random.nextDouble() * (maxY - minY);
+        }
+        return points;
+    }
+
+    @Test
+    public void testDensity() throws Exception {
+        HeatMap heatMap = new HeatMap();
+        Random random = new Random(1);
+
+        // points inside and around the image, clustered points, and enough points to sum in parallel
+        double[][] tests = {
+                randomPoints(random, 100, MIN_X - 2, MIN_Y - 2, MAX_X + 2, MAX_Y + 2),
+                randomPoints(random, 5000, 147, -36, 149, -35),
+                randomPoints(random, 50000, MIN_X, MIN_Y, MAX_X, MAX_Y),
+                new double[]{MIN_X, MIN_Y, MAX_X, MAX_Y, 0, 0, 180, 90}
+        };
+        for (double[] points : tests) {
+            assertArrayEquals(referenceDensity(points, 512, 454), heatMap.density(points));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package au.org.ala.biocache.service;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadRequestParams;
+import au.org.ala.biocache.dto.FacetThemes;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DownloadResultCache}.
+ */
+public class DownloadResultCacheTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private DownloadResultCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        //init FacetThemes
+        new FacetThemes();
+
+        cache = new DownloadResultCache();
+        cache.cacheDir = tempDir.newFolder("cache").getPath();
+    }
+
+    private DownloadRequestParams params(String... fqs) {
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setQ("taxon_name:\"Acacia dealbata\"");
+        params.setFq(fqs);
+        params.setFields("id,scientificName");
+        return params;
+    }
+
+    /**
+     * Writes a download archive with its data split into two entries, followed by a citation entry, and adds it
+     * to the cache.
+     */
+    private void writeAndCache(String key, String fileName, File file) throws IOException {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO();
+        dd.setTotalRecords(2);
+        dd.updateCounts(2);
+        dd.setMiscFields(new String[]{"misc"});
+        ConcurrentMap<String, AtomicInteger> uidStats = new ConcurrentHashMap<>();
+        uidStats.put("dr1", new AtomicInteger(2));
+
+        DownloadResultCache.CachedResult result;
+        try (OptionalZipOutputStream sp = new OptionalZipOutputStream(file, 4000, 0, null)) {
+            sp.putNextEntry(fileName + ".csv");
+            sp.write("id1\n".getBytes(StandardCharsets.UTF_8));
+            sp.putNextEntry(fileName + "_part2.csv");
+            sp.write("id2\n".getBytes(StandardCharsets.UTF_8));
+            sp.closeEntry();
+            result = cache.createResult(sp, 0, fileName, 1L, uidStats, dd);
+            sp.putNextEntry("citation.csv");
+            sp.write(("citation for " + fileName).getBytes(StandardCharsets.UTF_8));
+        }
+        cache.put(key, file, result);
+    }
+
+    private List<String> readEntries(File file, List<String> content) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                names.add(entry.getName());
+                content.add(IOUtils.toString(zip.getInputStream(entry), StandardCharsets.UTF_8));
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testKeyNormalisation() {
+        String key = cache.getKey(params("a:1", "b:2"), false, null, 1L);
+        assertEquals(key, cache.getKey(params(" b:2", "a:1 ", ""), false, null, 1L));
+
+        DownloadRequestParams otherUser = params("a:1", "b:2");
+        otherUser.setEmail("someone@example.org");
+        otherUser.setFile("myDownload");
+        otherUser.setReasonTypeId(4);
+        assertEquals(key, cache.getKey(otherUser, false, null, 1L));
+
+        assertNotEquals(key, cache.getKey(params("a:1"), false, null, 1L));
+        assertNotEquals(key, cache.getKey(params("a:1", "b:2"), false, null, 2L));
+        assertNotEquals(key, cache.getKey(params("a:1", "b:2"), true, "sensitive:true", 1L));
+
+        DownloadRequestParams reordered = params("a:1", "b:2");
+        reordered.setFields("scientificName,id");
+        assertNotEquals(key, cache.getKey(reordered, false, null, 1L));
+    }
+
+    @Test
+    public void testCacheHit() throws Exception {
+        String key = cache.getKey(params("a:1"), false, null, 1L);
+        writeAndCache(key, "data", new File(tempDir.getRoot(), "first/data.zip"));
+
+        File file = new File(tempDir.getRoot(), "second/records.zip");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO();
+        ConcurrentMap<String, AtomicInteger> uidStats;
+        try (OptionalZipOutputStream sp = new OptionalZipOutputStream(file, 4000, 0, null)) {
+            uidStats = cache.writeCached(key, sp, "records", dd);
+            sp.putNextEntry("citation.csv");
+            sp.write("citation for records".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertNotNull(uidStats);
+        assertEquals(2, uidStats.get("dr1").get());
+        assertEquals(2, dd.getTotalRecords());
+        assertEquals(2, dd.getRecordsDownloaded().get());
+        assertEquals("misc", dd.getMiscFields()[0]);
+
+        List<String> content = new ArrayList<>();
+        List<String> names = readEntries(file, content);
+        assertEquals(3, names.size());
+        assertEquals("records.csv", names.get(0));
+        assertEquals("records_part2.csv", names.get(1));
+        assertEquals("citation.csv", names.get(2));
+        assertEquals("id1\n", content.get(0));
+        assertEquals("id2\n", content.get(1));
+        assertEquals("citation for records", content.get(2));
+    }
+
+    @Test
+    public void testCacheMiss() throws Exception {
+        File file = new File(tempDir.getRoot(), "records.zip");
+        try (OptionalZipOutputStream sp = new OptionalZipOutputStream(file, 4000, 0, null)) {
+            assertNull(cache.writeCached("missing", sp, "records", new DownloadDetailsDTO()));
+            assertTrue(sp.getCompletedEntries().isEmpty());
+        }
+    }
+
+    @Test
+    public void testEvictionByDiskBudget() throws Exception {
+        final long[] budget = {Long.MAX_VALUE};
+        cache = new DownloadResultCache() {
+            @Override
+            protected long getMaxBytes() {
+                return budget[0];
+            }
+        };
+        File cacheDir = tempDir.newFolder("budget");
+        cache.cacheDir = cacheDir.getPath();
+
+        writeAndCache("first", "data", new File(tempDir.getRoot(), "first.zip"));
+        writeAndCache("second", "data", new File(tempDir.getRoot(), "second.zip"));
+        new File(cacheDir, "first.json").setLastModified(System.currentTimeMillis() - 60000);
+        assertTrue(new File(cacheDir, "first.json").exists());
+        assertTrue(new File(cacheDir, "second.json").exists());
+
+        // the least recently used entry is removed when the budget is exceeded
+        budget[0] = new File(cacheDir, "second.json").length() + new File(cacheDir, "second.zip").length();
+        cache.evict(1L);
+        assertFalse(new File(cacheDir, "first.json").exists());
+        assertFalse(new File(cacheDir, "first.zip").exists());
+        assertTrue(new File(cacheDir, "second.json").exists());
+        assertTrue(new File(cacheDir, "second.zip").exists());
+
+        // entries for other index versions are removed even within the budget
+        budget[0] = Long.MAX_VALUE;
+        cache.evict(2L);
+        assertFalse(new File(cacheDir, "second.json").exists());
+        assertFalse(new File(cacheDir, "second.zip").exists());
+    }
+}
@@ -4,14 +4,33 @@
 package au.org.ala.biocache.service;
 
 import static org.junit.Assert.*;
-
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import org.junit.After;
 import org.junit.Before;
@@ -20,16 +39,22 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.context.event.ContextClosedEvent;
 import org.springframework.context.support.GenericApplicationContext;
 
 import au.org.ala.biocache.dao.JsonPersistentQueueDAOImpl;
 import au.org.ala.biocache.dao.PersistentQueueDAO;
+import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dao.SearchDAOImpl;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.dto.DownloadRequestParams;
 import au.org.ala.biocache.dto.FacetThemes;
+import au.org.ala.biocache.stream.DownloadCheckpoint;
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.thread.DownloadCreator;
 
 /**
@@ -319,6 +344,105 @@ public class DownloadServiceTest {
         fail("Not yet implemented"); // TODO
     }
 
+    /**
+     * Test that an offline download resumed from a checkpoint writes each record once, with the records before the
+     * checkpoint copied from the partial archive and the rest written by the search.
+     */
+    @Test
+    public final void testWriteQueryToArchiveResumesWithoutDuplicates() throws Exception {
+        final int records = 1000;
+        final int crashAt = 700;
+        final File archiveFile = new File(testDownloadDir.toFile(), "resume/data.zip");
+        File readmeTemplate = tempDir.newFile("readme.html");
+        FileUtils.writeStringToFile(readmeTemplate, "[url]", StandardCharsets.UTF_8);
+
+        SearchDAO searchDAO = mock(SearchDAO.class);
+        when(searchDAO.getIndexVersion(false)).thenReturn(1L);
+        // writes the records after the resume checkpoint, if any, and crashes part way through the first attempt
+        doAnswer(new Answer<ConcurrentMap<String, AtomicInteger>>() {
+            private boolean crashed = false;
+
+            @Override
+            public ConcurrentMap<String, AtomicInteger> answer(InvocationOnMock invocation) throws Throwable {
+                OptionalZipOutputStream sp = invocation.getArgument(1);
+                DownloadCheckpoint resumeFrom = sp.getResumeCheckpoint();
+                for (int i = resumeFrom != null ? (int) resumeFrom.getRecordsWritten() : 0; i < records; i++) {
+                    if (i == crashAt && !crashed) {
+                        crashed = true;
+                        throw new IOException("Simulated crash");
+                    }
+                    byte[] record = ("record" + i + "\n").getBytes(StandardCharsets.UTF_8);
+                    sp.write(record);
+                    sp.isNewFile(null, record.length);
+                    if (sp.isCheckpointDue()) {
+                        DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+                        checkpoint.setIndexVersion(1L);
+                        checkpoint.setRecordsWritten(i + 1);
+                        sp.saveCheckpoint(checkpoint);
+                    }
+                }
+                return new ConcurrentHashMap<String, AtomicInteger>();
+            }
+        }).when(searchDAO).writeResultsFromIndexToStream(any(DownloadRequestParams.class), any(OutputStream.class),
+                anyBoolean(), any(DownloadDetailsDTO.class), anyBoolean(), ArgumentMatchers.<ExecutorService>any());
+
+        testService.searchDAO = searchDAO;
+        testService.maxMB = 4000;
+        testService.citationsEnabled = false;
+        testService.headingsEnabled = false;
+        testService.biocacheDownloadReadmeTemplate = readmeTemplate.getAbsolutePath();
+        testService.biocacheDownloadUrl = "http://localhost/biocache-download";
+        testService.init();
+
+        DownloadRequestParams params = new DownloadRequestParams();
+        params.setQ("*:*");
+        params.setDisplayString("All records");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, "::1", DownloadType.RECORDS_INDEX);
+        dd.setFileLocation(archiveFile.getAbsolutePath());
+        try {
+            testService.writeQueryToArchive(dd, params, "::1", new OptionalZipOutputStream(archiveFile, 4000, 2000, null),
+                    false, true, false, null, null);
+            fail("The first attempt should crash");
+        } catch (IOException e) {
+            // expected
+        }
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.read(archiveFile);
+        assertNotNull(checkpoint);
+        assertTrue(checkpoint.getRecordsWritten() > 0);
+        assertTrue(checkpoint.getRecordsWritten() < crashAt);
+
+        testService.writeQueryToArchive(dd, params, "::1", testService.openDownloadArchive(archiveFile, true),
+                false, true, false, null, null);
+
+        List<String> written = new ArrayList<String>();
+        try (ZipFile zip = new ZipFile(archiveFile)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.getName().startsWith("data")) {
+                    written.addAll(IOUtils.readLines(zip.getInputStream(entry), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        assertEquals(records, written.size());
+        for (int i = 0; i < records; i++) {
+            assertEquals("record" + i, written.get(i));
+        }
+    }
+
+    @Test
+    public final void testCheckpointDefaultsToArchiveSplit() throws Exception {
+        testService.maxMB = 4000;
+        OptionalZipOutputStream archive = testService.openDownloadArchive(new File(testDownloadDir.toFile(), "split/data.zip"), true);
+        try {
+            assertTrue(archive.isCheckpointEnabled());
+            archive.putNextEntry("data.csv");
+            // without download.checkpoint.mb the entries are only split at zip.file.size.mb.max
+            assertFalse(archive.isNewFile(null, 1000 * 1024L * 1024L));
+            assertTrue(archive.isNewFile(null, 3000 * 1024L * 1024L));
+        } finally {
+            archive.close();
+        }
+    }
+
     /**
      * Test method for
      * {@link DownloadService#getCitations(java.util.concurrent.ConcurrentMap, java.io.OutputStream, char, char, List, List)}.
@@ -0,0 +1,161 @@
+package au.org.ala.biocache.stream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for checkpointing and resuming {@link OptionalZipOutputStream} archives.
+ */
+public class OptionalZipOutputStreamTest {
+
+    private static final int RECORDS = 1000;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static byte[] record(int i) {
+        return ("record" + i + ",value" + i + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes records until the crash point, saving a checkpoint whenever one is due.
+     *
+     * @return The number of records written before the last checkpoint
+     */
+    private int writeRecords(OptionalZipOutputStream sp, int from, int to) throws IOException {
+        int checkpointed = -1;
+        for (int i = from; i < to; i++) {
+            byte[] record = record(i);
+            sp.write(record);
+            sp.isNewFile(null, record.length);
+            if (sp.isCheckpointDue()) {
+                DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+                checkpoint.setRecordsWritten(i + 1);
+                sp.saveCheckpoint(checkpoint);
+                checkpointed = i + 1;
+            }
+        }
+        return checkpointed;
+    }
+
+    private List<String> readRecords(File file, List<String> entryNames) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                entryNames.add(entry.getName());
+                if (entry.getName().startsWith("data")) {
+                    for (String line : IOUtils.readLines(zip.getInputStream(entry), StandardCharsets.UTF_8)) {
+                        records.add(line);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void testResumeAfterCrash() throws Exception {
+        File file = new File(tempDir.getRoot(), "download/data.zip");
+
+        OptionalZipOutputStream sp = new OptionalZipOutputStream(file, 4000, 2000, null);
+        assertTrue(sp.isCheckpointEnabled());
+        sp.putNextEntry("data.csv");
+        int checkpointed = writeRecords(sp, 0, 700);
+        sp.flush();
+        // simulate a crash part way through an entry, leaving a truncated archive without a central directory
+        try (FileOutputStream junk = new FileOutputStream(file, true)) {
+            junk.write("partial entry".getBytes(StandardCharsets.UTF_8));
+        }
+
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.read(file);
+        assertNotNull(checkpoint);
+        assertEquals(checkpointed, checkpoint.getRecordsWritten());
+        assertEquals("data.csv", checkpoint.getCurrentEntry());
+        assertEquals(checkpoint.getEntries().size() + 1, checkpoint.getSplitCount());
+
+        try (OptionalZipOutputStream resumed = new OptionalZipOutputStream(file, 4000, 2000, checkpoint)) {
+            resumed.putNextEntry("data.csv");
+            // the checkpoint is still available to the writer of the entry
+            assertSame(checkpoint, resumed.getResumeCheckpoint());
+            writeRecords(resumed, (int) checkpoint.getRecordsWritten(), RECORDS);
+            resumed.closeEntry();
+            resumed.putNextEntry("README.html");
+            resumed.write("readme".getBytes(StandardCharsets.UTF_8));
+            resumed.closeEntry();
+        }
+        DownloadCheckpoint.delete(file);
+        assertFalse(DownloadCheckpoint.getCheckpointFile(file).exists());
+        assertFalse(new File(file.getPath() + ".partial").exists());
+
+        List<String> entryNames = new ArrayList<>();
+        List<String> records = readRecords(file, entryNames);
+        assertEquals(RECORDS, records.size());
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals("record" + i + ",value" + i, records.get(i));
+        }
+        assertEquals("data.csv", entryNames.get(0));
+        assertEquals("data_part2.csv", entryNames.get(1));
+        assertEquals("README.html", entryNames.get(entryNames.size() - 1));
+    }
+
+    @Test
+    public void testResumeFromTruncatedArchiveFails() throws Exception {
+        File file = new File(tempDir.getRoot(), "data.zip");
+
+        OptionalZipOutputStream sp = new OptionalZipOutputStream(file, 4000, 2000, null);
+        sp.putNextEntry("data.csv");
+        writeRecords(sp, 0, 300);
+        sp.close();
+
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.read(file);
+        assertNotNull(checkpoint);
+        // lose the end of the archive
+        try (FileOutputStream truncate = new FileOutputStream(file, true)) {
+            truncate.getChannel().truncate(checkpoint.getEntries().get(checkpoint.getEntries().size() - 1).getDataOffset());
+        }
+
+        try {
+            new OptionalZipOutputStream(file, 4000, 2000, checkpoint).close();
+            fail("A truncated archive must not be resumed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNoCheckpointsWhenDisabled() throws Exception {
+        File file = new File(tempDir.getRoot(), "data.zip");
+
+        try (OptionalZipOutputStream sp = new OptionalZipOutputStream(file, 4000, 0, null)) {
+            assertFalse(sp.isCheckpointEnabled());
+            sp.putNextEntry("data.csv");
+            assertEquals(-1, writeRecords(sp, 0, RECORDS));
+            sp.closeEntry();
+        }
+        assertNull(DownloadCheckpoint.read(file));
+
+        List<String> entryNames = new ArrayList<>();
+        assertEquals(RECORDS, readRecords(file, entryNames).size());
+        assertEquals(1, entryNames.size());
+    }
+}
@@ -0,0 +1,122 @@
+package au.org.ala.biocache.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Tests for {@link FileStreamUtils}
+ */
+class FileStreamUtilsTest {
+
+	@Test
+	final void testParseRangeMissingOrUnsupported() {
+		assertNull(FileStreamUtils.parseRange(null, 100));
+		assertNull(FileStreamUtils.parseRange("items=0-10", 100));
+		assertNull(FileStreamUtils.parseRange("bytes=0-10,20-30", 100));
+		assertNull(FileStreamUtils.parseRange("bytes=a-b", 100));
+		assertNull(FileStreamUtils.parseRange("bytes=-", 100));
+	}
+
+	@Test
+	final void testParseRange() {
+		assertArrayEquals(new long[]{0, 9}, FileStreamUtils.parseRange("bytes=0-9", 100));
+		assertArrayEquals(new long[]{50, 99}, FileStreamUtils.parseRange("bytes=50-", 100));
+		assertArrayEquals(new long[]{90, 99}, FileStreamUtils.parseRange("bytes=-10", 100));
+		// end positions past the end of the resource are truncated
+		assertArrayEquals(new long[]{50, 99}, FileStreamUtils.parseRange("bytes=50-500", 100));
+		// suffix ranges longer than the resource return the whole resource
+		assertArrayEquals(new long[]{0, 99}, FileStreamUtils.parseRange("bytes=-500", 100));
+	}
+
+	@Test
+	final void testParseRangeNotSatisfiable() {
+		assertEquals(0, FileStreamUtils.parseRange("bytes=100-", 100).length);
+		assertEquals(0, FileStreamUtils.parseRange("bytes=20-10", 100).length);
+		assertEquals(0, FileStreamUtils.parseRange("bytes=-0", 100).length);
+	}
+
+	@Test
+	final void testServeFileRange() throws Exception {
+		File file = createFile("0123456789");
+		try {
+			MockHttpServletRequest request = new MockHttpServletRequest();
+			request.addHeader("Range", "bytes=2-4");
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			FileStreamUtils.serveFile(file, "text/plain", null, request, response);
+			assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+			assertEquals("bytes 2-4/10", response.getHeader("Content-Range"));
+			assertEquals("234", response.getContentAsString());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	final void testServeFileNotSatisfiable() throws Exception {
+		File file = createFile("0123456789");
+		try {
+			MockHttpServletRequest request = new MockHttpServletRequest();
+			request.addHeader("Range", "bytes=10-");
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			FileStreamUtils.serveFile(file, "text/plain", null, request, response);
+			assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+			assertEquals("bytes */10", response.getHeader("Content-Range"));
+			assertEquals("", response.getContentAsString());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	final void testServeFileMultipleRanges() throws Exception {
+		File file = createFile("0123456789");
+		try {
+			// multiple ranges are not supported, so the whole file is returned
+			MockHttpServletRequest request = new MockHttpServletRequest();
+			request.addHeader("Range", "bytes=0-1,3-4");
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			FileStreamUtils.serveFile(file, "text/plain", null, request, response);
+			assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+			assertNull(response.getHeader("Content-Range"));
+			assertEquals("0123456789", response.getContentAsString());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	final void testServeFileETag() throws Exception {
+		File file = createFile("0123456789");
+		try {
+			MockHttpServletRequest request = new MockHttpServletRequest();
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			FileStreamUtils.serveFile(file, "text/plain", null, "\"map-etag\"", request, response);
+			assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+			assertEquals("\"map-etag\"", response.getHeader("ETag"));
+
+			request = new MockHttpServletRequest();
+			request.addHeader("If-None-Match", "\"map-etag\"");
+			response = new MockHttpServletResponse();
+			FileStreamUtils.serveFile(file, "text/plain", null, "\"map-etag\"", request, response);
+			assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+			assertEquals("", response.getContentAsString());
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static File createFile(String content) throws Exception {
+		File file = File.createTempFile("filestreamutils", ".txt");
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,46 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link LftIntervals}.
+ */
+public class LftIntervalsTest {
+
+    @Test
+    public void testMerge() {
+        List<long[]> merged = LftIntervals.merge(Arrays.asList(
+                new long[]{30, 40}, new long[]{10, 20}, new long[]{12, 15}, new long[]{21, 25}, new long[]{38, 45},
+                new long[]{50, 60}));
+
+        assertEquals(3, merged.size());
+        assertEquals("[10, 25]", Arrays.toString(merged.get(0)));
+        assertEquals("[30, 45]", Arrays.toString(merged.get(1)));
+        assertEquals("[50, 60]", Arrays.toString(merged.get(2)));
+    }
+
+    @Test
+    public void testMergeClauses() {
+        List<String> merged = LftIntervals.mergeClauses(Arrays.asList(
+                "lft:[5 TO 9]", "taxon_concept_lsid:\"a\"", "lft:[1 TO 4]", "lft:[20 TO 30]"));
+
+        assertEquals(Arrays.asList("lft:[1 TO 9]", "lft:[20 TO 30]", "taxon_concept_lsid:\"a\""), merged);
+    }
+
+    @Test
+    public void testMergeDisjunction() {
+        assertEquals("lft:[1 TO 10]", LftIntervals.mergeDisjunction("lft:[1 TO 10] OR lft:[2 TO 3]"));
+        assertEquals("(lft:[1 TO 5] OR lft:[7 TO 9])",
+                LftIntervals.mergeDisjunction("(lft:[7 TO 9] OR (lft:[1 TO 2] OR lft:[3 TO 5]))"));
+
+        // other terms are left unchanged
+        assertEquals("lft:[1 TO 10] OR text:a", LftIntervals.mergeDisjunction("lft:[1 TO 10] OR text:a"));
+        assertEquals("lft:[1 TO 10] AND lft:[2 TO 3]", LftIntervals.mergeDisjunction("lft:[1 TO 10] AND lft:[2 TO 3]"));
+        assertEquals("-lft:[1 TO 10] OR lft:[2 TO 3]", LftIntervals.mergeDisjunction("-lft:[1 TO 10] OR lft:[2 TO 3]"));
+    }
+}
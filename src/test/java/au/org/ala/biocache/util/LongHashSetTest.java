@@ -0,0 +1,43 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LongHashSet}.
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void testAdd() {
+        LongHashSet set = new LongHashSet(4);
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertFalse(set.contains(1));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testResize() {
+        Random random = new Random(1);
+        Set<Long> expected = new HashSet<Long>();
+        LongHashSet set = new LongHashSet(16);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(50000) * (1L << 21);
+            assertEquals(expected.add(key), set.add(key));
+        }
+        assertEquals(expected.size(), set.size());
+        for (Long key : expected) {
+            assertTrue(set.contains(key));
+        }
+    }
+}
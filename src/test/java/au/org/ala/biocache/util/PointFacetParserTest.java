@@ -0,0 +1,101 @@
+package au.org.ala.biocache.util;
+
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link PointFacetParser}, with a comparison of its throughput to {@link Float#parseFloat(String)}.
+ */
+public class PointFacetParserTest {
+
+    private static final Logger logger = Logger.getLogger(PointFacetParserTest.class);
+
+    private static String[] randomPoints(int size, int decimals) {
+        Random random = new Random(1);
+        String[] values = new String[size];
+        String format = "%." + decimals + "f,%." + decimals + "f";
+        for (int i = 0; i < size; i++) {
+            values[i] = String.format(Locale.ROOT, format, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        }
+        return values;
+    }
+
+    private static void assertParsed(String value) {
+        float[] points = new float[2];
+        PointFacetParser.parse(value, points, 0);
+        int p = value.indexOf(',');
+        float lng = Float.parseFloat(value.substring(p + 1));
+        float lat = Float.parseFloat(value.substring(0, p));
+        assertEquals(value, lng, points[0], Math.ulp(lng));
+        assertEquals(value, lat, points[1], Math.ulp(lat));
+    }
+
+    @Test
+    public void testParse() {
+        float[] points = new float[4];
+        PointFacetParser.parse("-35.27,149.13", points, 2);
+        assertEquals(149.13f, points[2], 0);
+        assertEquals(-35.27f, points[3], 0);
+
+        for (String value : new String[]{"0,0", "-0.0,+1", "90,-180", "-35.,149.1", "1.5E-4,-2", "-35.123456789012345678,149.1"}) {
+            assertParsed(value);
+        }
+        for (int decimals = 0; decimals <= 8; decimals++) {
+            for (String value : randomPoints(10000, decimals)) {
+                assertParsed(value);
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        for (String value : new String[]{"", "-35.27", "-35.27,", "-,149", "a,b", "1.2.3,4"}) {
+            try {
+                PointFacetParser.parse(value, new float[2], 0);
+                fail("expected a NumberFormatException for " + value);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Compares the time to decode point facet values with the substring and Float.parseFloat decoding it replaced.
+     * It only logs the timings, so it is ignored by default; remove the @Ignore to run it by hand.
+     */
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void testThroughput() {
+        String[] values = randomPoints(200000, 2);
+        float[] points = new float[values.length * 2];
+
+        long parseFloat = Long.MAX_VALUE;
+        long parser = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < values.length; i++) {
+                String v = values[i];
+                int p = v.indexOf(',');
+                points[i * 2] = Float.parseFloat(v.substring(p + 1));
+                points[i * 2 + 1] = Float.parseFloat(v.substring(0, p));
+            }
+            parseFloat = Math.min(parseFloat, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < values.length; i++) {
+                PointFacetParser.parse(values[i], points, i * 2);
+            }
+            parser = Math.min(parser, System.nanoTime() - start);
+        }
+
+        logger.info("decoded " + values.length + " points: Float.parseFloat " + (values.length * 1000000000L / parseFloat) +
+                " points/s, PointFacetParser " + (values.length * 1000000000L / parser) + " points/s");
+    }
+}
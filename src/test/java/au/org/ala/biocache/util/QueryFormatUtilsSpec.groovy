@@ -1,5 +1,6 @@
 package au.org.ala.biocache.util
 
+import au.org.ala.biocache.dto.SpatialSearchRequestParams
 import au.org.ala.biocache.service.ListsService
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.google.common.io.Resources
@@ -13,11 +14,15 @@ class QueryFormatUtilsSpec extends Specification {
 
     def listsService = Stub(ListsService)
     def searchUtils = Stub(SearchUtils)
+    def rangeBasedFacets = Stub(RangeBasedFacets)
 
     def setup() {
 
         queryFormatUtils.listsService = listsService
         queryFormatUtils.searchUtils = searchUtils
+        queryFormatUtils.rangeBasedFacets = rangeBasedFacets
+        queryFormatUtils.wktDisplayString = ' - within user defined polygon'
+        queryFormatUtils.circleDisplayString = ' - within {0} km of point({1}, {2})'
 //        queryFormatUtils.searchUtils = new SearchUtils()
 //        queryFormatUtils.searchUtils.nameIndexLocation = '/data/lucene/namematching'
     }
@@ -70,6 +75,284 @@ class QueryFormatUtilsSpec extends Specification {
         '<span>before</span> species_list:dr123 <span>between</span> species_list:dr456 <span>after</span>' | 'field:before species_list:dr123 field:between species_list:dr456 field:after'   || '<span>before</span> <span class="species_list failed" id=\'dr123\'>dr123 (FAILED)</span> <span>between</span> <span class="species_list failed" id=\'dr456\'>dr456 (FAILED)</span> <span>after</span>' | 'field:before (NOT *:*) field:between (NOT *:*) field:after'
     }
 
+    def "test species_list: lft ranges and terms are partitioned"(List<String> items, String resultQuery) {
+        setup:
+        queryFormatUtils.maxBooleanClauses = 12
+        listsService.getListItems(_) >> items
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when:
+        def current = ['species_list:dr789', 'species_list:dr789'] as String[]
+        queryFormatUtils.formatSpeciesList(current)
+
+        then:
+        current[1] == resultQuery
+
+        where:
+        items                                                        || resultQuery
+        // nested and adjacent ranges are merged, the lsids that are not in the name index are a single terms query
+        ['10-20', '12-15', '30-40', '41-50', '60-70', 'urn:b', 'urn:a'] || '((lft:[10 TO 20] OR lft:[30 TO 50]) OR (lft:[60 TO 70] OR _query_:"{!terms f=taxon_concept_lsid}urn:a,urn:b"))'
+        ['10-20', '30-40', '50-60', '70-80', '90-100']               || '(((lft:[10 TO 20] OR lft:[30 TO 40]) OR (lft:[50 TO 60] OR lft:[70 TO 80])) OR ((lft:[90 TO 100])))'
+        ['10-20']                                                    || '((lft:[10 TO 20]))'
+        []                                                           || ''
+    }
+
+    def "test species_list: no boolean query has more than maxBooleanClauses"() {
+        setup:
+        queryFormatUtils.maxBooleanClauses = 12
+        def items = (0..<200).collect { "${it * 10}-${it * 10 + 5}".toString() } + (0..<50).collect { "urn:$it".toString() }
+        listsService.getListItems(_) >> items
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when:
+        def current = ['species_list:dr789', 'species_list:dr789'] as String[]
+        queryFormatUtils.formatSpeciesList(current)
+
+        then:
+        current[1].count('lft:[') == 200
+        current[1].count('{!terms') == 1
+        maxClauses(current[1]) <= queryFormatUtils.maxBooleanClauses - 10
+    }
+
+    def "test species_list: query is cached until the list items change"() {
+        setup:
+        def mockSearchUtils = Mock(SearchUtils)
+        queryFormatUtils.searchUtils = mockSearchUtils
+        queryFormatUtils.maxBooleanClauses = 12
+        def items = ['10-20', '30-40', 'urn:a']
+        listsService.getListItems('dr789') >> { new ArrayList(items) }
+
+        when: 'the list is expanded'
+        def first = speciesListQuery('dr789')
+
+        then:
+        3 * mockSearchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+        first == '((lft:[10 TO 20] OR lft:[30 TO 40]) OR (_query_:"{!terms f=taxon_concept_lsid}urn:a"))'
+
+        when: 'the list is unchanged'
+        def second = speciesListQuery('dr789')
+
+        then: 'the cached query is used'
+        0 * mockSearchUtils.getTaxonSearch(_)
+        second == first
+
+        when: 'an item is added to the list'
+        items = ['10-20', '30-40', 'urn:a', '50-60']
+        def third = speciesListQuery('dr789')
+
+        then: 'the query is built again'
+        4 * mockSearchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+        third == '((lft:[10 TO 20] OR lft:[30 TO 40]) OR (lft:[50 TO 60] OR _query_:"{!terms f=taxon_concept_lsid}urn:a"))'
+
+        when: 'maxBooleanClauses changes'
+        queryFormatUtils.maxBooleanClauses = 1024
+        def fourth = speciesListQuery('dr789')
+
+        then: 'the query is built again'
+        4 * mockSearchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+        fourth == '((lft:[10 TO 20] OR lft:[30 TO 40] OR lft:[50 TO 60] OR _query_:"{!terms f=taxon_concept_lsid}urn:a"))'
+
+        when: 'the cache is cleared'
+        queryFormatUtils.clearCache()
+        speciesListQuery('dr789')
+
+        then: 'the query is built again'
+        4 * mockSearchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+    }
+
+    def "test formatted query: a repeat query is served from the cache"() {
+        setup:
+        def mockListsService = Mock(ListsService)
+        queryFormatUtils.listsService = mockListsService
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when: 'the query is formatted'
+        def first = searchParams()
+        def firstFacets = queryFormatUtils.formatSearchQuery(first)
+
+        then:
+        1 * mockListsService.getListItems('dr789') >> ['10-20']
+        first.formattedQuery
+
+        when: 'the same query is formatted again'
+        def second = searchParams()
+        def secondFacets = queryFormatUtils.formatSearchQuery(second)
+
+        then: 'the cached output is used'
+        0 * mockListsService.getListItems(_)
+        second.displayString == first.displayString
+        second.formattedQuery == first.formattedQuery
+        second.formattedFq == first.formattedFq
+        secondFacets.keySet() == firstFacets.keySet()
+
+        when: 'a caller changes the output, and the query is formatted with a query context'
+        second.formattedFq[0] = 'changed'
+        secondFacets.clear()
+        def third = searchParams(qc: 'data_hub_uid:dh1')
+        def thirdFacets = queryFormatUtils.formatSearchQuery(third)
+
+        then: 'the cached output is unchanged, and the query context is added to it'
+        0 * mockListsService.getListItems(_)
+        third.formattedQuery == first.formattedQuery
+        third.formattedFq as List == (first.formattedFq as List) + 'data_hub_uid:dh1'
+        thirdFacets.keySet() == firstFacets.keySet()
+
+        when: 'the query is formatted without the query context'
+        def fourth = searchParams()
+        queryFormatUtils.formatSearchQuery(fourth)
+
+        then: 'the query context was not cached'
+        0 * mockListsService.getListItems(_)
+        fourth.formattedFq == first.formattedFq
+    }
+
+    def "test formatted query: the cache key includes each input that changes the output"() {
+        setup:
+        def mockListsService = Mock(ListsService)
+        queryFormatUtils.listsService = mockListsService
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when: 'the query is formatted'
+        queryFormatUtils.formatSearchQuery(searchParams())
+
+        then:
+        1 * mockListsService.getListItems(_) >> ['10-20', '30-40']
+
+        when: 'one input is changed'
+        def changed = searchParams()
+        change(changed, queryFormatUtils)
+        queryFormatUtils.formatSearchQuery(changed)
+
+        then: 'the query is formatted again'
+        1 * mockListsService.getListItems(_) >> ['10-20', '30-40']
+
+        where:
+        change << [
+                { p, u -> p.q = 'species_list:dr790' },
+                { p, u -> p.fq = ['year:2001', 'month:01'] as String[] },
+                { p, u -> p.fq = ['month:01', 'year:2000'] as String[] },
+                { p, u -> p.fq = null },
+                { p, u -> p.wkt = 'POLYGON((140 -30,150 -30,150 -40,140 -40,140 -30))' },
+                { p, u -> p.lat = -36.0f },
+                { p, u -> p.lon = 150.0f },
+                { p, u -> p.radius = 20.0f },
+                { p, u -> u.maxBooleanClauses = 12 }
+        ]
+    }
+
+    def "test formatted query: the cache is cleared and formatted queries expire"() {
+        setup:
+        def mockListsService = Mock(ListsService)
+        queryFormatUtils.listsService = mockListsService
+        queryFormatUtils.formattedQueryCacheTtl = 200
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when: 'the query is formatted'
+        queryFormatUtils.formatSearchQuery(searchParams())
+
+        then:
+        1 * mockListsService.getListItems('dr789') >> ['10-20']
+
+        when: 'the cache is cleared, as it is when the index changes'
+        queryFormatUtils.clearCache()
+        queryFormatUtils.formatSearchQuery(searchParams())
+
+        then: 'the query is formatted again'
+        1 * mockListsService.getListItems('dr789') >> ['10-20']
+
+        when: 'the formatted query expires'
+        Thread.sleep(400)
+        queryFormatUtils.formatSearchQuery(searchParams())
+
+        then: 'the query is formatted again'
+        1 * mockListsService.getListItems('dr789') >> ['10-20']
+    }
+
+    def "test formatted query: failed species list lookups are not cached"() {
+        setup:
+        def mockListsService = Mock(ListsService)
+        queryFormatUtils.listsService = mockListsService
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when: 'the species list lookup fails'
+        def failed = searchParams()
+        queryFormatUtils.formatSearchQuery(failed)
+
+        then:
+        1 * mockListsService.getListItems('dr789') >> { throw new RestClientException('Boom') }
+        failed.displayString.contains('species_list failed')
+
+        when: 'the query is formatted again'
+        def retried = searchParams()
+        queryFormatUtils.formatSearchQuery(retried)
+
+        then: 'the lookup is tried again'
+        1 * mockListsService.getListItems('dr789') >> ['10-20']
+        !retried.displayString.contains('species_list failed')
+    }
+
+    def "test formatted query: the cache can be disabled"() {
+        setup:
+        def mockListsService = Mock(ListsService)
+        queryFormatUtils.listsService = mockListsService
+        queryFormatUtils.formattedQueryCacheSize = 0
+        searchUtils.getTaxonSearch(_) >> { String lsid -> getTaxonSearch(lsid) }
+
+        when:
+        def first = searchParams()
+        queryFormatUtils.formatSearchQuery(first)
+        def second = searchParams()
+        queryFormatUtils.formatSearchQuery(second)
+
+        then: 'every query is formatted'
+        2 * mockListsService.getListItems('dr789') >> ['10-20']
+        second.formattedQuery == first.formattedQuery
+        second.formattedFq == first.formattedFq
+    }
+
+    /**
+     * A species list search within a circle, with the supplied properties changed.
+     */
+    private static SpatialSearchRequestParams searchParams(Map properties = [:]) {
+        def params = new SpatialSearchRequestParams(q: 'species_list:dr789', fq: ['year:2000', 'month:01'] as String[],
+                lat: -35.0f, lon: 149.0f, radius: 10.0f)
+        properties.each { name, value -> params[name] = value }
+        params
+    }
+
+    private String speciesListQuery(String uid) {
+        def current = ["species_list:$uid", "species_list:$uid"] as String[]
+        queryFormatUtils.formatSpeciesList(current)
+        current[1]
+    }
+
+    /**
+     * Items of the form 'lft-rgt' are in the name index, other items are searched by lsid.
+     */
+    private static String[] getTaxonSearch(String lsid) {
+        def range = lsid.split('-')
+        range.length == 2 ? ["lft:[${range[0]} TO ${range[1]}]", lsid] as String[] :
+                ["taxon_concept_lsid:${ClientUtils.escapeQueryChars(lsid)}", "taxon_concept_lsid:$lsid"] as String[]
+    }
+
+    /**
+     * The most clauses joined by OR in any parenthesised group of a query.
+     */
+    private static int maxClauses(String query) {
+        def counts = new LinkedList<Integer>()
+        int max = 0
+        for (int i = 0; i < query.length(); i++) {
+            if (query.charAt(i) == '(' as char) {
+                counts.push(1)
+            } else if (query.charAt(i) == ')' as char) {
+                max = Math.max(max, counts.pop())
+            } else if (query.startsWith(' OR ', i)) {
+                counts.push(counts.pop() + 1)
+            }
+        }
+        max
+    }
+
     private static ObjectMapper om = new ObjectMapper()
 
     private static String getResultQuery(String uid) {
@@ -0,0 +1,88 @@
+package au.org.ala.biocache.util;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SpatialUtils}.
+ */
+public class SpatialUtilsTest {
+
+    private static final String COLLECTION = "GEOMETRYCOLLECTION(POLYGON((142.79455566406 -33.134332591089,143.03076171875 -33.134332591089,143.03076171875 -32.940923212969,142.79455566406 -32.940923212969,142.79455566406 -33.134332591089)),MULTIPOLYGON(((143.96459960936 -32.763258819119,144.28320312499 -32.763258819119,144.28320312499 -32.494938181635,143.96459960936 -32.494938181635,143.96459960936 -32.763258819119)),((144.15136718749 -31.881290617098,144.53588867187 -31.881290617098,144.53588867187 -31.58228046593,144.15136718749 -31.58228046593,144.15136718749 -31.881290617098))),POLYGON((144 -32.6,144.2 -32.6,144.2 -32.4,144 -32.4,144 -32.6)))";
+
+    /**
+     * A circle with many points.
+     */
+    private static String circle(int points) {
+        StringBuilder sb = new StringBuilder("POLYGON((");
+        for (int i = 0; i <= points; i++) {
+            double a = 2 * Math.PI * (i % points) / points;
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(149 + 20 * Math.cos(a)).append(' ').append(-35 + 20 * Math.sin(a));
+        }
+        return sb.append("))").toString();
+    }
+
+    @Test
+    public void testWKTAsUnions() throws Exception {
+        GeometryCollection gc = (GeometryCollection) new WKTReader().read(COLLECTION);
+        Geometry expected = gc.getGeometryN(0);
+        for (int i = 1; i < gc.getNumGeometries(); i++) {
+            expected = expected.union(gc.getGeometryN(i));
+        }
+
+        String union = SpatialUtils.getWKTAsUnions(COLLECTION);
+        assertTrue(union, expected.equalsTopo(new WKTReader().read(union)));
+        assertSame(union, SpatialUtils.getWKTAsUnions(COLLECTION));
+
+        assertEquals("POINT (1 2)", SpatialUtils.getWKTAsUnions("POINT (1 2)"));
+    }
+
+    @Test
+    public void testWKTQuery() {
+        String query = SpatialUtils.getWKTQuery("geohash", COLLECTION, true);
+        assertTrue(query, query.startsWith("(-geohash:\"Intersects(POLYGON"));
+        assertEquals(3, query.split(" AND ").length);
+        assertEquals(query, SpatialUtils.getWKTQuery("geohash", COLLECTION, true));
+        assertEquals(query.replace("-geohash", "geohash").replace(" AND ", " OR "),
+                SpatialUtils.getWKTQuery("geohash", COLLECTION, false));
+    }
+
+    @Test
+    public void testSimplifyWkt() throws Exception {
+        String wkt = circle(20000);
+        assertSame(wkt, SpatialUtils.simplifyWkt(wkt, 30000));
+
+        String simplified = SpatialUtils.simplifyWkt(wkt, 1000);
+        Geometry g = new WKTReader().read(simplified);
+        assertTrue(g.getNumPoints() <= 1000);
+
+        // close to the least simplification with few enough points, not the largest tolerance
+        Geometry original = new WKTReader().read(wkt);
+        assertTrue(g.getArea() / original.getArea() > 0.999);
+        Geometry tooDetailed = TopologyPreservingSimplifier.simplify(original, 0.0001);
+        assertTrue(tooDetailed.getNumPoints() > 1000);
+
+        assertEquals(simplified, SpatialUtils.simplifyWkt(wkt, 1000));
+        assertNull(SpatialUtils.simplifyWkt("POLYGON((not wkt))", 10));
+    }
+
+    @Test
+    public void testDistanceInMetres() {
+        assertEquals(0, SpatialUtils.distanceInMetres(-35, 149, -35, 149), 0);
+        // one degree of latitude
+        assertEquals(111195, SpatialUtils.distanceInMetres(-35, 149, -36, 149), 1);
+        // Canberra to Sydney
+        assertEquals(247000, SpatialUtils.distanceInMetres(-35.28, 149.13, -33.87, 151.21), 2000);
+    }
+}
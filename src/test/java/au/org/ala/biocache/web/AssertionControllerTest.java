@@ -0,0 +1,141 @@
+package au.org.ala.biocache.web;
+
+import au.org.ala.biocache.model.QualityAssertion;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the batches of {@link AssertionController#addBulkAssertions}.
+ */
+public class AssertionControllerTest {
+
+    private AssertionController assertionController;
+    private final List<Map<String, QualityAssertion>> batches = Collections.synchronizedList(new ArrayList<Map<String, QualityAssertion>>());
+    private String failingComment;
+
+    @Before
+    public void setUp() {
+        assertionController = new AssertionController() {
+            @Override
+            public boolean shouldPerformOperation(HttpServletRequest request, HttpServletResponse response) {
+                return true;
+            }
+
+            @Override
+            protected void addUserAssertions(Map<String, QualityAssertion> batch) {
+                for (QualityAssertion qa : batch.values()) {
+                    if (qa.getComment().equals(failingComment)) {
+                        throw new RuntimeException("Simulated store failure");
+                    }
+                }
+                batches.add(new HashMap<String, QualityAssertion>(batch));
+            }
+        };
+        assertionController.bulkAssertionBatchSize = 2;
+        assertionController.bulkAssertionThreads = 2;
+    }
+
+    private static String assertion(String recordUuid, String comment) {
+        return "{\"recordUuid\":\"" + recordUuid + "\",\"code\":\"2000\",\"comment\":\"" + comment + "\"}";
+    }
+
+    private Map<String, Object> addBulkAssertions(String json, MockHttpServletResponse response) throws Exception {
+        return assertionController.addBulkAssertions(new MockHttpServletRequest(), "key", json, "user1", "User One", response);
+    }
+
+    /**
+     * @return The comments of the assertions added for a record, in the order they were added
+     */
+    private List<String> addedComments(String recordUuid) {
+        List<String> comments = new ArrayList<String>();
+        synchronized (batches) {
+            for (Map<String, QualityAssertion> batch : batches) {
+                if (batch.containsKey(recordUuid)) {
+                    comments.add(batch.get(recordUuid).getComment());
+                }
+            }
+        }
+        return comments;
+    }
+
+    @Test
+    public void testAddBulkAssertions() throws Exception {
+        String json = "[" + assertion("r1", "a") + "," + assertion("r2", "b") + "," + assertion("r1", "c") + "," +
+                assertion("r3", "d") + "," + assertion("r1", "e") + "," + assertion("r4", "f") + "]";
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        Map<String, Object> result = addBulkAssertions(json, response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("ADDED", result.get("status"));
+        assertEquals(6, result.get("added"));
+        // every assertion is added, those for the same record in separate batches and in order
+        assertEquals(Arrays.asList("a", "c", "e"), addedComments("r1"));
+        assertEquals(Arrays.asList("b"), addedComments("r2"));
+        int assertions = 0;
+        for (Map<String, QualityAssertion> batch : batches) {
+            assertTrue(batch.size() <= 2);
+            assertions += batch.size();
+        }
+        assertEquals(6, assertions);
+        assertEquals(batches.size(), ((List) result.get("batches")).size());
+    }
+
+    @Test
+    public void testInvalidBulkAssertionsAddNothing() throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 20; i++) {
+            json.append(assertion("r" + i, "c" + i)).append(',');
+        }
+        // an assertion without a record, after enough assertions to fill several batches
+        json.append("{\"code\":\"2000\"}]");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        Map<String, Object> result = addBulkAssertions(json.toString(), response);
+
+        assertEquals(400, response.getStatus());
+        assertEquals("INVALID", result.get("status"));
+        assertEquals(0, result.get("added"));
+        assertTrue(batches.isEmpty());
+
+        // nor does a list that is cut short
+        response = new MockHttpServletResponse();
+        result = addBulkAssertions("[" + assertion("r1", "a") + "," + assertion("r2", "b"), response);
+        assertEquals(400, response.getStatus());
+        assertEquals("INVALID", result.get("status"));
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchListsAddedBatches() throws Exception {
+        failingComment = "c";
+        String json = "[" + assertion("r1", "a") + "," + assertion("r1", "b") + "," + assertion("r1", "c") + "]";
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        Map<String, Object> result = addBulkAssertions(json, response);
+
+        assertEquals(400, response.getStatus());
+        assertEquals("PARTIAL", result.get("status"));
+        assertEquals(2, result.get("added"));
+        List<Map<String, Object>> results = (List<Map<String, Object>>) result.get("batches");
+        assertEquals(3, results.size());
+        assertEquals("ADDED", results.get(0).get("status"));
+        assertEquals("ADDED", results.get(1).get("status"));
+        assertEquals("FAILED", results.get(2).get("status"));
+        assertEquals(Arrays.asList("a", "b"), addedComments("r1"));
+    }
+}
@@ -0,0 +1,146 @@
+package au.org.ala.biocache.web;
+
+import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.FieldResultDTO;
+import au.org.ala.biocache.dto.IndexFieldDTO;
+import au.org.ala.biocache.dto.SearchResultDTO;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import net.sf.ehcache.CacheManager;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the concurrent queries and the cache of {@link ChartController}.
+ */
+public class ChartControllerTest {
+
+    private ChartController chartController;
+    private SearchDAO searchDAO;
+    private CacheManager cacheManager;
+    private final Set<String> queryThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Before
+    public void setUp() throws Exception {
+        searchDAO = mock(SearchDAO.class);
+        when(searchDAO.getIndexVersion(anyBoolean())).thenReturn(1L);
+        when(searchDAO.getIndexedFieldsMap()).thenReturn(Collections.<String, IndexFieldDTO>emptyMap());
+        // the range queries count 10 records before 1950 and 20 after
+        when(searchDAO.findByFulltextSpatialQuery(any(SpatialSearchRequestParams.class), isNull())).thenAnswer(new Answer<SearchResultDTO>() {
+            @Override
+            public SearchResultDTO answer(InvocationOnMock invocation) throws Throwable {
+                SpatialSearchRequestParams params = invocation.getArgument(0);
+                queryThreads.add(Thread.currentThread().getName());
+                SearchResultDTO result = new SearchResultDTO();
+                result.setTotalRecords(StringUtils.join(params.getFq(), " ").contains("year:[1900 TO 1950]") ? 10 : 20);
+                return result;
+            }
+        });
+
+        cacheManager = CacheManager.create();
+        if (!cacheManager.cacheExists("chartCache")) {
+            cacheManager.addCache("chartCache");
+        }
+
+        chartController = new ChartController();
+        ReflectionTestUtils.setField(chartController, "searchDAO", searchDAO);
+        ReflectionTestUtils.setField(chartController, "cacheManager", cacheManager);
+    }
+
+    @After
+    public void tearDown() {
+        chartController.destroy();
+        cacheManager.removeCache("chartCache");
+    }
+
+    private Map chart(String q) throws Exception {
+        SpatialSearchRequestParams params = new SpatialSearchRequestParams();
+        params.setQ(q);
+        return chartController.chart(params, "year", "1900,1950,2000", null, null, null, false, true, false, true, "index");
+    }
+
+    @Test
+    public void testRangesQueriedConcurrently() throws Exception {
+        Map chart = chart("*:*");
+
+        List series = (List) chart.get("data");
+        assertEquals(1, series.size());
+        List data = (List) ((Map) series.get(0)).get("data");
+        assertEquals(2, data.size());
+        assertEquals("1900 - 1950", ((FieldResultDTO) data.get(0)).getLabel());
+        assertEquals(10, ((FieldResultDTO) data.get(0)).getCount());
+        assertEquals("1950 - 2000", ((FieldResultDTO) data.get(1)).getLabel());
+        assertEquals(20, ((FieldResultDTO) data.get(1)).getCount());
+        for (String thread : queryThreads) {
+            assertTrue(thread, thread.startsWith("chartcontroller-pool-"));
+        }
+    }
+
+    @Test
+    public void testChartCached() throws Exception {
+        Map chart = chart("*:*");
+        assertSame(chart, chart("*:*"));
+        verify(searchDAO, times(2)).findByFulltextSpatialQuery(any(SpatialSearchRequestParams.class), isNull());
+
+        // the cached chart can not be changed by a caller
+        try {
+            chart.put("x", "changed");
+            fail("The cached chart should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            ((List) chart.get("data")).clear();
+            fail("The cached chart data should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals("year", chart("*:*").get("x"));
+
+        // a new index version is a new chart
+        when(searchDAO.getIndexVersion(anyBoolean())).thenReturn(2L);
+        chart("*:*");
+        verify(searchDAO, times(4)).findByFulltextSpatialQuery(any(SpatialSearchRequestParams.class), isNull());
+    }
+
+    @Test
+    public void testSpeciesListChartNotCached() throws Exception {
+        chart("species_list:dr123");
+        chart("species_list:dr123");
+        verify(searchDAO, times(4)).findByFulltextSpatialQuery(any(SpatialSearchRequestParams.class), isNull());
+    }
+
+    @Test
+    public void testDestroyStopsChartPool() throws Exception {
+        chart("*:*");
+        ExecutorService executor = (ExecutorService) ReflectionTestUtils.getField(chartController, "chartExecutor");
+
+        chartController.destroy();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,211 @@
+package au.org.ala.biocache.web;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the spooling of uploads and the loading of their records in batches.
+ */
+public class UploadControllerTest {
+
+    private static final String[] VALUES = {"1", "-42", "2.5", "1e3", "abc", "2010-01-01", "", " "};
+
+    private UploadController uploadController;
+    private File tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory(UploadControllerTest.class.getSimpleName()).toFile();
+        uploadController = new UploadController();
+        uploadController.uploadTempDir = tempDir.getAbsolutePath();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    @Test
+    public void testSpoolCSV() throws Exception {
+        String csv = "name,notes\n" +
+                "a,\"one line\"\n" +
+                "bb,\"first line\nsecond line\"\n" +
+                "ccc,\n";
+
+        SpooledCsv spooled = uploadController.spoolCSV(new StringReader(csv), ',', new String[]{"name", "notes"});
+
+        // the quoted value spanning two lines is one record
+        assertEquals(4, spooled.lineCount);
+        assertArrayEquals(new int[]{4, "first line\nsecond line".length()}, spooled.columnLengths);
+        assertEquals(csv, FileUtils.readFileToString(spooled.file));
+        assertEquals(tempDir, spooled.file.getParentFile());
+    }
+
+    @Test
+    public void testSpoolCSVSeparator() throws Exception {
+        String csv = "a\tb\tc\n" +
+                "12\t3\n";
+
+        SpooledCsv spooled = uploadController.spoolCSV(new StringReader(csv), '\t', new String[]{"a", "b", "c"});
+
+        assertEquals(2, spooled.lineCount);
+        assertArrayEquals(new int[]{2, 1, 1}, spooled.columnLengths);
+    }
+
+    @Test
+    public void testMergedColumnTypes() {
+        String[] headers = {"count", "size", "when", "name"};
+        List<String> automaticFieldList = Arrays.asList("count", "size", "when");
+
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            List<String[]> lines = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String[] line = new String[headers.length];
+                for (int j = 0; j < line.length; j++) {
+                    // mostly numbers, so some columns stay int or float
+                    line[j] = VALUES[random.nextInt(random.nextBoolean() ? 2 : VALUES.length)];
+                }
+                lines.add(line);
+            }
+
+            // the records checked in turn, as they were before batches were loaded concurrently
+            Set<String> intList = new HashSet<>(automaticFieldList);
+            Set<String> floatList = new HashSet<>();
+            Set<String> stringList = new HashSet<>();
+            Set<String> dateList = new HashSet<>(automaticFieldList);
+            for (String[] line : lines) {
+                updateColumnTypes(headers, line, intList, floatList, stringList, dateList);
+            }
+
+            for (int batchSize : new int[]{1, 3, 7, 20}) {
+                List<UploaderThread.RecordBatch> batches = new ArrayList<>();
+                for (int i = 0; i < lines.size(); i += batchSize) {
+                    UploaderThread.RecordBatch batch = new UploaderThread.RecordBatch(
+                            lines.subList(i, Math.min(i + batchSize, lines.size())), automaticFieldList);
+                    for (String[] line : batch.lines) {
+                        updateColumnTypes(headers, line, batch.intList, batch.floatList, batch.stringList, batch.dateList);
+                    }
+                    batches.add(batch);
+                }
+
+                Set<String> mergedIntList = new HashSet<>(automaticFieldList);
+                Set<String> mergedFloatList = new HashSet<>();
+                Set<String> mergedStringList = new HashSet<>();
+                Set<String> mergedDateList = new HashSet<>(automaticFieldList);
+                UploaderThread.mergeColumnTypes(automaticFieldList, batches, mergedIntList, mergedFloatList,
+                        mergedStringList, mergedDateList);
+
+                String message = "seed " + seed + ", batch size " + batchSize;
+                assertEquals(message, intList, mergedIntList);
+                assertEquals(message, floatList, mergedFloatList);
+                assertEquals(message, stringList, mergedStringList);
+                assertEquals(message, dateList, mergedDateList);
+            }
+        }
+    }
+
+    /**
+     * An upload of the supplied number of records, in batches of 10, whose store fails on the given record.
+     */
+    private UploaderThread uploaderThread(int records, final int failAt, final AtomicInteger loaded) throws Exception {
+        File csvFile = new File(tempDir, "upload.csv");
+        StringBuilder csv = new StringBuilder("name,count\n");
+        for (int i = 0; i < records; i++) {
+            csv.append("record").append(i).append(',').append(i).append('\n');
+        }
+        FileUtils.writeStringToFile(csvFile, csv.toString());
+
+        UploaderThread uploaderThread = new UploaderThread() {
+            @Override
+            protected void loadRecord(String tempUid, Map<String, String> map) {
+                if (loaded.incrementAndGet() == failAt) {
+                    throw new RuntimeException("Simulated store failure");
+                }
+            }
+        };
+        uploaderThread.csvFile = csvFile;
+        uploaderThread.headers = new String[]{"name", "count"};
+        uploaderThread.customIndexFields = new String[]{"count"};
+        uploaderThread.batchSize = 10;
+        uploaderThread.tempUid = "drt123";
+        return uploaderThread;
+    }
+
+    @Test
+    public void testLoadRecords() throws Exception {
+        AtomicInteger loaded = new AtomicInteger();
+        UploaderThread uploaderThread = uploaderThread(95, -1, loaded);
+        File statusFile = new File(tempDir, "status");
+        Set<String> intList = new HashSet<>();
+
+        uploaderThread.loadRecords(statusFile, intList, new HashSet<String>(), new HashSet<String>(),
+                new HashSet<String>(), new HashSet<String>(), 95);
+
+        assertEquals(95, loaded.get());
+        assertEquals(new HashSet<>(Arrays.asList("count")), intList);
+        assertTrue(FileUtils.readFileToString(statusFile).contains("95 of 95 records loaded."));
+    }
+
+    @Test
+    public void testLoadRecordsStopsAfterFailure() throws Exception {
+        AtomicInteger loaded = new AtomicInteger();
+        UploaderThread uploaderThread = uploaderThread(10000, 15, loaded);
+
+        try {
+            uploaderThread.loadRecords(new File(tempDir, "status"), new HashSet<String>(), new HashSet<String>(),
+                    new HashSet<String>(), new HashSet<String>(), new HashSet<String>(), 10000);
+            fail("The store failure should stop the upload");
+        } catch (Exception e) {
+            // expected
+        }
+        // the batches read ahead may still load, but the rest of the upload is not submitted
+        assertTrue(loaded.get() + " records loaded", loaded.get() < 100);
+    }
+
+    @Test
+    public void testLoadingStatusOnlyIncreases() throws Exception {
+        UploaderThread uploaderThread = new UploaderThread();
+        File statusFile = new File(tempDir, "status");
+
+        uploaderThread.writeLoadingStatus(statusFile, 20, 100);
+        // a batch that finished after a later batch does not move the progress back
+        uploaderThread.writeLoadingStatus(statusFile, 10, 100);
+        assertTrue(FileUtils.readFileToString(statusFile).contains("20 of 100 records loaded."));
+
+        uploaderThread.writeLoadingStatus(statusFile, 30, 100);
+        assertTrue(FileUtils.readFileToString(statusFile).contains("30 of 100 records loaded."));
+    }
+
+    /**
+     * Checks the values of one record as UploaderThread.addRecord does.
+     */
+    private static void updateColumnTypes(String[] headers, String[] line, Set<String> intList, Set<String> floatList,
+                                          Set<String> stringList, Set<String> dateList) {
+        for (int i = 0; i < headers.length && i < line.length; i++) {
+            String fieldValue = line[i].trim();
+            if (fieldValue.length() > 0) {
+                UploaderThread.updateColumnTypes(headers[i], fieldValue, intList, floatList, stringList, dateList);
+            }
+        }
+    }
+}
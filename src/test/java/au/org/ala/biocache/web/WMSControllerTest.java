@@ -0,0 +1,155 @@
+package au.org.ala.biocache.web;
+
+import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.PointType;
+import au.org.ala.biocache.dto.SpatialSearchRequestParams;
+import au.org.ala.biocache.util.ColorUtil;
+import au.org.ala.biocache.util.LegendItem;
+import au.org.ala.biocache.util.WmsEnv;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the concurrent colour queries of {@link WMSController} tiles.
+ */
+public class WMSControllerTest {
+
+    private static final int OTHER_LATITUDE = -1;
+
+    private WMSController wmsController;
+    private SearchDAO searchDAO;
+    private WmsEnv vars;
+    private final List<String[]> queriedFqs = Collections.synchronizedList(new ArrayList<String[]>());
+    private CountDownLatch concurrentQueries = new CountDownLatch(0);
+
+    @Before
+    public void setUp() throws Exception {
+        // each colour has one point at the latitude of its index, the other occurrences one at OTHER_LATITUDE
+        searchDAO = mock(SearchDAO.class);
+        when(searchDAO.getFacetPointsShort(any(SpatialSearchRequestParams.class), anyString())).thenAnswer(new Answer<FacetField>() {
+            @Override
+            public FacetField answer(InvocationOnMock invocation) throws Throwable {
+                SpatialSearchRequestParams params = invocation.getArgument(0);
+                String[] fqs = params.getFq();
+                queriedFqs.add(fqs);
+                concurrentQueries.countDown();
+                if (!concurrentQueries.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("The colour queries were not run concurrently");
+                }
+                FacetField facet = new FacetField(invocation.<String>getArgument(1));
+                if (fqs[0].startsWith("-")) {
+                    facet.add(OTHER_LATITUDE + ",0", 1);
+                } else {
+                    facet.add(fqs[0].substring("species:s".length()) + ",0", 1);
+                }
+                return facet;
+            }
+        });
+
+        wmsController = new WMSController();
+        wmsController.setSearchDAO(searchDAO);
+        vars = new WmsEnv("color:cd3844;size:10;opacity:1.0", null);
+    }
+
+    private static List<LegendItem> legend(int colours) {
+        List<LegendItem> legend = new ArrayList<LegendItem>(colours);
+        for (int i = 0; i < colours; i++) {
+            LegendItem li = new LegendItem("s" + i, null, 10, "species:s" + i);
+            li.setColour(ColorUtil.colourList[i]);
+            legend.add(li);
+        }
+        return legend;
+    }
+
+    private static SpatialSearchRequestParams requestParams() {
+        SpatialSearchRequestParams requestParams = new SpatialSearchRequestParams();
+        requestParams.setQ("*:*");
+        requestParams.setFq(new String[]{"year:2000"});
+        return requestParams;
+    }
+
+    @Test
+    public void testQueryColourPoints() throws Exception {
+        List<LegendItem> colours = legend(3);
+        List<float[]> pointsArrays = new ArrayList<float[]>();
+        List<int[]> countsArrays = new ArrayList<int[]>();
+        List<Integer> pColour = new ArrayList<Integer>();
+
+        wmsController.queryColourPoints(requestParams(), vars, PointType.POINT_1, countsArrays, pointsArrays, colours, pColour);
+
+        // the legend is not truncated so there is no query of the other occurrences
+        assertEquals(3, queriedFqs.size());
+        for (String[] fqs : queriedFqs) {
+            assertEquals(2, fqs.length);
+            assertEquals("year:2000", fqs[1]);
+        }
+        assertEquals(3, pointsArrays.size());
+        for (int i = 0; i < colours.size(); i++) {
+            assertEquals(i, pointsArrays.get(i)[1], 0);
+            assertEquals(Integer.valueOf(colours.get(i).getColour() | (vars.alpha << 24)), pColour.get(i));
+        }
+    }
+
+    @Test
+    public void testColourQueriesRunConcurrently() throws Exception {
+        // a truncated legend, so the occurrences in no colour are queried as well
+        List<LegendItem> colours = legend(ColorUtil.colourList.length - 1);
+        ReflectionTestUtils.setField(wmsController, "maxColourQueryThreads", ColorUtil.colourList.length);
+        // every query waits until all of them have started
+        concurrentQueries = new CountDownLatch(ColorUtil.colourList.length);
+        List<float[]> pointsArrays = new ArrayList<float[]>();
+        List<Integer> pColour = new ArrayList<Integer>();
+
+        List<WMSController.ColourPoints> results = wmsController.queryColourPoints(requestParams(), vars,
+                PointType.POINT_1, new ArrayList<int[]>(), pointsArrays, colours, pColour);
+
+        assertEquals(ColorUtil.colourList.length, queriedFqs.size());
+        assertEquals(ColorUtil.colourList.length, results.size());
+        // the other occurrences are drawn first in the last colour, then each colour in the order of the legend
+        assertEquals(colours.size() + 1, pointsArrays.size());
+        assertEquals(OTHER_LATITUDE, pointsArrays.get(0)[1], 0);
+        assertEquals(Integer.valueOf(ColorUtil.colourList[ColorUtil.colourList.length - 1] | (vars.alpha << 24)), pColour.get(0));
+        for (int i = 0; i < colours.size(); i++) {
+            assertEquals(i, pointsArrays.get(i + 1)[1], 0);
+            assertEquals(Integer.valueOf(colours.get(i).getColour() | (vars.alpha << 24)), pColour.get(i + 1));
+        }
+
+        Map<String, Object> stats = wmsController.getColourQueryStats();
+        assertEquals((long) colours.size(), ((Map) stats.get("colour")).get("count"));
+        assertEquals(1L, ((Map) stats.get("other")).get("count"));
+        assertEquals(1L, ((Map) stats.get("tile")).get("count"));
+    }
+
+    @Test
+    public void testOtherColourFqs() {
+        List<LegendItem> colours = Arrays.asList(
+                new LegendItem("a", null, 10, "species:a"),
+                new LegendItem("b", null, 10, "-species:b"),
+                // the legend item of occurrences without a value
+                new LegendItem(null, null, 10, "-(species:*)"));
+
+        assertArrayEquals(new String[]{"-species:a", "species:b", "(species:*)", "year:2000", "month:01"},
+                WMSController.otherColourFqs(colours, new String[]{"year:2000", "month:01"}));
+        assertArrayEquals(new String[]{"-species:a", "species:b", "(species:*)"},
+                WMSController.otherColourFqs(colours, new String[0]));
+    }
+}